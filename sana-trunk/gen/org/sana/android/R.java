@@ -198,6 +198,10 @@ public final class R {
         public static final int setting_bandwidth_summary=0x7f07004a;
         public static final int setting_barcode=0x7f07004e;
         public static final int setting_barcode_summary=0x7f07004f;
+        public static final int setting_compact_responses=0x7f070093;
+        public static final int setting_compact_responses_summary=0x7f070094;
+        public static final int setting_connect_timeout=0x7f07008f;
+        public static final int setting_connect_timeout_summary=0x7f070090;
         public static final int setting_edu=0x7f070052;
         public static final int setting_edu_summary=0x7f070053;
         public static final int setting_edu_viewer=0x7f070054;
@@ -224,14 +228,41 @@ public final class R {
         public static final int setting_proxy_host_summary=0x7f070046;
         public static final int setting_proxy_port=0x7f070047;
         public static final int setting_proxy_port_summary=0x7f070048;
+        public static final int setting_read_timeout=0x7f070091;
+        public static final int setting_read_timeout_summary=0x7f070092;
         public static final int setting_resource=0x7f070058;
         public static final int setting_resource_summary=0x7f070059;
         public static final int setting_secure=0x7f070037;
         public static final int setting_secure_summary=0x7f070038;
         public static final int setting_storage_directory=0x7f07003d;
         public static final int setting_storage_directory_summary=0x7f07003e;
+        public static final int setting_throughput=0x7f07008d;
+        public static final int setting_throughput_summary=0x7f07008e;
         public static final int setting_upload_hack=0x7f070050;
         public static final int setting_upload_hack_summary=0x7f070051;
+        public static final int setting_upload_window=0x7f07008b;
+        public static final int setting_upload_window_summary=0x7f07008c;
+        public static final int setting_upload_workers=0x7f070095;
+        public static final int setting_upload_workers_summary=0x7f070096;
+        public static final int setting_slow_link_images=0x7f070097;
+        public static final int setting_slow_link_images_summary=0x7f070098;
+        public static final int setting_mobile_link_all=0x7f070099;
+        public static final int setting_mobile_link_all_summary=0x7f07009a;
+        public static final int setting_roaming_upload=0x7f07009b;
+        public static final int setting_roaming_upload_summary=0x7f07009c;
+        public static final int setting_slow_bandwidth=0x7f07009d;
+        public static final int setting_slow_bandwidth_summary=0x7f07009e;
+        public static final int setting_image_max_dimension=0x7f07009f;
+        public static final int setting_image_max_dimension_summary=0x7f0700a0;
+        public static final int setting_image_quality=0x7f0700a1;
+        public static final int setting_image_quality_summary=0x7f0700a2;
+        public static final int setting_image_grayscale=0x7f0700a3;
+        public static final int setting_image_grayscale_summary=0x7f0700a4;
+        public static final int setting_prefetch_stats=0x7f0700a5;
+        public static final int setting_prefetch_stats_summary=0x7f0700a6;
+        public static final int procedurerunner_prefetch_stats=0x7f0700a7;
+        public static final int setting_compress_requests=0x7f0700a8;
+        public static final int setting_compress_requests_summary=0x7f0700a9;
         public static final int settings_network_title=0x7f070033;
         public static final int settings_resource_title=0x7f070034;
         /**  Settings Activity Strings 
@@ -97,6 +97,11 @@ public abstract class BaseNCodec implements BinaryEncoder, BinaryDecoder {
      */
     protected byte[] buffer;
 
+    /**
+     * Buffer which has been read out, kept to avoid allocating another.
+     */
+    private byte[] spare;
+
     /**
      * Position where next character should be written in the buffer.
      */
@@ -170,7 +175,8 @@ public abstract class BaseNCodec implements BinaryEncoder, BinaryDecoder {
     /** Increases our buffer by the {@link #DEFAULT_BUFFER_RESIZE_FACTOR}. */
     private void resizeBuffer() {
         if (buffer == null) {
-            buffer = new byte[getDefaultBufferSize()];
+            buffer = (spare != null) ? spare : new byte[getDefaultBufferSize()];
+            spare = null;
             pos = 0;
             readPos = 0;
         } else {
@@ -209,6 +215,7 @@ public abstract class BaseNCodec implements BinaryEncoder, BinaryDecoder {
             System.arraycopy(buffer, readPos, b, bPos, len);
             readPos += len;
             if (readPos >= pos) {
+                spare = buffer; // reused by the next call to resizeBuffer()
                 buffer = null; // so hasData() will return false, and this method can return -1
             }
             return len;
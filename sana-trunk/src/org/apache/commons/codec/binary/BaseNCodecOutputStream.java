@@ -34,6 +34,8 @@ public class BaseNCodecOutputStream extends FilterOutputStream {
 
     private final byte[] singleByte = new byte[1];
 
+    private byte[] buf = null;
+
     public BaseNCodecOutputStream(OutputStream out, BaseNCodec basedCodec, boolean doEncode) {
         super(out);
         this.baseNCodec = basedCodec;
@@ -102,7 +104,10 @@ public class BaseNCodecOutputStream extends FilterOutputStream {
     private void flush(boolean propogate) throws IOException {
         int avail = baseNCodec.available();
         if (avail > 0) {
-            byte[] buf = new byte[avail];
+            // reused between writes of similar size
+            if (buf == null || buf.length < avail) {
+                buf = new byte[avail];
+            }
             int c = baseNCodec.readResults(buf, 0, avail);
             if (c > 0) {
                 out.write(buf, 0, c);
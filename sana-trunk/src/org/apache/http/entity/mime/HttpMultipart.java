@@ -27,7 +27,6 @@
 
 package org.apache.http.entity.mime;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
@@ -63,14 +62,45 @@ public class HttpMultipart {
 
     private static void writeBytes(
             final String s, final Charset charset, final OutputStream out) throws IOException {
+        if (writeAscii(s, charset, out)) {
+            return;
+        }
         ByteArrayBuffer b = encode(charset, s);
         writeBytes(b, out);
     }
 
     private static void writeBytes(
             final String s, final OutputStream out) throws IOException {
-        ByteArrayBuffer b = encode(MIME.DEFAULT_CHARSET, s);
-        writeBytes(b, out);
+        writeBytes(s, MIME.DEFAULT_CHARSET, out);
+    }
+
+    /**
+     * Writes a string of ASCII characters without encoding it into a new
+     * buffer, if the charset encodes them as ASCII.
+     *
+     * @return false if nothing was written.
+     */
+    private static boolean writeAscii(
+            final String s, final Charset charset, final OutputStream out) throws IOException {
+        if (!isAsciiCompatible(charset)) {
+            return false;
+        }
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        for (int i = 0; i < len; i++) {
+            out.write(s.charAt(i));
+        }
+        return true;
+    }
+
+    private static boolean isAsciiCompatible(final Charset charset) {
+        String name = charset.name();
+        return name.equals("US-ASCII") || name.equals("ISO-8859-1")
+            || name.equals("UTF-8");
     }
 
     private static void writeField(
@@ -174,10 +204,10 @@ public class HttpMultipart {
         final OutputStream out,
         boolean writeContent) throws IOException {
 
-        ByteArrayBuffer boundary = encode(this.charset, getBoundary());
+        String boundary = getBoundary();
         for (FormBodyPart part: this.parts) {
             writeBytes(TWO_DASHES, out);
-            writeBytes(boundary, out);
+            writeBytes(boundary, this.charset, out);
             writeBytes(CR_LF, out);
 
             Header header = part.getHeader();
@@ -208,7 +238,7 @@ public class HttpMultipart {
             writeBytes(CR_LF, out);
         }
         writeBytes(TWO_DASHES, out);
-        writeBytes(boundary, out);
+        writeBytes(boundary, this.charset, out);
         writeBytes(TWO_DASHES, out);
         writeBytes(CR_LF, out);
     }
@@ -230,9 +260,8 @@ public class HttpMultipart {
      * from one another). If any of the @{link BodyPart}s contained in this object
      * is of a streaming entity of unknown length the total length is also unknown.
      * <p/>
-     * This method buffers only a small amount of data in order to determine the
-     * total length of the entire entity. The content of individual parts is not
-     * buffered.
+     * The length of the delimiters and part headers is counted without
+     * serializing them, and the content of individual parts is not buffered.
      *
      * @return total length of the multipart entity if known, <code>-1</code>
      *   otherwise.
@@ -248,15 +277,72 @@ public class HttpMultipart {
                 return -1;
             }
         }
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        try {
-            doWriteTo(this.mode, out, false);
-            byte[] extra = out.toByteArray();
-            return contentLen + extra.length;
-        } catch (IOException ex) {
-            // Should never happen
-            return -1;
+        // Mirrors doWriteTo without writing anything
+        long boundaryLen = encodedLength(this.charset, getBoundary());
+        long extra = 0;
+        for (FormBodyPart part: this.parts) {
+            extra += TWO_DASHES.length() + boundaryLen + CR_LF.length();
+
+            Header header = part.getHeader();
+
+            switch (this.mode) {
+            case STRICT:
+                for (MinimalField field: header) {
+                    extra += fieldLength(field, MIME.DEFAULT_CHARSET);
+                }
+                break;
+            case BROWSER_COMPATIBLE:
+                MinimalField cd = header.getField(MIME.CONTENT_DISPOSITION);
+                extra += fieldLength(cd, this.charset);
+                if (part.getBody().getFilename() != null) {
+                    MinimalField ct = header.getField(MIME.CONTENT_TYPE);
+                    extra += fieldLength(ct, this.charset);
+                }
+                break;
+            }
+            extra += CR_LF.length() * 2;
+        }
+        extra += TWO_DASHES.length() * 2 + boundaryLen + CR_LF.length();
+        return contentLen + extra;
+    }
+
+    private static long fieldLength(final MinimalField field, final Charset charset) {
+        return encodedLength(charset, field.getName()) + FIELD_SEP.length()
+            + encodedLength(charset, field.getBody()) + CR_LF.length();
+    }
+
+    /**
+     * Number of bytes a string encodes to, counted without encoding it for
+     * the single byte charsets and UTF-8.
+     */
+    private static long encodedLength(final Charset charset, final String s) {
+        String name = charset.name();
+        if (name.equals("US-ASCII") || name.equals("ISO-8859-1")) {
+            // unmappable characters are replaced by a single byte
+            return s.length();
+        }
+        if (name.equals("UTF-8")) {
+            long len = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    len += 1;
+                } else if (c < 0x800) {
+                    len += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 4;
+                    i++;
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    // malformed, replaced by '?'
+                    len += 1;
+                } else {
+                    len += 3;
+                }
+            }
+            return len;
         }
+        return encode(charset, s).length();
     }
 
 }
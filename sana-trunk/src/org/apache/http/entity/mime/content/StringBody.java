@@ -29,7 +29,6 @@ package org.apache.http.entity.mime.content;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
@@ -144,13 +143,9 @@ public class StringBody extends AbstractContentBody {
         if (out == null) {
             throw new IllegalArgumentException("Output stream may not be null");
         }
-        InputStream in = new ByteArrayInputStream(this.content);
-        byte[] tmp = new byte[4096];
-        int l;
-        while ((l = in.read(tmp)) != -1) {
-            out.write(tmp, 0, l);
-        }
-        out.flush();
+        // The content is already held in full; the request is flushed once
+        // it has been written
+        out.write(this.content);
     }
 
     public String getTransferEncoding() {
@@ -21,9 +21,21 @@ public class Constants {
     public static final String PROCEDURE_SUBMIT_PATTERN = 
     	"/json/procedure/submit/";
     
+    /** Url for uploading the responses of several encounters at once */
+    public static final String PROCEDURE_BATCH_SUBMIT_PATTERN = 
+    	"/json/procedure/submit/batch/";
+    
     /** Url for uploading whole binaries. <b>Deprecated</b> */
     public static final String BINARY_SUBMIT_PATTERN = "/json/binary/submit/";
     
+    /** Url for asking which binary content the MDS already holds */
+    public static final String BINARY_KNOWN_PATTERN = 
+    	"/json/binary/known/";
+    
+    /** Url for asking how much of a binary the MDS has committed */
+    public static final String BINARY_OFFSET_PATTERN = 
+    	"/json/binary/offset/";
+    
     /** Url for uploading packetized chunks of binary data */
     public static final String BINARYCHUNK_SUBMIT_PATTERN = 
     	"/json/binarychunk/submit/";
@@ -50,12 +62,49 @@ public class Constants {
     /** The default binary packet size in KB */
     public static final int DEFAULT_INIT_PACKET_SIZE = 20;
     
-    /** The smallest allowable packet size. If the algorithm in MDSInterface
-     *  results in the packet size updating to a smaller value, the upload will 
-     *  abort.
-     */
+    /** The smallest allowable packet size in KB. */
     public static final int MIN_PACKET_SIZE = 1; 
     
+    /** The largest allowable packet size in KB. */
+    public static final int MAX_PACKET_SIZE = 512;
+    
+    /** The default number of binary packets sent at once. */
+    public static final int DEFAULT_UPLOAD_WINDOW = 3;
+    
+    /** The default number of encounters uploaded at once. */
+    public static final int DEFAULT_UPLOAD_WORKERS = 2;
+    
+    /** The throughput, in KB per second, below which a link is slow. */
+    public static final int DEFAULT_SLOW_BANDWIDTH = 8;
+    
+    /** The default largest side, in pixels, of pictures sent over 3G. */
+    public static final int DEFAULT_IMAGE_MAX_DIMENSION = 1024;
+    
+    /** The default JPEG quality of pictures sent over 3G. */
+    public static final int DEFAULT_IMAGE_QUALITY = 75;
+    
+    /** The most space, in KB, kept for the smaller views of pictures. */
+    public static final int RENDITION_CACHE_SIZE = 8 * 1024;
+    
+    /** The most seconds to wait before trying a failed case a second time. */
+    public static final int UPLOAD_RETRY_DELAY = 60;
+    
+    /** The most seconds to wait before trying a failed case again. */
+    public static final int MAX_UPLOAD_RETRY_DELAY = 6 * 60 * 60;
+    
+    /** Number of times a case is tried before it is shown as failed. It is
+     *  still tried again, at the longest wait. */
+    public static final int UPLOAD_RETRY_BUDGET = 8;
+    
+    /** The most encounters whose responses are sent in one request. */
+    public static final int UPLOAD_BATCH_SIZE = 25;
+    
+    /** The default time, in seconds, to wait for a connection to the MDS. */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 20;
+    
+    /** The default time, in seconds, to wait for data from the MDS. */
+    public static final int DEFAULT_READ_TIMEOUT = 60;
+    
     /** */
     public static final int USER_INFO_TIMEOUT_PERIOD = 2; //in seconds
     
@@ -147,12 +196,57 @@ public class Constants {
      *  enabled. */
     public static final String PREFERENCE_UPLOAD_HACK = "s_upload_hack";
     
+    /** Key for looking up whether responses are sent in the compact format
+     *  of CompactResponses. */
+    public static final String PREFERENCE_COMPACT_RESPONSES = 
+    	"s_compact_responses";
+    
+    /** Key for looking up whether request bodies are sent gzip compressed. 
+     *  Only an MDS which reads compressed bodies should be sent them. */
+    public static final String PREFERENCE_COMPRESS_REQUESTS = 
+    	"s_compress_requests";
+    
     /** Key for looking up whether barcode reading is enabled */ 
     public static final String PREFERENCE_BARCODE_ENABLED = "s_barcode_enabled";
     
     /** Key for looking up whether a proxy host is set */
     public static final String PREFERENCE_PACKET_SIZE = "s_packet_init_size";
     
+    /** Key for looking up the number of binary packets sent at once */
+    public static final String PREFERENCE_UPLOAD_WINDOW = "s_upload_window";
+    
+    /** Key for looking up the number of encounters uploaded at once */
+    public static final String PREFERENCE_UPLOAD_WORKERS = "s_upload_workers";
+    
+    /** Key for looking up the largest side of pictures sent over 3G */
+    public static final String PREFERENCE_IMAGE_MAX_DIMENSION = 
+    	"s_pic_max_dimension";
+    
+    /** Key for looking up the JPEG quality of pictures sent over 3G */
+    public static final String PREFERENCE_IMAGE_QUALITY = "s_pic_quality";
+    
+    /** Key for looking up whether pictures are sent over 3G in grayscale */
+    public static final String PREFERENCE_IMAGE_GRAYSCALE = "s_pic_grayscale";
+    
+    /** Key for looking up whether pictures are sent over a slow link */
+    public static final String PREFERENCE_SLOW_LINK_IMAGES = 
+    	"s_slow_link_images";
+    
+    /** Key for looking up whether sounds and files are sent over 3G */
+    public static final String PREFERENCE_MOBILE_LINK_ALL = "s_mobile_link_all";
+    
+    /** Key for looking up whether responses are sent while roaming */
+    public static final String PREFERENCE_ROAMING_UPLOAD = "s_roaming_upload";
+    
+    /** Key for looking up the KB per second below which a link is slow */
+    public static final String PREFERENCE_SLOW_BANDWIDTH = "s_slow_bandwidth";
+    
+    /** Key for looking up the seconds to wait for a connection to the MDS */
+    public static final String PREFERENCE_CONNECT_TIMEOUT = "s_connect_timeout";
+    
+    /** Key for looking up the seconds to wait for data from the MDS */
+    public static final String PREFERENCE_READ_TIMEOUT = "s_read_timeout";
+    
     /** Key for looking up whether a proxy host is set */
     public static final String PREFERENCE_PROXY_HOST = "s_proxy_host";
     
@@ -168,6 +262,9 @@ public class Constants {
     /** Key for looking up whether education resources are visible */
     public static final String PREFERENCE_EDUCATION_RESOURCE = "s_edu_rsrc";
     
+    /** Key for looking up whether prefetch statistics are shown in procedures */
+    public static final String PREFERENCE_PREFETCH_STATS = "s_prefetch_stats";
+    
     /** */
     public static final int DEFAULT_DATABASE_UPLOAD = 1;
     
@@ -1,14 +1,14 @@
 package org.sana.android;
 
-import java.io.IOException;
-import java.io.InputStream;
+import org.sana.android.db.ImageProvider;
+import org.sana.android.media.ImageLoader;
 
 import android.app.Dialog;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.net.Uri;
+import android.util.Log;
 import android.view.GestureDetector;
 import android.view.Gravity;
 import android.view.MotionEvent;
@@ -35,7 +35,8 @@ import android.widget.ImageView.ScaleType;
  * @author Sana Dev Team
  */
 public class ImagePreviewDialog extends Dialog implements OnClickListener,
-		OnTouchListener, OnGestureListener {
+		OnTouchListener, OnGestureListener, ImageLoader.Callback {
+	private static final String TAG = ImagePreviewDialog.class.getSimpleName();
 
 	private static int BITMAP_SAMPLE_SIZE = 1;
 	private Button zoomInButton, zoomOutButton, centerButton, endButton, 
@@ -104,37 +105,28 @@ public class ImagePreviewDialog extends Dialog implements OnClickListener,
 	}
 
 	/**
-	 * Loads a bitmap image into the image preview dialog window.
-	 * @param is inputstream of the bitmap image
+	 * Loads a bitmap image into the image preview dialog window. The image is
+	 * decoded in the background and fitted once it arrives.
+	 * @param imageUri the image to show
 	 */
-	public void showImage(Uri imageUri) throws IOException {
-		BitmapFactory.Options bmo = new BitmapFactory.Options();
-
-    	// Get the image size.
-    	bmo.inJustDecodeBounds = true;
-    	InputStream imageInputStream = 
-    		getContext().getContentResolver().openInputStream(imageUri);
-    	BitmapFactory.decodeStream(imageInputStream, null, bmo);
-    	int width = bmo.outWidth;
-    	int height = bmo.outHeight;
-    	bmo.inJustDecodeBounds = false;
-    	imageInputStream.close();
-    	
-    	
-    	// Load the bitmap and downsample it to 1000 pixels along its largest 
-    	// dimension.
-    	int maxDimension = (width > height) ? width : height;
-    	bmo.inSampleSize = maxDimension / 1000;
-    	imageInputStream = getContext().getContentResolver().openInputStream(
-    			imageUri);
-		Bitmap loadedBitmap = BitmapFactory.decodeStream(imageInputStream, null,
-															bmo);
-		
+	public void showImage(Uri imageUri) {
+		// The screen view is at most 1000 pixels along its largest dimension
+		// and is kept by the provider, so the image is not decoded again.
+		ImageLoader.getInstance(getContext()).load(
+				ImageProvider.getViewUri(imageUri, ImageProvider.SCREEN_VIEW),
+				imageView, this);
+	}
+	
+	/** {@inheritDoc} */
+	public void onImageLoaded(Uri uri, Bitmap loadedBitmap) {
+		if (loadedBitmap == null) {
+			Log.e(TAG, "Can't open the image file for uri " + uri);
+			return;
+		}
 		originalWidth = (float) (loadedBitmap.getWidth());
 		originalHeight = (float) (loadedBitmap.getHeight());	
 		scaledWidth = initScaledWidth;
 		scaledHeight = initScaledHeight;
-		imageView.setImageBitmap(loadedBitmap);		
 		transX = 0f;
 		transY = 0f;
 		updateSize();
@@ -1,18 +1,15 @@
 package org.sana.android;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.HashMap;
 
 import org.sana.android.db.ImageProvider;
 import org.sana.android.db.DispatchableContract;
 import org.sana.android.db.DispatchableContract.ImageSQLFormat;
+import org.sana.android.media.ImageLoader;
 
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
 import android.view.View;
@@ -86,15 +83,14 @@ public class ScalingImageAdapter extends CursorAdapter {
     	setSelected(selection, !isSelected(selection));
     }
     
-    private Bitmap bitmapForImageUri(Context context, Uri imageUri) throws 
-    	IOException 
-    {
-    	BitmapFactory.Options bmo = new BitmapFactory.Options();
-    	bmo.inSampleSize = scaleFactor;
-    	InputStream is = context.getContentResolver().openInputStream(imageUri);
-    	Bitmap bitmap = BitmapFactory.decodeStream(is, null, bmo); 
-    	is.close();
-    	return bitmap;
+    /**
+     * Takes on the selections made in another adapter over the same images,
+     * such as one made for an earlier view.
+     * 
+     * @param other the earlier adapter
+     */
+    public void keepSelections(ScalingImageAdapter other) {
+    	selectedImages.putAll(other.selectedImages);
     }
     
     /**
@@ -140,28 +136,10 @@ public class ScalingImageAdapter extends CursorAdapter {
         	selectedImages.put(imageId, true);
         }
         
+        // Decoded in the background; a recycled view drops its old request
         Uri thumbUri = getImageThumbnailUriFromCursorRow(cursor);
-        view.setImageURI(thumbUri);
+        ImageLoader.getInstance(context).load(thumbUri, view);
         
         Log.i(TAG, "bindView: " + thumbUri);
-        /*new Thread() { 
-        	private Context mContext;
-        	private Uri imageUri;
-        	private SelectableImageView view;
-        	
-        	void initAndStart(Uri imageUri, SelectableImageView view, Context context) {
-        		this.imageUri = imageUri;
-        		this.view = view;
-        		this.mContext = context;
-        		start();
-        	}
-        	
-        	public void run() {
-        		try {
-        			view.setImageBitmap(bitmapForImageUri(mContext, imageUri));
-        		} catch(IOException e) {
-        		}
-        	}
-        }.initAndStart(imageUri, view, context);*/
     }
 }
\ No newline at end of file
@@ -163,23 +163,15 @@ public class EducationResourceList extends ListActivity {
 	public static Intent getIntent(List<String> ids, Audience audience){
 		Log.d(TAG, "getIntent(List, Audience): list: "+ ids.size() + ", audience: " 
 				+ audience.toString());
-		Intent intent = new Intent();
-		intent.setAction(Intent.ACTION_PICK)
-			.setType(EducationResources.CONTENT_TYPE)
-			.setData(EducationResources.CONTENT_URI);
+		ArrayList<EducationResource> items = null;
 		try {
 			// Parse the xml
 			InputStream in = new FileInputStream(EducationResource.getMetadata());
 			InputSource source = new InputSource(in);
 			EducationResourceParser parser = EducationResourceParser.newInstance();
 			parser.parse(source);
-			ArrayList<EducationResource> items = 
-				new ArrayList<EducationResource>(parser.infoList(ids, audience));
+			items = new ArrayList<EducationResource>(parser.infoList(ids, audience));
 			Log.d(TAG, ""+items.size());
-			if(items.size() == 0){
-				return null;
-			}
-			intent.putParcelableArrayListExtra(DispatchableContract.EDUCATIONRESOURCE_AUTHORITY,items);
 		} catch (FileNotFoundException e) {
 			Log.d(TAG, "File IO error: " + e.getMessage() );
 		} catch (ParserConfigurationException e) {
@@ -189,6 +181,31 @@ public class EducationResourceList extends ListActivity {
 		} catch (IOException e) {
 			Log.d(TAG, "IO error: " + e.getMessage() );
 		}
+		return getIntent(items, audience);
+	}
+	
+	/**
+	 * Constructs a new Intent which will launch the EducationResourceList with 
+	 * a selection of info resources which have already been looked up.
+	 * 
+	 * @param items the resources to select from, or null if they could not be
+	 * 	looked up
+	 * @param audience the target audience
+	 * @return an Intent which will launch an Activity for selecting a 
+	 * 	EducationResource resource or null if there are no resources
+	 */
+	public static Intent getIntent(ArrayList<EducationResource> items, 
+			Audience audience)
+	{
+		if(items != null && items.size() == 0){
+			return null;
+		}
+		Intent intent = new Intent();
+		intent.setAction(Intent.ACTION_PICK)
+			.setType(EducationResources.CONTENT_TYPE)
+			.setData(EducationResources.CONTENT_URI);
+		if(items != null)
+			intent.putParcelableArrayListExtra(DispatchableContract.EDUCATIONRESOURCE_AUTHORITY,items);
 		intent.putExtra("audience", audience.toString());
 		Log.d(TAG, intent.toUri(Intent.URI_INTENT_SCHEME).toString());
 		return intent;
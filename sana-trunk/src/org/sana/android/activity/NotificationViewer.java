@@ -50,7 +50,7 @@ public class NotificationViewer extends Activity implements OnClickListener {
         		Notifications.FULL_MESSAGE));
         cursor.close();
         /*
-        cursor = managedQuery(SavedProcedureSQLFormat.CONTENT_URI, new String[] {SavedProcedureSQLFormat._ID, SavedProcedureSQLFormat.PROCEDURE_ID, SavedProcedureSQLFormat.PROCEDURE_STATE},
+        cursor = managedQuery(AnswerJournal.withAnswers(SavedProcedureSQLFormat.CONTENT_URI), new String[] {SavedProcedureSQLFormat._ID, SavedProcedureSQLFormat.PROCEDURE_ID, SavedProcedureSQLFormat.PROCEDURE_STATE},
         		SavedProcedureSQLFormat.GUID + " = ?",
         		new String[] { procedureIdentifier }, null);
         
@@ -2,6 +2,7 @@ package org.sana.android.activity;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -15,6 +16,7 @@ import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.sana.android.Constants;
 import org.sana.android.R;
+import org.sana.android.db.AnswerJournal;
 import org.sana.android.db.BinaryDAO;
 import org.sana.android.db.EncounterDAO;
 import org.sana.android.db.EventDAO;
@@ -24,8 +26,11 @@ import org.sana.android.db.DispatchableContract.BinarySQLFormat;
 import org.sana.android.db.DispatchableContract.Procedures;
 import org.sana.android.db.DispatchableContract.Encounters;
 import org.sana.android.db.DispatchableContract.Events.EventType;
+import org.sana.android.media.EducationResource;
 import org.sana.android.media.EducationResource.Audience;
+import org.sana.android.media.ImageRendition;
 import org.sana.android.net.MDSInterface;
+import org.sana.android.procedure.PagePrefetcher;
 import org.sana.android.procedure.PatientIdElement;
 import org.sana.android.procedure.PictureElement;
 import org.sana.android.procedure.Procedure;
@@ -63,6 +68,7 @@ import android.os.AsyncTask.Status;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.util.Log;
+import android.view.Gravity;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -144,10 +150,17 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 	private Bundle mSavedState = null;
 	private ProcedureLoaderTask procedureLoaderTask = null;
 	private PatientLookupTask patientLookupTask= null;
+	private UploadCheckTask uploadCheckTask = null;
+	// The answers as last saved, or null if not known, and the number of 
+	// them journaled since the journal was last compacted
+	private Map<String,String> savedAnswers = null;
+	private int journaled = 0;
+	private PagePrefetcher prefetcher = null;
 	
 	
 	// Views
 	private Button next, prev, info;
+	private TextView prefetchStats = null;
 	private ViewAnimator baseViews;
 	
 	// Service
@@ -553,8 +566,13 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 	 */
 	public synchronized void showInfo(Audience audience){
 		Log.d(TAG, "Launching Help, audience: " + audience);
-		// Gets the elements of the current page which have help
-		Intent i = p.current().educationResources(audience);
+		// Gets the elements of the current page which have help, unless they
+		// were looked up before the page was shown
+		ArrayList<EducationResource> prefetched = (prefetcher == null)? null:
+			prefetcher.getEducationResources(p.current());
+		Intent i = (prefetched != null)? 
+				EducationResourceList.getIntent(prefetched, audience):
+				p.current().educationResources(audience);
 		if(i == null){
 			Toast.makeText(this, getString(R.string.dialog_no_help_available), 
 					Toast.LENGTH_SHORT).show();
@@ -683,6 +701,10 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 					request.tempImageFile = getTemporaryImageFile();
 					request.c = this;
 					request.intent = data;
+					request.rendition = ImageRendition.fromPreferences(this);
+					if (p != null)
+						request.rendition = p.getImageRendition(
+								request.elementId).over(request.rendition);
 					Log.i(TAG, "savedProcedureId " + request.savedProcedureId 
 								+ " and elementId " + request.elementId);
 
@@ -753,14 +775,44 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 	public void uploadProcedureInBackground() {
 		storeCurrentProcedure(true);
 		//First check to make sure procedure has not already been uploaded
-		if (MDSInterface.isProcedureAlreadyUploaded(thisSavedProcedure, 
-				getBaseContext())) {
-			showDialog(DIALOG_ALREADY_UPLOADED);
+		if (uploadCheckTask == null 
+				|| uploadCheckTask.getStatus() == Status.FINISHED) 
+		{
+			uploadCheckTask = new UploadCheckTask();
+			uploadCheckTask.execute(thisSavedProcedure);
 		}
-		else {
+	}
+	
+	/**
+	 * A task which adds a procedure to the upload queue unless it has 
+	 * already been uploaded. The check reads the saved answers and the 
+	 * binaries, so it is kept off the UI thread.
+	 * 
+	 * @author Sana Development Team
+	 *
+	 */
+	class UploadCheckTask extends AsyncTask<Uri, Void, Boolean> {
+		Uri procedure;
+		
+		/** {@inheritDoc} */
+		@Override
+		protected Boolean doInBackground(Uri... params) {
+			procedure = params[0];
+			return MDSInterface.isProcedureAlreadyUploaded(procedure, 
+					getBaseContext());
+		}
+		
+		/** {@inheritDoc} */
+		@Override
+		protected void onPostExecute(Boolean uploaded) {
+			if (uploaded) {
+				if (!isFinishing())
+					showDialog(DIALOG_ALREADY_UPLOADED);
+				return;
+			}
 			Log.i(TAG, "Adding current procedure to background upload queue");
 			if (mUploadService != null) {
-				mUploadService.addProcedureToQueue(thisSavedProcedure);
+				mUploadService.addProcedureToQueue(procedure);
 			}
 			logEvent(EventType.ENCOUNTER_SAVE_UPLOAD, "");
 			finish();
@@ -781,6 +833,24 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 			next.setText(getResources().getString(
 					R.string.procedurerunner_done));
 		}
+		prefetchPages();
+	}
+	
+	// looks up the current page and those predicted to follow it
+	private void prefetchPages() {
+		if (prefetcher == null || p == null || p.current() == null)
+			return;
+		List<ProcedurePage> pages = new ArrayList<ProcedurePage>();
+		pages.add(p.current());
+		pages.addAll(p.getUpcomingPages(PagePrefetcher.DEPTH));
+		prefetcher.prefetch(pages);
+		if (prefetchStats != null) {
+			int hits = prefetcher.getHitCount();
+			prefetchStats.setText(getString(
+					R.string.procedurerunner_prefetch_stats, hits, 
+					hits + prefetcher.getMissCount(), 
+					prefetcher.getHitRate()));
+		}
 	}
 
 	/**
@@ -804,6 +874,7 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 		Uri procedureUri;
 		Uri savedProcedureUri;
 		Procedure p = null;
+		Map<String,String> savedAnswers = null;
 		boolean success = false;
 		String errorMessage = "";
 	}
@@ -834,8 +905,6 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 				Uri procedure = intent.getData();
 				int procedureId = Integer.parseInt(
 						procedure.getPathSegments().get(1));
-				String procedureXml = ProcedureDAO.getXMLForProcedure(
-						ProcedureRunner.this, procedure);
 
 				// Record that we are starting a new encounter
 				logEvent(EventType.ENCOUNTER_LOAD_NEW_ENCOUNTER, 
@@ -856,7 +925,8 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 
 				Procedure p = null;
 				try {
-					p = Procedure.fromXMLString(procedureXml);
+					p = ProcedureDAO.getProcedure(ProcedureRunner.this, 
+							procedure);
 				} catch (IOException e) {
 					Log.e(TAG, "Error loading procedure from XML: " 
 							+ e.toString());
@@ -888,6 +958,7 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 				}
 				
 				result.p = p;
+				result.savedAnswers = new HashMap<String,String>();
 				result.success = p != null;
 				result.procedureUri = procedure;
 				result.savedProcedureUri = thisSavedProcedure;
@@ -945,7 +1016,8 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 				int procedureId = -1;
 				String answersJson = "";
 				try {
-					c = getContentResolver().query(thisSavedProcedure, 
+					c = getContentResolver().query(
+							AnswerJournal.withAnswers(thisSavedProcedure), 
 							new String [] { 
 								Encounters.PROCEDURE_ID,
 								Encounters.PROCEDURE_STATE }, 
@@ -981,11 +1053,10 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 				
 				Uri procedureUri = ContentUris.withAppendedId(
 						Procedures.CONTENT_URI, procedureId);
-				String procedureXml = ProcedureDAO.getXMLForProcedure(
-						ProcedureRunner.this, procedureUri);
 				Procedure procedure = null;
 				try {
-					procedure = Procedure.fromXMLString(procedureXml);
+					procedure = ProcedureDAO.getProcedure(ProcedureRunner.this,
+							procedureUri);
 					procedure.setInstanceUri(thisSavedProcedure);
 					procedure.restoreAnswers(answersMap);
 				} catch (IOException e) {
@@ -1015,6 +1086,7 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 				}
 				
 				result.p = procedure;
+				result.savedAnswers = answersMap;
 				result.success = procedure != null;
 				result.savedProcedureUri = thisSavedProcedure;
 				result.procedureUri = procedureUri;
@@ -1034,6 +1106,19 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 			if (result != null && result.success) {
 				p = result.p;
 				thisSavedProcedure = result.savedProcedureUri;
+				savedAnswers = result.savedAnswers;
+				journaled = 0;
+				if(p != null) {
+					if(prefetcher != null)
+						prefetcher.shutdown();
+					boolean showEdu = PreferenceManager
+						.getDefaultSharedPreferences(ProcedureRunner.this)
+						.getBoolean(Constants.PREFERENCE_EDUCATION_RESOURCE, 
+								false);
+					prefetcher = PagePrefetcher.create(ProcedureRunner.this, 
+							showEdu? Audience.WORKER: null);
+					p.setPrefetcher(prefetcher);
+				}
 				logEvent(EventType.ENCOUNTER_LOAD_FINISHED, "");
 				if(p != null)
 					createView();
@@ -1055,13 +1140,15 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 		if (p == null)
 			return;	
 		setTitle(p.getTitle());
-		View procedureView = wrapViewWithInterface(p.toView(this));
-
-		// Now that the view is active, go to the correct page.
-		if(p.getCurrentIndex() != startPage) {
+		
+		// Go to the correct page first so that only the views around it are 
+		// made.
+		boolean jumped = p.getCurrentIndex() != startPage;
+		if(jumped)
 			p.jumpToPage(startPage);
-			updateNextPrev();            
-		}
+		View procedureView = wrapViewWithInterface(p.toView(this));
+		if(jumped)
+			updateNextPrev();
 
 		baseViews = new ViewAnimator(this);
 		baseViews.setBackgroundResource(android.R.drawable.alert_dark_frame);
@@ -1158,6 +1245,15 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 		info.setText(getResources().getString(R.string.procedurerunner_info));
 		prev = new Button(this);
 		prev.setOnClickListener(this);
+		
+		// Are we displaying how well pages were prefetched
+		prefetchStats = null;
+		if(PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
+				Constants.PREFERENCE_PREFETCH_STATS, false))
+		{
+			prefetchStats = new TextView(this);
+			prefetchStats.setGravity(Gravity.CENTER_HORIZONTAL);
+		}
 
 		updateNextPrev();
 		// Are we dispalying Info button
@@ -1186,6 +1282,8 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 		//sv.addView(sub, new ViewGroup.LayoutParams(-1,-1));
 		//base.addView(sv, new LinearLayout.LayoutParams(-1,-2,0.99f));
 		base.addView(sub, new LinearLayout.LayoutParams(-1,-2,0.99f));
+		if(prefetchStats != null)
+			base.addView(prefetchStats, new LinearLayout.LayoutParams(-1,-2));
 		base.addView(ll, new LinearLayout.LayoutParams(-1,-2,0.01f));
 
 		base.setWeightSum(1.0f);
@@ -1202,8 +1300,10 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 	}
 
 	/**
-	 * Serializes the current procedure to the database. Takes the answers map
-	 * from the procedure, serializes it to JSON, and stores it. If finished is
+	 * Saves the answers of the current procedure to the database. Only the 
+	 * answers which changed since they were last saved are written, to the 
+	 * journal of the encounter, unless what was last saved is not known and 
+	 * the answers are serialized to JSON and stored in full. If finished is
 	 * set, then it will set the procedure's row to finished. This will signal
 	 * to the upload service that it is ready for upload.
 	 * 
@@ -1212,19 +1312,37 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 	 */
 	public void storeCurrentProcedure(boolean finished) {
 		if(p != null && thisSavedProcedure != null) {
-			JSONObject answersMap = new JSONObject(p.toAnswers());
-			String json = answersMap.toString();
-
+			Map<String,String> answers = p.toAnswers();
 			ContentValues cv = new ContentValues();
-			cv.put(Encounters.PROCEDURE_STATE, json);
+			if(savedAnswers == null) {
+				cv.put(Encounters.PROCEDURE_STATE, 
+						AnswerJournal.toState(answers));
+			} else {
+				int added = AnswerJournal.append(getContentResolver(), 
+						thisSavedProcedure, 
+						AnswerJournal.changes(savedAnswers, answers));
+				journaled += added;
+				Log.i(TAG, "storeCurrentProcedure journaled " + added 
+						+ " answers.");
+			}
+			savedAnswers = answers;
 
 			if(finished) 
 				cv.put(Encounters.FINISHED, finished);
 
-			int updatedObjects = getContentResolver().update(thisSavedProcedure, 
-					cv, null, null);
-			Log.i(TAG, "storeCurrentProcedure updated " + updatedObjects 
-					+ " objects. (SHOULD ONLY BE 1)");
+			if(cv.size() > 0) {
+				int updatedObjects = getContentResolver().update(
+						thisSavedProcedure, cv, null, null);
+				Log.i(TAG, "storeCurrentProcedure updated " + updatedObjects 
+						+ " objects. (SHOULD ONLY BE 1)");
+			}
+			if(journaled >= AnswerJournal.COMPACT_THRESHOLD 
+					|| (finished && journaled > 0)) 
+			{
+				AnswerJournal.compactInBackground(getContentResolver(), 
+						thisSavedProcedure);
+				journaled = 0;
+			}
 		}
 	}
 
@@ -1244,6 +1362,13 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 		// This is the last method in which we are guaranteed not to be killed,
 		// so save state here.
 		storeCurrentProcedure(false);
+		// Readers of the state which do not fold the journal find every 
+		// answer once the runner is left
+		if(journaled > 0 && thisSavedProcedure != null) {
+			AnswerJournal.compactInBackground(getContentResolver(), 
+					thisSavedProcedure);
+			journaled = 0;
+		}
 
 		if (lookupProgress != null) {
 			lookupProgress.dismiss();
@@ -1271,6 +1396,12 @@ public class ProcedureRunner extends Activity implements View.OnClickListener,
 		}
 		if (p != null) {
 			p.clearCachedViews();
+			p.setPrefetcher(null);
+		}
+		if (prefetcher != null) {
+			Log.i(TAG, prefetcher.toString());
+			prefetcher.shutdown();
+			prefetcher = null;
 		}
 	}
 	
@@ -3,29 +3,36 @@ package org.sana.android.activity;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.sana.android.R;
+import org.sana.android.db.AnswerJournal;
 import org.sana.android.db.DispatchableContract.Procedures;
 import org.sana.android.db.DispatchableContract.Encounters;
+import org.sana.android.db.DispatchableContract.UploadQueue;
 import org.sana.android.service.BackgroundUploader;
 import org.sana.android.service.QueueManager;
 import org.sana.android.service.ServiceConnector;
 import org.sana.android.service.ServiceListener;
+import org.sana.android.service.UploadScheduler;
 import org.sana.android.util.MocaUtil;
 
 import android.app.ListActivity;
 import android.content.ContentUris;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.ListAdapter;
 import android.widget.ListView;
@@ -52,6 +59,20 @@ public class SavedProcedureList extends ListActivity implements
 
     private ServiceConnector mConnector = new ServiceConnector();
     private BackgroundUploader mUploadService = null;
+    
+    // The upload schedule, loaded when first shown after the queue changes
+    private List<UploadScheduler.Entry> schedule = null;
+    private Map<Long, Integer> queuePositions = null;
+    private final ContentObserver queueObserver = 
+    	new ContentObserver(new Handler()) 
+    {
+    	@Override
+    	public void onChange(boolean selfChange) {
+    		schedule = null;
+    		if (getListAdapter() instanceof BaseAdapter)
+    			((BaseAdapter) getListAdapter()).notifyDataSetChanged();
+    	}
+    };
 
     /**
      * Listens for connections to the BackgroundUploader service
@@ -128,8 +149,30 @@ public class SavedProcedureList extends ListActivity implements
         return result.toString();
 	}
 	
+	/** Loads the upload schedule and the position of each encounter in it */
+	private void loadSchedule() {
+		schedule = UploadScheduler.getSchedule(this);
+		queuePositions = new HashMap<Long, Integer>();
+		for (int i = 0; i < schedule.size(); i++) {
+			queuePositions.put(ContentUris.parseId(schedule.get(i).encounter),
+					i);
+		}
+	}
+	
+	/** Describes the expected wait before an upload is done */
+	private String getExpectedWait(long expectedMillis) {
+		long minutes = (expectedMillis + 59999) / 60000;
+		if (minutes <= 1)
+			return "less than a minute";
+		if (minutes < 120)
+			return "about " + minutes + " minutes";
+		return "about " + (minutes + 30) / 60 + " hours";
+	}
+	
 	/** Gets the upload status of an item in the queue */
-	private String getUploadStatus(int queueStatus, int queuePosition) {
+	private String getUploadStatus(int queueStatus, int queuePosition,
+			long expectedMillis) 
+	{
 		String message = "";
 		if (queueStatus == 0 || queueStatus == -1) message = "Not Uploaded";
 		else if (queueStatus == QueueManager.UPLOAD_STATUS_WAITING) {
@@ -144,6 +187,8 @@ public class SavedProcedureList extends ListActivity implements
 				message += "rd in line";
 			else 
 				message += "th in line";
+			if (expectedMillis >= 0)
+				message += ", " + getExpectedWait(expectedMillis);
 		} else if (queueStatus == QueueManager.UPLOAD_STATUS_SUCCESS) 
 			message = "Uploaded Successfully";
 		else if (queueStatus == QueueManager.UPLOAD_STATUS_IN_PROGRESS) 
@@ -154,6 +199,8 @@ public class SavedProcedureList extends ListActivity implements
 			message = "Upload failed";
 		else if (queueStatus == QueueManager.UPLOAD_STATUS_CREDENTIALS_INVALID) 
 			message = "Upload stalled - username/password incorrect";
+		else if (queueStatus == QueueManager.UPLOAD_STATUS_DEFERRED) 
+			message = "Partly sent - Waiting for a faster connection";
 		else Log.i(TAG, "Not a valid number stored in database.");
 		Log.i(TAG, "Message being set as the status of the procedure: " 
 				+ message);
@@ -183,9 +230,23 @@ public class SavedProcedureList extends ListActivity implements
 				case 4:
 					Log.i(TAG, "Setting upload queue status in text view.");
 					int queueStatus = cur.getInt(columnIndex);
-					int queuePosition = cur.getInt(5);
+					// The encounter only records its entry in the queue
+					int queuePosition = -1;
+					long expectedMillis = -1;
+					if (queueStatus == QueueManager.UPLOAD_STATUS_WAITING
+							&& cur.getInt(5) >= 0)
+					{
+						if (schedule == null)
+							loadSchedule();
+						Integer index = queuePositions.get(cur.getLong(0));
+						if (index != null) {
+							queuePosition = index;
+							expectedMillis = schedule.get(index).expectedMillis;
+						}
+					}
 					String message = getUploadStatus(queueStatus, 
-							queuePosition + 1);
+							(queuePosition < 0)? -1: queuePosition + 1,
+							expectedMillis);
 					((TextView)v).setText(message);
 					break;
 				}
@@ -214,8 +275,14 @@ public class SavedProcedureList extends ListActivity implements
         			+ e.toString());
         	e.printStackTrace();
         }
-		
-        Cursor cursor = managedQuery(Encounters.CONTENT_URI, 
+		getContentResolver().registerContentObserver(UploadQueue.CONTENT_URI,
+				true, queueObserver);
+
+        // The patient names are read from every saved answer, including 
+        // any still in the journal. The runner folds the journal when it is 
+        // left, so there is seldom anything to fold here.
+        Cursor cursor = managedQuery(
+        		AnswerJournal.withAnswers(Encounters.CONTENT_URI), 
         		PROJECTION, null, null, 
         		Encounters.DEFAULT_SORT_ORDER);
 
@@ -240,6 +307,7 @@ public class SavedProcedureList extends ListActivity implements
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+		getContentResolver().unregisterContentObserver(queueObserver);
 		try {
 			mConnector.disconnect(this);
 			mUploadService = null;
@@ -2,11 +2,14 @@ package org.sana.android.activity.settings;
 
 import org.sana.android.Constants;
 import org.sana.android.R;
+import org.sana.android.net.HttpClientPool;
+import org.sana.android.net.ThroughputModelStore;
 
 import android.content.Context;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
+import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
@@ -86,6 +89,91 @@ public class NetworkSettings extends PreferenceActivity{
 		initialPacketSize.getEditText().setKeyListener(new DigitsKeyListener());
 		dialogBasedPrefCat.addPreference(initialPacketSize);
 
+		// Number of packets sent at once
+		EditTextPreference uploadWindow = new EditTextPreference(this);
+		uploadWindow.setDialogTitle(getString(R.string.setting_upload_window));
+		uploadWindow.setKey(Constants.PREFERENCE_UPLOAD_WINDOW);
+		uploadWindow.setTitle(getString(R.string.setting_upload_window));
+		uploadWindow.setSummary(getString(
+				R.string.setting_upload_window_summary));
+		uploadWindow.setDefaultValue(Integer
+				.toString(Constants.DEFAULT_UPLOAD_WINDOW));
+		uploadWindow.getEditText().setKeyListener(new DigitsKeyListener());
+		dialogBasedPrefCat.addPreference(uploadWindow);
+
+		// Number of encounters sent at once
+		EditTextPreference uploadWorkers = new EditTextPreference(this);
+		uploadWorkers.setDialogTitle(getString(R.string.setting_upload_workers));
+		uploadWorkers.setKey(Constants.PREFERENCE_UPLOAD_WORKERS);
+		uploadWorkers.setTitle(getString(R.string.setting_upload_workers));
+		uploadWorkers.setSummary(getString(
+				R.string.setting_upload_workers_summary));
+		uploadWorkers.setDefaultValue(Integer
+				.toString(Constants.DEFAULT_UPLOAD_WORKERS));
+		uploadWorkers.getEditText().setKeyListener(new DigitsKeyListener());
+		dialogBasedPrefCat.addPreference(uploadWorkers);
+
+		// What is sent over each kind of link
+		CheckBoxPreference slowLinkImages = new CheckBoxPreference(this);
+		slowLinkImages.setKey(Constants.PREFERENCE_SLOW_LINK_IMAGES);
+		slowLinkImages.setTitle(getString(R.string.setting_slow_link_images));
+		slowLinkImages.setSummary(getString(
+				R.string.setting_slow_link_images_summary));
+		slowLinkImages.setDefaultValue(false);
+		dialogBasedPrefCat.addPreference(slowLinkImages);
+
+		CheckBoxPreference mobileLinkAll = new CheckBoxPreference(this);
+		mobileLinkAll.setKey(Constants.PREFERENCE_MOBILE_LINK_ALL);
+		mobileLinkAll.setTitle(getString(R.string.setting_mobile_link_all));
+		mobileLinkAll.setSummary(getString(
+				R.string.setting_mobile_link_all_summary));
+		mobileLinkAll.setDefaultValue(false);
+		dialogBasedPrefCat.addPreference(mobileLinkAll);
+
+		CheckBoxPreference roamingUpload = new CheckBoxPreference(this);
+		roamingUpload.setKey(Constants.PREFERENCE_ROAMING_UPLOAD);
+		roamingUpload.setTitle(getString(R.string.setting_roaming_upload));
+		roamingUpload.setSummary(getString(
+				R.string.setting_roaming_upload_summary));
+		roamingUpload.setDefaultValue(true);
+		dialogBasedPrefCat.addPreference(roamingUpload);
+
+		// Throughput below which a link is treated as 2G
+		EditTextPreference slowBandwidth = new EditTextPreference(this);
+		slowBandwidth.setDialogTitle(getString(R.string.setting_slow_bandwidth));
+		slowBandwidth.setKey(Constants.PREFERENCE_SLOW_BANDWIDTH);
+		slowBandwidth.setTitle(getString(R.string.setting_slow_bandwidth));
+		slowBandwidth.setSummary(getString(
+				R.string.setting_slow_bandwidth_summary));
+		slowBandwidth.setDefaultValue(Integer
+				.toString(Constants.DEFAULT_SLOW_BANDWIDTH));
+		slowBandwidth.getEditText().setKeyListener(new DigitsKeyListener());
+		dialogBasedPrefCat.addPreference(slowBandwidth);
+
+		// Time to wait for a connection
+		EditTextPreference connectTimeout = new EditTextPreference(this);
+		connectTimeout.setDialogTitle(getString(R.string.setting_connect_timeout));
+		connectTimeout.setKey(Constants.PREFERENCE_CONNECT_TIMEOUT);
+		connectTimeout.setTitle(getString(R.string.setting_connect_timeout));
+		connectTimeout.setSummary(getString(
+				R.string.setting_connect_timeout_summary));
+		connectTimeout.setDefaultValue(Integer
+				.toString(Constants.DEFAULT_CONNECT_TIMEOUT));
+		connectTimeout.getEditText().setKeyListener(new DigitsKeyListener());
+		dialogBasedPrefCat.addPreference(connectTimeout);
+
+		// Time to wait for data
+		EditTextPreference readTimeout = new EditTextPreference(this);
+		readTimeout.setDialogTitle(getString(R.string.setting_read_timeout));
+		readTimeout.setKey(Constants.PREFERENCE_READ_TIMEOUT);
+		readTimeout.setTitle(getString(R.string.setting_read_timeout));
+		readTimeout.setSummary(getString(
+				R.string.setting_read_timeout_summary));
+		readTimeout.setDefaultValue(Integer
+				.toString(Constants.DEFAULT_READ_TIMEOUT));
+		readTimeout.getEditText().setKeyListener(new DigitsKeyListener());
+		dialogBasedPrefCat.addPreference(readTimeout);
+
 		// How often the database gets refreshed
 		EditTextPreference databaseRefresh = new EditTextPreference(this);
 		databaseRefresh.setDialogTitle(getString(R.string.setting_emr_refresh));
@@ -143,8 +231,46 @@ public class NetworkSettings extends PreferenceActivity{
 		enableUploadHack.setDefaultValue(false);
 		dialogBasedPrefCat.addPreference(enableUploadHack);
 		
+		// Whether to send responses in the compact format
+		CheckBoxPreference compactResponses = new CheckBoxPreference(this);
+		compactResponses.setKey(Constants.PREFERENCE_COMPACT_RESPONSES);
+		compactResponses.setTitle(getString(R.string.setting_compact_responses));
+		compactResponses.setSummary(getString(
+				R.string.setting_compact_responses_summary));
+		compactResponses.setDefaultValue(false);
+		dialogBasedPrefCat.addPreference(compactResponses);
+		
+		// Whether to send request bodies gzip compressed
+		CheckBoxPreference compressRequests = new CheckBoxPreference(this);
+		compressRequests.setKey(Constants.PREFERENCE_COMPRESS_REQUESTS);
+		compressRequests.setTitle(getString(R.string.setting_compress_requests));
+		compressRequests.setSummary(getString(
+				R.string.setting_compress_requests_summary));
+		compressRequests.setDefaultValue(false);
+		dialogBasedPrefCat.addPreference(compressRequests);
+		
+		// Throughput estimates kept for the current network, read only
+		Preference throughput = new Preference(this);
+		throughput.setTitle(getString(R.string.setting_throughput));
+		throughput.setSummary(describeThroughput(this));
+		throughput.setSelectable(false);
+		dialogBasedPrefCat.addPreference(throughput);
+		
         // return the preference screen
 		return root;
 	}
+	
+	/** Describes the saved throughput model for the current network */
+	private static String describeThroughput(Context c) {
+		String network = ThroughputModelStore.getNetworkKey(c);
+		String state = ThroughputModelStore.describe(c, 
+				Constants.MIN_PACKET_SIZE * 1000, 
+				Constants.MAX_PACKET_SIZE * 1000).get(network);
+		if (state == null)
+			state = c.getString(R.string.setting_throughput_summary);
+		Log.d(TAG, network + ": " + state);
+		return network + "\n" + state + "\n" 
+				+ HttpClientPool.getStatistics();
+	}
 }
 
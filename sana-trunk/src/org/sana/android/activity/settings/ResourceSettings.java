@@ -83,6 +83,42 @@ public class ResourceSettings extends PreferenceActivity{
 		imageDownscale.getEditText().setKeyListener(new DigitsKeyListener());
 		dialogBasedPrefCat.addPreference(imageDownscale);
 		
+		// Largest side of pictures sent before Wi-Fi
+		EditTextPreference imageMaxDimension = new EditTextPreference(this);
+		imageMaxDimension.setDialogTitle(getString(
+				R.string.setting_image_max_dimension));
+		imageMaxDimension.setKey(Constants.PREFERENCE_IMAGE_MAX_DIMENSION);
+		imageMaxDimension.setTitle(getString(
+				R.string.setting_image_max_dimension));
+		imageMaxDimension.setSummary(getString(
+				R.string.setting_image_max_dimension_summary));
+		imageMaxDimension.setDefaultValue(Integer
+				.toString(Constants.DEFAULT_IMAGE_MAX_DIMENSION));
+		imageMaxDimension.getEditText().setKeyListener(
+				new DigitsKeyListener());
+		dialogBasedPrefCat.addPreference(imageMaxDimension);
+		
+		// JPEG quality of pictures sent before Wi-Fi
+		EditTextPreference imageQuality = new EditTextPreference(this);
+		imageQuality.setDialogTitle(getString(R.string.setting_image_quality));
+		imageQuality.setKey(Constants.PREFERENCE_IMAGE_QUALITY);
+		imageQuality.setTitle(getString(R.string.setting_image_quality));
+		imageQuality.setSummary(getString(
+				R.string.setting_image_quality_summary));
+		imageQuality.setDefaultValue(Integer
+				.toString(Constants.DEFAULT_IMAGE_QUALITY));
+		imageQuality.getEditText().setKeyListener(new DigitsKeyListener());
+		dialogBasedPrefCat.addPreference(imageQuality);
+		
+		// Whether pictures sent before Wi-Fi are grayscale
+		CheckBoxPreference imageGrayscale = new CheckBoxPreference(this);
+		imageGrayscale.setKey(Constants.PREFERENCE_IMAGE_GRAYSCALE);
+		imageGrayscale.setTitle(getString(R.string.setting_image_grayscale));
+		imageGrayscale.setSummary(getString(
+				R.string.setting_image_grayscale_summary));
+		imageGrayscale.setDefaultValue(false);
+		dialogBasedPrefCat.addPreference(imageGrayscale);
+		
 		// Whether to info button shows up on procedure pages
 		CheckBoxPreference viewEducationResources = new CheckBoxPreference(this);
 		viewEducationResources.setKey(Constants.PREFERENCE_EDUCATION_RESOURCE);
@@ -92,6 +128,15 @@ public class ResourceSettings extends PreferenceActivity{
 		viewEducationResources.setDefaultValue(false);
 		dialogBasedPrefCat.addPreference(viewEducationResources);
 		
+		// Whether procedure pages show how well they were prefetched
+		CheckBoxPreference prefetchStats = new CheckBoxPreference(this);
+		prefetchStats.setKey(Constants.PREFERENCE_PREFETCH_STATS);
+		prefetchStats.setTitle(getString(R.string.setting_prefetch_stats));
+		prefetchStats.setSummary(getString(
+				R.string.setting_prefetch_stats_summary));
+		prefetchStats.setDefaultValue(false);
+		dialogBasedPrefCat.addPreference(prefetchStats);
+		
 		// View all edu resources
         PreferenceScreen resourcePref = getPreferenceManager()
         								.createPreferenceScreen(this);
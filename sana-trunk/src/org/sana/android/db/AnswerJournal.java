@@ -0,0 +1,381 @@
+package org.sana.android.db;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.sana.android.db.DispatchableContract.Answers;
+import org.sana.android.db.DispatchableContract.Encounters;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Keeps the answers of an encounter saved since its procedure state was last
+ * written in full, so that saving writes only the answers which changed
+ * rather than the state of the whole procedure.
+ *
+ * The journal is compacted by folding its entries, in the order they were
+ * written, into the procedure state of their encounter. A query of
+ * encounters compacts their journal first only when its uri is marked by
+ * {@link #withAnswers(Uri)}, as it is where all of the saved answers are
+ * needed: to upload an encounter or to restore it into a runner. Other
+ * readers see the state as it was last compacted. A runner compacts the
+ * journal in the background once it has grown and when the procedure is
+ * finished. A state which can not be read is never replaced by its journal
+ * alone; both are kept as they are.
+ *
+ * @author Sana Development Team
+ */
+public class AnswerJournal {
+	public static final String TAG = AnswerJournal.class.getSimpleName();
+
+	/** The table of saved answers. */
+	static final String TABLE = "answer_journal";
+
+	/** The table of the encounters answered. */
+	static final String ENCOUNTER_TABLE = "saved_procedures";
+
+	/** The number of entries after which a runner compacts the journal. */
+	public static final int COMPACT_THRESHOLD = 64;
+
+	// Entries are numbered in the order they are written, which is never reused
+	static final String CREATE_JOURNAL =
+		"CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+		+ Answers._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+		+ Answers.ENCOUNTER + " INTEGER,"
+		+ Answers.ELEMENT_ID + " TEXT,"
+		+ Answers.ANSWER + " TEXT,"
+		+ Answers.CREATED_DATE + " INTEGER,"
+		+ Answers.MODIFIED_DATE + " INTEGER"
+		+ ");";
+
+	// Entries are folded by encounter, in the order they were written
+	static final String CREATE_JOURNAL_ORDER =
+		"CREATE INDEX IF NOT EXISTS " + TABLE + "_order ON " + TABLE + " ("
+		+ Answers.ENCOUNTER + ", " + Answers._ID + ");";
+
+	private AnswerJournal(){}
+
+	/**
+	 * Finds the answers which differ from those last saved. An element with
+	 * no saved answer has changed, even if its answer is blank, so that the
+	 * default answer of the element is not restored in its place.
+	 *
+	 * @param saved the answers last saved, by element id
+	 * @param current the answers now, by element id
+	 * @return the answers which changed, by element id
+	 */
+	public static Map<String, String> changes(Map<String, String> saved,
+			Map<String, String> current)
+	{
+		Map<String, String> changes = new HashMap<String, String>();
+		for (Map.Entry<String, String> e : current.entrySet()) {
+			String answer = e.getValue();
+			String last = saved.get(e.getKey());
+			if (!saved.containsKey(e.getKey())
+					|| (answer == null? last != null: !answer.equals(last)))
+				changes.put(e.getKey(), answer);
+		}
+		return changes;
+	}
+
+	/**
+	 * Reads a procedure state.
+	 *
+	 * @param state the JSON object of answers by element id, which may be
+	 * 		null or blank
+	 * @return the answers by element id, which are none if the state can
+	 * 		not be read
+	 */
+	public static Map<String, String> parseState(String state) {
+		Map<String, String> answers = readState(state);
+		return (answers == null)? new HashMap<String, String>(): answers;
+	}
+
+	/**
+	 * Folds answers into a procedure state.
+	 *
+	 * @param state the JSON object of answers by element id, which may be
+	 * 		null or blank
+	 * @param answers the answers to fold in, by element id
+	 * @return the new state, or null if the state can not be read
+	 */
+	public static String fold(String state, Map<String, String> answers) {
+		Map<String, String> folded = readState(state);
+		if (folded == null)
+			return null;
+		folded.putAll(answers);
+		return toState(folded);
+	}
+
+	// reads a state, returns null if it can not be read
+	private static Map<String, String> readState(String state) {
+		Map<String, String> answers = new HashMap<String, String>();
+		if (state == null || state.length() == 0)
+			return answers;
+		try {
+			JSONObject object = new JSONObject(new JSONTokener(state));
+			Iterator<?> it = object.keys();
+			while (it.hasNext()) {
+				String key = (String) it.next();
+				answers.put(key, object.getString(key));
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Could not read procedure state: " + e.toString());
+			return null;
+		}
+		return answers;
+	}
+
+	/**
+	 * Writes a procedure state.
+	 *
+	 * @param answers the answers by element id
+	 * @return the JSON object of the answers
+	 */
+	public static String toState(Map<String, String> answers) {
+		return new JSONObject(answers).toString();
+	}
+
+	/**
+	 * Adds answers to the journal of an encounter, in a single transaction.
+	 *
+	 * @param resolver the resolver of the provider holding the encounter
+	 * @param encounter the uri of the encounter
+	 * @param answers the answers by element id
+	 * @return the number of entries added
+	 */
+	public static int append(ContentResolver resolver, Uri encounter,
+			Map<String, String> answers)
+	{
+		if (answers.isEmpty())
+			return 0;
+		long id = ContentUris.parseId(encounter);
+		ContentValues[] entries = new ContentValues[answers.size()];
+		int i = 0;
+		for (Map.Entry<String, String> e : answers.entrySet()) {
+			ContentValues entry = new ContentValues();
+			entry.put(Answers.ENCOUNTER, id);
+			entry.put(Answers.ELEMENT_ID, e.getKey());
+			entry.put(Answers.ANSWER, e.getValue());
+			entries[i++] = entry;
+		}
+		return resolver.bulkInsert(Answers.CONTENT_URI, entries);
+	}
+
+	/**
+	 * Marks a uri of encounters so that querying it compacts their journal
+	 * first, giving every saved answer in their procedure state. The query
+	 * writes to the database, so it should not be made on the UI thread.
+	 *
+	 * @param encounters the uri of an encounter or of the encounters
+	 * @return the marked uri
+	 */
+	public static Uri withAnswers(Uri encounters) {
+		return encounters.buildUpon()
+			.appendQueryParameter(Answers.COMPACT, "true").build();
+	}
+
+	/**
+	 * Folds the journal of an encounter into its procedure state on another
+	 * thread.
+	 *
+	 * @param resolver the resolver of the provider holding the encounter
+	 * @param encounter the uri of the encounter
+	 */
+	public static void compactInBackground(final ContentResolver resolver,
+			final Uri encounter)
+	{
+		new Thread(TAG) {
+			@Override
+			public void run() {
+				Cursor c = null;
+				try {
+					c = resolver.query(withAnswers(encounter),
+							new String[] { Encounters.PROCEDURE_STATE },
+							null, null, null);
+				} catch (Exception e) {
+					Log.w(TAG, "Could not compact " + encounter + ": "
+							+ e.toString());
+				} finally {
+					if (c != null)
+						c.close();
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Folds the journal of encounters into their procedure state. Must be
+	 * called within a transaction. The journal of an encounter whose state
+	 * can not be read is left in place.
+	 *
+	 * @param db the database holding the encounters
+	 * @param selection selects the encounters, or all of them if null
+	 * @param selectionArgs the arguments of the selection
+	 * @return the number of entries folded
+	 */
+	public static int compact(SQLiteDatabase db, String selection,
+			String[] selectionArgs)
+	{
+		Cursor cursor = db.query(TABLE, new String[] { Answers._ID,
+				Answers.ENCOUNTER, Answers.ELEMENT_ID, Answers.ANSWER },
+				encountersIn(selection), selectionArgs, null, null,
+				Answers.ENCOUNTER + ", " + Answers._ID);
+		int count = 0;
+		try {
+			long encounter = -1;
+			// later entries for an element replace earlier ones
+			Map<String, String> answers = new HashMap<String, String>();
+			long last = 0;
+			while (cursor.moveToNext()) {
+				if (cursor.getLong(1) != encounter) {
+					count += fold(db, encounter, answers, last);
+					encounter = cursor.getLong(1);
+					answers.clear();
+				}
+				answers.put(cursor.getString(2), cursor.getString(3));
+				last = cursor.getLong(0);
+			}
+			count += fold(db, encounter, answers, last);
+		} finally {
+			cursor.close();
+		}
+		if (count > 0)
+			Log.d(TAG, "Compacted " + count + " answers");
+		return count;
+	}
+
+	/**
+	 * Marks the encounters of new entries as modified, as writing their
+	 * state would have. Must be called within the transaction which adds
+	 * the entries.
+	 *
+	 * @param db the database holding the encounters
+	 * @param entries the entries added
+	 * @param now the time they were added
+	 */
+	public static void touch(SQLiteDatabase db, ContentValues[] entries,
+			long now)
+	{
+		Set<Long> encounters = new HashSet<Long>();
+		for (ContentValues entry : entries) {
+			Long encounter = entry.getAsLong(Answers.ENCOUNTER);
+			if (encounter == null)
+				throw new IllegalArgumentException(
+						"Journal entries require an encounter");
+			encounters.add(encounter);
+		}
+		ContentValues values = new ContentValues();
+		values.put(Encounters.MODIFIED_DATE, now);
+		for (Long encounter : encounters)
+			db.update(ENCOUNTER_TABLE, values,
+					Encounters._ID + " = " + encounter, null);
+	}
+
+	/**
+	 * Discards the journal of encounters whose procedure state is about to
+	 * be written in full. Must be called within the transaction which writes
+	 * it.
+	 *
+	 * @param db the database holding the encounters
+	 * @param selection selects the encounters, or all of them if null
+	 * @param selectionArgs the arguments of the selection
+	 * @return the number of entries discarded
+	 */
+	public static int discard(SQLiteDatabase db, String selection,
+			String[] selectionArgs)
+	{
+		return db.delete(TABLE, encountersIn(selection), selectionArgs);
+	}
+
+	/**
+	 * Discards the journal of encounters which no longer exist. Must be
+	 * called within the transaction which deletes them.
+	 *
+	 * @param db the database holding the encounters
+	 * @return the number of entries discarded
+	 */
+	public static int discardOrphans(SQLiteDatabase db) {
+		return db.delete(TABLE, Answers.ENCOUNTER + " NOT IN (SELECT "
+				+ Encounters._ID + " FROM " + ENCOUNTER_TABLE + ")", null);
+	}
+
+	// selects the entries of the encounters a selection selects
+	private static String encountersIn(String selection) {
+		return Answers.ENCOUNTER + " IN (SELECT " + Encounters._ID + " FROM "
+				+ ENCOUNTER_TABLE
+				+ ((selection == null || selection.length() == 0)? "":
+					" WHERE " + selection) + ")";
+	}
+
+	private static String getState(SQLiteDatabase db, long encounter) {
+		Cursor cursor = db.query(ENCOUNTER_TABLE,
+				new String[] { Encounters.PROCEDURE_STATE },
+				Encounters._ID + " = " + encounter, null, null, null, null);
+		try {
+			return (cursor.moveToFirst())? cursor.getString(0): null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	// writes the folded state and drops the entries folded into it,
+	// returns the number of entries dropped
+	private static int fold(SQLiteDatabase db, long encounter,
+			Map<String, String> answers, long last)
+	{
+		if (answers.isEmpty())
+			return 0;
+		String state = fold(getState(db, encounter), answers);
+		if (state == null) {
+			Log.w(TAG, "Keeping the journal of encounter " + encounter
+					+ ", whose state can not be read");
+			return 0;
+		}
+		ContentValues values = new ContentValues();
+		values.put(Encounters.PROCEDURE_STATE, state);
+		db.update(ENCOUNTER_TABLE, values, Encounters._ID + " = " + encounter,
+				null);
+		return db.delete(TABLE, Answers.ENCOUNTER + " = " + encounter + " AND "
+				+ Answers._ID + " <= " + last, null);
+	}
+
+	/**
+	 * Creates the journal.
+	 * @param db the database to create the table in.
+	 */
+	public static void onCreateDatabase(SQLiteDatabase db) {
+		db.execSQL(CREATE_JOURNAL);
+		db.execSQL(CREATE_JOURNAL_ORDER);
+	}
+
+	/**
+	 * Adds the journal to a database which predates it. May be called for a
+	 * database already upgraded.
+	 *
+	 * @param db the db to update in
+	 * @param oldVersion the current db version
+	 * @param newVersion the new db version
+	 */
+	public static void onUpgradeDatabase(SQLiteDatabase db, int oldVersion,
+			int newVersion)
+	{
+		if (oldVersion >= 8)
+			return;
+		Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+				+ newVersion);
+		onCreateDatabase(db);
+	}
+}
@@ -324,7 +324,8 @@ public class BinaryProvider extends ContentProvider {
                 + BinarySQLFormat.MODIFIED_DATE + " INTEGER,"
                 + BinarySQLFormat.CONTENT + " TEXT,"
                 + BinarySQLFormat.MIME + " TEXT,"
-                + BinarySQLFormat.DATA + " TEXT"
+                + BinarySQLFormat.DATA + " TEXT,"
+                + BinarySQLFormat.CONTENT_HASH + " TEXT"
                 + ");");
     }
     
@@ -362,6 +363,7 @@ public class BinaryProvider extends ContentProvider {
         sProjectionMap.put(BinarySQLFormat.MODIFIED_DATE, BinarySQLFormat.MODIFIED_DATE);
         sProjectionMap.put(BinarySQLFormat.CONTENT, BinarySQLFormat.CONTENT);
         sProjectionMap.put(BinarySQLFormat.MIME, BinarySQLFormat.MIME);
+        sProjectionMap.put(BinarySQLFormat.CONTENT_HASH, BinarySQLFormat.CONTENT_HASH);
         sProjectionMap.put(BinarySQLFormat.CONTENT, BinarySQLFormat.CONTENT);
     }
     
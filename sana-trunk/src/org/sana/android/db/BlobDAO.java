@@ -0,0 +1,125 @@
+package org.sana.android.db;
+
+import org.sana.android.db.DispatchableContract.Blobs;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Data access object for what is known of content in the {@link BlobStore}
+ * by its digest, including content kept outside the store such as binary
+ * files, which is recorded without being referred to.
+ *
+ * @author Sana Development Team
+ *
+ */
+public class BlobDAO {
+
+	private static final String TAG = BlobDAO.class.getSimpleName();
+
+	private static final String HASH_SELECTION = Blobs.HASH + " = ?";
+
+	private static final String[] PROJ_PROGRESS = new String[]{
+		Blobs.UPLOADED, Blobs.UPLOAD_PROGRESS };
+
+	/**
+	 * Records content unless it is already known.
+	 *
+	 * @param cr A content resolver
+	 * @param hash The digest of the content
+	 * @param size The number of bytes in the content
+	 */
+	public static void track(ContentResolver cr, String hash, long size)
+	{
+		if (isKnown(cr, hash))
+			return;
+		ContentValues values = new ContentValues();
+		values.put(Blobs.HASH, hash);
+		values.put(Blobs.SIZE, size);
+		cr.insert(Blobs.CONTENT_URI, values);
+		Log.d(TAG, "Tracking: " + hash);
+	}
+
+	/**
+	 * @param cr A content resolver
+	 * @param hash The digest of the content
+	 * @return true if the content is recorded
+	 */
+	public static boolean isKnown(ContentResolver cr, String hash)
+	{
+		Cursor c = cr.query(Blobs.CONTENT_URI, PROJ_PROGRESS,
+				HASH_SELECTION, new String[]{ hash }, null);
+		try {
+			return c != null && c.moveToFirst();
+		} finally {
+			if (c != null) c.close();
+		}
+	}
+
+	/**
+	 * @param cr A content resolver
+	 * @param hash The digest of the content
+	 * @return true if the MDS is known to hold the content
+	 */
+	public static boolean isUploaded(ContentResolver cr, String hash)
+	{
+		Cursor c = cr.query(Blobs.CONTENT_URI, PROJ_PROGRESS,
+				HASH_SELECTION, new String[]{ hash }, null);
+		try {
+			return c != null && c.moveToFirst() && c.getInt(0) != 0;
+		} finally {
+			if (c != null) c.close();
+		}
+	}
+
+	/**
+	 * @param cr A content resolver
+	 * @param hash The digest of the content
+	 * @return the number of bytes of the content uploaded, for content which
+	 * 		has no row of its own
+	 */
+	public static int getProgress(ContentResolver cr, String hash)
+	{
+		Cursor c = cr.query(Blobs.CONTENT_URI, PROJ_PROGRESS,
+				HASH_SELECTION, new String[]{ hash }, null);
+		try {
+			return (c != null && c.moveToFirst())? c.getInt(1): 0;
+		} finally {
+			if (c != null) c.close();
+		}
+	}
+
+	/**
+	 * Records the number of bytes of content uploaded, for content which has
+	 * no row of its own.
+	 *
+	 * @param cr A content resolver
+	 * @param hash The digest of the content
+	 * @param progress The number of bytes uploaded
+	 */
+	public static void setProgress(ContentResolver cr, String hash,
+			int progress)
+	{
+		ContentValues values = new ContentValues();
+		values.put(Blobs.UPLOAD_PROGRESS, progress);
+		cr.update(Blobs.CONTENT_URI, values, HASH_SELECTION,
+				new String[]{ hash });
+	}
+
+	/**
+	 * Records that the MDS holds the content.
+	 *
+	 * @param cr A content resolver
+	 * @param hash The digest of the content
+	 */
+	public static void setUploaded(ContentResolver cr, String hash)
+	{
+		ContentValues values = new ContentValues();
+		values.put(Blobs.UPLOADED, true);
+		cr.update(Blobs.CONTENT_URI, values, HASH_SELECTION,
+				new String[]{ hash });
+		Log.d(TAG, "Uploaded: " + hash);
+	}
+}
@@ -0,0 +1,333 @@
+package org.sana.android.db;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.sana.android.db.DispatchableContract.Blobs;
+import org.sana.android.db.DispatchableContract.DatabaseHelper;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Keeps captured files by the SHA-256 digest of their content. A file is
+ * moved into the store the first time it is read after being written, and
+ * the image, sound or binary it belongs to then refers to it by digest.
+ * Content already in the store is not kept twice, and is deleted once no
+ * row refers to it. A row whose content is written again leaves the store
+ * until it is next read.
+ *
+ * The store lives in the application files directory and its table in the
+ * same database as the rows which refer to it, so that both are updated in
+ * one transaction.
+ *
+ * @author Sana Development Team
+ */
+public class BlobStore {
+	public static final String TAG = BlobStore.class.getSimpleName();
+
+	/** The table of stored content. */
+	static final String TABLE = "blobs";
+
+	/** The directory, under the files directory, the content is kept in. */
+	static final String DIRECTORY = "blobs";
+
+	/** The tables whose rows refer to stored content. */
+	static final String[] REFERRING_TABLES = { "images", "sounds",
+		"binaries" };
+
+	static final String CREATE_BLOBS =
+		"CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+		+ Blobs._ID + " INTEGER PRIMARY KEY,"
+		+ Blobs.HASH + " TEXT UNIQUE,"
+		+ Blobs.SIZE + " INTEGER DEFAULT 0,"
+		+ Blobs.REFERENCES + " INTEGER DEFAULT 0,"
+		+ Blobs.UPLOAD_PROGRESS + " INTEGER DEFAULT 0,"
+		+ Blobs.UPLOADED + " INTEGER DEFAULT 0,"
+		+ Blobs.CREATED_DATE + " INTEGER,"
+		+ Blobs.MODIFIED_DATE + " INTEGER"
+		+ ");";
+
+	private static final String HASH_SELECTION = Blobs.HASH + " = ?";
+
+	private BlobStore(){}
+
+	/**
+	 * Computes the digest of some content.
+	 *
+	 * @param in the content, which is read to the end but not closed
+	 * @return the SHA-256 digest in hex
+	 * @throws IOException if the content can not be read
+	 */
+	public static String digest(InputStream in) throws IOException {
+		return DigestUtils.sha256Hex(in);
+	}
+
+	/**
+	 * Computes the digest of a file.
+	 *
+	 * @param file the file
+	 * @return the SHA-256 digest in hex
+	 * @throws IOException if the file can not be read
+	 */
+	public static String digest(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return digest(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return the directory the content of an application is kept in */
+	public static File getDirectory(Context c) {
+		return new File(c.getFilesDir(), DIRECTORY);
+	}
+
+	/** @return where content with a digest is kept in a directory */
+	public static File getFile(File directory, String hash) {
+		return new File(directory, hash);
+	}
+
+	/**
+	 * Moves a file into a store directory under the digest of its content.
+	 * If the directory already holds the same content the file is deleted
+	 * instead.
+	 *
+	 * @param directory the store directory
+	 * @param file the file to store
+	 * @return the digest the content is kept under
+	 * @throws IOException if the file can not be read or moved
+	 */
+	public static synchronized String store(File directory, File file)
+		throws IOException
+	{
+		String hash = digest(file);
+		File blob = getFile(directory, hash);
+		if (blob.exists()) {
+			if (!file.delete())
+				Log.w(TAG, "Could not delete the copy " + file + " of " + hash);
+		} else {
+			directory.mkdirs();
+			if (!file.renameTo(blob))
+				throw new IOException("Could not move " + file + " to " + blob);
+		}
+		return hash;
+	}
+
+	/**
+	 * Finds the file holding the content of a row, moving the row's own file
+	 * into the store if it has been written since the row was last read.
+	 *
+	 * @param c the current context
+	 * @param db the database holding the row
+	 * @param table the table of the row
+	 * @param id the _id of the row
+	 * @param own the file the row's content is written to
+	 * @return the file to read the content from
+	 */
+	public static File open(Context c, SQLiteDatabase db, String table,
+			long id, File own)
+	{
+		String hash = getHash(db, table, id);
+		if (hash == null && own.length() > 0) {
+			try {
+				hash = intern(c, db, table, id, own);
+			} catch (IOException e) {
+				Log.w(TAG, "Could not store " + own + ": " + e.toString());
+				return own;
+			}
+		}
+		return (hash == null)? own: getFile(getDirectory(c), hash);
+	}
+
+	/**
+	 * Moves the file of a row into the store and makes the row refer to it.
+	 *
+	 * @param c the current context
+	 * @param db the database holding the row
+	 * @param table the table of the row
+	 * @param id the _id of the row
+	 * @param file the file holding the row's content
+	 * @return the digest of the content
+	 * @throws IOException if the file can not be read or moved
+	 */
+	public static synchronized String intern(Context c, SQLiteDatabase db,
+			String table, long id, File file) throws IOException
+	{
+		// another reader may have stored it first
+		String stored = getHash(db, table, id);
+		if (stored != null)
+			return stored;
+		long size = file.length();
+		String hash = store(getDirectory(c), file);
+		db.beginTransaction();
+		try {
+			acquire(db, hash, size);
+			ContentValues values = new ContentValues();
+			values.put(Blobs.CONTENT_HASH, hash);
+			db.update(table, values, Blobs._ID + " = " + id, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		Log.d(TAG, "Stored " + table + "/" + id + " as " + hash);
+		return hash;
+	}
+
+	/**
+	 * Makes a row no longer refer to the store, before its content is
+	 * written again. The content is copied back to the row's own file first.
+	 *
+	 * @param c the current context
+	 * @param db the database holding the row
+	 * @param table the table of the row
+	 * @param id the _id of the row
+	 * @param own the file the row's content is written to
+	 * @throws IOException if the content can not be copied back
+	 */
+	public static synchronized void detach(Context c, SQLiteDatabase db,
+			String table, long id, File own) throws IOException
+	{
+		String hash = getHash(db, table, id);
+		if (hash == null)
+			return;
+		copy(getFile(getDirectory(c), hash), own);
+		db.beginTransaction();
+		try {
+			ContentValues values = new ContentValues();
+			values.putNull(Blobs.CONTENT_HASH);
+			db.update(table, values, Blobs._ID + " = " + id, null);
+			release(c, db, hash);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Drops the references of rows about to be deleted. Must be called
+	 * within the transaction which deletes them.
+	 *
+	 * @param c the current context
+	 * @param db the database holding the rows
+	 * @param table the table of the rows
+	 * @param selection selects the rows
+	 * @param selectionArgs the arguments of the selection
+	 */
+	public static synchronized void releaseAll(Context c, SQLiteDatabase db,
+			String table, String selection, String[] selectionArgs)
+	{
+		Cursor cursor = db.query(table, new String[] { Blobs.CONTENT_HASH },
+				selection, selectionArgs, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				if (!cursor.isNull(0))
+					release(c, db, cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					out.write(buffer, 0, read);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// counts a reference to content, recording the content if it is new
+	private static void acquire(SQLiteDatabase db, String hash, long size) {
+		Long now = Long.valueOf(System.currentTimeMillis());
+		db.execSQL("INSERT OR IGNORE INTO " + TABLE + " (" + Blobs.HASH
+				+ ", " + Blobs.SIZE + ", " + Blobs.CREATED_DATE + ", "
+				+ Blobs.MODIFIED_DATE + ") VALUES (?, ?, ?, ?);",
+				new Object[] { hash, size, now, now });
+		db.execSQL("UPDATE " + TABLE + " SET " + Blobs.REFERENCES + " = "
+				+ Blobs.REFERENCES + " + 1, " + Blobs.MODIFIED_DATE
+				+ " = ? WHERE " + HASH_SELECTION + ";",
+				new Object[] { now, hash });
+	}
+
+	// drops a reference to content, deleting the content once none is left
+	private static void release(Context c, SQLiteDatabase db, String hash) {
+		db.execSQL("UPDATE " + TABLE + " SET " + Blobs.REFERENCES + " = "
+				+ Blobs.REFERENCES + " - 1 WHERE " + HASH_SELECTION
+				+ " AND " + Blobs.REFERENCES + " > 0;", new Object[] { hash });
+		Cursor cursor = db.query(TABLE, new String[] { Blobs.REFERENCES },
+				HASH_SELECTION, new String[] { hash }, null, null, null);
+		boolean unused;
+		try {
+			unused = !cursor.moveToFirst() || cursor.getInt(0) <= 0;
+		} finally {
+			cursor.close();
+		}
+		if (!unused)
+			return;
+		db.delete(TABLE, HASH_SELECTION, new String[] { hash });
+		File blob = getFile(getDirectory(c), hash);
+		if (blob.exists() && !blob.delete())
+			Log.w(TAG, "Could not delete " + blob);
+	}
+
+	// the digest a row refers to, or null
+	private static String getHash(SQLiteDatabase db, String table, long id) {
+		Cursor cursor = db.query(table, new String[] { Blobs.CONTENT_HASH },
+				Blobs._ID + " = " + id, null, null, null, null);
+		try {
+			return (cursor.moveToFirst() && !cursor.isNull(0))?
+					cursor.getString(0): null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Creates the table of stored content.
+	 * @param db the database to create the table in.
+	 */
+	public static void onCreateDatabase(SQLiteDatabase db) {
+		db.execSQL(CREATE_BLOBS);
+	}
+
+	/**
+	 * Adds the store to a database which predates it. May be called for a
+	 * database already upgraded.
+	 *
+	 * @param db the db to update in
+	 * @param oldVersion the current db version
+	 * @param newVersion the new db version
+	 */
+	public static void onUpgradeDatabase(SQLiteDatabase db, int oldVersion,
+			int newVersion)
+	{
+		if (oldVersion >= 6)
+			return;
+		Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+				+ newVersion);
+		db.execSQL(CREATE_BLOBS);
+		for (String table : REFERRING_TABLES)
+			DatabaseHelper.addColumnIfMissing(db, table, Blobs.CONTENT_HASH,
+					"TEXT");
+	}
+}
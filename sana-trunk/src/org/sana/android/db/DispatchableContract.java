@@ -1,6 +1,7 @@
 package org.sana.android.db;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
@@ -88,7 +89,7 @@ public final class DispatchableContract {
      * 4 - Development versions between 1.1and 1.2
      * ...
      */
-    public static final int DATABASE_VERSION = 1; // Reset this to 1 before release
+    public static final int DATABASE_VERSION = 8; // Reset this to 1 before release
     
     /**
      * This class defines the URI and data fields for the content provider storing the procedure xml.
@@ -141,6 +142,12 @@ public final class DispatchableContract {
          */
         public static final String PROCEDURE = "procedure";
 
+        /**
+         * The compiled, binary form of the procedure XML. May be null, in
+         * which case the XML must be read.
+         */
+        public static final String COMPILED = "compiled";
+
         /**
          * The date the procedure was created.
          */
@@ -235,6 +242,7 @@ public final class DispatchableContract {
         // 4 - In the queue but waiting for connectivity to upload
         // 5 - Upload failed
         // 6 - Upload stalled - username/password incorrect
+        // 7 - Partly sent, the rest waiting for a faster connection
         /**
          * Status of the procedure in the upload queue<br>
          * <pre><blockquote>
@@ -245,21 +253,35 @@ public final class DispatchableContract {
          * 4 - In the queue but waiting for connectivity to upload
          * 5 - Upload failed
          * 6 - Upload stalled - username/password incorrect
+         * 7 - Partly sent, the rest waiting for a faster connection
          * </blockquote></pre>
          */
         public static final String UPLOAD_STATUS = "upload_queue_status";
         
         // Keeps track of the background upload queue
-        // >=0 -- In queue, shows position in line
+        // >=0 -- In queue, the _id of its entry in the upload queue
         // =-1 -- Not in queue (either never added or upload finished)
         /**
-         * Keeps track of the background upload queue.
+         * Keeps track of the background upload queue. Kept up to date by the
+         * provider as entries are added to or removed from {@link UploadQueue}.
          * <pre><blockquote>
-         * >=0 - In queue, shows position in line
+         * >=0 - In queue, the _id of its entry in the upload queue
          * -1 - Not in queue (either never added or upload finished)
          * </blockquote></pre>
          */
         public static final String UPLOAD_QUEUE = "upload_queue";
+        
+        /**
+         * The number of times in a row an upload of the procedure has 
+         * failed. Reset when it is uploaded or sent again by hand.
+         */
+        public static final String UPLOAD_ATTEMPTS = "upload_attempts";
+        
+        /**
+         * The time, in milliseconds, before which the procedure is not taken
+         * from the upload queue, or 0 to upload it as soon as possible.
+         */
+        public static final String NEXT_ATTEMPT = "next_attempt";
 
         /**
          * The date the procedure was created.
@@ -283,6 +305,149 @@ public final class DispatchableContract {
         public static final String PROCEDURE = "_procedure";
     }
 
+    /**
+     * This class defines the URI and data fields of the queue of encounters
+     * awaiting upload. Entries are taken in order of descending priority and,
+     * within a priority, by earliest deadline, then in the order they were 
+     * added. Adding an entry marks its encounter as queued and removing it 
+     * marks the encounter as not queued, each in a single transaction.
+     * 
+     * @author Sana Development Team
+     */
+    public static final class UploadQueue implements Columns {
+    	
+    	private UploadQueue(){}
+    	
+    	/*** The content type for one or more records */
+    	public static final String CONTENT_TYPE = 
+    							"vnd.android.cursor.dir/org.sana.uploadQueue";
+
+    	/** The content type for a single record*/
+    	public static final String CONTENT_ITEM_TYPE = 
+    							"vnd.android.cursor.item/org.sana.uploadQueue";
+
+    	/** The content style URI */
+    	public static final Uri CONTENT_URI = Uri.withAppendedPath(
+    			AUTHORITY_URI, "encounter/queue");
+    	
+    	/** The order in which entries are uploaded. */
+    	public static final String QUEUE_SORT_ORDER = 
+    		"priority DESC, deadline ASC, _id ASC";
+    	
+    	/** The _id of the queued encounter. Each is queued at most once. */
+    	public static final String ENCOUNTER = "encounter";
+    	
+    	/** Entries with a higher priority are uploaded first. Defaults to 0. */
+    	public static final String PRIORITY = "priority";
+    	
+    	/** Estimated number of bytes to send, when the entry was added. */
+    	public static final String PAYLOAD = "payload";
+    	
+    	/** 
+    	 * Time by which the entry should be uploaded, in milliseconds. Entries
+    	 * of the same priority are uploaded by earliest deadline.
+    	 */
+    	public static final String DEADLINE = "deadline";
+    }
+    
+    /**
+     * This class defines the URI and data fields of the store of captured 
+     * files, which keeps each distinct content once under its SHA-256 
+     * digest. Images, sounds and binaries refer to their content by digest 
+     * and the store counts the references, dropping content none refers to.
+     * Whether the MDS holds the content is recorded here too, so that it is
+     * sent once however many encounters it belongs to.
+     * 
+     * @author Sana Development Team
+     */
+    public static final class Blobs implements Columns {
+    	
+    	private Blobs(){}
+    	
+    	/*** The content type for one or more records */
+    	public static final String CONTENT_TYPE = 
+    							"vnd.android.cursor.dir/org.sana.blob";
+
+    	/** The content type for a single record*/
+    	public static final String CONTENT_ITEM_TYPE = 
+    							"vnd.android.cursor.item/org.sana.blob";
+
+    	/** The content style URI */
+    	public static final Uri CONTENT_URI = Uri.withAppendedPath(
+    			AUTHORITY_URI, "blobs");
+    	
+    	/** The SHA-256 digest of the content, in hex. Unique. */
+    	public static final String HASH = "hash";
+    	
+    	/** The number of bytes in the content. */
+    	public static final String SIZE = "size";
+    	
+    	/** The number of images, sounds and binaries with this content. */
+    	public static final String REFERENCES = "refs";
+    	
+    	/** 
+    	 * The number of bytes of a binary file outside the store, which has 
+    	 * no row of its own, successfully uploaded to the MDS.
+    	 */
+    	public static final String UPLOAD_PROGRESS = "upload_progress";
+    	
+    	/** Indicates whether the MDS holds the content. */
+    	public static final String UPLOADED = "uploaded";
+    	
+    	/** 
+    	 * The column of an image, sound or binary holding the digest of its
+    	 * content, or null if its content is not in the store yet.
+    	 */
+    	public static final String CONTENT_HASH = "content_hash";
+    }
+
+    /**
+     * This class defines the URI and data fields of the journal of answers
+     * saved since the state of their encounter was last written in full.
+     * Each entry is one answer, and a later entry for the same element
+     * replaces an earlier one. Reading the procedure state of an encounter
+     * folds its entries into the state first, and writing the state in full
+     * discards them.
+     *
+     * @author Sana Development Team
+     */
+    public static final class Answers implements Columns {
+
+    	private Answers(){}
+
+    	/*** The content type for one or more records */
+    	public static final String CONTENT_TYPE =
+    							"vnd.android.cursor.dir/org.sana.answer";
+
+    	/** The content type for a single record*/
+    	public static final String CONTENT_ITEM_TYPE =
+    							"vnd.android.cursor.item/org.sana.answer";
+
+    	/** The content style URI */
+    	public static final Uri CONTENT_URI = Uri.withAppendedPath(
+    			AUTHORITY_URI, "encounter/answers");
+
+    	/** The _id of the encounter answered. */
+    	public static final String ENCOUNTER = "encounter";
+
+    	/** The id of the element answered. */
+    	public static final String ELEMENT_ID = "element_id";
+
+    	/** The answer, as the element gives it. */
+    	public static final String ANSWER = "answer";
+
+    	/**
+    	 * Query parameter which, set to "true" on a query of encounters, 
+    	 * folds their journaled answers into their procedure state first.
+    	 */
+    	public static final String COMPACT = "compact";
+    }
+
+    /**
+     * Query parameter limiting the number of rows returned by a query.
+     */
+    public static final String LIMIT = "limit";
+    
     /**
      * This class defines the URI and data fields for the content provider 
      * storing the metadata for a binary file collected during a procedure.
@@ -355,6 +520,9 @@ public final class DispatchableContract {
         /** Flag whether this is a file or string data  */
         public static final String COMPLEX = "_complex";
         
+        /** The digest of the content in the {@link Blobs} store. */
+        public static final String CONTENT_HASH = Blobs.CONTENT_HASH;
+        
     }
     
     /**
@@ -428,6 +596,24 @@ public final class DispatchableContract {
          * Indicates whether or not the image is completely uploaded.
          */
         public static final String UPLOADED = "uploaded";
+        
+        /**
+         * The number of bytes of the upload rendition of the image, sent 
+         * in place of the original over slower links, successfully uploaded
+         * to the MDS.
+         */
+        public static final String RENDITION_PROGRESS = "rendition_progress";
+        
+        /**
+         * Indicates whether or not the upload rendition of the image is 
+         * completely uploaded. The original replaces it when uploaded.
+         */
+        public static final String RENDITION_UPLOADED = "rendition_uploaded";
+        
+        /**
+         * The digest of the image in the {@link Blobs} store.
+         */
+        public static final String CONTENT_HASH = Blobs.CONTENT_HASH;
 
         /**
          * The date the image was created.
@@ -502,6 +688,11 @@ public final class DispatchableContract {
          */
         public static final String UPLOADED = "uploaded";
         
+        /**
+         * The digest of the sound file in the {@link Blobs} store.
+         */
+        public static final String CONTENT_HASH = Blobs.CONTENT_HASH;
+        
         /**
          * Date the sound file was created.
          */
@@ -1254,6 +1445,37 @@ public final class DispatchableContract {
     @Deprecated
     public static class DatabaseHelper extends SQLiteOpenHelper {
 
+        /**
+         * Adds a column to a table which lacks it, so that an upgrade may be
+         * applied to a database already upgraded by another helper. Tables
+         * which do not exist are left alone.
+         * 
+         * @param db the database
+         * @param table the table to add to
+         * @param column the column name
+         * @param definition the type and constraints of the column
+         */
+        static void addColumnIfMissing(SQLiteDatabase db, String table, 
+        		String column, String definition) 
+        {
+        	Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", 
+        			null);
+        	boolean exists = false;
+        	try {
+        		int name = cursor.getColumnIndex("name");
+        		while (cursor.moveToNext()) {
+        			exists = true;
+        			if (column.equals(cursor.getString(name)))
+        				return;
+        		}
+        	} finally {
+        		cursor.close();
+        	}
+        	if (exists)
+        		db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column 
+        				+ " " + definition + ";");
+        }
+
         DatabaseHelper(Context context) {
             super(context, DispatchableContract.DATABASE_NAME, null, DispatchableContract.DATABASE_VERSION);
         }
@@ -1284,20 +1506,14 @@ public final class DispatchableContract {
          * @see android.database.sqlite.SQLiteOpenHelper#onUpgrade(android.database.sqlite.SQLiteDatabase, int, int)
          */
         /**
-         * Upgrades the database version for each content provider in the input database.
+         * Upgrades the database as the {@link DispatchableProvider} does, 
+         * since the providers share the database and either may open it 
+         * first.
          * @param db The SQLite database where the tables are stored.
          */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            ProcedureProvider.onUpgradeDatabase(db, oldVersion, newVersion);
-            SavedProcedureProvider.onUpgradeDatabase(db, oldVersion, newVersion);
-            BinaryProvider.onUpgradeDatabase(db, oldVersion, newVersion);
-            ImageProvider.onUpgradeDatabase(db, oldVersion, newVersion);
-            SoundProvider.onUpgradeDatabase(db, oldVersion, newVersion);
-            NotificationProvider.onUpgradeDatabase(db, oldVersion, newVersion);
-            PatientProvider.onUpgradeDatabase(db, oldVersion, newVersion);
-            //DoctorGroupProvider.onUpgradeDatabase(db, oldVersion, newVersion);
-            EventProvider.onUpgradeDatabase(db, oldVersion, newVersion);
+            DispatchableProvider.onUpgradeDatabase(db, oldVersion, newVersion);
         }
     }
     
@@ -7,6 +7,7 @@ import org.sana.android.R;
 import org.sana.android.db.DispatchableContract.*;
 
 import android.content.ContentProvider;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
@@ -44,6 +45,9 @@ public class DispatchableProvider extends ContentProvider {
 	private static final String OBSERVATION_TABLE = "observation";
 	private static final String EVENT_LOG_TABLE = "events";
 	private static final String MESSAGE_TABLE = "notifications";
+	private static final String UPLOAD_QUEUE_TABLE = "upload_queue";
+	private static final String BLOB_TABLE = BlobStore.TABLE;
+	private static final String ANSWER_TABLE = AnswerJournal.TABLE;
 
     private DBOpenHelper mOpenHelper;
     
@@ -66,6 +70,12 @@ public class DispatchableProvider extends ContentProvider {
     private static final int EVENT_LOG = 17;
     private static final int MESSAGE_DIR = 18;
     private static final int MESSAGE = 19;
+    private static final int UPLOAD_QUEUE_DIR = 20;
+    private static final int UPLOAD_QUEUE = 21;
+    private static final int BLOB_DIR = 22;
+    private static final int BLOB = 23;
+    private static final int ANSWER_DIR = 24;
+    private static final int ANSWER = 25;
     
     private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     private static final HashMap<String,String> mProjMap = new HashMap<String, String>();
@@ -88,6 +98,12 @@ public class DispatchableProvider extends ContentProvider {
     	uriMatcher.addURI(AUTHORITY,"events/#",EVENT_LOG);
     	uriMatcher.addURI(AUTHORITY,"notifications",MESSAGE_DIR);
     	uriMatcher.addURI(AUTHORITY,"notifications/#",MESSAGE);
+    	uriMatcher.addURI(AUTHORITY,"encounter/queue",UPLOAD_QUEUE_DIR);
+    	uriMatcher.addURI(AUTHORITY,"encounter/queue/#",UPLOAD_QUEUE);
+    	uriMatcher.addURI(AUTHORITY,"blobs",BLOB_DIR);
+    	uriMatcher.addURI(AUTHORITY,"blobs/#",BLOB);
+    	uriMatcher.addURI(AUTHORITY,"encounter/answers",ANSWER_DIR);
+    	uriMatcher.addURI(AUTHORITY,"encounter/answers/#",ANSWER);
     }
     
     
@@ -98,8 +114,29 @@ public class DispatchableProvider extends ContentProvider {
         String table = getTable(uri);
         String whereClause = getWhereWithIdOrReturn(uri, selection);
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-		int count = db.delete(table,whereClause,selectionArgs);
+		int count;
+		db.beginTransaction();
+		try {
+			if(table.equals(UPLOAD_QUEUE_TABLE)){
+				count = dequeue(db, whereClause, selectionArgs);
+			} else {
+				count = db.delete(table,whereClause,selectionArgs);
+				// Deleted encounters can not be uploaded
+				if(table.equals(ENCOUNTER_TABLE)){
+					db.delete(UPLOAD_QUEUE_TABLE, UploadQueue.ENCOUNTER 
+							+ " NOT IN (SELECT " + BaseColumns._ID + " FROM "
+							+ ENCOUNTER_TABLE + ")", null);
+					AnswerJournal.discardOrphans(db);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
 		getContext().getContentResolver().notifyChange(uri, null);
+		if(table.equals(UPLOAD_QUEUE_TABLE))
+			getContext().getContentResolver().notifyChange(
+					Encounters.CONTENT_URI, null);
 		return count;
 	}
 
@@ -144,6 +181,18 @@ public class DispatchableProvider extends ContentProvider {
 			return Notifications.CONTENT_TYPE;
 		case (MESSAGE):
 			return Notifications.CONTENT_ITEM_TYPE;
+		case (UPLOAD_QUEUE_DIR):
+			return UploadQueue.CONTENT_TYPE;
+		case (UPLOAD_QUEUE):
+			return UploadQueue.CONTENT_ITEM_TYPE;
+		case (BLOB_DIR):
+			return Blobs.CONTENT_TYPE;
+		case (BLOB):
+			return Blobs.CONTENT_ITEM_TYPE;
+		case (ANSWER_DIR):
+			return Answers.CONTENT_TYPE;
+		case (ANSWER):
+			return Answers.CONTENT_ITEM_TYPE;
 		 default:
 	            throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -164,10 +213,135 @@ public class DispatchableProvider extends ContentProvider {
             values.put(Columns.MODIFIED_DATE, now);
         }
         
+        if(table.equals(UPLOAD_QUEUE_TABLE)){
+        	long id;
+        	db.beginTransaction();
+        	try {
+        		id = enqueue(db, values);
+        		db.setTransactionSuccessful();
+        	} finally {
+        		db.endTransaction();
+        	}
+        	if(id < 0)
+        		return null;
+        	getContext().getContentResolver().notifyChange(uri, null);
+        	getContext().getContentResolver().notifyChange(
+        			Encounters.CONTENT_URI, null);
+        	return ContentUris.withAppendedId(UploadQueue.CONTENT_URI, id);
+        }
+        
+		if(table.equals(ANSWER_TABLE)){
+			db.beginTransaction();
+			try {
+				db.insert(table, null, values);
+				AnswerJournal.touch(db, new ContentValues[]{ values }, now);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			getContext().getContentResolver().notifyChange(
+					Encounters.CONTENT_URI, null);
+			return null;
+		}
+        
 		db.insert(table, null, values);
 		getContext().getContentResolver().notifyChange(uri, null);
 		return null;
 	}
+	
+	/**
+	 * Inserts every row in a single transaction.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		Log.d(TAG, "bulkInsert() uri="+uri);
+		String table = getTable(uri);
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		Long now = Long.valueOf(System.currentTimeMillis());
+		int count = 0;
+		db.beginTransaction();
+		try {
+			for(ContentValues row: values){
+				if(row.containsKey(Columns.CREATED_DATE) == false)
+					row.put(Columns.CREATED_DATE, now);
+				if(row.containsKey(Columns.MODIFIED_DATE) == false)
+					row.put(Columns.MODIFIED_DATE, now);
+				long id = (table.equals(UPLOAD_QUEUE_TABLE))? 
+						enqueue(db, row): db.insert(table, null, row);
+				if(id >= 0)
+					count++;
+			}
+			if(table.equals(ANSWER_TABLE))
+				AnswerJournal.touch(db, values, now);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		getContext().getContentResolver().notifyChange(uri, null);
+		if(table.equals(UPLOAD_QUEUE_TABLE) || table.equals(ANSWER_TABLE))
+			getContext().getContentResolver().notifyChange(
+					Encounters.CONTENT_URI, null);
+		return count;
+	}
+	
+	/**
+	 * Adds an encounter to the upload queue, unless it is already queued, and
+	 * marks the encounter with the _id of its entry. Must be called within a 
+	 * transaction.
+	 * 
+	 * @param db the database
+	 * @param values the entry, which must hold the encounter
+	 * @return the _id of the entry or -1 if there is no such encounter
+	 */
+	private long enqueue(SQLiteDatabase db, ContentValues values){
+		Long encounter = values.getAsLong(UploadQueue.ENCOUNTER);
+		if(encounter == null)
+			throw new IllegalArgumentException(
+					"Upload queue entries require an encounter");
+		Cursor c = db.query(UPLOAD_QUEUE_TABLE, 
+				new String[]{ BaseColumns._ID }, 
+				UploadQueue.ENCOUNTER + " = " + encounter, null, null, null, 
+				null);
+		try {
+			if(c.moveToFirst())
+				return c.getLong(0);
+		} finally {
+			c.close();
+		}
+		long id = db.insert(UPLOAD_QUEUE_TABLE, null, values);
+		if(id < 0)
+			return -1;
+		ContentValues queued = new ContentValues();
+		queued.put(Encounters.UPLOAD_QUEUE, id);
+		if(db.update(ENCOUNTER_TABLE, queued, 
+				BaseColumns._ID + " = " + encounter, null) == 0)
+		{
+			db.delete(UPLOAD_QUEUE_TABLE, BaseColumns._ID + " = " + id, null);
+			return -1;
+		}
+		return id;
+	}
+	
+	/**
+	 * Removes entries from the upload queue and marks their encounters as no
+	 * longer queued. Must be called within a transaction.
+	 * 
+	 * @param db the database
+	 * @param whereClause selects the entries to remove
+	 * @param whereArgs the arguments of the where clause
+	 * @return the number of entries removed
+	 */
+	private int dequeue(SQLiteDatabase db, String whereClause, 
+			String[] whereArgs)
+	{
+		ContentValues unqueued = new ContentValues();
+		unqueued.put(Encounters.UPLOAD_QUEUE, -1);
+		db.update(ENCOUNTER_TABLE, unqueued, BaseColumns._ID + " IN (SELECT "
+				+ UploadQueue.ENCOUNTER + " FROM " + UPLOAD_QUEUE_TABLE
+				+ (TextUtils.isEmpty(whereClause)? "": " WHERE " + whereClause)
+				+ ")", whereArgs);
+		return db.delete(UPLOAD_QUEUE_TABLE, whereClause, whereArgs);
+	}
 
 	@Override
     public boolean onCreate() {
@@ -202,16 +376,33 @@ public class DispatchableProvider extends ContentProvider {
         
 		String orderBy;
         if(TextUtils.isEmpty(sortOrder)) {
-            orderBy = DEFAULT_SORT_ORDER;
+            orderBy = table.equals(UPLOAD_QUEUE_TABLE)? 
+            		UploadQueue.QUEUE_SORT_ORDER: DEFAULT_SORT_ORDER;
         } else {
             orderBy = sortOrder;
         }
+		String whereClause = getWhereWithIdOrReturn(uri, selection);
+		
+		// Only readers which need every saved answer ask for the journal to
+		// be folded into the state, since that writes
+		if(table.equals(ENCOUNTER_TABLE) && Boolean.parseBoolean(
+				uri.getQueryParameter(Answers.COMPACT)))
+		{
+			SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				AnswerJournal.compact(db, whereClause, selectionArgs);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
 		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 		qb.setTables(table);
-		String whereClause = getWhereWithIdOrReturn(uri, selection);
+        String limit = uri.getQueryParameter(DispatchableContract.LIMIT);
         Cursor c = qb.query(db, projection, whereClause, selectionArgs, null, 
-        		null, orderBy);
+        		null, orderBy, limit);
 		return c;
 	}
 
@@ -226,7 +417,29 @@ public class DispatchableProvider extends ContentProvider {
 		Long now = Long.valueOf(System.currentTimeMillis());
 		values.put(Columns.MODIFIED_DATE, now);
 		
-		db.update(table, values, whereClause, selectionArgs);
+		// A compiled procedure is only valid for the xml it was compiled from
+		if(table.equals(PROCEDURE_TABLE) 
+				&& values.containsKey(Procedures.PROCEDURE)
+				&& !values.containsKey(Procedures.COMPILED))
+		{
+			values.putNull(Procedures.COMPILED);
+		}
+		
+		// A state written in full replaces the answers journaled before it
+		if(table.equals(ENCOUNTER_TABLE) 
+				&& values.containsKey(Encounters.PROCEDURE_STATE))
+		{
+			db.beginTransaction();
+			try {
+				AnswerJournal.discard(db, whereClause, selectionArgs);
+				db.update(table, values, whereClause, selectionArgs);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} else {
+			db.update(table, values, whereClause, selectionArgs);
+		}
 		getContext().getContentResolver().notifyChange(uri, null);
 		return 0;
 	}
@@ -294,6 +507,24 @@ public class DispatchableProvider extends ContentProvider {
 		case (MESSAGE):
 			table = MESSAGE_TABLE;
 			break;
+		case (UPLOAD_QUEUE_DIR):
+			table = UPLOAD_QUEUE_TABLE;
+			break;
+		case (UPLOAD_QUEUE):
+			table = UPLOAD_QUEUE_TABLE;
+			break;
+		case (BLOB_DIR):
+			table = BLOB_TABLE;
+			break;
+		case (BLOB):
+			table = BLOB_TABLE;
+			break;
+		case (ANSWER_DIR):
+			table = ANSWER_TABLE;
+			break;
+		case (ANSWER):
+			table = ANSWER_TABLE;
+			break;
 		 default:
 	            throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -337,28 +568,99 @@ public class DispatchableProvider extends ContentProvider {
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			// TODO Do something
-			if(oldVersion < newVersion){
-				
-			}
+			onUpgradeDatabase(db, oldVersion, newVersion);
 		}	
     }
+    
+    /**
+     * Upgrades the application database. This is the only upgrade of the
+     * database, whichever helper opens it first, and each step may be run
+     * again over a database it was already applied to.
+     * 
+     * @param db the application database
+     * @param oldVersion the current db version
+     * @param newVersion the db version being upgraded to
+     */
+    public static void onUpgradeDatabase(SQLiteDatabase db, int oldVersion, 
+    		int newVersion)
+    {
+    	Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+    			+ newVersion);
+    	// Tables added since are created as they are now
+    	for(String stmt: CREATES){
+    		db.execSQL(stmt);
+    	}
+    	if(oldVersion < 2){
+    		// Column to hold the compiled procedure
+    		ProcedureProvider.onUpgradeDatabase(db, oldVersion, newVersion);
+    	}
+    	if(oldVersion < 3){
+    		// The queue moves out of the encounters into its own table
+    		db.execSQL("INSERT OR IGNORE INTO " + UPLOAD_QUEUE_TABLE + " ("
+    				+ UploadQueue.ENCOUNTER + ", " + UploadQueue.DEADLINE
+    				+ ", " + Columns.CREATED_DATE + ", " 
+    				+ Columns.MODIFIED_DATE + ") SELECT " + Columns._ID 
+    				+ ", " + Columns.MODIFIED_DATE + ", " 
+    				+ Columns.MODIFIED_DATE + ", " + Columns.MODIFIED_DATE 
+    				+ " FROM " + ENCOUNTER_TABLE 
+    				+ " WHERE " + Encounters.UPLOAD_QUEUE + " >= 0 ORDER BY"
+    				+ " CAST(" + Encounters.UPLOAD_QUEUE + " AS INTEGER);");
+    		db.execSQL("UPDATE " + ENCOUNTER_TABLE + " SET " 
+    				+ Encounters.UPLOAD_QUEUE + " = (SELECT " + Columns._ID
+    				+ " FROM " + UPLOAD_QUEUE_TABLE + " WHERE " 
+    				+ UploadQueue.ENCOUNTER + " = " + ENCOUNTER_TABLE + "."
+    				+ Columns._ID + ") WHERE " + Encounters.UPLOAD_QUEUE 
+    				+ " >= 0;");
+    	} else if(oldVersion < 4){
+    		// Entries are scheduled by deadline within a priority
+    		DatabaseHelper.addColumnIfMissing(db, UPLOAD_QUEUE_TABLE, 
+    				UploadQueue.PAYLOAD, "INTEGER DEFAULT 0");
+    		DatabaseHelper.addColumnIfMissing(db, UPLOAD_QUEUE_TABLE, 
+    				UploadQueue.DEADLINE, "INTEGER DEFAULT 0");
+    		db.execSQL("UPDATE " + UPLOAD_QUEUE_TABLE + " SET " 
+    				+ UploadQueue.DEADLINE + " = " + Columns.CREATED_DATE 
+    				+ " WHERE " + UploadQueue.DEADLINE + " = 0;");
+    		db.execSQL("DROP INDEX IF EXISTS " + UPLOAD_QUEUE_TABLE 
+    				+ "_order;");
+    		db.execSQL(CREATE_UPLOAD_QUEUE_ORDER);
+    	}
+    	if(oldVersion < 5){
+    		// Failed uploads are retried after a growing wait
+    		DatabaseHelper.addColumnIfMissing(db, ENCOUNTER_TABLE, 
+    				Encounters.UPLOAD_ATTEMPTS, "INTEGER DEFAULT 0");
+    		DatabaseHelper.addColumnIfMissing(db, ENCOUNTER_TABLE, 
+    				Encounters.NEXT_ATTEMPT, "INTEGER DEFAULT 0");
+    	}
+    	if(oldVersion < 6){
+    		// Captured files are kept once by digest
+    		BlobStore.onUpgradeDatabase(db, oldVersion, newVersion);
+    	}
+    	if(oldVersion < 7){
+    		// Pictures may be sent as a smaller rendition first
+    		ImageProvider.onUpgradeDatabase(db, oldVersion, newVersion);
+    	}
+    	if(oldVersion < 8){
+    		// Answers are saved as they change
+    		AnswerJournal.onUpgradeDatabase(db, oldVersion, newVersion);
+    	}
+    }
 	
     // static create statements 
     //TODO finish implementation so that we can read from a schema
     private static final String CREATE_PROCEDURE = 
-    		"CREATE TABLE " + PROCEDURE_TABLE + " ("
+    		"CREATE TABLE IF NOT EXISTS " + PROCEDURE_TABLE + " ("
             + Columns._ID + " INTEGER PRIMARY KEY,"
             + Procedures.TITLE + " TEXT,"
             + Procedures.AUTHOR + " TEXT,"
             + Procedures.UUID + " TEXT,"
             + Procedures.PROCEDURE + " TEXT,"
+            + Procedures.COMPILED + " BLOB,"
             + Columns.CREATED_DATE + " INTEGER,"
             + Columns.MODIFIED_DATE + " INTEGER"
             + ");";
 
     private static final String CREATE_OBSERVER  = 
-    		"CREATE TABLE " + OBSERVER_TABLE + " ("
+    		"CREATE TABLE IF NOT EXISTS " + OBSERVER_TABLE + " ("
             + Columns._ID + " INTEGER PRIMARY KEY,"
             + Observers.UUID + " TEXT,"
             + Observers.NAME + " TEXT,"
@@ -368,7 +670,7 @@ public class DispatchableProvider extends ContentProvider {
             + ");";
 
     private static final String CREATE_CONCEPT = 
-    		"CREATE TABLE " + CONCEPT_TABLE + " ("
+    		"CREATE TABLE IF NOT EXISTS " + CONCEPT_TABLE + " ("
             + Columns._ID + " INTEGER PRIMARY KEY,"
             + Concepts.UUID + " TEXT,"
             + Concepts.NAME + " TEXT,"
@@ -382,7 +684,7 @@ public class DispatchableProvider extends ContentProvider {
             + ");";
 
     private static final String CREATE_RELATIONSHIP = 
-    		"CREATE TABLE " + RELATIONSHIP_TABLE + " ("
+    		"CREATE TABLE IF NOT EXISTS " + RELATIONSHIP_TABLE + " ("
             + Columns._ID + " INTEGER PRIMARY KEY,"
             + ConceptRelationships.RELATES_FROM + " TEXT,"
             + ConceptRelationships.RELATIONSHIP + " TEXT,"
@@ -393,7 +695,7 @@ public class DispatchableProvider extends ContentProvider {
             + ");";
     
     private static final String CREATE_ENCOUNTER = 
-			"CREATE TABLE " + ENCOUNTER_TABLE + " ("
+			"CREATE TABLE IF NOT EXISTS " + ENCOUNTER_TABLE + " ("
             + Columns._ID + " INTEGER PRIMARY KEY,"
             + Encounters.UUID + " TEXT,"
             + Encounters.PROCEDURE_ID + " INTEGER,"
@@ -402,6 +704,8 @@ public class DispatchableProvider extends ContentProvider {
             + Encounters.UPLOADED + " INTEGER,"
             + Encounters.UPLOAD_STATUS + " TEXT,"
             + Encounters.UPLOAD_QUEUE + " TEXT,"
+            + Encounters.UPLOAD_ATTEMPTS + " INTEGER DEFAULT 0,"
+            + Encounters.NEXT_ATTEMPT + " INTEGER DEFAULT 0,"
             + Encounters.SUBJECT + " TEXT,"
             + Encounters.OBSERVER + " TEXT,"
             + Encounters.PROCEDURE + " TEXT,"
@@ -410,7 +714,7 @@ public class DispatchableProvider extends ContentProvider {
             + ");";
 
     private static final String CREATE_OBSERVATION  = 
-    		"CREATE TABLE " + OBSERVER_TABLE + " ("
+    		"CREATE TABLE IF NOT EXISTS " + OBSERVER_TABLE + " ("
             + Columns._ID + " INTEGER PRIMARY KEY,"
             + Observations.ENCOUNTER + " TEXT,"
             + Observations.CONCEPT + " TEXT,"
@@ -424,7 +728,7 @@ public class DispatchableProvider extends ContentProvider {
             + ");";
     
     private static final String CREATE_SUBJECT = 
-    		"CREATE TABLE " + SUBJECT_TABLE + " ("
+    		"CREATE TABLE IF NOT EXISTS " + SUBJECT_TABLE + " ("
 			+ Columns._ID + " INTEGER PRIMARY KEY,"
 			+ Subjects.UUID + " TEXT,"
 			+ Subjects.GIVEN_NAME + " TEXT,"
@@ -436,7 +740,7 @@ public class DispatchableProvider extends ContentProvider {
 			+ ");";
 
     private static final String CREATE_EVENTS = 
-    		"CREATE TABLE " + EVENT_LOG_TABLE + " ("
+    		"CREATE TABLE IF NOT EXISTS " + EVENT_LOG_TABLE + " ("
 			+ Columns._ID + " INTEGER PRIMARY KEY,"
 			+ Events.EVENT_TYPE + " TEXT, "
 			+ Events.EVENT_VALUE + " TEXT, " 
@@ -449,7 +753,7 @@ public class DispatchableProvider extends ContentProvider {
 			+ ");";
     
     private static final String CREATE_MESSAGE = 
-    		"CREATE TABLE " + MESSAGE_TABLE + " ("
+    		"CREATE TABLE IF NOT EXISTS " + MESSAGE_TABLE + " ("
             + Notifications._ID + " INTEGER PRIMARY KEY,"
             + Notifications.NOTIFICATION_GUID + " TEXT,"
             + Notifications.PATIENT_ID + " TEXT,"
@@ -460,6 +764,24 @@ public class DispatchableProvider extends ContentProvider {
             + Notifications.CREATED_DATE + " INTEGER,"
             + Notifications.MODIFIED_DATE + " INTEGER"
             + ");";
+    // Entries are numbered in the order they are added, which is never reused
+    private static final String CREATE_UPLOAD_QUEUE = 
+    		"CREATE TABLE IF NOT EXISTS " + UPLOAD_QUEUE_TABLE + " ("
+            + Columns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + UploadQueue.ENCOUNTER + " INTEGER UNIQUE,"
+            + UploadQueue.PRIORITY + " INTEGER DEFAULT 0,"
+            + UploadQueue.PAYLOAD + " INTEGER DEFAULT 0,"
+            + UploadQueue.DEADLINE + " INTEGER DEFAULT 0,"
+            + Columns.CREATED_DATE + " INTEGER,"
+            + Columns.MODIFIED_DATE + " INTEGER"
+            + ");";
+    
+    // Matches UploadQueue.QUEUE_SORT_ORDER so the head is found directly
+    private static final String CREATE_UPLOAD_QUEUE_ORDER = 
+    		"CREATE INDEX IF NOT EXISTS " + UPLOAD_QUEUE_TABLE + "_order ON " 
+    		+ UPLOAD_QUEUE_TABLE + " (" + UploadQueue.PRIORITY + " DESC, " 
+    		+ UploadQueue.DEADLINE + ", " + Columns._ID + ");";
+    
     private static final String[] CREATES = new String[]{
 			CREATE_PROCEDURE,
 			CREATE_OBSERVER,
@@ -469,6 +791,11 @@ public class DispatchableProvider extends ContentProvider {
 			CREATE_OBSERVATION,
 			CREATE_SUBJECT,
 			CREATE_EVENTS,
-			CREATE_MESSAGE
+			CREATE_MESSAGE,
+			CREATE_UPLOAD_QUEUE,
+			CREATE_UPLOAD_QUEUE_ORDER,
+			BlobStore.CREATE_BLOBS,
+			AnswerJournal.CREATE_JOURNAL,
+			AnswerJournal.CREATE_JOURNAL_ORDER
 	}; 
 }
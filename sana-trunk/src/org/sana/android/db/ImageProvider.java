@@ -2,13 +2,17 @@ package org.sana.android.db;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.sana.android.Constants;
 import org.sana.android.db.DispatchableContract.DatabaseHelper;
 import org.sana.android.db.DispatchableContract.ImageSQLFormat;
+import org.sana.android.media.ImageRendition;
 
 import android.content.ContentProvider;
 import android.content.ContentUris;
@@ -19,6 +23,8 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
@@ -36,6 +42,24 @@ public class ImageProvider extends ContentProvider {
     
     public static final String VIEW_PARAMETER = "view";
     public static final String THUMBNAIL_VIEW = "thumb";
+    public static final String RENDITION_VIEW = "rendition";
+    public static final String PREVIEW_VIEW = "preview";
+    public static final String SCREEN_VIEW = "screen";
+    
+    /** 
+     * The views kept in the rendition cache, largest first, and the size and
+     * quality each is made at. All are made together from one decode of the 
+     * image.
+     */
+    private static final String[] CACHED_VIEWS = { SCREEN_VIEW, PREVIEW_VIEW,
+    	THUMBNAIL_VIEW };
+    private static final ImageRendition[] CACHED_SIZES = {
+    	new ImageRendition(1000, 85, Boolean.FALSE),
+    	new ImageRendition(320, 70, Boolean.FALSE),
+    	new ImageRendition(100, 50, Boolean.FALSE) };
+    
+    /** The directory, under the files directory, the cache is kept in. */
+    private static final String RENDITION_DIRECTORY = "renditions";
     
     private static final String IMAGE_TABLE_NAME = "images";
     public static final String IMAGE_BUCKET_NAME = "/sdcard/dcim/moca/";
@@ -44,6 +68,7 @@ public class ImageProvider extends ContentProvider {
     private static final int IMAGE_ID = 2;
     
     private DatabaseHelper mOpenHelper;
+    private RenditionCache mRenditions;
     private static final UriMatcher sUriMatcher;
     private static HashMap<String,String> sImageProjectionMap;
 
@@ -52,6 +77,8 @@ public class ImageProvider extends ContentProvider {
     public boolean onCreate() {
         Log.i(TAG, "onCreate()");
         mOpenHelper = new DatabaseHelper(getContext());
+        mRenditions = new RenditionCache(new File(getContext().getFilesDir(),
+        		RENDITION_DIRECTORY), Constants.RENDITION_CACHE_SIZE * 1024L);
         return true;
     }
 
@@ -61,9 +88,35 @@ public class ImageProvider extends ContentProvider {
 	 * to the same item that imageUri refers to.
 	 */
     public static Uri getThumbUri(Uri imageUri) {
-    	Uri.Builder thumbBuilder = imageUri.buildUpon();
-    	thumbBuilder.appendQueryParameter(VIEW_PARAMETER, THUMBNAIL_VIEW);
-    	return thumbBuilder.build();
+    	return getViewUri(imageUri, THUMBNAIL_VIEW);
+    }
+    
+	/**
+	 * Return the Uri of a smaller view of a given ImageProvider item Uri, which
+	 * may be opened for reading as a JPEG file. The thumbnail, preview and 
+	 * screen views are made together the first time any is read and kept in
+	 * a cache of bounded size.
+	 * 
+	 * @param imageUri the image
+	 * @param view {@link #THUMBNAIL_VIEW}, {@link #PREVIEW_VIEW} or 
+	 * 		{@link #SCREEN_VIEW}
+	 */
+    public static Uri getViewUri(Uri imageUri, String view) {
+    	Uri.Builder viewBuilder = imageUri.buildUpon();
+    	viewBuilder.appendQueryParameter(VIEW_PARAMETER, view);
+    	return viewBuilder.build();
+    }
+    
+	/**
+	 * Return the Uri of the upload rendition for a given ImageProvider item 
+	 * Uri, which is sent in place of the original over slower links. The 
+	 * returned Uri may be opened as a file; an image without a rendition has
+	 * an empty one.
+	 */
+    public static Uri getRenditionUri(Uri imageUri) {
+    	Uri.Builder renditionBuilder = imageUri.buildUpon();
+    	renditionBuilder.appendQueryParameter(VIEW_PARAMETER, RENDITION_VIEW);
+    	return renditionBuilder.build();
     }
     
     private String basePath() {
@@ -74,10 +127,15 @@ public class ImageProvider extends ContentProvider {
     	return basePath() + imageId;
     }
     
+    // thumbnails are no longer written here but may be left from before
     private String buildThumbnailFilenameFromId(String imageId) {
     	return basePath() + "thumb_" + imageId;
     }
     
+    private String buildRenditionFilenameFromId(String imageId) {
+    	return basePath() + "rendition_" + imageId;
+    }
+    
     private String buildFilenameFromUri(Uri uri) {
     	List<String> segments = uri.getPathSegments();
     	
@@ -88,8 +146,8 @@ public class ImageProvider extends ContentProvider {
     	String imageId = segments.get(1);
     	String viewName = uri.getQueryParameter(VIEW_PARAMETER);
     	
-    	if (THUMBNAIL_VIEW.equals(viewName)) {
-    		return buildThumbnailFilenameFromId(imageId);
+    	if (RENDITION_VIEW.equals(viewName)) {
+    		return buildRenditionFilenameFromId(imageId);
     	} else { // default to image view
     		return buildImageFilenameFromId(imageId);
     	}
@@ -106,9 +164,108 @@ public class ImageProvider extends ContentProvider {
     	boolean thumbResult = f.delete();
     	Log.i(TAG, "Deleting thumbnail for id " + imageId + " : " + filename 
     			+ " " + (thumbResult ? "succeeded" : "failed"));
+    	f = new File(buildRenditionFilenameFromId(imageId));
+    	if (f.exists() && !f.delete())
+    		Log.i(TAG, "Deleting rendition for id " + imageId + " failed");
+    	removeCachedViews(imageId);
     	return result && thumbResult;
     }
     
+    private static String cacheKey(String imageId, String view) {
+    	return imageId + "_" + view;
+    }
+    
+    private static boolean isCachedView(String view) {
+    	for (String cached : CACHED_VIEWS) {
+    		if (cached.equals(view))
+    			return true;
+    	}
+    	return false;
+    }
+    
+    private void removeCachedViews(String imageId) {
+    	mRenditions.removeAll(cacheKey(imageId, ""));
+    }
+    
+    // reads a view from the cache, making every view of the image on a miss
+    private File getCachedView(Uri uri, String view) 
+    	throws FileNotFoundException
+    {
+    	String imageId = uri.getPathSegments().get(1);
+    	File f = mRenditions.get(cacheKey(imageId, view));
+    	if (f != null)
+    		return f;
+    	synchronized (this) {
+    		// another reader may have made it first
+    		f = mRenditions.get(cacheKey(imageId, view));
+    		if (f != null)
+    			return f;
+    		File source = getContentFile(uri, 
+    				new File(buildImageFilenameFromId(imageId)), "r");
+    		try {
+    			makeCachedViews(imageId, source);
+    		} catch (IOException e) {
+    			throw new FileNotFoundException("Could not make the views of " 
+    					+ uri + ": " + e.toString());
+    		} catch (OutOfMemoryError e) {
+    			throw new FileNotFoundException("Could not make the views of " 
+    					+ uri + ": " + e.toString());
+    		}
+    		f = mRenditions.get(cacheKey(imageId, view));
+    	}
+    	if (f == null)
+    		throw new FileNotFoundException("No " + view + " view of " + uri);
+    	return f;
+    }
+    
+    /*
+     * Decodes the image once, subsampled for the largest view, and scales each
+     * smaller view from the one before it.
+     */
+    private void makeCachedViews(String imageId, File source) 
+    	throws IOException
+    {
+    	String path = source.getAbsolutePath();
+    	BitmapFactory.Options options = new BitmapFactory.Options();
+    	options.inJustDecodeBounds = true;
+    	BitmapFactory.decodeFile(path, options);
+    	int width = options.outWidth;
+    	int height = options.outHeight;
+    	if (width <= 0 || height <= 0)
+    		throw new IOException("Not an image: " + source);
+    	
+    	options.inJustDecodeBounds = false;
+    	options.inSampleSize = CACHED_SIZES[0].getSampleSize(width, height);
+    	options.inPreferredConfig = Bitmap.Config.RGB_565;
+    	Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+    	if (bitmap == null)
+    		throw new IOException("Could not decode " + source);
+    	Log.i(TAG, "Making views of image " + imageId + " from " + width + "x" 
+    			+ height + " sampled by " + options.inSampleSize);
+    	try {
+    		for (int i = 0; i < CACHED_VIEWS.length; i++) {
+    			int[] size = CACHED_SIZES[i].getSize(width, height);
+    			if (size[0] < bitmap.getWidth() || size[1] < bitmap.getHeight()) {
+    				Bitmap scaled = Bitmap.createScaledBitmap(bitmap, size[0], 
+    						size[1], true);
+    				bitmap.recycle();
+    				bitmap = scaled;
+    			}
+    			File tmp = mRenditions.createTempFile();
+    			OutputStream out = new FileOutputStream(tmp);
+    			try {
+    				bitmap.compress(Bitmap.CompressFormat.JPEG, 
+    						CACHED_SIZES[i].getQuality(), out);
+    			} finally {
+    				out.close();
+    			}
+    			mRenditions.put(cacheKey(imageId, CACHED_VIEWS[i]), tmp);
+    		}
+    	} finally {
+    		bitmap.recycle();
+    	}
+    }
+    
     private boolean deleteFile(Uri uri) {
     	List<String> segments = uri.getPathSegments();
     	
@@ -120,6 +277,25 @@ public class ImageProvider extends ContentProvider {
     	return deleteFile(imageId);
     }
 
+    // images are read from the blob store and written to their own file
+    private File getContentFile(Uri uri, File own, String mode) 
+    	throws FileNotFoundException
+    {
+    	SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    	long imageId = ContentUris.parseId(uri);
+    	if ("r".equals(mode))
+    		return BlobStore.open(getContext(), db, IMAGE_TABLE_NAME, imageId, 
+    				own);
+    	removeCachedViews(String.valueOf(imageId));
+    	try {
+    		BlobStore.detach(getContext(), db, IMAGE_TABLE_NAME, imageId, own);
+    	} catch (IOException e) {
+    		throw new FileNotFoundException("Could not restore " + uri + ": " 
+    				+ e.toString());
+    	}
+    	return own;
+    }
+
     /** {@inheritDoc} */
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws 
@@ -128,6 +304,15 @@ public class ImageProvider extends ContentProvider {
     	String filename = buildFilenameFromUri(uri);
         Log.i(TAG, "openFile() for filename: " + filename + " mode: " + mode);
         File f = new File(filename); 
+        String view = uri.getQueryParameter(VIEW_PARAMETER);
+        if (sUriMatcher.match(uri) == IMAGE_ID && isCachedView(view)) {
+        	if (!"r".equals(mode))
+        		throw new FileNotFoundException("The " + view 
+        				+ " view is read only: " + uri);
+        	f = getCachedView(uri, view);
+        } else if (sUriMatcher.match(uri) == IMAGE_ID && view == null) {
+        	f = getContentFile(uri, f, mode);
+        }
         
         //Hack to get image to write to database
         
@@ -224,7 +409,15 @@ public class ImageProvider extends ContentProvider {
         	}
         	c.deactivate();
         	
-            count = db.delete(IMAGE_TABLE_NAME, selection, selectionArgs);
+        	db.beginTransaction();
+        	try {
+        		BlobStore.releaseAll(getContext(), db, IMAGE_TABLE_NAME, 
+        				selection, selectionArgs);
+        		count = db.delete(IMAGE_TABLE_NAME, selection, selectionArgs);
+        		db.setTransactionSuccessful();
+        	} finally {
+        		db.endTransaction();
+        	}
             
             for(String id : idList) {
             	deleteFile(id);
@@ -232,10 +425,20 @@ public class ImageProvider extends ContentProvider {
             break;
         case IMAGE_ID:
             String imageId = uri.getPathSegments().get(1); 
-            count = db.delete(IMAGE_TABLE_NAME, ImageSQLFormat._ID + "=" 
-            		+ imageId + (!TextUtils.isEmpty(selection) ? " AND (" 
-            				+ selection + ")" : ""), selectionArgs);
+            String where = ImageSQLFormat._ID + "=" + imageId 
+            		+ (!TextUtils.isEmpty(selection) ? " AND (" + selection 
+            				+ ")" : "");
+            db.beginTransaction();
+            try {
+            	BlobStore.releaseAll(getContext(), db, IMAGE_TABLE_NAME, where, 
+            			selectionArgs);
+            	count = db.delete(IMAGE_TABLE_NAME, where, selectionArgs);
+            	db.setTransactionSuccessful();
+            } finally {
+            	db.endTransaction();
+            }
             deleteFile(uri);
+            removeCachedViews(imageId);
             break;
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
@@ -297,6 +500,14 @@ public class ImageProvider extends ContentProvider {
             values.put(ImageSQLFormat.UPLOADED, false);
         }
         
+        if(values.containsKey(ImageSQLFormat.RENDITION_PROGRESS) == false) {
+            values.put(ImageSQLFormat.RENDITION_PROGRESS, 0);
+        }
+        
+        if(values.containsKey(ImageSQLFormat.RENDITION_UPLOADED) == false) {
+            values.put(ImageSQLFormat.RENDITION_UPLOADED, false);
+        }
+        
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         long rowId = db.insert(IMAGE_TABLE_NAME, 
         		ImageSQLFormat.SAVED_PROCEDURE_ID, values);
@@ -352,6 +563,9 @@ public class ImageProvider extends ContentProvider {
                 + ImageSQLFormat.FILE_SIZE + " INTEGER,"
                 + ImageSQLFormat.UPLOAD_PROGRESS + " INTEGER,"
                 + ImageSQLFormat.UPLOADED + " INTEGER,"
+                + ImageSQLFormat.RENDITION_PROGRESS + " INTEGER DEFAULT 0,"
+                + ImageSQLFormat.RENDITION_UPLOADED + " INTEGER DEFAULT 0,"
+                + ImageSQLFormat.CONTENT_HASH + " TEXT,"
                 + ImageSQLFormat.CREATED_DATE + " INTEGER,"
                 + ImageSQLFormat.MODIFIED_DATE + " INTEGER"
                 + ");");
@@ -370,6 +584,12 @@ public class ImageProvider extends ContentProvider {
         if (oldVersion == 1 && newVersion == 2) {
         	// Do nothing
         }
+        if (oldVersion < 7) {
+        	DatabaseHelper.addColumnIfMissing(db, IMAGE_TABLE_NAME, 
+        			ImageSQLFormat.RENDITION_PROGRESS, "INTEGER DEFAULT 0");
+        	DatabaseHelper.addColumnIfMissing(db, IMAGE_TABLE_NAME, 
+        			ImageSQLFormat.RENDITION_UPLOADED, "INTEGER DEFAULT 0");
+        }
     }
 
     
@@ -387,6 +607,9 @@ public class ImageProvider extends ContentProvider {
         sImageProjectionMap.put(ImageSQLFormat.FILE_SIZE, ImageSQLFormat.FILE_SIZE);
         sImageProjectionMap.put(ImageSQLFormat.UPLOAD_PROGRESS, ImageSQLFormat.UPLOAD_PROGRESS);
         sImageProjectionMap.put(ImageSQLFormat.UPLOADED, ImageSQLFormat.UPLOADED);
+        sImageProjectionMap.put(ImageSQLFormat.RENDITION_PROGRESS, ImageSQLFormat.RENDITION_PROGRESS);
+        sImageProjectionMap.put(ImageSQLFormat.RENDITION_UPLOADED, ImageSQLFormat.RENDITION_UPLOADED);
+        sImageProjectionMap.put(ImageSQLFormat.CONTENT_HASH, ImageSQLFormat.CONTENT_HASH);
         sImageProjectionMap.put(ImageSQLFormat.CREATED_DATE, ImageSQLFormat.CREATED_DATE);
         sImageProjectionMap.put(ImageSQLFormat.MODIFIED_DATE, ImageSQLFormat.MODIFIED_DATE);
     }
@@ -1,10 +1,21 @@
 package org.sana.android.db;
 
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
 import org.sana.android.db.DispatchableContract.Procedures;
+import org.sana.android.procedure.Procedure;
+import org.sana.android.procedure.ProcedureCache;
+import org.sana.android.procedure.ProcedureParseException;
+import org.sana.android.procedure.ProcedureTemplate;
+import org.xml.sax.SAXException;
 
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.util.Log;
 
 /**
  * Utility class which provides access to Procedure xml text content handled by 
@@ -14,6 +25,7 @@ import android.net.Uri;
  *
  */
 public class ProcedureDAO {
+	public static final String TAG = ProcedureDAO.class.getSimpleName();
 	
 	/**
 	 * Fetches the xml text content for a procedure
@@ -41,4 +53,122 @@ public class ProcedureDAO {
 		}
 		return procedureXml;
 	}
+	
+	/**
+	 * Fetches the compiled form of a procedure
+	 * 
+	 * @param context the current Context
+	 * @param procedure the Uri of the Procedure which will be retrieved
+	 * @return the compiled procedure or null if it has not been stored
+	 * @see ProcedureTemplate#toBytes()
+	 */
+	public static byte[] getCompiledForProcedure(Context context, 
+			Uri procedure) 
+	{
+		Cursor cursor = null;
+		byte[] compiled = null;
+		try {
+			cursor = context.getContentResolver().query(procedure, 
+					new String [] { Procedures.COMPILED }, 
+					null, null, null);
+			if (cursor.moveToFirst() && !cursor.isNull(0))
+				compiled = cursor.getBlob(0);
+		} catch (Exception e) {
+			EventDAO.logException(context, e);
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		return compiled;
+	}
+	
+	/**
+	 * Fetches the last modification time of a procedure
+	 * 
+	 * @param context the current Context
+	 * @param procedure the Uri of the Procedure
+	 * @return the modification time or -1 if not found
+	 */
+	public static long getModifiedDate(Context context, Uri procedure) {
+		Cursor cursor = null;
+		long modified = -1;
+		try {
+			cursor = context.getContentResolver().query(procedure, 
+					new String [] { Procedures.MODIFIED_DATE }, 
+					null, null, null);
+			if (cursor.moveToFirst())
+				modified = cursor.getLong(0);
+		} catch (Exception e) {
+			EventDAO.logException(context, e);
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		return modified;
+	}
+	
+	/**
+	 * Constructs a new Procedure instance for a procedure stored in the 
+	 * database. The compiled form of the procedure is read in preference to 
+	 * the xml text when it has been stored and is cached so that neither is 
+	 * read again until the procedure is modified.
+	 * 
+	 * @param context the current Context
+	 * @param procedure the Uri of the Procedure which will be loaded
+	 * @return a new Procedure instance with no answers or views shared with
+	 * 		any other instance.
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 * @throws ProcedureParseException
+	 */
+	public static Procedure getProcedure(Context context, Uri procedure) 
+		throws IOException, ParserConfigurationException, SAXException, 
+		ProcedureParseException
+	{
+		long id = ContentUris.parseId(procedure);
+		long modified = getModifiedDate(context, procedure);
+		ProcedureCache cache = ProcedureCache.getInstance();
+		ProcedureTemplate template = cache.get(id, modified);
+		if (template == null) {
+			template = loadCompiled(context, procedure);
+			if (template != null) {
+				try {
+					Procedure result = template.newInstance();
+					cache.put(id, modified, template);
+					return result;
+				} catch (ProcedureParseException e) {
+					Log.w(TAG, "Invalid compiled procedure " + id + ": " + e);
+				}
+			}
+			String xml = getXMLForProcedure(context, procedure);
+			try {
+				template = ProcedureTemplate.fromXMLString(xml);
+			} catch (ProcedureParseException e) {
+				Log.w(TAG, "Could not compile procedure " + id + ": " + e);
+				return Procedure.fromXMLString(xml);
+			} catch (SAXException e) {
+				Log.w(TAG, "Could not compile procedure " + id + ": " + e);
+				return Procedure.fromXMLString(xml);
+			}
+			cache.put(id, modified, template);
+		}
+		return template.newInstance();
+	}
+	
+	// Decodes the stored compiled procedure, if any
+	private static ProcedureTemplate loadCompiled(Context context, 
+			Uri procedure) 
+	{
+		byte[] compiled = getCompiledForProcedure(context, procedure);
+		if (compiled == null)
+			return null;
+		try {
+			return ProcedureTemplate.fromBytes(compiled);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read compiled procedure " + procedure 
+					+ ": " + e);
+			return null;
+		}
+	}
 }
@@ -85,8 +85,24 @@ public class ProcedureProvider extends ContentProvider {
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = 0; 
-        
+        int count = 0;
+
+        // Compiled procedures are cached by modification time
+        if(values.containsKey(Procedures.PROCEDURE)
+        		&& !values.containsKey(Procedures.MODIFIED_DATE))
+        {
+            values = new ContentValues(values);
+            values.put(Procedures.MODIFIED_DATE,
+            		Long.valueOf(System.currentTimeMillis()));
+        }
+        // and the compiled form is only valid for the xml it was compiled from
+        if(values.containsKey(Procedures.PROCEDURE)
+        		&& !values.containsKey(Procedures.COMPILED))
+        {
+            values = new ContentValues(values);
+            values.putNull(Procedures.COMPILED);
+        }
+
         switch(sUriMatcher.match(uri)) {
         case PROCEDURES:
             count = db.update(PROCEDURE_TABLE_NAME, values, selection, 
@@ -216,6 +232,7 @@ public class ProcedureProvider extends ContentProvider {
                 + Procedures.AUTHOR + " TEXT,"
                 + Procedures.UUID + " TEXT,"
                 + Procedures.PROCEDURE + " TEXT,"
+                + Procedures.COMPILED + " BLOB,"
                 + Procedures.CREATED_DATE + " INTEGER,"
                 + Procedures.MODIFIED_DATE + " INTEGER"
                 + ");");
@@ -232,8 +249,10 @@ public class ProcedureProvider extends ContentProvider {
     {
         Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                 + newVersion);
-        if (oldVersion == 1 && newVersion == 2) {
-        	// Do nothing
+        if (oldVersion < 2) {
+        	// Column to hold the compiled procedure
+        	DatabaseHelper.addColumnIfMissing(db, PROCEDURE_TABLE_NAME, 
+        			Procedures.COMPILED, "BLOB");
         }
     }
 
@@ -248,6 +267,7 @@ public class ProcedureProvider extends ContentProvider {
         sProcedureProjectionMap.put(Procedures.AUTHOR, Procedures.AUTHOR);
         sProcedureProjectionMap.put(Procedures.UUID, Procedures.UUID);
         sProcedureProjectionMap.put(Procedures.PROCEDURE, Procedures.PROCEDURE);
+        sProcedureProjectionMap.put(Procedures.COMPILED, Procedures.COMPILED);
         sProcedureProjectionMap.put(Procedures.CREATED_DATE, Procedures.CREATED_DATE);
         sProcedureProjectionMap.put(Procedures.MODIFIED_DATE, Procedures.MODIFIED_DATE);
     }
@@ -0,0 +1,193 @@
+package org.sana.android.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A directory of derived files, such as the smaller views of an image, kept
+ * up to a total size. The least recently used files are deleted first. The
+ * order of use is kept in the modification time of each file so that it
+ * survives the process.
+ *
+ * @author Sana Development Team
+ */
+public class RenditionCache {
+	public static final String TAG = RenditionCache.class.getSimpleName();
+
+	// suffix of files being written, which are not entries yet
+	private static final String TEMPORARY = ".tmp";
+
+	private final File directory;
+	private final long capacity;
+	// entry sizes by key, least recently used first
+	private final LinkedHashMap<String, Long> entries =
+		new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long size = 0;
+	private boolean loaded = false;
+
+	/**
+	 * Creates a cache over a directory, which is read on first use.
+	 *
+	 * @param directory where the files are kept
+	 * @param capacity the most bytes to keep
+	 */
+	public RenditionCache(File directory, long capacity) {
+		this.directory = directory;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Finds a file and marks it as used.
+	 *
+	 * @param key the name of the file
+	 * @return the file or null if it is not kept
+	 */
+	public synchronized File get(String key) {
+		load();
+		Long length = entries.get(key);
+		if (length == null)
+			return null;
+		File file = new File(directory, key);
+		if (!file.exists()) {
+			entries.remove(key);
+			size -= length;
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/**
+	 * Creates a file to write an entry to before it is added.
+	 *
+	 * @return an empty file in the cache directory
+	 * @throws IOException if the file can not be created
+	 */
+	public synchronized File createTempFile() throws IOException {
+		// loading deletes partial files, so it must not follow this one
+		load();
+		directory.mkdirs();
+		return File.createTempFile("rendition", TEMPORARY, directory);
+	}
+
+	/**
+	 * Adds a file, replacing any kept under the same key, and deletes the
+	 * least recently used files until the cache is within its capacity. The
+	 * file added is kept even if it alone is larger.
+	 *
+	 * @param key the name to keep the file under
+	 * @param file a file from {@link #createTempFile()}, which is moved
+	 * @return the file as kept
+	 * @throws IOException if the file can not be moved
+	 */
+	public synchronized File put(String key, File file) throws IOException {
+		load();
+		remove(key);
+		File entry = new File(directory, key);
+		if (!file.renameTo(entry)) {
+			file.delete();
+			throw new IOException("Could not move " + file + " to " + entry);
+		}
+		long length = entry.length();
+		entries.put(key, length);
+		size += length;
+		trim();
+		return entry;
+	}
+
+	/**
+	 * Deletes a file.
+	 *
+	 * @param key the name of the file
+	 */
+	public synchronized void remove(String key) {
+		load();
+		Long length = entries.remove(key);
+		if (length == null)
+			return;
+		size -= length;
+		delete(new File(directory, key));
+	}
+
+	/**
+	 * Deletes every file whose key starts with a prefix, such as every view
+	 * of one image.
+	 *
+	 * @param prefix the start of the keys
+	 */
+	public synchronized void removeAll(String prefix) {
+		load();
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> e = it.next();
+			if (!e.getKey().startsWith(prefix))
+				continue;
+			it.remove();
+			size -= e.getValue();
+			delete(new File(directory, e.getKey()));
+		}
+	}
+
+	/** @return the number of bytes kept */
+	public synchronized long getSize() {
+		load();
+		return size;
+	}
+
+	/** @return the number of files kept */
+	public synchronized int getCount() {
+		load();
+		return entries.size();
+	}
+
+	// evicts the least recently used entries, but never the newest
+	private void trim() {
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (size > capacity && entries.size() > 1) {
+			Map.Entry<String, Long> e = it.next();
+			it.remove();
+			size -= e.getValue();
+			delete(new File(directory, e.getKey()));
+			Log.d(TAG, "Evicted " + e.getKey());
+		}
+	}
+
+	// reads the entries left by an earlier process, oldest use first
+	private void load() {
+		if (loaded)
+			return;
+		loaded = true;
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long x = a.lastModified();
+				long y = b.lastModified();
+				return (x < y)? -1: (x == y)? 0: 1;
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(TEMPORARY)) {
+				delete(file);
+				continue;
+			}
+			long length = file.length();
+			entries.put(file.getName(), length);
+			size += length;
+		}
+		trim();
+	}
+
+	private static void delete(File file) {
+		if (file.exists() && !file.delete())
+			Log.w(TAG, "Could not delete " + file);
+	}
+}
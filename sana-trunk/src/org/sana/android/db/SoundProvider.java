@@ -79,6 +79,24 @@ public class SoundProvider extends ContentProvider {
     	return result;
     }
 
+    // recordings are read from the blob store and written to their own file
+    private File getContentFile(Uri uri, File own, String mode) 
+    	throws FileNotFoundException
+    {
+    	SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+    	long soundId = ContentUris.parseId(uri);
+    	if ("r".equals(mode))
+    		return BlobStore.open(getContext(), db, SOUND_TABLE_NAME, soundId, 
+    				own);
+    	try {
+    		BlobStore.detach(getContext(), db, SOUND_TABLE_NAME, soundId, own);
+    	} catch (IOException e) {
+    		throw new FileNotFoundException("Could not restore " + uri + ": " 
+    				+ e.toString());
+    	}
+    	return own;
+    }
+
     /** {@inheritDoc} */
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws 
@@ -89,6 +107,8 @@ public class SoundProvider extends ContentProvider {
         //String filename = "/data/data/org.moca/files/" + uri.getPathSegments().get(1);
         Log.i(TAG, "openFile() for filename: " + filename);
         File f = new File(filename);
+        if (sUriMatcher.match(uri) == SOUND_ID)
+        	f = getContentFile(uri, f, mode);
        
         int m = ParcelFileDescriptor.MODE_READ_ONLY;
         if ("w".equals(mode)) {
@@ -182,7 +202,15 @@ public class SoundProvider extends ContentProvider {
         	}
         	c.deactivate();
         	
-            count = db.delete(SOUND_TABLE_NAME, selection, selectionArgs);
+        	db.beginTransaction();
+        	try {
+        		BlobStore.releaseAll(getContext(), db, SOUND_TABLE_NAME, 
+        				selection, selectionArgs);
+        		count = db.delete(SOUND_TABLE_NAME, selection, selectionArgs);
+        		db.setTransactionSuccessful();
+        	} finally {
+        		db.endTransaction();
+        	}
             
             for(String id : idList) {
             	deleteFile(id);
@@ -190,9 +218,18 @@ public class SoundProvider extends ContentProvider {
             break;
         case SOUND_ID:
             String soundId = uri.getPathSegments().get(1); 
-            count = db.delete(SOUND_TABLE_NAME, SoundSQLFormat._ID + "=" 
-            		+ soundId + (!TextUtils.isEmpty(selection) ? " AND (" 
-            				+ selection + ")" : ""), selectionArgs);
+            String where = SoundSQLFormat._ID + "=" + soundId 
+            		+ (!TextUtils.isEmpty(selection) ? " AND (" + selection 
+            				+ ")" : "");
+            db.beginTransaction();
+            try {
+            	BlobStore.releaseAll(getContext(), db, SOUND_TABLE_NAME, where, 
+            			selectionArgs);
+            	count = db.delete(SOUND_TABLE_NAME, where, selectionArgs);
+            	db.setTransactionSuccessful();
+            } finally {
+            	db.endTransaction();
+            }
             break;
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
@@ -299,6 +336,7 @@ public class SoundProvider extends ContentProvider {
                 + SoundSQLFormat.FILE_URI + " TEXT,"
                 + SoundSQLFormat.UPLOAD_PROGRESS + " INTEGER,"
                 + SoundSQLFormat.UPLOADED + " INTEGER,"
+                + SoundSQLFormat.CONTENT_HASH + " TEXT,"
                 + SoundSQLFormat.CREATED_DATE + " INTEGER,"
                 + SoundSQLFormat.MODIFIED_DATE + " INTEGER"
                 + ");");
@@ -331,6 +369,7 @@ public class SoundProvider extends ContentProvider {
         sSoundProjectionMap.put(SoundSQLFormat.FILE_URI, SoundSQLFormat.FILE_URI);
         sSoundProjectionMap.put(SoundSQLFormat.UPLOADED, SoundSQLFormat.UPLOADED);
         sSoundProjectionMap.put(SoundSQLFormat.UPLOAD_PROGRESS, SoundSQLFormat.UPLOAD_PROGRESS);
+        sSoundProjectionMap.put(SoundSQLFormat.CONTENT_HASH, SoundSQLFormat.CONTENT_HASH);
         sSoundProjectionMap.put(SoundSQLFormat.CREATED_DATE, SoundSQLFormat.CREATED_DATE);
         sSoundProjectionMap.put(SoundSQLFormat.MODIFIED_DATE, SoundSQLFormat.MODIFIED_DATE);
     }
@@ -0,0 +1,234 @@
+package org.sana.android.media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * Decodes images off the UI thread and keeps the most recently shown in
+ * memory. Images are decoded by a small pool of background threads and set
+ * on their views from the UI thread. A view asked to show another image, as
+ * a recycled grid cell is, drops its earlier request, so that only the
+ * images still on screen are decoded.
+ *
+ * The cache is bounded by a fraction of the heap the application may use.
+ * Cached bitmaps are shared by every view showing the same image, and each
+ * thread reuses one buffer for decoding. Bitmaps dropped from the cache are
+ * left to the collector, since a view may still show them.
+ *
+ * @author Sana Development Team
+ */
+public class ImageLoader {
+	public static final String TAG = ImageLoader.class.getSimpleName();
+
+	/**
+	 * Told when an image has been set on its view, on the UI thread.
+	 *
+	 * @author Sana Development Team
+	 */
+	public interface Callback {
+		/**
+		 * @param uri the image
+		 * @param bitmap the decoded image, or null if it could not be read
+		 */
+		void onImageLoaded(Uri uri, Bitmap bitmap);
+	}
+
+	/** The number of images decoded at once. */
+	private static final int THREADS = 2;
+
+	/** The fraction of the heap kept for decoded images. */
+	private static final int HEAP_FRACTION = 8;
+
+	private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+
+	private static ImageLoader sInstance;
+
+	private final ContentResolver resolver;
+	private final Handler handler;
+	private final ExecutorService workers;
+	private final MemoryCache<Uri, Bitmap> cache;
+	// the request each view is waiting on; touched only on the UI thread
+	private final WeakHashMap<ImageView, Request> pending =
+		new WeakHashMap<ImageView, Request>();
+	private final ThreadLocal<byte[]> decodeBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[DECODE_BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * @param c the current context
+	 * @return the loader of the application
+	 */
+	public static synchronized ImageLoader getInstance(Context c) {
+		if (sInstance == null)
+			sInstance = new ImageLoader(c.getApplicationContext());
+		return sInstance;
+	}
+
+	private ImageLoader(Context c) {
+		resolver = c.getContentResolver();
+		handler = new Handler(Looper.getMainLooper());
+		workers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(
+								Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long capacity = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+		cache = new MemoryCache<Uri, Bitmap>(capacity) {
+			@Override
+			protected long sizeOf(Bitmap value) {
+				return (long) value.getRowBytes() * value.getHeight();
+			}
+		};
+		Log.i(TAG, "Keeping up to " + (capacity / 1024) + " KB of images");
+	}
+
+	/**
+	 * Shows an image on a view, at once if it is in memory and otherwise once
+	 * it is decoded. Any earlier request for the view is dropped.
+	 *
+	 * @param uri the image
+	 * @param view the view, which is cleared while the image is decoded
+	 */
+	public void load(Uri uri, ImageView view) {
+		load(uri, view, null);
+	}
+
+	/**
+	 * Shows an image on a view, at once if it is in memory and otherwise once
+	 * it is decoded. Any earlier request for the view is dropped. Must be
+	 * called on the UI thread.
+	 *
+	 * @param uri the image
+	 * @param view the view, which is cleared while the image is decoded
+	 * @param callback told once the image is set, or null
+	 */
+	public void load(Uri uri, ImageView view, Callback callback) {
+		cancel(view);
+		Bitmap bitmap = cache.get(uri);
+		if (bitmap != null) {
+			view.setImageBitmap(bitmap);
+			if (callback != null)
+				callback.onImageLoaded(uri, bitmap);
+			return;
+		}
+		view.setImageDrawable(null);
+		Request request = new Request(uri, view, callback);
+		pending.put(view, request);
+		request.future = workers.submit(request);
+	}
+
+	/**
+	 * Drops the request a view is waiting on, if any. Must be called on the
+	 * UI thread.
+	 *
+	 * @param view the view
+	 */
+	public void cancel(ImageView view) {
+		Request request = pending.remove(view);
+		if (request != null) {
+			request.cancelled = true;
+			request.future.cancel(false);
+		}
+	}
+
+	/** Drops every image kept in memory, such as when memory is low. */
+	public void clear() {
+		cache.clear();
+	}
+
+	// decodes an image on a worker thread
+	private Bitmap decode(Uri uri) throws IOException {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		options.inTempStorage = decodeBuffers.get();
+		InputStream in = resolver.openInputStream(uri);
+		try {
+			return BitmapFactory.decodeStream(in, null, options);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * The decoding of one image for one view. It is run on a worker and then
+	 * posted back to the UI thread.
+	 */
+	private class Request implements Runnable {
+		final Uri uri;
+		final ImageView view;
+		final Callback callback;
+		volatile boolean cancelled = false;
+		Future<?> future;
+		volatile Bitmap bitmap;
+		volatile boolean decoded = false;
+
+		Request(Uri uri, ImageView view, Callback callback) {
+			this.uri = uri;
+			this.view = view;
+			this.callback = callback;
+		}
+
+		public void run() {
+			if (decoded) {
+				deliver();
+				return;
+			}
+			if (cancelled)
+				return;
+			// another view may have loaded it while this one waited
+			bitmap = cache.get(uri);
+			if (bitmap == null) {
+				try {
+					bitmap = decode(uri);
+				} catch (IOException e) {
+					Log.w(TAG, "Could not read " + uri + ": " + e.toString());
+				} catch (OutOfMemoryError e) {
+					Log.w(TAG, "Out of memory decoding " + uri);
+					cache.clear();
+				}
+				if (bitmap != null)
+					cache.put(uri, bitmap);
+			}
+			decoded = true;
+			handler.post(this);
+		}
+
+		// sets the image, on the UI thread, unless the view has moved on
+		private void deliver() {
+			if (cancelled || pending.get(view) != this)
+				return;
+			pending.remove(view);
+			if (bitmap != null)
+				view.setImageBitmap(bitmap);
+			if (callback != null)
+				callback.onImageLoaded(uri, bitmap);
+		}
+	}
+}
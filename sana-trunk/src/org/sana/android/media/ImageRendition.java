@@ -0,0 +1,241 @@
+package org.sana.android.media;
+
+import org.sana.android.Constants;
+import org.sana.android.util.MocaUtil;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * How a picture is prepared for upload over a link too slow for the original:
+ * the largest side it is scaled down to, the JPEG quality it is encoded with,
+ * and whether it is sent in grayscale. Any of these may be left unset, in
+ * which case it is taken from a more general rendition; a picture element
+ * overrides its procedure, which overrides the settings.
+ * <br/>
+ * The attributes are "maxDimension", "quality" and "grayscale" on a picture
+ * element, and "imageMaxDimension", "imageQuality" and "imageGrayscale" on a
+ * procedure. A largest side of 0 keeps the size of the original.
+ *
+ * @author Sana Development Team
+ */
+public final class ImageRendition {
+	public static final String TAG = ImageRendition.class.getSimpleName();
+
+	/** The value of a size or quality which is not set. */
+	public static final int UNSET = -1;
+
+	/** The names of the attributes on a picture element. */
+	public static final String[] ELEMENT_ATTRIBUTES = { "maxDimension",
+		"quality", "grayscale" };
+
+	/** The names of the attributes on a procedure. */
+	public static final String[] PROCEDURE_ATTRIBUTES = { "imageMaxDimension",
+		"imageQuality", "imageGrayscale" };
+
+	/** A rendition which sets nothing. */
+	public static final ImageRendition NONE = new ImageRendition(UNSET, UNSET,
+			null);
+
+	private final int maxDimension;
+	private final int quality;
+	private final Boolean grayscale;
+
+	/**
+	 * Creates a new rendition.
+	 *
+	 * @param maxDimension the largest side in pixels, 0 to keep the size, or
+	 * 		{@link #UNSET}
+	 * @param quality the JPEG quality from 1 to 100, or {@link #UNSET}
+	 * @param grayscale whether color is dropped, or null if unset
+	 */
+	public ImageRendition(int maxDimension, int quality, Boolean grayscale) {
+		this.maxDimension = (maxDimension < 0)? UNSET: maxDimension;
+		this.quality = (quality < 0)? UNSET: Math.max(1, Math.min(100,
+				quality));
+		this.grayscale = grayscale;
+	}
+
+	/** @return the largest side in pixels, 0 if the size is kept */
+	public int getMaxDimension() {
+		return maxDimension;
+	}
+
+	/** @return the JPEG quality */
+	public int getQuality() {
+		return quality;
+	}
+
+	/** @return true if color is dropped */
+	public boolean isGrayscale() {
+		return grayscale != null && grayscale.booleanValue();
+	}
+
+	/** @return true if nothing is set */
+	public boolean isEmpty() {
+		return maxDimension == UNSET && quality == UNSET && grayscale == null;
+	}
+
+	/**
+	 * @return true if the rendition would be no smaller than the original, in
+	 * 		which case none is made
+	 */
+	public boolean isOriginal() {
+		return maxDimension <= 0 && (quality == UNSET || quality == 100)
+			&& !isGrayscale();
+	}
+
+	/**
+	 * Fills in what this rendition leaves unset.
+	 *
+	 * @param base the more general rendition
+	 * @return a rendition with the values of this one, or else of the base
+	 */
+	public ImageRendition over(ImageRendition base) {
+		return new ImageRendition(
+				(maxDimension != UNSET)? maxDimension: base.maxDimension,
+				(quality != UNSET)? quality: base.quality,
+				(grayscale != null)? grayscale: base.grayscale);
+	}
+
+	/**
+	 * The factor a picture may be subsampled by as it is decoded, so that no
+	 * more of it is held in memory than the rendition needs.
+	 *
+	 * @param width the width of the original
+	 * @param height the height of the original
+	 * @return the largest power of two which keeps the largest side at least
+	 * 		the rendition's
+	 */
+	public int getSampleSize(int width, int height) {
+		int largest = Math.max(width, height);
+		int sampleSize = 1;
+		if (maxDimension <= 0)
+			return sampleSize;
+		while (largest / (sampleSize * 2) >= maxDimension)
+			sampleSize *= 2;
+		return sampleSize;
+	}
+
+	/**
+	 * The size of the rendition of a picture, which keeps its aspect ratio.
+	 *
+	 * @param width the width of the original
+	 * @param height the height of the original
+	 * @return the width and height of the rendition
+	 */
+	public int[] getSize(int width, int height) {
+		int largest = Math.max(width, height);
+		if (maxDimension <= 0 || largest <= maxDimension)
+			return new int[] { width, height };
+		return new int[] {
+				Math.max(1, Math.round((float) width * maxDimension / largest)),
+				Math.max(1, Math.round((float) height * maxDimension / largest))
+		};
+	}
+
+	/**
+	 * Reads a rendition from the values of its attributes, any of which may be
+	 * null. Values which can not be read are left unset.
+	 *
+	 * @param maxDimension the largest side in pixels
+	 * @param quality the JPEG quality
+	 * @param grayscale "true" or "false"
+	 * @return the rendition
+	 */
+	public static ImageRendition parse(String maxDimension, String quality,
+			String grayscale)
+	{
+		return new ImageRendition(parseInt(maxDimension), parseInt(quality),
+				(grayscale == null)? null: Boolean.valueOf(grayscale.trim()));
+	}
+
+	private static int parseInt(String value) {
+		if (value == null)
+			return UNSET;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Could not read image rendition value: " + value);
+			return UNSET;
+		}
+	}
+
+	/**
+	 * Reads a rendition from the attributes of an xml element.
+	 *
+	 * @param attributes the attributes of the element
+	 * @param names {@link #ELEMENT_ATTRIBUTES} or
+	 * 		{@link #PROCEDURE_ATTRIBUTES}
+	 * @return the rendition
+	 */
+	public static ImageRendition fromAttributes(Attributes attributes,
+			String[] names)
+	{
+		return parse(MocaUtil.getAttributeOrDefault(attributes, names[0], null),
+				MocaUtil.getAttributeOrDefault(attributes, names[1], null),
+				MocaUtil.getAttributeOrDefault(attributes, names[2], null));
+	}
+
+	/**
+	 * Reads a rendition from the attributes of an xml node.
+	 *
+	 * @param node the node
+	 * @param names {@link #ELEMENT_ATTRIBUTES} or
+	 * 		{@link #PROCEDURE_ATTRIBUTES}
+	 * @return the rendition
+	 */
+	public static ImageRendition fromNode(Node node, String[] names) {
+		return parse(MocaUtil.getNodeAttributeOrDefault(node, names[0], null),
+				MocaUtil.getNodeAttributeOrDefault(node, names[1], null),
+				MocaUtil.getNodeAttributeOrDefault(node, names[2], null));
+	}
+
+	/**
+	 * Writes the values which are set as xml attributes.
+	 *
+	 * @param sb the builder to write to
+	 * @param names {@link #ELEMENT_ATTRIBUTES} or
+	 * 		{@link #PROCEDURE_ATTRIBUTES}
+	 */
+	public void appendAttributes(StringBuilder sb, String[] names) {
+		if (maxDimension != UNSET)
+			sb.append(" " + names[0] + "=\"" + maxDimension + "\"");
+		if (quality != UNSET)
+			sb.append(" " + names[1] + "=\"" + quality + "\"");
+		if (grayscale != null)
+			sb.append(" " + names[2] + "=\"" + grayscale + "\"");
+	}
+
+	/**
+	 * The rendition set in the settings, with the defaults for any value
+	 * which is not.
+	 *
+	 * @param c the current context
+	 * @return a rendition with every value set
+	 */
+	public static ImageRendition fromPreferences(Context c) {
+		SharedPreferences preferences =
+			PreferenceManager.getDefaultSharedPreferences(c);
+		ImageRendition set = parse(
+				preferences.getString(Constants.PREFERENCE_IMAGE_MAX_DIMENSION,
+						null),
+				preferences.getString(Constants.PREFERENCE_IMAGE_QUALITY, null),
+				Boolean.toString(preferences.getBoolean(
+						Constants.PREFERENCE_IMAGE_GRAYSCALE, false)));
+		return set.over(new ImageRendition(
+				Constants.DEFAULT_IMAGE_MAX_DIMENSION,
+				Constants.DEFAULT_IMAGE_QUALITY, Boolean.FALSE));
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return "ImageRendition[maxDimension=" + maxDimension + ", quality="
+			+ quality + ", grayscale=" + grayscale + "]";
+	}
+}
@@ -0,0 +1,140 @@
+package org.sana.android.media;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps values in memory up to a total size, the least recently used being
+ * dropped first. Subclasses say how large a value is.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ * @author Sana Development Team
+ */
+public abstract class MemoryCache<K, V> {
+
+	private final long capacity;
+	// least recently used first
+	private final LinkedHashMap<K, V> entries =
+		new LinkedHashMap<K, V>(16, 0.75f, true);
+	private long size = 0;
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param capacity the most the values may add up to, in the units of
+	 * 		{@link #sizeOf(Object)}
+	 */
+	public MemoryCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param value a value about to be kept
+	 * @return the size of the value
+	 */
+	protected abstract long sizeOf(V value);
+
+	/**
+	 * Called for each value dropped to make room or removed. Does nothing
+	 * unless overridden.
+	 *
+	 * @param key the key of the value
+	 * @param value the value
+	 */
+	protected void onDropped(K key, V value) {
+	}
+
+	/**
+	 * Finds a value and marks it as used.
+	 *
+	 * @param key the key
+	 * @return the value, or null if it is not kept
+	 */
+	public synchronized V get(K key) {
+		V value = entries.get(key);
+		if (value == null)
+			misses++;
+		else
+			hits++;
+		return value;
+	}
+
+	/**
+	 * Keeps a value, replacing any under the same key, and drops the least
+	 * recently used values until the cache is within its capacity. A value
+	 * larger than the whole capacity is not kept.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 */
+	public synchronized void put(K key, V value) {
+		remove(key);
+		long length = sizeOf(value);
+		if (length > capacity)
+			return;
+		entries.put(key, value);
+		size += length;
+		Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+		while (size > capacity) {
+			Map.Entry<K, V> e = it.next();
+			it.remove();
+			size -= sizeOf(e.getValue());
+			onDropped(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Drops a value.
+	 *
+	 * @param key the key
+	 * @return the value dropped, or null if none was kept
+	 */
+	public synchronized V remove(K key) {
+		V value = entries.remove(key);
+		if (value != null) {
+			size -= sizeOf(value);
+			onDropped(key, value);
+		}
+		return value;
+	}
+
+	/** Drops every value. */
+	public synchronized void clear() {
+		Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<K, V> e = it.next();
+			it.remove();
+			onDropped(e.getKey(), e.getValue());
+		}
+		size = 0;
+	}
+
+	/** @return the size of the values kept */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/** @return the most the values may add up to */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/** @return the number of values kept */
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	/** @return the number of calls to {@link #get(Object)} which found a value */
+	public synchronized int getHitCount() {
+		return hits;
+	}
+
+	/** @return the number of calls to {@link #get(Object)} which did not */
+	public synchronized int getMissCount() {
+		return misses;
+	}
+}
@@ -4,9 +4,7 @@ import java.io.IOException;
 import java.lang.reflect.Type;
 
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
@@ -29,6 +27,18 @@ public class APIUtil {
 		return mdsURL + Constants.PROCEDURE_SUBMIT_PATTERN;
 	}
 
+	public static String constructProcedureBatchSubmitURL(String mdsURL) {
+		return mdsURL + Constants.PROCEDURE_BATCH_SUBMIT_PATTERN;
+	}
+
+	public static String constructBinaryKnownURL(String mdsURL) {
+		return mdsURL + Constants.BINARY_KNOWN_PATTERN;
+	}
+
+	public static String constructBinaryOffsetURL(String mdsURL) {
+		return mdsURL + Constants.BINARY_OFFSET_PATTERN;
+	}
+
 	public static String constructBinaryChunkSubmitURL(String mdsURL) {
 		return mdsURL + Constants.BINARYCHUNK_SUBMIT_PATTERN;
 	}
@@ -67,21 +77,17 @@ public class APIUtil {
 		    return new APIResponse<T>(responseCode, responseObj);
 		}
 
-		// DEPRECATED
-		// This is how you would set a timeout on a request. We don't set timeouts yet, though.
-		//HttpConnectionManager manager = client.getHttpConnectionManager();
-		//HttpConnectionManagerParams params = manager.getParams();
-		//params.setConnectionTimeout(1000);
+		// Timeouts are set on the shared client, see HttpClientPool
 		
 		// request OK. debugging info
 		Log.d(TAG, "{ class_method : " + methodTag + ", request: { method: " + request.getMethod() 
 		    + ", uri : " + request.getURI() + " }}");
-		HttpClient client = new DefaultHttpClient();
 		try {
 			
 			//TODO Refactor and reimplement SSL layer
-			response = client.execute(request); 
+			response = HttpClientPool.execute(request); 
 			responseCode = response.getStatusLine().getStatusCode();
+			// reading the whole entity returns the connection to the pool
 			responseString = EntityUtils.toString(response.getEntity());
 			
 			Log.d(TAG, "{ class_method : " + methodTag 
@@ -105,12 +111,15 @@ public class APIUtil {
 			Log.e(TAG, "{ class_method : " + methodTag  
 				    + ", exception: { exception_type: " + e.getClass().getSimpleName() 
 					+ ", message: " + e.getMessage()+" }}");	
+			request.abort();
 		} catch (IOException e) {
 			Log.e(TAG, "{ class_method : " + methodTag  
 				    + ", exception: { exception_type: " + e.getClass().getSimpleName() 
 					+ ", message: " + e.getMessage()+" }}");
+			request.abort();
 		} finally {
-			;//client.releaseConnection();
+			HttpClientPool.release();
+			HttpClientPool.closeIdleConnections();
 		}
 		return new APIResponse<T>(responseCode, responseObj);
 	}
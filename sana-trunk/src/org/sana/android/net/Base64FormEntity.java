@@ -0,0 +1,185 @@
+package org.sana.android.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Url encoded form whose last field is a binary, Base64 and url encoded as it
+ * is written, for the upload hack. The body is the same as that of a
+ * UrlEncodedFormEntity holding the Base64 text of the binary, but no copy of
+ * the binary, encoded or not, is ever made; the encoders work through small
+ * buffers of fixed size whatever the length of the binary.
+ *
+ * The length is found by encoding the binary once without sending it, the
+ * first time it is asked for.
+ *
+ * @author Sana Development Team
+ */
+public class Base64FormEntity extends AbstractHttpEntity {
+
+	/**
+	 * Most bytes handed to the Base64 encoder at once. Their encoding fits
+	 * the encoder's default 8KB buffer.
+	 */
+	static final int BLOCK_SIZE = 6144;
+
+	/** Size of the buffer holding url encoded text before it is written. */
+	static final int BUFFER_SIZE = 4096;
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+	// the url encoded fields, up to the name of the binary field
+	private final byte[] head;
+	private final ContentBody data;
+	private long length = -1;
+
+	/**
+	 * Creates a new Base64FormEntity.
+	 *
+	 * @param fields the other fields of the form.
+	 * @param name the name of the binary field.
+	 * @param data the binary, which must be repeatable.
+	 * @throws UnsupportedEncodingException
+	 */
+	public Base64FormEntity(List<NameValuePair> fields, String name,
+			ContentBody data) throws UnsupportedEncodingException
+	{
+		super();
+		String form = URLEncodedUtils.format(fields, HTTP.UTF_8);
+		this.head = (((form.length() > 0)? form + "&": "")
+				+ URLEncoder.encode(name, HTTP.UTF_8) + "=")
+				.getBytes(HTTP.US_ASCII);
+		this.data = data;
+		setContentType(URLEncodedUtils.CONTENT_TYPE + HTTP.CHARSET_PARAM
+				+ HTTP.UTF_8);
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	public synchronized long getContentLength() {
+		if (length < 0) {
+			CountingOutputStream counter = new CountingOutputStream();
+			try {
+				writeTo(counter);
+				length = counter.getCount();
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+		return length;
+	}
+
+	public InputStream getContent() throws IOException {
+		throw new UnsupportedOperationException(
+			"Base64 form entity does not implement #getContent()");
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(head);
+		UrlEncodingOutputStream url = new UrlEncodingOutputStream(out);
+		// no line breaks, as from Base64.encode
+		Base64OutputStream base64 = new Base64OutputStream(url, true, 0,
+				null);
+		data.writeTo(new BlockOutputStream(base64));
+		// writes the padding and the rest of the url encoded text
+		base64.close();
+	}
+
+	/** Passes writes on in blocks of at most {@link #BLOCK_SIZE}. */
+	private static class BlockOutputStream extends OutputStream {
+		private final OutputStream out;
+
+		BlockOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, BLOCK_SIZE);
+				out.write(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+	}
+
+	/**
+	 * Url encodes what is written to it, as URLEncoder does. Closing it
+	 * writes out what is buffered but leaves the underlying stream open.
+	 */
+	private static class UrlEncodingOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int count = 0;
+
+		UrlEncodingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count + 3 > buffer.length)
+				drain();
+			b &= 0xff;
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+					|| (b >= '0' && b <= '9') || b == '.' || b == '-'
+					|| b == '*' || b == '_')
+			{
+				buffer[count++] = (byte) b;
+			} else if (b == ' ') {
+				buffer[count++] = '+';
+			} else {
+				buffer[count++] = '%';
+				buffer[count++] = HEX[b >> 4];
+				buffer[count++] = HEX[b & 0x0f];
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++)
+				write(b[i]);
+		}
+
+		private void drain() throws IOException {
+			if (count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			drain();
+		}
+	}
+}
@@ -0,0 +1,743 @@
+package org.sana.android.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.sana.android.procedure.ProcedureElement.ElementType;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Uploads the binaries of an encounter as chunks, keeping several chunk
+ * requests in flight at once. Chunks are cut from each binary in order and
+ * the window of outstanding requests spans binaries, so the next binary is
+ * started while the last chunks of the previous one are still being sent.
+ *
+ * Chunks may be acknowledged out of order. The progress reported for a binary
+ * is only the prefix of it for which every chunk has been acknowledged, so an
+ * upload which is killed can always be resumed from the reported progress. A
+ * chunk which fails is retried a limited number of times before the upload
+ * is abandoned. Retries are spaced out by a {@link RetryPolicy}, and no new
+ * chunk is started while a failed one waits, so that a link which is down
+ * is not kept busy.
+ *
+ * Binaries which can be read at any position are not read into buffers at
+ * all; each chunk is read from the file as it is written to the request.
+ *
+ * The server is trusted over the progress recorded here. A binary with
+ * progress is resumed from the offset the server says it has committed,
+ * and a binary whose every chunk is acknowledged is only complete once the
+ * server says it holds all of it. Each chunk carries the digest of its bytes
+ * and of the whole binary, so that the server can refuse a chunk damaged in
+ * transit and discard a binary which was reassembled wrongly.
+ *
+ * The chunk size is chosen by a {@link PacketSizeController}, which is told
+ * the outcome of every chunk and may be carried from one upload to the next.
+ *
+ * Chunks are sent by threads shared between every engine, which are kept
+ * for a while between uploads rather than started for each one. Interrupting
+ * the thread which called {@link #upload(List)} stops the upload: requests in
+ * flight are aborted, and the binaries are closed once every sender stops.
+ *
+ * @author Sana Development Team
+ */
+public class BinaryUploadEngine {
+	public static final String TAG = BinaryUploadEngine.class.getSimpleName();
+
+	/** Number of times a chunk is sent before the upload is abandoned. */
+	public static final int MAX_CHUNK_ATTEMPTS = 5;
+
+	/** Most milliseconds to wait before sending a chunk a second time. */
+	public static final int CHUNK_RETRY_DELAY = 500;
+
+	/** Most milliseconds to wait before sending a chunk again. */
+	public static final int MAX_CHUNK_RETRY_DELAY = 8000;
+
+	/** Sends a single chunk to the server. */
+	public interface ChunkTransport {
+		/**
+		 * Sends a chunk. May be called concurrently by several threads.
+		 * @param binary the binary the chunk belongs to.
+		 * @param chunk the chunk.
+		 * @return true if the server acknowledged the chunk.
+		 * @throws APIException if the request could not be made.
+		 */
+		boolean send(Binary binary, Chunk chunk) throws APIException;
+
+		/**
+		 * Asks the server how much of a binary it has committed. May be
+		 * called concurrently by several threads.
+		 * @param binary the binary.
+		 * @return the number of bytes from the start of the binary the server
+		 * 		holds, or -1 if the server does not keep count.
+		 * @throws APIException if the request could not be made.
+		 */
+		int getOffset(Binary binary) throws APIException;
+	}
+
+	/** Receives the committed progress of each binary. */
+	public interface ProgressListener {
+		/**
+		 * Called when the acknowledged prefix of a binary grows. Calls for a
+		 * binary are made in order and never concurrently.
+		 * @param binary the binary.
+		 * @param progress number of bytes from the start of the binary
+		 * 		which have been acknowledged.
+		 */
+		void onProgress(Binary binary, int progress);
+
+		/**
+		 * Called once every byte of a binary has been acknowledged.
+		 * @param binary the binary.
+		 */
+		void onComplete(Binary binary);
+	}
+
+	/** A binary file to upload. */
+	public static class Binary {
+		public final String elementId;
+		public final String guid;
+		public final ElementType type;
+		public final Uri uri;
+		public final int size;
+		/**
+		 * The binary contents, if they can be read at any position, or null
+		 * if they are read through a stream.
+		 */
+		public final FileChannel channel;
+
+		private final InputStream in;
+		// SHA-256 digest of the contents, if known
+		private String hash;
+		// whether the stream has been advanced to the initial progress
+		private boolean opened = false;
+		// next byte to cut into a chunk
+		private int position;
+		// end of the acknowledged prefix
+		private int committed;
+		// acknowledged chunks beyond the prefix, start to end
+		private final TreeMap<Integer, Integer> acked =
+			new TreeMap<Integer, Integer>();
+
+		/**
+		 * Creates a new Binary.
+		 *
+		 * @param elementId the procedure element the binary belongs to.
+		 * @param guid the binary id sent to the server.
+		 * @param type the element type.
+		 * @param uri where the binary is stored, may be null.
+		 * @param in the binary contents, read from the start.
+		 * @param size the number of bytes in the binary.
+		 * @param progress the number of bytes previously uploaded.
+		 */
+		public Binary(String elementId, String guid, ElementType type,
+				Uri uri, InputStream in, int size, int progress)
+		{
+			this.elementId = elementId;
+			this.guid = guid;
+			this.type = type;
+			this.uri = uri;
+			this.channel = null;
+			this.in = in;
+			this.size = size;
+			this.position = progress;
+			this.committed = progress;
+		}
+
+		/**
+		 * Creates a new Binary whose chunks are sent straight from its file,
+		 * without being read into a buffer first.
+		 *
+		 * @param elementId the procedure element the binary belongs to.
+		 * @param guid the binary id sent to the server.
+		 * @param type the element type.
+		 * @param uri where the binary is stored, may be null.
+		 * @param channel the binary contents.
+		 * @param size the number of bytes in the binary.
+		 * @param progress the number of bytes previously uploaded.
+		 */
+		public Binary(String elementId, String guid, ElementType type,
+				Uri uri, FileChannel channel, int size, int progress)
+		{
+			this.elementId = elementId;
+			this.guid = guid;
+			this.type = type;
+			this.uri = uri;
+			this.channel = channel;
+			this.in = null;
+			this.size = size;
+			this.position = progress;
+			this.committed = progress;
+		}
+
+		/**
+		 * Closes the binary contents.
+		 * @throws IOException
+		 */
+		public void close() throws IOException {
+			if(channel != null)
+				channel.close();
+			else
+				in.close();
+		}
+
+		/** @return the SHA-256 digest of the contents, or null if unknown. */
+		public String getHash(){
+			return hash;
+		}
+
+		/** @param hash the SHA-256 digest of the contents. */
+		public void setHash(String hash){
+			this.hash = hash;
+		}
+
+		/** @return the acknowledged prefix length. */
+		public synchronized int getProgress(){
+			return committed;
+		}
+
+		// records an acknowledged chunk, returns true if the prefix grew
+		synchronized boolean acknowledge(Chunk chunk){
+			acked.put(chunk.start, chunk.end);
+			boolean grew = false;
+			Integer end;
+			while((end = acked.remove(committed)) != null){
+				committed = end;
+				grew = true;
+			}
+			return grew;
+		}
+	}
+
+	/**
+	 * A contiguous range of a binary, held in a pooled buffer unless the
+	 * binary has a channel to read it from.
+	 */
+	public static class Chunk {
+		public final Binary binary;
+		public final int start;
+		public final int end;
+		/** The chunk contents, or null if they are read from the channel. */
+		public final byte[] data;
+		int attempts = 0;
+		// SHA-256 digest of the contents, once computed
+		private String hash;
+		// controller sequence number of the latest send
+		long sequence;
+		// time before which a failed chunk is not sent again
+		long retryAt;
+
+		Chunk(Binary binary, int start, int end, byte[] data){
+			this.binary = binary;
+			this.start = start;
+			this.end = end;
+			this.data = data;
+		}
+
+		/** @return the number of bytes in the chunk. */
+		public int length(){
+			return end - start;
+		}
+
+		/**
+		 * The digest is computed once and kept for retries.
+		 * @return the SHA-256 digest of the chunk contents in hex.
+		 * @throws IOException if the contents could not be read.
+		 */
+		public synchronized String getHash() throws IOException {
+			if(hash == null){
+				if(data != null){
+					MessageDigest digest = newDigest();
+					digest.update(data, 0, length());
+					hash = new String(Hex.encodeHex(digest.digest()));
+				} else {
+					hash = digest(binary.channel, start, length());
+				}
+			}
+			return hash;
+		}
+	}
+
+	// sends the chunks of every upload; idle threads are kept for a minute
+	private static final AtomicInteger senderCount = new AtomicInteger();
+	private static final ExecutorService senders =
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, TAG + "-"
+						+ senderCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private static MessageDigest newDigest(){
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Computes the digest of part of a file without moving its position, so
+	 * that a channel shared by concurrent chunks may be read.
+	 *
+	 * @param channel the file.
+	 * @param position the offset of the first byte.
+	 * @param length the number of bytes.
+	 * @return the SHA-256 digest in hex.
+	 * @throws IOException if the file could not be read or is too short.
+	 */
+	public static String digest(FileChannel channel, long position,
+			long length) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(
+				(int) Math.min(8192, Math.max(1, length)));
+		long end = position + length;
+		while(position < end){
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int n = channel.read(buffer, position);
+			if(n < 0)
+				throw new IOException("Unexpected end of file at " + position);
+			digest.update(buffer.array(), 0, n);
+			position += n;
+		}
+		return new String(Hex.encodeHex(digest.digest()));
+	}
+
+	private final ChunkTransport transport;
+	private final ProgressListener listener;
+	private final int window;
+	private final PacketSizeController controller;
+	private final ChunkBufferPool pool;
+	private RetryPolicy retryPolicy = new RetryPolicy(CHUNK_RETRY_DELAY,
+			MAX_CHUNK_RETRY_DELAY, MAX_CHUNK_ATTEMPTS);
+
+	// upload state, guarded by this
+	private List<Binary> binaries;
+	private int current;
+	private int inFlight;
+	private int running;
+	private final Set<Thread> sending = new HashSet<Thread>();
+	private final LinkedList<Chunk> retries = new LinkedList<Chunk>();
+	private IOException failure;
+
+	/**
+	 * Creates a new engine.
+	 *
+	 * @param transport sends the chunks.
+	 * @param listener receives committed progress.
+	 * @param window the maximum number of chunks in flight.
+	 * @param controller chooses the chunk sizes.
+	 */
+	public BinaryUploadEngine(ChunkTransport transport,
+			ProgressListener listener, int window,
+			PacketSizeController controller)
+	{
+		this.transport = transport;
+		this.listener = listener;
+		this.window = Math.max(1, window);
+		this.controller = controller;
+		this.pool = new ChunkBufferPool(this.window + 1);
+	}
+
+	/**
+	 * Uploads the binaries, blocking until every binary is acknowledged or
+	 * the upload fails. The binary streams are closed before returning. If
+	 * the calling thread is interrupted, the requests in flight are aborted
+	 * and the upload fails once they have returned, leaving the thread
+	 * interrupted.
+	 *
+	 * @param binaries the binaries to upload, in order.
+	 * @throws IOException if a binary could not be read or a chunk could not
+	 * 		be sent.
+	 */
+	public void upload(List<Binary> binaries) throws IOException {
+		synchronized(this){
+			this.binaries = binaries;
+			current = 0;
+			inFlight = 0;
+			running = 0;
+			sending.clear();
+			failure = null;
+			retries.clear();
+		}
+		boolean interrupted = Thread.interrupted();
+		try {
+			if(interrupted)
+				fail(new IOException("Upload interrupted"));
+			else
+				interrupted = transfer(binaries);
+		} finally {
+			for(Binary binary: binaries){
+				try { binary.close(); } catch (IOException e) {}
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+		synchronized(this){
+			if(failure != null)
+				throw failure;
+		}
+	}
+
+	/**
+	 * The controller holds the chunk size state, which should be saved after
+	 * an upload. Access to it must be synchronized on this engine while an
+	 * upload is running.
+	 * @return the chunk size controller.
+	 */
+	public PacketSizeController getController(){
+		return controller;
+	}
+
+	/**
+	 * Sets the policy which spaces out the retries of a failed chunk and
+	 * limits their number.
+	 * @param retryPolicy the policy.
+	 */
+	public synchronized void setRetryPolicy(RetryPolicy retryPolicy){
+		this.retryPolicy = retryPolicy;
+	}
+
+	/** @return number of chunk buffers allocated by this engine. */
+	public int getAllocatedBufferCount(){
+		return pool.allocatedCount();
+	}
+
+	/*
+	 * Moves a binary with progress to the offset the server has committed,
+	 * which may be behind the recorded progress if the server lost or refused
+	 * data, or ahead of it if an acknowledgement was lost. A server which can
+	 * not be asked leaves the recorded progress, which the check made once
+	 * the binary is sent makes safe.
+	 */
+	private void resume(Binary binary){
+		int offset;
+		try {
+			offset = transport.getOffset(binary);
+		} catch (APIException e) {
+			Log.w(TAG, "Could not ask where to resume " + binary.guid + ": "
+					+ e);
+			return;
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Could not ask where to resume " + binary.guid + ": "
+					+ e);
+			return;
+		}
+		if(offset < 0 || offset == binary.position)
+			return;
+		offset = Math.min(offset, binary.size);
+		Log.i(TAG, "The server holds " + offset + " bytes of " + binary.guid
+				+ " rather than " + binary.position);
+		synchronized(binary){
+			binary.position = offset;
+			binary.committed = offset;
+		}
+	}
+
+	/*
+	 * Asks the server whether it holds all of a binary whose every chunk was
+	 * acknowledged, and reports it complete if so. A server which holds less
+	 * has refused the binary, which is resumed from where the server says by
+	 * the next upload.
+	 */
+	private void confirm(Binary binary){
+		synchronized(this){
+			if(failure != null)
+				return;
+		}
+		int offset;
+		try {
+			offset = transport.getOffset(binary);
+		} catch (APIException e) {
+			fail(new IOException("Could not confirm " + binary.guid + ": "
+					+ e));
+			return;
+		} catch (RuntimeException e) {
+			fail(new IOException("Could not confirm " + binary.guid + ": "
+					+ e));
+			return;
+		}
+		synchronized(this){
+			if(offset >= 0 && offset < binary.size){
+				if(failure == null)
+					failure = new IOException("The server holds " + offset
+							+ " of the " + binary.size + " bytes of "
+							+ binary.guid);
+				notifyAll();
+				return;
+			}
+			if(listener != null){
+				listener.onProgress(binary, binary.size);
+				listener.onComplete(binary);
+			}
+		}
+	}
+
+	// starts the senders and waits for them, returns true if interrupted
+	private boolean transfer(List<Binary> binaries){
+		for(Binary binary: binaries){
+			if(binary.position > 0)
+				resume(binary);
+		}
+		synchronized(this){
+			running = window;
+		}
+		for(int i = 0; i < window; i++){
+			senders.execute(new Runnable() {
+				public void run() {
+					work();
+				}
+			});
+		}
+		return awaitSenders();
+	}
+
+	/*
+	 * Waits for every sender to stop, since the binaries they read must not be
+	 * closed under them. An interrupt stops the upload and aborts the 
+	 * requests in flight, but not the wait. Returns true if the wait was 
+	 * interrupted.
+	 */
+	private synchronized boolean awaitSenders(){
+		boolean interrupted = false;
+		while(running > 0){
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+				if(failure == null)
+					failure = new IOException("Upload interrupted");
+				notifyAll();
+				for(Thread sender: sending)
+					HttpClientPool.abort(sender);
+			}
+		}
+		return interrupted;
+	}
+
+	// sender loop
+	private void work(){
+		synchronized(this){
+			sending.add(Thread.currentThread());
+		}
+		try {
+			send();
+		} catch (RuntimeException e) {
+			fail(new IOException("Upload failed: " + e));
+			throw e;
+		} catch (Error e) {
+			fail(new IOException("Upload failed: " + e));
+			throw e;
+		} finally {
+			synchronized(this){
+				// the thread may go on to send for another engine
+				HttpClientPool.release();
+				sending.remove(Thread.currentThread());
+				running--;
+				notifyAll();
+			}
+		}
+	}
+
+	// sends chunks until there are none left
+	private void send(){
+		Chunk chunk;
+		while((chunk = next()) != null){
+			Binary binary = chunk.binary;
+			boolean success = false;
+			long start = System.currentTimeMillis();
+			try {
+				Log.i(TAG, "Sending " + binary.guid + " [" + chunk.start + ","
+						+ chunk.end + ") of " + binary.size);
+				success = transport.send(binary, chunk);
+			} catch (APIException e) {
+				Log.w(TAG, "Sending " + binary.guid + " failed: " + e);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Sending " + binary.guid + " failed: " + e);
+			}
+			if(complete(chunk, success, System.currentTimeMillis() - start))
+				confirm(binary);
+		}
+	}
+
+	// takes the next chunk to send, or null when there are no more
+	private synchronized Chunk next(){
+		while(true){
+			if(failure != null)
+				return null;
+			if(!retries.isEmpty()){
+				// send a failed chunk once it is due, and nothing new before
+				long now = System.currentTimeMillis();
+				Chunk due = null;
+				long retryAt = Long.MAX_VALUE;
+				for(Chunk chunk: retries){
+					if(chunk.retryAt <= now){
+						due = chunk;
+						break;
+					}
+					retryAt = Math.min(retryAt, chunk.retryAt);
+				}
+				if(due != null){
+					retries.remove(due);
+					due.sequence = controller.onSend();
+					return due;
+				}
+				try {
+					wait(retryAt - now);
+				} catch (InterruptedException e) {
+					failure = new IOException("Upload interrupted");
+					notifyAll();
+					return null;
+				}
+				continue;
+			}
+			try {
+				Chunk chunk = cut();
+				if(chunk != null){
+					chunk.sequence = controller.onSend();
+					return chunk;
+				}
+			} catch (IOException e) {
+				failure = e;
+				notifyAll();
+				return null;
+			}
+			if(inFlight == 0)
+				return null;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				failure = new IOException("Upload interrupted");
+				notifyAll();
+				return null;
+			}
+		}
+	}
+
+	// reads the next chunk from the current binary, if any remain
+	private Chunk cut() throws IOException {
+		while(current < binaries.size()){
+			Binary binary = binaries.get(current);
+			if(!binary.opened){
+				open(binary);
+				if(binary.position >= binary.size){
+					// nothing left to send
+					current++;
+					if(listener != null)
+						listener.onComplete(binary);
+					continue;
+				}
+			}
+			int length = Math.min(controller.getPacketSize(),
+					binary.size - binary.position);
+			// read as it is sent
+			if(binary.channel != null)
+				return nextChunk(binary, length, null);
+			byte[] data = pool.acquire(length);
+			int read = 0;
+			while(read < length){
+				int n = binary.in.read(data, read, length - read);
+				if(n < 0){
+					pool.release(data);
+					throw new IOException("Unexpected end of " + binary.guid
+							+ " at " + (binary.position + read));
+				}
+				read += n;
+			}
+			return nextChunk(binary, length, data);
+		}
+		return null;
+	}
+
+	// takes the next length bytes of the binary as a chunk
+	private Chunk nextChunk(Binary binary, int length, byte[] data){
+		Chunk chunk = new Chunk(binary, binary.position,
+				binary.position + length, data);
+		binary.position += length;
+		if(binary.position >= binary.size)
+			current++;
+		inFlight++;
+		return chunk;
+	}
+
+	// advances the binary stream to the previously uploaded progress, by
+	// reading since a stream need not skip as far as asked
+	private void open(Binary binary) throws IOException {
+		long remaining = (binary.channel != null)? 0: binary.position;
+		byte[] discard = (remaining > 0)? new byte[8192]: null;
+		while(remaining > 0){
+			int n = binary.in.read(discard, 0,
+					(int) Math.min(discard.length, remaining));
+			if(n < 0)
+				throw new IOException("Could not resume " + binary.guid
+						+ " at " + binary.position);
+			remaining -= n;
+		}
+		binary.opened = true;
+		if(binary.position > 0)
+			Log.i(TAG, "Resuming " + binary.guid + " at " + binary.position);
+	}
+
+	// records the result of sending a chunk, returns true if it was the
+	// last of its binary to be acknowledged
+	private synchronized boolean complete(Chunk chunk, boolean success,
+			long elapsed)
+	{
+		boolean sent = false;
+		Binary binary = chunk.binary;
+		if(success)
+			controller.onSuccess(chunk.sequence, chunk.length(), elapsed);
+		else
+			controller.onFailure(chunk.sequence);
+		Log.d(TAG, "Packet size " + controller);
+
+		if(success){
+			inFlight--;
+			if(chunk.data != null)
+				pool.release(chunk.data);
+			if(binary.acknowledge(chunk)){
+				// the last progress is reported once confirmed
+				if(binary.getProgress() >= binary.size)
+					sent = true;
+				else if(listener != null)
+					listener.onProgress(binary, binary.getProgress());
+			}
+		} else if(!retryPolicy.canRetry(++chunk.attempts)){
+			failure = new IOException("Could not upload " + binary.guid
+					+ ". Failed " + chunk.attempts + " times at byte "
+					+ chunk.start);
+		} else {
+			chunk.retryAt = System.currentTimeMillis()
+					+ retryPolicy.getDelay(chunk.attempts);
+			retries.add(chunk);
+		}
+		notifyAll();
+		return sent;
+	}
+
+	// stops the upload
+	private synchronized void fail(IOException e){
+		if(failure == null)
+			failure = e;
+		notifyAll();
+	}
+}
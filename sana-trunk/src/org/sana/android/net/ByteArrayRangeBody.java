@@ -0,0 +1,63 @@
+package org.sana.android.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * Multipart body which writes a range of a byte array, allowing a chunk to be
+ * sent directly from a pooled buffer without being copied.
+ *
+ * @author Sana Development Team
+ */
+public class ByteArrayRangeBody extends AbstractContentBody {
+
+	private final byte[] data;
+	private final int offset;
+	private final int length;
+	private final String filename;
+
+	/**
+	 * Creates a new ByteArrayRangeBody.
+	 *
+	 * @param data the array holding the contents.
+	 * @param offset the index of the first byte to send.
+	 * @param length the number of bytes to send.
+	 * @param filename the name of the file contained in this part.
+	 */
+	public ByteArrayRangeBody(byte[] data, int offset, int length,
+			String filename)
+	{
+		super("application/octet-stream");
+		if (data == null)
+			throw new IllegalArgumentException("byte[] may not be null");
+		if (offset < 0 || length < 0 || offset + length > data.length)
+			throw new IndexOutOfBoundsException();
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		this.filename = filename;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(data, offset, length);
+	}
+
+	public String getCharset() {
+		return null;
+	}
+
+	public String getTransferEncoding() {
+		return MIME.ENC_BINARY;
+	}
+
+	public long getContentLength() {
+		return length;
+	}
+}
@@ -0,0 +1,75 @@
+package org.sana.android.net;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A bounded pool of byte buffers for binary chunk uploads. Buffers are
+ * reused across chunks and binaries so that a new array is not allocated for
+ * every chunk which is read. A buffer may be longer than the chunk it holds.
+ *
+ * @author Sana Development Team
+ */
+public class ChunkBufferPool {
+	public static final String TAG = ChunkBufferPool.class.getSimpleName();
+
+	private final LinkedList<byte[]> free = new LinkedList<byte[]>();
+	private final int maxBuffers;
+	private int allocated = 0;
+
+	/**
+	 * Creates a new pool.
+	 * @param maxBuffers the maximum number of free buffers which are kept.
+	 */
+	public ChunkBufferPool(int maxBuffers){
+		this.maxBuffers = maxBuffers;
+	}
+
+	/**
+	 * Gets a buffer which can hold at least <code>size</code> bytes. The
+	 * smallest free buffer which is large enough is reused, otherwise a new
+	 * buffer is allocated.
+	 *
+	 * @param size the minimum buffer length.
+	 * @return a buffer of at least the requested length.
+	 */
+	public synchronized byte[] acquire(int size){
+		byte[] best = null;
+		for(byte[] buffer: free){
+			if(buffer.length >= size
+					&& (best == null || buffer.length < best.length))
+				best = buffer;
+		}
+		if(best != null){
+			free.remove(best);
+			return best;
+		}
+		allocated++;
+		return new byte[size];
+	}
+
+	/**
+	 * Returns a buffer to the pool. When the pool is full the smallest free
+	 * buffer is discarded.
+	 *
+	 * @param buffer a buffer returned by {@link #acquire(int)}.
+	 */
+	public synchronized void release(byte[] buffer){
+		free.add(buffer);
+		if(free.size() > maxBuffers){
+			Iterator<byte[]> it = free.iterator();
+			byte[] smallest = it.next();
+			while(it.hasNext()){
+				byte[] b = it.next();
+				if(b.length < smallest.length)
+					smallest = b;
+			}
+			free.remove(smallest);
+		}
+	}
+
+	/** @return the number of buffers allocated by this pool. */
+	public synchronized int allocatedCount(){
+		return allocated;
+	}
+}
@@ -0,0 +1,123 @@
+package org.sana.android.net;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A compact JSON form of the element map sent as the responses of an
+ * encounter. The full form repeats the element type in every element and the
+ * element id in the procedure title:
+ * <pre>
+ * {"e1": {"type": "TEXT", "question": "Age", "answer": "12", "concept": ""},
+ *  "procedureTitle": {"id": "procedureTitle", "type": "HIDDEN", ...}}
+ * </pre>
+ * The compact form groups the elements by type, drops the id and leaves out
+ * empty values:
+ * <pre>
+ * {"format": "compact-1",
+ *  "TEXT": {"e1": {"question": "Age", "answer": "12"}},
+ *  "HIDDEN": {"procedureTitle": {"answer": "..."}}}
+ * </pre>
+ *
+ * @author Sana Development Team
+ */
+public class CompactResponses {
+	public static final String TAG = CompactResponses.class.getSimpleName();
+
+	/** Key holding the format name in the compact form. */
+	public static final String FORMAT_KEY = "format";
+
+	/** The format name. */
+	public static final String FORMAT = "compact-1";
+
+	static final String TYPE = "type";
+	static final String ID = "id";
+
+	/**
+	 * Encodes an element map in the compact form.
+	 *
+	 * @param elementMap the element properties, by element id.
+	 * @return the compact responses.
+	 * @throws JSONException
+	 */
+	public static JSONObject encode(Map<String, Map<String,String>> elementMap)
+		throws JSONException
+	{
+		JSONObject result = new JSONObject();
+		result.put(FORMAT_KEY, FORMAT);
+		for (Map.Entry<String, Map<String,String>> e : elementMap.entrySet()) {
+			Map<String,String> properties = e.getValue();
+			String type = properties.get(TYPE);
+			if (type == null)
+				type = "";
+			JSONObject element = new JSONObject();
+			for (Map.Entry<String,String> p : properties.entrySet()) {
+				String key = p.getKey();
+				String value = p.getValue();
+				if (TYPE.equals(key) || ID.equals(key) || value == null
+						|| value.length() == 0)
+					continue;
+				element.put(key, value);
+			}
+			JSONObject group = result.optJSONObject(type);
+			if (group == null) {
+				group = new JSONObject();
+				result.put(type, group);
+			}
+			group.put(e.getKey(), element);
+		}
+		return result;
+	}
+
+	/**
+	 * Whether responses are in the compact form.
+	 * @param responses the responses.
+	 * @return true if {@link #decode(JSONObject)} should be used.
+	 */
+	public static boolean isCompact(JSONObject responses) {
+		return FORMAT.equals(responses.optString(FORMAT_KEY));
+	}
+
+	/**
+	 * Expands compact responses back to the full element map. Every element
+	 * gets its type and id; left out values are not restored.
+	 *
+	 * @param responses the compact responses.
+	 * @return the element properties, by element id.
+	 * @throws JSONException if the responses are not in the compact form.
+	 */
+	public static Map<String, Map<String,String>> decode(JSONObject responses)
+		throws JSONException
+	{
+		if (!isCompact(responses))
+			throw new JSONException("Not " + FORMAT + " responses");
+		Map<String, Map<String,String>> elementMap =
+			new HashMap<String, Map<String,String>>();
+		Iterator<?> types = responses.keys();
+		while (types.hasNext()) {
+			String type = (String) types.next();
+			if (FORMAT_KEY.equals(type))
+				continue;
+			JSONObject group = responses.getJSONObject(type);
+			Iterator<?> ids = group.keys();
+			while (ids.hasNext()) {
+				String id = (String) ids.next();
+				JSONObject element = group.getJSONObject(id);
+				Map<String,String> properties = new HashMap<String,String>();
+				Iterator<?> keys = element.keys();
+				while (keys.hasNext()) {
+					String key = (String) keys.next();
+					properties.put(key, element.getString(key));
+				}
+				properties.put(TYPE, type);
+				properties.put(ID, id);
+				elementMap.put(id, properties);
+			}
+		}
+		return elementMap;
+	}
+}
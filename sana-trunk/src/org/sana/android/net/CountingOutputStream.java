@@ -0,0 +1,29 @@
+package org.sana.android.net;
+
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to it and discards them. Used to find the length
+ * of a request body which is encoded as it is written.
+ *
+ * @author Sana Development Team
+ */
+public class CountingOutputStream extends OutputStream {
+
+	private long count = 0;
+
+	@Override
+	public void write(int b) {
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		count += len;
+	}
+
+	/** @return the number of bytes written. */
+	public long getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,109 @@
+package org.sana.android.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * Multipart body which writes a range of a file straight from its channel to
+ * the request, so that a chunk is never held in memory as a whole. The range
+ * is read with positional reads through a small buffer kept by each thread;
+ * several bodies may read the same channel at once.
+ *
+ * @author Sana Development Team
+ */
+public class FileRangeBody extends AbstractContentBody {
+
+	/** Size of the buffer each writing thread reads through. */
+	public static final int TRANSFER_BUFFER_SIZE = 8192;
+
+	private static final ThreadLocal<ByteBuffer> buffers =
+		new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+			}
+		};
+
+	private final FileChannel channel;
+	private final long position;
+	private final long length;
+	private final String filename;
+
+	/**
+	 * Creates a new FileRangeBody.
+	 *
+	 * @param channel the file, which is not closed by this body.
+	 * @param position the offset in the file of the first byte to send.
+	 * @param length the number of bytes to send.
+	 * @param filename the name of the file contained in this part.
+	 */
+	public FileRangeBody(FileChannel channel, long position, long length,
+			String filename)
+	{
+		super("application/octet-stream");
+		if (channel == null)
+			throw new IllegalArgumentException("Channel may not be null");
+		if (position < 0 || length < 0)
+			throw new IndexOutOfBoundsException();
+		this.channel = channel;
+		this.position = position;
+		this.length = length;
+		this.filename = filename;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		transfer(channel, position, length, out);
+	}
+
+	/**
+	 * Copies a range of a file to a stream through the buffer of the calling
+	 * thread.
+	 *
+	 * @param channel the file.
+	 * @param position the offset of the first byte to copy.
+	 * @param length the number of bytes to copy.
+	 * @param out where the bytes are written.
+	 * @throws EOFException if the file ends before the range.
+	 * @throws IOException
+	 */
+	public static void transfer(FileChannel channel, long position,
+			long length, OutputStream out) throws IOException
+	{
+		ByteBuffer buffer = buffers.get();
+		long remaining = length;
+		while (remaining > 0) {
+			buffer.clear();
+			if (remaining < buffer.capacity())
+				buffer.limit((int) remaining);
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new EOFException("File ends at " + position + " of "
+						+ (position + remaining));
+			out.write(buffer.array(), buffer.arrayOffset(), n);
+			position += n;
+			remaining -= n;
+		}
+	}
+
+	public String getCharset() {
+		return null;
+	}
+
+	public String getTransferEncoding() {
+		return MIME.ENC_BINARY;
+	}
+
+	public long getContentLength() {
+		return length;
+	}
+}
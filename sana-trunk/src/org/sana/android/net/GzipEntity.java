@@ -0,0 +1,99 @@
+package org.sana.android.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Request body which compresses another with gzip. The MDS may not accept a
+ * chunked request, so the length must be known before the body is sent. The
+ * body is compressed once, into a buffer, the first time its length or
+ * content is asked for, and the buffer is sent and sent again on a retry.
+ * Only the compressed body is held, which for the bodies sent to the MDS is
+ * a fraction of the uncompressed one.
+ *
+ * @author Sana Development Team
+ */
+public class GzipEntity extends HttpEntityWrapper {
+
+	/** Size of the buffer between the deflater and the request. */
+	static final int BUFFER_SIZE = 4096;
+
+	// the compressed body, once compressed
+	private ByteArrayOutputStream compressed = null;
+
+	/**
+	 * Creates a new GzipEntity.
+	 *
+	 * @param entity the uncompressed body, which must be repeatable.
+	 */
+	public GzipEntity(HttpEntity entity) {
+		super(entity);
+		if (!entity.isRepeatable())
+			throw new IllegalArgumentException("Entity must be repeatable");
+	}
+
+	@Override
+	public Header getContentEncoding() {
+		return new BasicHeader(HTTP.CONTENT_ENCODING, "gzip");
+	}
+
+	@Override
+	public long getContentLength() {
+		try {
+			return compress().size();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public boolean isChunked() {
+		return false;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return new ByteArrayInputStream(compress().toByteArray());
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		compress().writeTo(out);
+	}
+
+	// compresses the body the first time it is needed
+	private synchronized ByteArrayOutputStream compress() throws IOException {
+		if (compressed == null) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+					BUFFER_SIZE);
+			GZIPOutputStream gzip = new GZIPOutputStream(buffer, BUFFER_SIZE);
+			try {
+				wrappedEntity.writeTo(gzip);
+			} finally {
+				gzip.close();
+			}
+			compressed = buffer;
+		}
+		return compressed;
+	}
+}
@@ -0,0 +1,244 @@
+package org.sana.android.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.sana.android.Constants;
+
+import android.util.Log;
+
+/**
+ * Holds the one HttpClient used for every request to the MDS. Connections are
+ * pooled and kept alive between requests, so that consecutive requests, such
+ * as the chunks of a binary, do not each pay for a new TCP and SSL handshake.
+ * The client is thread safe and may be used by several uploads at once.
+ *
+ * The number of requests executed and of connections opened are counted so
+ * that connection reuse can be checked. The request each thread is making is
+ * kept until it is released, so that another thread can abort it. A thread
+ * aborted between requests has its next request refused instead.
+ *
+ * @author Sana Development Team
+ */
+public class HttpClientPool {
+	public static final String TAG = HttpClientPool.class.getSimpleName();
+
+	/** Most connections kept open to a single server. */
+	public static final int MAX_CONNECTIONS_PER_ROUTE = 6;
+
+	/** Most connections kept open in total. */
+	public static final int MAX_CONNECTIONS = 12;
+
+	/** Seconds an unused connection is kept open. */
+	public static final int IDLE_TIMEOUT = 30;
+
+	private static final AtomicLong requests = new AtomicLong();
+	private static final AtomicLong connections = new AtomicLong();
+	// the request each thread is executing or reading the response of
+	private static final ConcurrentHashMap<Thread, HttpUriRequest> executing =
+		new ConcurrentHashMap<Thread, HttpUriRequest>();
+	// marks a thread aborted before it executed a request
+	private static final HttpUriRequest ABORTED = new HttpGet();
+
+	// guarded by HttpClientPool.class
+	private static DefaultHttpClient client = null;
+	private static int connectTimeout = Constants.DEFAULT_CONNECT_TIMEOUT * 1000;
+	private static int readTimeout = Constants.DEFAULT_READ_TIMEOUT * 1000;
+
+	/** Counts the connections it opens. */
+	private static class CountingConnManager extends ThreadSafeClientConnManager {
+		CountingConnManager(HttpParams params, SchemeRegistry registry) {
+			super(params, registry);
+		}
+
+		@Override
+		protected ClientConnectionOperator createConnectionOperator(
+				SchemeRegistry registry)
+		{
+			return new DefaultClientConnectionOperator(registry) {
+				@Override
+				public void openConnection(OperatedClientConnection conn,
+						HttpHost target, InetAddress local, HttpContext context,
+						HttpParams params) throws IOException
+				{
+					connections.incrementAndGet();
+					super.openConnection(conn, target, local, context, params);
+				}
+			};
+		}
+	}
+
+	/**
+	 * The shared client, created when first used.
+	 * @return the client.
+	 */
+	public static synchronized HttpClient getClient() {
+		if (client == null) {
+			HttpParams params = new BasicHttpParams();
+			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+			HttpProtocolParams.setContentCharset(params, "UTF-8");
+			// waiting for 100-continue costs a round trip on every post
+			HttpProtocolParams.setUseExpectContinue(params, false);
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			// headers and body are written separately; on a kept alive
+			// connection Nagle's algorithm would hold the body back until
+			// the server's delayed ack
+			HttpConnectionParams.setTcpNoDelay(params, true);
+			ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(params,
+					new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+			setTimeouts(params);
+
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http",
+					PlainSocketFactory.getSocketFactory(), 80));
+			registry.register(new Scheme("https",
+					SSLSocketFactory.getSocketFactory(), 443));
+			client = new DefaultHttpClient(
+					new CountingConnManager(params, registry), params);
+		}
+		return client;
+	}
+
+	private static void setTimeouts(HttpParams params) {
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+		ConnManagerParams.setTimeout(params, connectTimeout);
+	}
+
+	/**
+	 * Sets the timeouts of the shared client. They apply to the requests
+	 * made afterwards.
+	 *
+	 * @param connectTimeout milliseconds to wait for a connection.
+	 * @param readTimeout milliseconds to wait for data from the server.
+	 */
+	public static synchronized void setTimeouts(int connectTimeout,
+			int readTimeout)
+	{
+		if (HttpClientPool.connectTimeout == connectTimeout
+				&& HttpClientPool.readTimeout == readTimeout)
+			return;
+		HttpClientPool.connectTimeout = connectTimeout;
+		HttpClientPool.readTimeout = readTimeout;
+		if (client != null)
+			setTimeouts(client.getParams());
+		Log.i(TAG, "Timeouts set to " + connectTimeout + "ms to connect, "
+				+ readTimeout + "ms to read");
+	}
+
+	/**
+	 * Executes a request with the shared client. The response entity must be
+	 * consumed, or the request aborted, to return the connection to the
+	 * pool. The request may be aborted by {@link #abort(Thread)} until the 
+	 * calling thread calls {@link #release()}.
+	 *
+	 * @param request the request.
+	 * @return the response.
+	 * @throws IOException if the request failed, or the calling thread was
+	 * 		aborted since it last released a request.
+	 */
+	public static HttpResponse execute(HttpUriRequest request)
+		throws IOException
+	{
+		HttpClient client = getClient();
+		if (executing.put(Thread.currentThread(), request) == ABORTED) {
+			executing.remove(Thread.currentThread());
+			throw new IOException("Request aborted");
+		}
+		requests.incrementAndGet();
+		return client.execute(request);
+	}
+
+	/**
+	 * Marks the request of the calling thread as done with, and clears an
+	 * abort which came after it.
+	 */
+	public static void release() {
+		executing.remove(Thread.currentThread());
+	}
+
+	/**
+	 * Aborts the request a thread is making, closing its connection so that
+	 * the thread is not left blocked on it. A thread which is not making a
+	 * request has its next one refused, unless it releases first.
+	 *
+	 * @param thread the thread.
+	 */
+	public static void abort(Thread thread) {
+		HttpUriRequest request = executing.put(thread, ABORTED);
+		if (request != null && request != ABORTED) {
+			Log.i(TAG, "Aborting " + request.getURI());
+			request.abort();
+		}
+	}
+
+	/** Closes the connections which have not been used recently. */
+	public static synchronized void closeIdleConnections() {
+		if (client == null)
+			return;
+		client.getConnectionManager().closeExpiredConnections();
+		client.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT,
+				TimeUnit.SECONDS);
+	}
+
+	/** Closes every connection and discards the shared client. */
+	public static synchronized void shutdown() {
+		if (client == null)
+			return;
+		client.getConnectionManager().shutdown();
+		client = null;
+	}
+
+	/** @return the number of requests executed. */
+	public static long getRequestCount() {
+		return requests.get();
+	}
+
+	/** @return the number of connections opened. */
+	public static long getConnectionCount() {
+		return connections.get();
+	}
+
+	/** @return the number of requests made over an existing connection. */
+	public static long getReusedCount() {
+		return Math.max(0, requests.get() - connections.get());
+	}
+
+	/**
+	 * Describes the connection reuse, for diagnostics.
+	 * @return the request and connection counts.
+	 */
+	public static String getStatistics() {
+		long sent = getRequestCount();
+		long reused = getReusedCount();
+		return sent + " requests, " + getConnectionCount()
+			+ " connections opened, " + reused + " reused"
+			+ ((sent > 0)? " (" + (100 * reused / sent) + "%)": "");
+	}
+}
@@ -1,23 +1,36 @@
 package org.sana.android.net;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.commons.codec.binary.Hex;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.sana.android.Constants;
+import org.sana.android.db.AnswerJournal;
+import org.sana.android.db.BlobDAO;
+import org.sana.android.db.BlobStore;
 import org.sana.android.db.Event;
+import org.sana.android.db.ImageProvider;
+import org.sana.android.db.ProcedureDAO;
 import org.sana.android.db.DispatchableContract.ImageSQLFormat;
 import org.sana.android.db.DispatchableContract.Procedures;
 import org.sana.android.db.DispatchableContract.Encounters;
@@ -38,6 +51,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -59,20 +73,21 @@ import android.util.Log;
  *    and does not send the completed upload to OpenMRS until all parts are
  *    received.
  * 3) For each binary element, Moca uploads chunks of the element to the
- *    MDS. The size of these chunks starts at a default size. Each chunk is
+ *    MDS. The size of these chunks starts at the last good size recorded for
+ *    the current network, or at a default size on a new network. Each chunk is
  *    tagged with a procedure, patient, and phone ID as well as an element
  *    identifier and the start and end byte numbers (corresponding to the chunk
- *    location).
- * 4) If the first chunk successfully uploads, the chunk size for the next chunk
- *    transmission doubles. If the post fails, the chunk size halves.
- * 5) If the chunk size falls below a default "give up" threshold, the procedure
- *    is tagged as not- finished-uploading, and Moca waits to transmit the rest
- *    of the completed procedure at a later time. If the entire binary element
- *    is successfully transmitted, it moves on to the next element.
- * 6) It repeats steps 3-5 for subsequent elements, but instead of starting at
- *    the default chunk size for each transmission, it now has knowledge about
- *    the connection quality and uses the last successful transmission size from
- *    the last binary element as a starting point.
+ *    location). Several chunks, possibly of different elements, are sent at
+ *    once by the {@link BinaryUploadEngine}.
+ * 4) The chunk size doubles after each acknowledged chunk until the first
+ *    failure and then grows slowly, TCP style, within what the estimated
+ *    bandwidth can carry. A failure halves the chunk size and the failed
+ *    chunk is sent again. The estimates are saved for the network afterwards.
+ * 5) If a chunk fails too many times, the procedure is tagged as
+ *    not-finished-uploading, and Moca waits to transmit the rest of the
+ *    completed procedure at a later time. The progress of each element is
+ *    saved only up to the first chunk which has not been acknowledged, so
+ *    that the upload resumes there.
  */
 public class MDSInterface {
 	public static final String TAG = MDSInterface.class.toString();
@@ -83,38 +98,31 @@ public class MDSInterface {
 		Encounters.UUID, Encounters.UPLOADED };
 
 	/**
-	 * Posts a single chunk of a binary file.
+	 * Posts a single chunk of a binary file, with the digests of the chunk 
+	 * and of the whole file.
 	 * 
 	 * @param c current context
 	 * @param savedProcedureId
-	 * @param elementId
-	 * @param type binary type (ie picture, sound, etc.)
-	 * @param start first byte index in binary file (since this presumably is a chunk of a larger file)
-	 * @param end last byte index in binary file of the chunk being uploaded
-	 * @param byte_data a byte array containing the file chunk data
+	 * @param chunk the range of the binary file to send, held in a buffer or
+	 * 		read from the file as it is sent
 	 * @return true on successful upload, otherwise false
 	 */
-	private static boolean postBinary(Context c, MocaAPI api, String savedProcedureId, String elementId, String fileGuid, 
-			ElementType type, int fileSize, int start, int end, byte byte_data[]) throws APIException {
+	private static boolean postBinary(Context c, MocaAPI api, String savedProcedureId, 
+			BinaryUploadEngine.Chunk chunk) throws APIException {
 		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
 		boolean hacksMode = preferences.getBoolean(Constants.PREFERENCE_UPLOAD_HACK, false);		
 		
 		Log.i(TAG, "postBinary() : " + (hacksMode ? "encoding binary as Base64 text" : "uploading binary data as a file"));
 		
-		boolean success = false;
-		if (hacksMode) {
-			success = api.transmitBinarySequenceAsBase64Text(savedProcedureId, elementId, 
-					fileGuid, type.toString(), type.getFilename(), fileSize, start, end, byte_data);
-		} else {
-			success = api.transmitBinarySequence(savedProcedureId, elementId, 
-					fileGuid, type.toString(), type.getFilename(), fileSize, start, end, byte_data);
-		}
+		boolean success = api.transmitBinaryChunk(savedProcedureId, 
+				chunk.binary, chunk, hacksMode);
 		Log.d(TAG, "The binary upload " + (success ? "succeeded" : "failed"));
 		return success;
 	}
 	
 	public static boolean isProcedureAlreadyUploaded(Uri uri, Context context) {
-		Cursor cursor = context.getContentResolver().query(uri, savedProcedureProjection, null,
+		Cursor cursor = context.getContentResolver().query(
+				AnswerJournal.withAnswers(uri), savedProcedureProjection, null,
 				null, null);
 		// First get the saved procedure...
 		cursor.moveToFirst();
@@ -128,14 +136,10 @@ public class MDSInterface {
 
 		Uri procedureUri = ContentUris.withAppendedId(Procedures.CONTENT_URI, procedureId);
 		Log.i(TAG, "Getting procedure " + procedureUri.toString());
-		cursor = context.getContentResolver().query(procedureUri, new String[] { Procedures.PROCEDURE }, null, null, null);
-		cursor.moveToFirst();
-		String procedureXml = cursor.getString(0);
-		cursor.deactivate();
 
 		Map<String, Map<String,String>> elementMap = null;
 		try {
-			Procedure p = Procedure.fromXMLString(procedureXml);
+			Procedure p = ProcedureDAO.getProcedure(context, procedureUri);
 			p.setInstanceUri(uri);
 
 			JSONTokener tokener = new JSONTokener(answersJson);
@@ -219,9 +223,6 @@ public class MDSInterface {
 					binUri = ContentUris.withAppendedId(SoundSQLFormat.CONTENT_URI, Long.parseLong(binaryId));
 				} else if (type == ElementType.BINARYFILE) {
 					binUri = Uri.fromFile(new File(e.answer));
-					// We can't tell if a BINARYFILE has been uploaded before.
-					// Maybe if we grab the mtime/filesize on the file and store
-					// it when we upload it.
 				}
 
 				try {
@@ -245,8 +246,12 @@ public class MDSInterface {
 						cur.deactivate();
 						break;
 					case BINARYFILE:
+						String hash = BlobStore.digest(new File(e.answer));
+						alreadyUploaded = BlobDAO.isUploaded(
+								context.getContentResolver(), hash);
+						if (!alreadyUploaded) return false;
+						break;
 					default:
-						// Can't do anything since its not in the DB. Sigh.
 						break;
 					}
 				} catch (Exception x) {
@@ -273,55 +278,131 @@ public class MDSInterface {
 	}
 	
 	/**
-	 * Send the entire completed procedure to the Moca Dispatch Server (MDS)
-	 * This procedure sends the answer/response pairs and all the binary data (sounds, 
-	 * pictures, etc.) to the MDS in a packetized fashion.
+	 * Send as much of a completed procedure to the MDS as the current link 
+	 * allows.
 	 * 
 	 * @param uri uri of procedure in database
 	 * @param context current context
-	 * @return true if upload was successful, false if not
+	 * @param allowance what may be sent over the current link
+	 * @return whether the procedure was sent, in full or in part
+	 * @throws APIException 
 	 */
-	public static boolean submitCase(Uri uri, Context context) throws APIException {
+	public static SubmitResult postProcedureToDjangoServer(Uri uri, 
+			Context context, UploadPolicy.Allowance allowance) 
+		throws APIException
+	{
+		return submitCase(uri, context, allowance);
+	}
+	
+	/**
+	 * The outcomes of sending a procedure.
+	 * 
+	 * @author Sana Development Team
+	 */
+	public enum SubmitResult {
+		/** Everything was sent. */
+		SENT,
+		/** What the link allowed was sent, the rest waits for a better one. */
+		DEFERRED,
+		/** The procedure could not be sent. */
+		FAILED
+	}
+	
+	// orders binaries so that pictures go first, then the smallest
+	private static final Comparator<BinaryUploadEngine.Binary> 
+		SMALLEST_PICTURE_FIRST = new Comparator<BinaryUploadEngine.Binary>() 
+	{
+		public int compare(BinaryUploadEngine.Binary a, 
+				BinaryUploadEngine.Binary b) 
+		{
+			boolean aPicture = a.type == ElementType.PICTURE;
+			boolean bPicture = b.type == ElementType.PICTURE;
+			if (aPicture != bPicture)
+				return aPicture? -1: 1;
+			long aRemaining = a.size - a.getProgress();
+			long bRemaining = b.size - b.getProgress();
+			return (aRemaining < bRemaining)? -1: 
+				(aRemaining == bRemaining)? 0: 1;
+		}
+	};
+	
+	// spaces out the attempts to send the responses of a case
+	private static final RetryPolicy RESPONSE_RETRY = new RetryPolicy(1000, 
+			16000, 5);
+	
+	// the client for the last server and credentials used
+	private static MocaAPI api = null;
+	private static String apiKey = null;
+	
+	/**
+	 * Gets an API client for the server and credentials in the preferences,
+	 * and applies the network timeouts to the shared HTTP client. The client
+	 * is reused for as long as the preferences are unchanged.
+	 * 
+	 * @param context current context
+	 * @return the client
+	 */
+	private static synchronized MocaAPI getAPI(Context context) {
 		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
 		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
 				Constants.DEFAULT_DISPATCH_SERVER);
-		String phoneIdentifier = preferences.getString("s_phone_name", Constants.PHONE_ID);
 		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
 		String password = preferences.getString(Constants.PREFERENCE_EMR_PASSWORD, Constants.DEFAULT_PASSWORD);
-
-		MocaAPI api = new MocaAPI(mdsURL, username, password);
-		
-		Log.i(TAG, "submitCase(" + uri.toString() + ")");
+		boolean secure = preferences.getBoolean(Constants.PREFERENCE_SECURE_TRANSMISSION,
+				false);
+		boolean compress = preferences.getBoolean(
+				Constants.PREFERENCE_COMPRESS_REQUESTS, false);
+		HttpClientPool.setTimeouts(
+				getSeconds(preferences, Constants.PREFERENCE_CONNECT_TIMEOUT, 
+						Constants.DEFAULT_CONNECT_TIMEOUT) * 1000,
+				getSeconds(preferences, Constants.PREFERENCE_READ_TIMEOUT, 
+						Constants.DEFAULT_READ_TIMEOUT) * 1000);
 		
-		Cursor cursor = context.getContentResolver().query(uri, savedProcedureProjection, null,
-				null, null);
-		// First get the saved procedure...
-		cursor.moveToFirst();
-		int savedProcedureId = cursor.getInt(0);
-		int procedureId = cursor.getInt(1);
-		String answersJson = cursor.getString(2);
-		boolean finished = cursor.getInt(3) != 0;
-		String savedProcedureGUID = cursor.getString(4);
-		boolean savedProcedureUploaded = cursor.getInt(5) != 0;
-		cursor.deactivate();
-
+		String key = mdsURL + "|" + username + "|" + password + "|" + secure
+				+ "|" + compress;
+		if (api == null || !key.equals(apiKey)) {
+			api = new MocaAPI(mdsURL, username, password, secure, compress);
+			apiKey = key;
+		}
+		return api;
+	}
+	
+	private static int getSeconds(SharedPreferences preferences, String key,
+			int defaultValue) 
+	{
+		try {
+			int seconds = Integer.parseInt(preferences.getString(key, 
+					Integer.toString(defaultValue)));
+			return (seconds > 0)? seconds: defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Restores the answers of an encounter into its procedure and adds the 
+	 * procedure title as a hidden answer.
+	 * 
+	 * @param context current context
+	 * @param uri the encounter
+	 * @param procedureId the procedure the encounter was taken with
+	 * @param answersJson the encounter answers
+	 * @return the elements with their answers, by element id, or null if the
+	 * 		procedure or answers could not be read
+	 */
+	private static Map<String, Map<String,String>> getElementMap(
+			Context context, Uri uri, int procedureId, String answersJson)
+	{
 		Uri procedureUri = ContentUris.withAppendedId(Procedures.CONTENT_URI, procedureId);
 		Log.i(TAG, "Getting procedure " + procedureUri.toString());
-		cursor = context.getContentResolver().query(procedureUri, new String[] { Procedures.TITLE, Procedures.PROCEDURE }, null, null, null);
+		Cursor cursor = context.getContentResolver().query(procedureUri, new String[] { Procedures.TITLE }, null, null, null);
 		cursor.moveToFirst();
 		String procedureTitle = cursor.getString(cursor.getColumnIndex(Procedures.TITLE));
-		String procedureXml = cursor.getString(cursor.getColumnIndex(Procedures.PROCEDURE));
 		cursor.deactivate();
 
-		//Log.i(TAG, "Procedure " + procedureXml);
-
-		if(!finished) {
-			Log.i(TAG, "Not finished. Not uploading. (just kidding)" + uri.toString());
-			//return false;
-		}
 		Map<String, Map<String,String>> elementMap = null;
 		try {
-			Procedure p = Procedure.fromXMLString(procedureXml);
+			Procedure p = ProcedureDAO.getProcedure(context, procedureUri);
 			p.setInstanceUri(uri);
 
 			JSONTokener tokener = new JSONTokener(answersJson);
@@ -350,10 +431,8 @@ public class MDSInterface {
 			Log.e(TAG, e.toString());
 		}
 
-		if(elementMap == null) {
-			Log.i(TAG, "Could not read questions and answers from " + uri + ". Not uploading.");
-			return false;
-		}
+		if(elementMap == null)
+			return null;
 		
 		// Add in procedureTitle as a fake answer
 		Map<String,String> titleMap = new HashMap<String,String>();
@@ -361,6 +440,167 @@ public class MDSInterface {
 		titleMap.put("id", "procedureTitle");
 		titleMap.put("type", "HIDDEN");
 		elementMap.put("procedureTitle", titleMap);
+		return elementMap;
+	}
+	
+	/**
+	 * Converts the elements of an encounter to the responses sent to the MDS,
+	 * in the compact format if enabled in the settings.
+	 * 
+	 * @param context current context
+	 * @param elementMap the elements with their answers, by element id
+	 * @return the responses
+	 */
+	private static JSONObject toResponses(Context context,
+			Map<String, Map<String,String>> elementMap)
+	{
+		SharedPreferences preferences = 
+			PreferenceManager.getDefaultSharedPreferences(context);
+		if(preferences.getBoolean(Constants.PREFERENCE_COMPACT_RESPONSES, false)) {
+			try {
+				return CompactResponses.encode(elementMap);
+			} catch (JSONException e) {
+				Log.e(TAG, "Could not encode compact responses: " + e.getMessage());
+			}
+		}
+		JSONObject jsono = new JSONObject();
+		for(Entry<String,Map<String,String>> e : elementMap.entrySet()) {
+			try {
+				jsono.put(e.getKey(), new JSONObject(e.getValue()));
+			} catch (JSONException e1) {
+				Log.e(TAG, "Could not convert map " + e.getValue().toString() + " to JSON");
+			}
+		}
+		return jsono;
+	}
+	
+	/**
+	 * Sends the question and answer pairs of several encounters to the MDS 
+	 * in a single request. Encounters whose responses were already sent are 
+	 * skipped. Each encounter accepted by the MDS is marked as uploaded, so 
+	 * that {@link #submitCase(Uri, Context)} only sends its binaries; the 
+	 * others are left for submitCase to send on their own.
+	 * 
+	 * @param context current context
+	 * @param uris the encounters
+	 * @return the encounters whose responses were accepted
+	 * @throws APIException if the batch could not be sent, for instance
+	 * 		because the MDS does not accept batches
+	 */
+	public static List<Uri> postResponsesBatch(Context context, List<Uri> uris) 
+		throws APIException 
+	{
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		String phoneIdentifier = preferences.getString("s_phone_name", Constants.PHONE_ID);
+		
+		Map<String, Uri> encounters = new LinkedHashMap<String, Uri>();
+		Map<String, String> responses = new LinkedHashMap<String, String>();
+		for(Uri uri : uris) {
+			Cursor cursor = context.getContentResolver().query(
+					AnswerJournal.withAnswers(uri), 
+					savedProcedureProjection, null, null, null);
+			try {
+				if(!cursor.moveToFirst())
+					continue;
+				int procedureId = cursor.getInt(1);
+				String answersJson = cursor.getString(2);
+				String guid = cursor.getString(4);
+				boolean uploaded = cursor.getInt(5) != 0;
+				if(uploaded)
+					continue;
+				Map<String, Map<String,String>> elementMap = getElementMap(
+						context, uri, procedureId, answersJson);
+				if(elementMap == null) {
+					Log.i(TAG, "Could not read questions and answers from " + uri + ". Not batching.");
+					continue;
+				}
+				encounters.put(guid, uri);
+				responses.put(guid, toResponses(context, elementMap).toString());
+			} finally {
+				cursor.close();
+			}
+		}
+		
+		List<Uri> accepted = new ArrayList<Uri>();
+		if(responses.isEmpty())
+			return accepted;
+		Log.i(TAG, "Posting responses of " + responses.size() + " encounters in one request.");
+		Map<String, MDSResult> results = getAPI(context).transmitCaseResponsesBatch(
+				phoneIdentifier, responses);
+		for(Entry<String, Uri> e : encounters.entrySet()) {
+			MDSResult result = results.get(e.getKey());
+			if(result != null && result.succeeded()) {
+				// Mark the procedure text as uploaded in the database
+				ContentValues cv = new ContentValues();
+				cv.put(Encounters.UPLOADED, true);
+				context.getContentResolver().update(e.getValue(), cv, null, null);
+				accepted.add(e.getValue());
+			} else {
+				Log.i(TAG, "Responses of " + e.getValue() + " were not accepted: " 
+						+ ((result == null)? "no result": result.getCode()));
+			}
+		}
+		Log.i(TAG, accepted.size() + " of " + responses.size() + " encounters accepted.");
+		return accepted;
+	}
+	
+	/**
+	 * Send the entire completed procedure to the Moca Dispatch Server (MDS)
+	 * This procedure sends the answer/response pairs and all the binary data (sounds, 
+	 * pictures, etc.) to the MDS in a packetized fashion.
+	 * 
+	 * @param uri uri of procedure in database
+	 * @param context current context
+	 * @return true if upload was successful, false if not
+	 */
+	public static boolean submitCase(Uri uri, Context context) throws APIException {
+		return submitCase(uri, context, UploadPolicy.Allowance.ALL) 
+			== SubmitResult.SENT;
+	}
+	
+	/**
+	 * Sends as much of a procedure to the MDS as the current link allows. 
+	 * The responses go first, then the binaries, pictures before other 
+	 * binaries and smaller before larger.
+	 * 
+	 * @param uri uri of procedure in database
+	 * @param context current context
+	 * @param allowance what may be sent over the current link
+	 * @return whether the procedure was sent, in full or in part
+	 */
+	public static SubmitResult submitCase(Uri uri, Context context, 
+			UploadPolicy.Allowance allowance) throws APIException 
+	{
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		String phoneIdentifier = preferences.getString("s_phone_name", Constants.PHONE_ID);
+		MocaAPI api = getAPI(context);
+		
+		Log.i(TAG, "submitCase(" + uri.toString() + ")");
+		
+		Cursor cursor = context.getContentResolver().query(
+				AnswerJournal.withAnswers(uri), savedProcedureProjection, null,
+				null, null);
+		// First get the saved procedure...
+		cursor.moveToFirst();
+		int savedProcedureId = cursor.getInt(0);
+		int procedureId = cursor.getInt(1);
+		String answersJson = cursor.getString(2);
+		boolean finished = cursor.getInt(3) != 0;
+		String savedProcedureGUID = cursor.getString(4);
+		boolean savedProcedureUploaded = cursor.getInt(5) != 0;
+		cursor.deactivate();
+
+		if(!finished) {
+			Log.i(TAG, "Not finished. Not uploading. (just kidding)" + uri.toString());
+			//return SubmitResult.FAILED;
+		}
+		Map<String, Map<String,String>> elementMap = getElementMap(context, 
+				uri, procedureId, answersJson);
+
+		if(elementMap == null) {
+			Log.i(TAG, "Could not read questions and answers from " + uri + ". Not uploading.");
+			return SubmitResult.FAILED;
+		}
 
 		class ElementAnswer {
 			public String id;
@@ -373,16 +613,10 @@ public class MDSInterface {
 			}
 		}
 
-		JSONObject jsono = new JSONObject();
+		JSONObject jsono = toResponses(context, elementMap);
 		int totalBinaries = 0;
 		ArrayList<ElementAnswer> binaries = new ArrayList<ElementAnswer>();
 		for(Entry<String,Map<String,String>> e : elementMap.entrySet()) {
-			try {
-				jsono.put(e.getKey(), new JSONObject(e.getValue()));
-			} catch (JSONException e1) {
-				Log.e(TAG, "Could not convert map " + e.getValue().toString() + " to JSON");
-			}
-
 			String id = e.getKey();
 			String type = e.getValue().get("type");
 			String answer = e.getValue().get("answer");
@@ -412,9 +646,9 @@ public class MDSInterface {
 			String json = jsono.toString();
 			Log.i(TAG, "json string: " + json);
 
-			int tries = 0;
-			final int MAX_TRIES = 5;
-			while(tries < MAX_TRIES) {
+			// wait longer after each failure rather than retrying at once
+			int failures = 0;
+			while(true) {
 				boolean success = api.transmitCaseResponses(savedProcedureGUID, Integer.toString(0), phoneIdentifier, json);
 				if (success) {
 					// Mark the procedure text as uploaded in the database
@@ -424,12 +658,14 @@ public class MDSInterface {
 					Log.i(TAG, "Responses were uploaded successfully.");
 					break;
 				}
-				tries++;
-			}
-
-			if(tries == MAX_TRIES) {
-				Log.e(TAG, "Could not post responses, bailing.");
-				return false;
+				failures++;
+				if(!RESPONSE_RETRY.canRetry(failures) 
+						|| !RESPONSE_RETRY.await(failures)) 
+				{
+					Log.e(TAG, "Could not post responses after " + failures 
+							+ " tries, bailing.");
+					return SubmitResult.FAILED;
+				}
 			}
 
 		}
@@ -449,10 +685,21 @@ public class MDSInterface {
 		// adjust from KB to bytes
 		newPacketSize *= 1000;
 
-		int totalProgress = 1+totalBinaries;
-		int thisProgress = 2;
+		// lookup the number of chunks to keep in flight
+		String sWindow = preferences.getString(
+				Constants.PREFERENCE_UPLOAD_WINDOW, 
+				Integer.toString(Constants.DEFAULT_UPLOAD_WINDOW));
+		int window;
+		try {
+			window = Integer.parseInt(sWindow);
+		} catch (NumberFormatException e) {
+			window = Constants.DEFAULT_UPLOAD_WINDOW;
+		}
 
-		// upload each binary file
+		// open each binary file
+		List<BinaryUploadEngine.Binary> uploads = 
+			new ArrayList<BinaryUploadEngine.Binary>();
+		boolean deferred = false;
 		for(ElementAnswer e : binaries) {
 
 			if("".equals(e.answer))
@@ -470,6 +717,12 @@ public class MDSInterface {
 				} catch(IllegalArgumentException ex) {
 
 				}
+				
+				// leave what the link does not allow for a better one
+				if (!allowance.allows(type)) {
+					deferred = true;
+					continue;
+				}
 
 				if (type == ElementType.PICTURE) {
 					binUri = ContentUris.withAppendedId(ImageSQLFormat.CONTENT_URI, Long.parseLong(binaryId));	
@@ -477,48 +730,303 @@ public class MDSInterface {
 					binUri = ContentUris.withAppendedId(SoundSQLFormat.CONTENT_URI, Long.parseLong(binaryId));
 				} else if (type == ElementType.BINARYFILE) {
 					binUri = Uri.fromFile(new File(e.answer));
-					// We can't tell if a BINARYFILE has been uploaded before.
-					// Maybe if we grab the mtime/filesize on the file and store
-					// it when we upload it.
 				}
 
 				try {
-					Log.i(TAG, "Uploading " + binUri);
-					// reset the new packet size each time to the last successful transmission size
-					newPacketSize = transmitBinary(context, api, savedProcedureGUID, e.id, binaryId, type, binUri, newPacketSize);
+					BinaryUploadEngine.Binary binary;
+					if (type == ElementType.PICTURE 
+							&& !allowance.allowsOriginals()
+							&& hasRendition(context, binUri)) 
+					{
+						// the original waits for a link which allows it
+						deferred = true;
+						binary = openRendition(context, e.id, binaryId, 
+								binUri);
+					} else {
+						binary = openBinary(context, e.id, binaryId, type, 
+								binUri);
+					}
+					if (binary != null)
+						uploads.add(binary);
 				} catch (Exception x) {
-					Log.i(TAG, "Uploading " + binUri + " failed : " + x.toString());
-					return false;
+					Log.i(TAG, "Opening " + binUri + " failed : " + x.toString());
+					closeBinaries(uploads);
+					return SubmitResult.FAILED;
 				}
-				thisProgress++;
 			}
 		}
+
+		Collections.sort(uploads, SMALLEST_PICTURE_FIRST);
+		if (deferred)
+			Log.i(TAG, "Deferring the binaries of " + uri + " not allowed on "
+					+ "this link (" + allowance + ").");
+
+		// start from what is known of the current network
+		String network = ThroughputModelStore.getNetworkKey(context);
+		PacketSizeController controller = ThroughputModelStore.load(context,
+				network, newPacketSize, Constants.MIN_PACKET_SIZE * 1000, 
+				Constants.MAX_PACKET_SIZE * 1000);
+
+		// upload the binaries, several chunks at a time
+		BinaryProgressRecorder recorder = new BinaryProgressRecorder(context);
+		BinaryUploadEngine engine = new BinaryUploadEngine(
+				new MDSChunkTransport(context, api, savedProcedureGUID), 
+				recorder, window, controller);
+		try {
+			skipKnownBinaries(api, savedProcedureGUID, uploads, recorder);
+			Log.i(TAG, "Uploading " + uploads.size() + " binaries, " + window 
+					+ " chunks at a time.");
+			engine.upload(uploads);
+		} catch (IOException x) {
+			Log.i(TAG, "Uploading binaries failed : " + x.toString());
+			return SubmitResult.FAILED;
+		} finally {
+			ThroughputModelStore.save(context, network, controller);
+			Log.i(TAG, "Connections: " + HttpClientPool.getStatistics());
+		}
 		// TODO Tag entire procedure in db as done transmitting
-		return true;   
+		return deferred? SubmitResult.DEFERRED: SubmitResult.SENT;   
+	}
+	
+	/**
+	 * Leaves out of an upload the binaries whose content the MDS already 
+	 * holds, recording them as uploaded. An MDS which can not be asked is 
+	 * sent everything.
+	 * 
+	 * @param api the MDS to ask
+	 * @param savedProcedureId the saved procedure guid of the encounter
+	 * @param uploads the binaries to upload, those held are removed
+	 * @param recorder records the binaries held as uploaded
+	 */
+	private static void skipKnownBinaries(MocaAPI api, String savedProcedureId,
+			List<BinaryUploadEngine.Binary> uploads, 
+			BinaryUploadEngine.ProgressListener recorder)
+	{
+		Set<String> known;
+		try {
+			known = api.findKnownBinaries(savedProcedureId, uploads);
+		} catch (APIException e) {
+			Log.i(TAG, "Could not ask which binaries are held, sending all: " 
+					+ e.toString());
+			return;
+		}
+		Iterator<BinaryUploadEngine.Binary> it = uploads.iterator();
+		while (it.hasNext()) {
+			BinaryUploadEngine.Binary binary = it.next();
+			if (binary.getHash() == null || !known.contains(binary.getHash()))
+				continue;
+			Log.i(TAG, "The MDS holds " + binary.uri + " already. Skipping.");
+			recorder.onComplete(binary);
+			try {
+				binary.close();
+			} catch (IOException e) {
+			}
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Sends chunks of binary files to the MDS.
+	 */
+	private static class MDSChunkTransport implements 
+		BinaryUploadEngine.ChunkTransport 
+	{
+		private final Context context;
+		private final MocaAPI api;
+		private final String savedProcedureId;
+		
+		MDSChunkTransport(Context context, MocaAPI api, 
+				String savedProcedureId)
+		{
+			this.context = context;
+			this.api = api;
+			this.savedProcedureId = savedProcedureId;
+		}
+		
+		public boolean send(BinaryUploadEngine.Binary binary, 
+				BinaryUploadEngine.Chunk chunk) throws APIException 
+		{
+			Log.i(TAG, "Trying to upload " + chunk.length() + " bytes for " 
+					+ savedProcedureId + ":" + binary.elementId + ".");
+			return postBinary(context, api, savedProcedureId, chunk);
+		}
+		
+		public int getOffset(BinaryUploadEngine.Binary binary) 
+			throws APIException 
+		{
+			return api.getBinaryOffset(savedProcedureId, binary);
+		}
+	}
+	
+	/**
+	 * Writes the acknowledged progress of each binary to the database so that
+	 * the upload may be resumed.
+	 */
+	private static class BinaryProgressRecorder implements 
+		BinaryUploadEngine.ProgressListener 
+	{
+		private final Context context;
+		
+		BinaryProgressRecorder(Context context){
+			this.context = context;
+		}
+		
+		public void onProgress(BinaryUploadEngine.Binary binary, 
+				int progress) 
+		{
+			ContentValues cv = new ContentValues();
+			switch(binary.type) {
+			case PICTURE:
+				cv.put(isRendition(binary)? ImageSQLFormat.RENDITION_PROGRESS:
+					ImageSQLFormat.UPLOAD_PROGRESS, progress);
+				context.getContentResolver().update(binary.uri, cv, null, 
+						null);
+				break;
+			case SOUND:
+				cv.put(SoundSQLFormat.UPLOAD_PROGRESS, progress);
+				context.getContentResolver().update(binary.uri, cv, null, 
+						null);
+				break;
+			case BINARYFILE:
+				if (binary.getHash() != null)
+					BlobDAO.setProgress(context.getContentResolver(), 
+							binary.getHash(), progress);
+				break;
+			}
+		}
+		
+		public void onComplete(BinaryUploadEngine.Binary binary) {
+			Log.i(TAG, "Uploaded " + binary.uri);
+			ContentValues cv = new ContentValues();
+			switch(binary.type) {
+			case PICTURE:
+				cv.put(isRendition(binary)? ImageSQLFormat.RENDITION_UPLOADED:
+					ImageSQLFormat.UPLOADED, true);
+				context.getContentResolver().update(binary.uri, cv, null, 
+						null);
+				break;
+			case SOUND:
+				cv.put(SoundSQLFormat.UPLOADED, true);
+				context.getContentResolver().update(binary.uri, cv, null, 
+						null);
+				break;
+			}
+			// the same content elsewhere need not be sent again
+			if (binary.getHash() != null)
+				BlobDAO.setUploaded(context.getContentResolver(), 
+						binary.getHash());
+		}
+	}
+	
+	// whether a picture is sent as its upload rendition
+	private static boolean isRendition(BinaryUploadEngine.Binary binary){
+		return binary.uri != null && ImageProvider.RENDITION_VIEW.equals(
+				binary.uri.getQueryParameter(ImageProvider.VIEW_PARAMETER));
 	}
 	
 	/**
-	 * Sends an entire binary file in a packetized fashion. This method is where the automatic 
-	 * ramping packetization takes place.
-	 * Does uploading in the background
+	 * Whether a picture whose original has not been uploaded has an upload 
+	 * rendition to send in its place.
+	 * 
+	 * @param c current context
+	 * @param imageUri uri of the picture
+	 * @return true if the rendition is not empty
+	 */
+	private static boolean hasRendition(Context c, Uri imageUri) {
+		Cursor cur = c.getContentResolver().query(imageUri, 
+				new String[] { ImageSQLFormat.UPLOADED }, null, null, null);
+		try {
+			if (!cur.moveToFirst() || cur.getInt(0) != 0)
+				return false;
+		} finally {
+			cur.close();
+		}
+		try {
+			ParcelFileDescriptor fd = c.getContentResolver()
+				.openFileDescriptor(ImageProvider.getRenditionUri(imageUri), 
+						"r");
+			FileChannel channel = 
+				new ParcelFileDescriptor.AutoCloseInputStream(fd).getChannel();
+			try {
+				return channel.size() > 0;
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Opens the upload rendition of a picture, sent over links which do not 
+	 * allow the original, resuming from the progress previously recorded in 
+	 * the database. The rendition is sent under the binary id of the picture,
+	 * which the original replaces once uploaded.
 	 * 
 	 * @param c current context
-	 * @param savedProcedureId
 	 * @param elementId
+	 * @param binaryGuid
+	 * @param imageUri uri of the picture
+	 * @return the rendition or null if it has already been uploaded
+	 * @throws IOException if the rendition can not be opened
+	 */
+	private static BinaryUploadEngine.Binary openRendition(Context c, 
+			String elementId, String binaryGuid, Uri imageUri) 
+		throws IOException
+	{
+		Cursor cur = c.getContentResolver().query(imageUri, new String[] { 
+				ImageSQLFormat.RENDITION_UPLOADED, 
+				ImageSQLFormat.RENDITION_PROGRESS }, null, null, null);
+		boolean alreadyUploaded;
+		int currPosition;
+		try {
+			cur.moveToFirst();
+			alreadyUploaded = cur.getInt(0) != 0;
+			currPosition = cur.getInt(1);
+		} finally {
+			cur.close();
+		}
+		Uri renditionUri = ImageProvider.getRenditionUri(imageUri);
+		if (alreadyUploaded) {
+			Log.i(TAG, renditionUri + " was already uploaded. Skipping.");
+			return null;
+		}
+		ParcelFileDescriptor fd = c.getContentResolver().openFileDescriptor(
+				renditionUri, "r");
+		FileChannel channel = new ParcelFileDescriptor.AutoCloseInputStream(
+				fd).getChannel();
+		int fileSize = (int) channel.size();
+		Log.i(TAG, "openRendition " + renditionUri + " " 
+				+ (fileSize - currPosition) + " total bytes remaining.");
+		BinaryUploadEngine.Binary binary = new BinaryUploadEngine.Binary(
+				elementId, binaryGuid, ElementType.PICTURE, renditionUri, 
+				channel, fileSize, Math.min(currPosition, fileSize));
+		// the MDS checks the rendition it reassembles against this
+		binary.setHash(BinaryUploadEngine.digest(channel, 0, fileSize));
+		return binary;
+	}
+	
+	/**
+	 * Opens a binary file for upload, resuming from the progress previously 
+	 * recorded in the database.
+	 * 
+	 * @param c current context
+	 * @param elementId
+	 * @param binaryGuid
 	 * @param type binary type (ie picture, sound, etc.)
 	 * @param binaryUri uri of the file to be transmitted
-	 * @param startPacketSize the starting packet size for each chunk; this will be throttled up or down depending on connection strength
-	 * @return the last successful chunk transmission size on success so that it can be used for future transmissions as the startPacketSize
-	 * @throws Exception on upload failure
+	 * @return the binary or null if it has already been uploaded
+	 * @throws IOException if the file can not be opened
 	 */
-	private static int transmitBinary(Context c, MocaAPI api, String savedProcedureId, String elementId, String binaryGuid, ElementType type, Uri binaryUri, int startPacketSize) throws Exception {
-		int packetSize, fileSize;
-		ContentValues cv = new ContentValues();
-
-		packetSize = startPacketSize;
-
+	private static BinaryUploadEngine.Binary openBinary(Context c, 
+			String elementId, String binaryGuid, ElementType type, 
+			Uri binaryUri) throws IOException
+	{
 		boolean alreadyUploaded = false;
 		int currPosition = 0;
+		String hash = null;
+		String hashColumn = null;
+		String uploadedColumn = null;
 		Cursor cur;
 		switch(type) {
 		case PICTURE:
@@ -527,6 +1035,8 @@ public class MDSInterface {
 			alreadyUploaded = cur.getInt(0) != 0;
 			currPosition = cur.getInt(1);
 			cur.deactivate();
+			hashColumn = ImageSQLFormat.CONTENT_HASH;
+			uploadedColumn = ImageSQLFormat.UPLOADED;
 			break;
 		case SOUND:
 			cur = c.getContentResolver().query(binaryUri, new String[] { SoundSQLFormat.UPLOADED, SoundSQLFormat.UPLOAD_PROGRESS }, null, null, null);
@@ -534,123 +1044,128 @@ public class MDSInterface {
 			alreadyUploaded = cur.getInt(0) != 0;
 			currPosition = cur.getInt(1);
 			cur.deactivate();
+			hashColumn = SoundSQLFormat.CONTENT_HASH;
+			uploadedColumn = SoundSQLFormat.UPLOADED;
 			break;
 		case BINARYFILE:
+			// not in the DB, so known by the digest of its content
+			File file = new File(binaryUri.getPath());
+			hash = BlobStore.digest(file);
+			BlobDAO.track(c.getContentResolver(), hash, file.length());
+			alreadyUploaded = BlobDAO.isUploaded(c.getContentResolver(), hash);
+			currPosition = BlobDAO.getProgress(c.getContentResolver(), hash);
+			break;
 		default:
-			// Can't do anything since its not in the DB. Sigh.
 			break;
 
 		}
 
 		if(alreadyUploaded) {
 			Log.i(TAG, binaryUri + " was already uploaded. Skipping.");
-			return startPacketSize;
-		}
-
-		InputStream is = c.getContentResolver().openInputStream(binaryUri);
-		fileSize = is.available();
-
-		// Skip forward by the progress we've made previously.
-		is.skip(currPosition);
-
-		int bytesRemaining = fileSize - currPosition;
-		Log.i(TAG, "transmitBinary uploading " + binaryUri + " " + bytesRemaining + " total bytes remaining. Starting at " + packetSize + " packet size");
-
-		// reference packet rate byte/msec
-		double basePacketRate = 0.0;
-		while(bytesRemaining > 0) {
-			// get starting time of packet transmission
-			long transmitStartTime = new Date().getTime();
-			// if transmission rate is acceptable (comparison between currPacketRate and basePacketRate)
-			boolean efficient = false;
-
-			int bytesToRead = Math.min(packetSize, bytesRemaining);
-			byte[] chunk = new byte[bytesToRead];
-			int bytesRead = is.read(chunk, 0, bytesToRead);
-
-			boolean success = false;
-			while(!success) {
-				Log.i(TAG, "Trying to upload " + bytesRead + " bytes for " + savedProcedureId + ":" + elementId + ".");
-				success = postBinary(c, api, savedProcedureId, elementId, binaryGuid, type, fileSize, currPosition, currPosition+bytesRead, chunk);
-
-				efficient = false;
-				// new rate is compared to 80% of previous rate
-				basePacketRate *= 0.8;
-				if(success) {
-					long transmitEndTime = new Date().getTime();
-					// get new packet rate
-					double currPacketRate = (double)packetSize/(double)(transmitEndTime-transmitStartTime);
-					Log.i(TAG, "packet rate = (current) " + currPacketRate + ", (base) " + basePacketRate);
-					if(currPacketRate > basePacketRate) {
-						basePacketRate = currPacketRate;
-						efficient = true;
-					}
-				}
-
-				if(efficient) {
-					packetSize *= 2;
-					Log.i(TAG, "Shifting packet size *2 =" + packetSize);
-				} else {
-					packetSize /= 2;
-					Log.i(TAG, "Shifting packet size /2 =" + packetSize);
-				}
-
-				if(packetSize < Constants.MIN_PACKET_SIZE * 1000) {
-					// TODO(rryan) : fail at some point
-					is.close();
-					throw new IOException("Could not upload " + binaryUri +". failed after " + (fileSize-bytesRemaining) + " bytes.");
-				}
-			}
-
-			bytesRemaining -= bytesRead;
-			currPosition += bytesRead;
-
-			// write current progress to database
-			cv.clear();
-			switch(type) {
-			case PICTURE:
-				cv.put(ImageSQLFormat.UPLOAD_PROGRESS, currPosition);
-				c.getContentResolver().update(binaryUri, cv, null, null);
-				break;
-			case SOUND:
-				cv.put(SoundSQLFormat.UPLOAD_PROGRESS, currPosition);
-				c.getContentResolver().update(binaryUri, cv, null, null);
-				break;
-			}
-
+			return null;
 		}
 
-		// Mark file as uploaded in the database
-		cv.clear();
-		switch(type) {
-		case PICTURE:
-			cv.put(ImageSQLFormat.UPLOADED, currPosition);
-			c.getContentResolver().update(binaryUri, cv, null, null);
-			break;
-		case SOUND:
-			cv.put(SoundSQLFormat.UPLOADED, currPosition);
+		// chunks are read straight from the file when it can be opened as one
+		ParcelFileDescriptor fd = null;
+		try {
+			fd = c.getContentResolver().openFileDescriptor(binaryUri, "r");
+		} catch (FileNotFoundException e) {
+			Log.d(TAG, "No file descriptor for " + binaryUri + ": " + e.getMessage());
+		}
+		
+		// captures are stored by digest once opened, and content sent for
+		// another capture need not be sent again
+		if (hash == null && hashColumn != null)
+			hash = getContentHash(c, binaryUri, hashColumn);
+		if (hashColumn != null && hash != null 
+				&& BlobDAO.isUploaded(c.getContentResolver(), hash)) 
+		{
+			Log.i(TAG, binaryUri + " was already uploaded as " + hash 
+					+ ". Skipping.");
+			if (fd != null)
+				fd.close();
+			ContentValues cv = new ContentValues();
+			cv.put(uploadedColumn, true);
 			c.getContentResolver().update(binaryUri, cv, null, null);
-			break;
+			return null;
+		}
+		
+		BinaryUploadEngine.Binary binary;
+		if (fd != null) {
+			FileChannel channel = new ParcelFileDescriptor.AutoCloseInputStream(
+					fd).getChannel();
+			int fileSize = (int) channel.size();
+			Log.i(TAG, "openBinary " + binaryUri + " " + (fileSize - currPosition) 
+					+ " total bytes remaining.");
+			binary = new BinaryUploadEngine.Binary(elementId, binaryGuid, type, 
+					binaryUri, channel, fileSize, Math.min(currPosition, fileSize));
+			if (hash == null)
+				hash = BinaryUploadEngine.digest(channel, 0, fileSize);
+		} else {
+			// available() need not be the length of a provider's stream, so
+			// the stream is read through once for its length and digest
+			int[] length = new int[1];
+			InputStream is = c.getContentResolver().openInputStream(binaryUri);
+			try {
+				hash = measure(is, length);
+			} finally {
+				is.close();
+			}
+			int fileSize = length[0];
+			is = c.getContentResolver().openInputStream(binaryUri);
+			Log.i(TAG, "openBinary " + binaryUri + " " + (fileSize - currPosition) 
+					+ " total bytes remaining.");
+			binary = new BinaryUploadEngine.Binary(elementId, binaryGuid, type, 
+					binaryUri, is, fileSize, Math.min(currPosition, fileSize));
+		}
+		binary.setHash(hash);
+		return binary;
+	}
+	
+	// reads a stream to the end, returns its digest and sets its length
+	private static String measure(InputStream in, int[] length) 
+		throws IOException
+	{
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			digest.update(buffer, 0, n);
+			length[0] += n;
+		}
+		return new String(Hex.encodeHex(digest.digest()));
+	}
+	
+	// the digest a capture is stored under, or null
+	private static String getContentHash(Context c, Uri uri, String column){
+		Cursor cur = c.getContentResolver().query(uri, new String[] { column },
+				null, null, null);
+		if (cur == null)
+			return null;
+		try {
+			return (cur.moveToFirst() && !cur.isNull(0))? cur.getString(0): null;
+		} finally {
+			cur.close();
+		}
+	}
+	
+	private static void closeBinaries(List<BinaryUploadEngine.Binary> binaries){
+		for(BinaryUploadEngine.Binary binary: binaries) {
+			try {
+				binary.close();
+			} catch (IOException e) {
+			}
 		}
-
-		is.close();
-
-		return packetSize;
 	}
 
 	public static boolean validateCredentials(Context c) throws APIException {
-		SharedPreferences preferences = PreferenceManager
-				.getDefaultSharedPreferences(c);
-		String username = preferences.getString(
-				Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
-		String password = preferences.getString(
-				Constants.PREFERENCE_EMR_PASSWORD, Constants.DEFAULT_PASSWORD);
-		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
-				Constants.DEFAULT_DISPATCH_SERVER);
-		boolean secure = preferences.getBoolean(Constants.PREFERENCE_SECURE_TRANSMISSION,
-				false);
 		Log.i(TAG, "validateCredentials()");
-		MocaAPI api = new MocaAPI(mdsURL, username, password);
+		MocaAPI api = getAPI(c);
 		boolean credentialsValid = api.validateCredentials();
 		Log.d(TAG, "The user's credentials are " + (credentialsValid ? "valid" : "invalid"));
 		return credentialsValid;
@@ -658,14 +1173,8 @@ public class MDSInterface {
 
 	// Sync patient database on phone with MRS
 	public static boolean updatePatientDatabase(Context c, ContentResolver cr) throws APIException {
-		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
-		String password = preferences.getString(Constants.PREFERENCE_EMR_PASSWORD, Constants.DEFAULT_PASSWORD);
-		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
-		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
-				Constants.DEFAULT_DISPATCH_SERVER);
-		
 		Log.i(TAG, "getPatientInformation()");
-		MocaAPI api = new MocaAPI(mdsURL, username, password);
+		MocaAPI api = getAPI(c);
 		String allPatients = api.getAllPatients();
 		Log.d(TAG, "Patient download response looks like this: " + allPatients);
 		
@@ -681,14 +1190,8 @@ public class MDSInterface {
 	
 	public static String getPatientInformation(Context c, String patientIdentifier) throws APIException {
 		String info = null;
-		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
-		String password = preferences.getString(Constants.PREFERENCE_EMR_PASSWORD, Constants.DEFAULT_PASSWORD);
-		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
-		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
-				Constants.DEFAULT_DISPATCH_SERVER);
-		
 		Log.i(TAG, "getPatientInfo(" + patientIdentifier + ")");
-		MocaAPI api = new MocaAPI(mdsURL, username, password);
+		MocaAPI api = getAPI(c);
 		String patientInfo = api.getPatientInformation(patientIdentifier);
 		Log.d(TAG, "Request for patient info returned: " + patientInfo);
 		return patientInfo;
@@ -708,28 +1211,16 @@ public class MDSInterface {
 	}
 	
 	public static List<ProcedureInfo> getAvailableProcedures(Context c) throws APIException {
-		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
-		String password = preferences.getString(Constants.PREFERENCE_EMR_PASSWORD, Constants.DEFAULT_PASSWORD);
-		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
-		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
-				Constants.DEFAULT_DISPATCH_SERVER);
-		
 		Log.i(TAG, "getAvailableProcedures()");
-		MocaAPI api = new MocaAPI(mdsURL, username, password);
+		MocaAPI api = getAPI(c);
 		List<ProcedureInfo> procedures = api.getAvailableProcedureList();
 		Log.d(TAG, "Request for available procedures returned: " + procedures);
 		return procedures;
 	}
 	
 	public static String getProcedure(Context c, int procedureId) throws APIException {
-		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
-		String password = preferences.getString(Constants.PREFERENCE_EMR_PASSWORD, Constants.DEFAULT_PASSWORD);
-		String username = preferences.getString(Constants.PREFERENCE_EMR_USERNAME, Constants.DEFAULT_USERNAME);
-		String mdsURL = preferences.getString(Constants.PREFERENCE_MDS_URL,
-				Constants.DEFAULT_DISPATCH_SERVER);
-		
 		Log.i(TAG, "getProcedure(" + procedureId + ")");
-		MocaAPI api = new MocaAPI(mdsURL, username, password);
+		MocaAPI api = getAPI(c);
 		String procedureData = api.getProcedure(procedureId);
 		Log.d(TAG, "Request for procedure text returned: " + procedureData);
 		return procedureData;
@@ -1,57 +1,98 @@
 package org.sana.android.net;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.http.NameValuePair;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import com.google.gson.reflect.TypeToken;
 
+import android.util.Log;
+
 public class MocaAPI {
 	public static final String TAG = MocaAPI.class.getSimpleName();
 	
 	private String apiUri;
 	private String username;
 	private String password;
+	private boolean compress;
+	// servers which have refused a compressed body, by api uri
+	private static final ConcurrentHashMap<String, Boolean> uncompressed =
+		new ConcurrentHashMap<String, Boolean>();
 	
 	public MocaAPI(String host, String username, String password) {
 		this(host,username,password, false);
 	}
 	
 	public MocaAPI(String host, String username, String password, boolean secure){
+		this(host, username, password, secure, false);
+	}
+	
+	/**
+	 * Creates a client for an MDS.
+	 * 
+	 * @param host the MDS host
+	 * @param username the MDS username
+	 * @param password the MDS password
+	 * @param secure whether to use https
+	 * @param compress whether request bodies are sent gzip compressed. Only 
+	 * 		an MDS which reads compressed bodies should be sent them.
+	 */
+	public MocaAPI(String host, String username, String password, 
+		boolean secure, boolean compress)
+	{
 		this.apiUri = ((secure) ? "https://": "http://")+ host;
 		this.username = username;
 		this.password = password;
-		
+		this.compress = compress;
 	}
 	
-	protected boolean doPost(HttpEntity entity, String uri) throws APIException {
+	private APIResponse<String> post(HttpEntity entity, String uri) {
 		HttpPost post = new HttpPost(URI.create(uri ));
 	    post.setEntity(entity);
 	    
 	    // mds specific part
 	    Type returnType = new TypeToken<MDSResponse<String>>() {}.getType();
-	    APIResponse<String> response = APIUtil.<String>doApiRequest(post, returnType);
+	    return APIUtil.<String>doApiRequest(post, returnType);
+	}
+	
+	protected boolean doPost(HttpEntity entity, String uri) throws APIException {
+	    return succeeded(post(entity, uri));
+	}
+	
+	private static boolean succeeded(APIResponse<String> response) 
+		throws APIException 
+	{
 	    int status = response.getStatus();
 	    MDSResponse<String> result = response.getResult();
 	    
@@ -63,6 +104,63 @@ public class MocaAPI {
 		    "Could not connect to server.");
 	}
 	
+	protected <T> MDSResponse<T> doPostForResult(HttpEntity entity, String uri, 
+		Type returnType) throws APIException 
+	{
+		HttpPost post = new HttpPost(URI.create(uri ));
+	    post.setEntity(entity);
+	    
+	    APIResponse<T> response = APIUtil.<T>doApiRequest(post, returnType);
+	    int status = response.getStatus();
+	    MDSResponse<T> result = response.getResult();
+	    
+	    if (status == 200 && result != null) {
+	    	return result;
+	    } else 
+		throw new APIException(APIResultCode.INVALID_REQUEST, 
+		    "Could not connect to server.");
+	}
+	
+	/**
+	 * Posts a request body compressed with gzip, if compression is enabled 
+	 * and the server has not refused a compressed body before. A server which cannot read the body 
+	 * answers 415, in which case the body is sent again uncompressed and 
+	 * compression is not tried again with that server. Any other answer, 
+	 * including 400 for a malformed request, is the answer to the request.
+	 * 
+	 * @param entity the uncompressed body, which must be repeatable
+	 * @param uri the request uri
+	 * @return whether the server reported success
+	 */
+	protected boolean doCompressedPost(HttpEntity entity, String uri) 
+		throws APIException 
+	{
+		if (isCompressing()) {
+			APIResponse<String> response = post(gzip(entity), uri);
+			if (response.getStatus() != HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE)
+				return succeeded(response);
+			Log.w(TAG, apiUri + " refused a compressed body, sending "
+				+ "uncompressed");
+			uncompressed.put(apiUri, Boolean.TRUE);
+		}
+		return doPost(entity, uri);
+	}
+	
+	/** @return whether request bodies are sent compressed to the server */
+	public boolean isCompressing() {
+		return compress && !uncompressed.containsKey(apiUri);
+	}
+	
+	/**
+	 * Compresses a request body with gzip as it is written.
+	 * 
+	 * @param entity the uncompressed body, which must be repeatable
+	 * @return the compressed body, with the same content type
+	 */
+	static HttpEntity gzip(HttpEntity entity) {
+		return new GzipEntity(entity);
+	}
+	
 	protected <T> T doGet( List<NameValuePair> qparams, String url) throws APIException{
 		String query = URLEncodedUtils.format(qparams, "UTF-8");
 	    HttpGet get = new HttpGet(URI.create(url + "?" + query));
@@ -99,15 +197,259 @@ public class MocaAPI {
 		
 		  // Create Request
 		  String uri = APIUtil.constructProcedureSubmitURL(apiUri);
-		  return doPost(entity, uri);
+		  return doCompressedPost(entity, uri);
+		} catch(UnsupportedEncodingException e){
+		    throw new APIException(APIResultCode.INVALID_REQUEST, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Sends the responses of several encounters in one request, gzip 
+	 * compressed if compression is enabled. The MDS answers with a result for each encounter.
+	 * 
+	 * @param phoneIdentifier the phone sending the encounters
+	 * @param jsonResponses the responses of each encounter, by saved 
+	 * 		procedure guid
+	 * @return the result of each encounter which the MDS answered for, by 
+	 * 		saved procedure guid
+	 * @throws APIException if the request failed, for instance if the MDS 
+	 * 		does not accept batches
+	 */
+	public Map<String, MDSResult> transmitCaseResponsesBatch(
+		String phoneIdentifier, Map<String, String> jsonResponses) 
+		throws APIException
+	{
+		try{
+		  JSONArray cases = new JSONArray();
+		  for (Map.Entry<String, String> e : jsonResponses.entrySet()) {
+			  JSONObject c = new JSONObject();
+			  c.put("savedproc_guid", e.getKey());
+			  c.put("procedure_guid", Integer.toString(0));
+			  c.put("responses", e.getValue());
+			  cases.put(c);
+		  }
+		  List<NameValuePair> form = new ArrayList<NameValuePair>();
+		  form.add(new BasicNameValuePair("username", username));
+		  form.add(new BasicNameValuePair("password", password));
+		  form.add(new BasicNameValuePair("phone", phoneIdentifier));
+		  form.add(new BasicNameValuePair("cases", cases.toString()));
+		  HttpEntity entity = new UrlEncodedFormEntity(form, "UTF-8");
+		  if (isCompressing())
+			  entity = gzip(entity);
+		  
+		  String uri = APIUtil.constructProcedureBatchSubmitURL(apiUri);
+		  Type returnType = new TypeToken<MDSResponse<List<MDSResult>>>() {}.getType();
+		  MDSResponse<List<MDSResult>> response = 
+			  this.<List<MDSResult>>doPostForResult(entity, uri, returnType);
+		  if (!response.succeeded() || response.getData() == null)
+			  throw new APIException(APIResultCode.parseMDSCode(
+				  response.getCode()), "Batch was not accepted.");
+		  
+		  Map<String, MDSResult> results = new HashMap<String, MDSResult>();
+		  for (MDSResult result : response.getData()) {
+			  if (result != null && result.getEncounter() != null)
+				  results.put(result.getEncounter(), result);
+		  }
+		  return results;
+		} catch(JSONException e){
+		    throw new APIException(APIResultCode.INVALID_REQUEST, e.getMessage());
+		} catch(IOException e){
+		    throw new APIException(APIResultCode.INVALID_REQUEST, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Asks the MDS which of the binaries of an encounter it already holds the
+	 * content of, by SHA-256 digest. The MDS attaches the content it holds to
+	 * the binaries named, so that they need not be sent.
+	 * 
+	 * @param savedProcedureId the saved procedure guid of the encounter
+	 * @param binaries the binaries to ask about, those without a digest are 
+	 * 		left out
+	 * @return the digests of the content the MDS holds
+	 * @throws APIException if the request failed, for instance if the MDS 
+	 * 		does not know the request
+	 */
+	public Set<String> findKnownBinaries(String savedProcedureId, 
+		List<BinaryUploadEngine.Binary> binaries) throws APIException
+	{
+		try{
+		  JSONArray known = new JSONArray();
+		  for (BinaryUploadEngine.Binary binary : binaries) {
+			  if (binary.getHash() == null)
+				  continue;
+			  JSONObject b = new JSONObject();
+			  b.put("element_id", binary.elementId);
+			  b.put("binary_guid", binary.guid);
+			  b.put("element_type", binary.type.toString());
+			  b.put("file_size", binary.size);
+			  b.put("hash", binary.getHash());
+			  known.put(b);
+		  }
+		  Set<String> hashes = new HashSet<String>();
+		  if (known.length() == 0)
+			  return hashes;
+		  List<NameValuePair> form = new ArrayList<NameValuePair>();
+		  form.add(new BasicNameValuePair("username", username));
+		  form.add(new BasicNameValuePair("password", password));
+		  form.add(new BasicNameValuePair("procedure_guid", savedProcedureId));
+		  form.add(new BasicNameValuePair("binaries", known.toString()));
+		  HttpEntity entity = new UrlEncodedFormEntity(form, "UTF-8");
+		  
+		  String uri = APIUtil.constructBinaryKnownURL(apiUri);
+		  Type returnType = new TypeToken<MDSResponse<List<String>>>() {}.getType();
+		  MDSResponse<List<String>> response = 
+			  this.<List<String>>doPostForResult(entity, uri, returnType);
+		  if (!response.succeeded() || response.getData() == null)
+			  throw new APIException(APIResultCode.parseMDSCode(
+				  response.getCode()), "Binaries were not looked up.");
+		  hashes.addAll(response.getData());
+		  return hashes;
+		} catch(JSONException e){
+		    throw new APIException(APIResultCode.INVALID_REQUEST, e.getMessage());
+		} catch(IOException e){
+		    throw new APIException(APIResultCode.INVALID_REQUEST, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Asks the MDS how many bytes of a binary it has committed: the prefix 
+	 * it holds without a gap, whose chunks matched their digests. A binary 
+	 * whose content did not match its digest once complete is discarded by 
+	 * the MDS, which then reports 0. An upload is resumed from this offset 
+	 * rather than from the progress recorded here, which may be ahead of or 
+	 * behind the MDS.
+	 * 
+	 * @param savedProcedureId the saved procedure guid of the encounter
+	 * @param binary the binary to ask about
+	 * @return the number of bytes committed, or -1 if the MDS does not keep
+	 * 		count
+	 * @throws APIException if the request failed
+	 */
+	public int getBinaryOffset(String savedProcedureId, 
+		BinaryUploadEngine.Binary binary) throws APIException
+	{
+		try{
+		  List<NameValuePair> form = new ArrayList<NameValuePair>();
+		  form.add(new BasicNameValuePair("username", username));
+		  form.add(new BasicNameValuePair("password", password));
+		  form.add(new BasicNameValuePair("procedure_guid", savedProcedureId));
+		  form.add(new BasicNameValuePair("element_id", binary.elementId));
+		  form.add(new BasicNameValuePair("binary_guid", binary.guid));
+		  form.add(new BasicNameValuePair("file_size", 
+			  Integer.toString(binary.size)));
+		  if (binary.getHash() != null)
+			  form.add(new BasicNameValuePair("file_sha256", binary.getHash()));
+		  HttpPost post = new HttpPost(URI.create(
+			  APIUtil.constructBinaryOffsetURL(apiUri)));
+		  post.setEntity(new UrlEncodedFormEntity(form, "UTF-8"));
+		  
+		  Type returnType = new TypeToken<MDSResponse<Integer>>() {}.getType();
+		  APIResponse<Integer> response = 
+			  APIUtil.<Integer>doApiRequest(post, returnType);
+		  // an older MDS does not know the request
+		  if (response.getStatus() == HttpStatus.SC_NOT_FOUND)
+			  return -1;
+		  MDSResponse<Integer> result = response.getResult();
+		  if (response.getStatus() != 200 || result == null)
+			  throw new APIException(APIResultCode.INVALID_REQUEST, 
+				  "Could not connect to server.");
+		  if (!result.succeeded() || result.getData() == null)
+			  throw new APIException(APIResultCode.parseMDSCode(
+				  result.getCode()), "Offset was not given.");
+		  return result.getData();
 		} catch(UnsupportedEncodingException e){
 		    throw new APIException(APIResultCode.INVALID_REQUEST, e.getMessage());
 		}
 	}
 	
+	/**
+	 * Sends a chunk of a binary with the SHA-256 digests of the chunk and of 
+	 * the whole binary, which the MDS checks before committing the chunk and
+	 * once the binary is complete. The chunk is read from its buffer, or 
+	 * straight from the binary file if it has none.
+	 * 
+	 * @param savedProcedureId the saved procedure guid of the encounter
+	 * @param binary the binary
+	 * @param chunk the chunk to send
+	 * @param asBase64Text whether the chunk is sent as Base64 encoded text
+	 * @return true if the MDS accepted the chunk
+	 * @throws APIException if the request failed or the chunk could not be 
+	 * 		read
+	 */
+	public boolean transmitBinaryChunk(String savedProcedureId, 
+		BinaryUploadEngine.Binary binary, BinaryUploadEngine.Chunk chunk, 
+		boolean asBase64Text) throws APIException
+	{
+		String chunkHash;
+		try {
+			chunkHash = chunk.getHash();
+		} catch (IOException e) {
+			throw new APIException(APIResultCode.INVALID_REQUEST, e.getMessage());
+		}
+		String filename = binary.type.getFilename();
+		ContentBody data = (chunk.data != null)? 
+			new ByteArrayRangeBody(chunk.data, 0, chunk.length(), filename):
+			new FileRangeBody(binary.channel, chunk.start, chunk.length(), 
+				filename);
+		if (asBase64Text)
+			return transmitBinarySequenceAsBase64Text(savedProcedureId, 
+				binary.elementId, binary.guid, binary.type.toString(), 
+				binary.size, chunk.start, chunk.end, data, chunkHash, 
+				binary.getHash());
+		return transmitBinarySequence(savedProcedureId, binary.elementId, 
+			binary.guid, binary.type.toString(), binary.size, chunk.start, 
+			chunk.end, data, chunkHash, binary.getHash());
+	}
+	
 	public boolean transmitBinarySequence(String savedProcedureId, 
 		String elementId, String fileGuid, String element_type, String element_filename, 
 		int fileSize, int start, int end, byte byte_data[]) throws APIException 
+	{
+		return transmitBinarySequence(savedProcedureId, elementId, fileGuid, 
+			element_type, element_filename, fileSize, start, end, byte_data, 0, 
+			byte_data.length);
+	}
+	
+	/**
+	 * Sends a chunk of a binary held in part of a larger buffer.
+	 * 
+	 * @param offset index in <code>byte_data</code> of the first byte to send
+	 * @param length number of bytes to send
+	 */
+	public boolean transmitBinarySequence(String savedProcedureId, 
+		String elementId, String fileGuid, String element_type, String element_filename, 
+		int fileSize, int start, int end, byte byte_data[], int offset, 
+		int length) throws APIException 
+	{
+		return transmitBinarySequence(savedProcedureId, elementId, fileGuid, 
+			element_type, fileSize, start, end, new ByteArrayRangeBody(
+				byte_data, offset, length, element_filename), null, null);
+	}
+	
+	/**
+	 * Sends a chunk of a binary read straight from its file while the 
+	 * request is written.
+	 * 
+	 * @param channel the binary file, which is left open
+	 * @param position offset in the file of the first byte to send
+	 * @param length number of bytes to send
+	 */
+	public boolean transmitBinarySequence(String savedProcedureId, 
+		String elementId, String fileGuid, String element_type, String element_filename, 
+		int fileSize, int start, int end, FileChannel channel, long position, 
+		int length) throws APIException 
+	{
+		return transmitBinarySequence(savedProcedureId, elementId, fileGuid, 
+			element_type, fileSize, start, end, new FileRangeBody(channel, 
+				position, length, element_filename), null, null);
+	}
+	
+	// the digests are left out when null
+	private boolean transmitBinarySequence(String savedProcedureId, 
+		String elementId, String fileGuid, String element_type, int fileSize, 
+		int start, int end, ContentBody data, String chunkHash, 
+		String fileHash) throws APIException 
 	{
 	    try{
 		// TODO Replace param names with constants
@@ -119,7 +461,11 @@ public class MocaAPI {
 		entity.addPart("file_size", new StringBody(Integer.toString(fileSize)));
 		entity.addPart("byte_start", new StringBody(Integer.toString(start)));
 		entity.addPart("byte_end", new StringBody(Integer.toString(end)));
-		entity.addPart("byte_data", new ByteArrayBody(byte_data, element_filename));
+		if (chunkHash != null)
+			entity.addPart("chunk_sha256", new StringBody(chunkHash));
+		if (fileHash != null)
+			entity.addPart("file_sha256", new StringBody(fileHash));
+		entity.addPart("byte_data", data);
 		
 		String uri = APIUtil.constructBinaryChunkSubmitURL(apiUri);
 		return doPost(entity, uri);
@@ -131,6 +477,54 @@ public class MocaAPI {
 	public boolean transmitBinarySequenceAsBase64Text(String savedProcedureId, 
 	    String elementId, String fileGuid, String element_type, String element_filename, 
 	    int fileSize, int start, int end, byte byte_data[]) throws APIException 
+	{
+		return transmitBinarySequenceAsBase64Text(savedProcedureId, elementId, 
+			fileGuid, element_type, element_filename, fileSize, start, end, 
+			byte_data, 0, byte_data.length);
+	}
+	
+	/**
+	 * Sends a Base64 encoded chunk of a binary held in part of a larger 
+	 * buffer.
+	 * 
+	 * @param offset index in <code>byte_data</code> of the first byte to send
+	 * @param length number of bytes to send
+	 */
+	public boolean transmitBinarySequenceAsBase64Text(String savedProcedureId, 
+	    String elementId, String fileGuid, String element_type, String element_filename, 
+	    int fileSize, int start, int end, byte byte_data[], int offset, 
+	    int length) throws APIException 
+	{
+		return transmitBinarySequenceAsBase64Text(savedProcedureId, elementId, 
+			fileGuid, element_type, fileSize, start, end, 
+			new ByteArrayRangeBody(byte_data, offset, length, element_filename),
+			null, null);
+	}
+	
+	/**
+	 * Sends a Base64 encoded chunk of a binary read straight from its file 
+	 * while the request is written.
+	 * 
+	 * @param channel the binary file, which is left open
+	 * @param position offset in the file of the first byte to send
+	 * @param length number of bytes to send
+	 */
+	public boolean transmitBinarySequenceAsBase64Text(String savedProcedureId, 
+	    String elementId, String fileGuid, String element_type, String element_filename, 
+	    int fileSize, int start, int end, FileChannel channel, long position, 
+	    int length) throws APIException 
+	{
+		return transmitBinarySequenceAsBase64Text(savedProcedureId, elementId, 
+			fileGuid, element_type, fileSize, start, end, 
+			new FileRangeBody(channel, position, length, element_filename),
+			null, null);
+	}
+	
+	// the digests are left out when null
+	private boolean transmitBinarySequenceAsBase64Text(String savedProcedureId, 
+	    String elementId, String fileGuid, String element_type, int fileSize, 
+	    int start, int end, ContentBody data, String chunkHash, 
+	    String fileHash) throws APIException 
 	{
 		// TODO Replace param names with constants
 		try{
@@ -142,14 +536,17 @@ public class MocaAPI {
 		  form.add(new BasicNameValuePair("file_size", Integer.toString(fileSize)));
 		  form.add(new BasicNameValuePair("byte_start", Integer.toString(start)));
 		  form.add(new BasicNameValuePair("byte_end", Integer.toString(end)));
+		  if (chunkHash != null)
+			  form.add(new BasicNameValuePair("chunk_sha256", chunkHash));
+		  if (fileHash != null)
+			  form.add(new BasicNameValuePair("file_sha256", fileHash));
 
-		  // Encode byte_data in Base64
-		  byte[] encoded_data = new Base64().encode(byte_data);
-		  form.add(new BasicNameValuePair("byte_data", new String(encoded_data)));
-		  UrlEncodedFormEntity entity = new UrlEncodedFormEntity(form, "UTF-8");
+		  // byte_data is encoded in Base64 as the request is written
+		  HttpEntity entity = new Base64FormEntity(form, "byte_data", data);
 
+		  // Base64 and its url encoding inflate the chunk; gzip recovers most
 		  String uri = APIUtil.constructBinaryChunkHackSubmitURL(apiUri);
-		  return doPost(entity,uri);
+		  return doCompressedPost(entity,uri);
 		} catch(UnsupportedEncodingException e){
 		    throw new APIException(APIResultCode.INVALID_REQUEST, e.getMessage());
 		}
@@ -0,0 +1,224 @@
+package org.sana.android.net;
+
+/**
+ * Chooses the size of binary upload chunks in the manner of TCP congestion
+ * control. The size starts by doubling after each acknowledged chunk, until
+ * the first failure, and then grows additively by one increment per chunk.
+ * A failure halves the size, at most once for the chunks which were already
+ * in flight when it was reduced.
+ *
+ * Alongside the size, smoothed estimates of the link bandwidth and of the
+ * fixed per request delay are kept. Chunks are not allowed to grow beyond
+ * what the estimated bandwidth can carry in {@link #TARGET_CHUNK_MILLIS}, so
+ * that a chunk does not outlast the request timeout on a slow link.
+ *
+ * The whole state may be saved with {@link #encode()} and restored with
+ * {@link #decode(String, int, int)} so that an upload can start from the
+ * last good chunk size on the same network rather than rediscovering it.
+ *
+ * This class is not thread safe.
+ *
+ * @author Sana Development Team
+ */
+public class PacketSizeController {
+	public static final String TAG = PacketSizeController.class.getSimpleName();
+
+	/** The longest time, in milliseconds, a chunk should take to send. */
+	public static final int TARGET_CHUNK_MILLIS = 15000;
+
+	/** Weight of the newest sample in the smoothed estimates. */
+	static final double GAIN = 0.25;
+
+	// version of the encoded state
+	private static final String VERSION = "1";
+
+	private final int minPacketSize;
+	private final int maxPacketSize;
+
+	private int packetSize;
+	// size at which slow start ends
+	private int threshold;
+	// bytes per millisecond, 0 if unknown
+	private double bandwidth = 0.0;
+	// milliseconds of delay independent of size, -1 if unknown
+	private double delay = -1.0;
+	// last size at which a chunk was acknowledged
+	private int lastGoodPacketSize;
+	private long samples = 0;
+	private long failures = 0;
+	// sequence number of the chunk sent after the last reduction
+	private long sequence = 0;
+	private long recoverySequence = 0;
+
+	/**
+	 * Creates a controller with no history.
+	 *
+	 * @param packetSize initial chunk size in bytes.
+	 * @param minPacketSize smallest chunk size in bytes.
+	 * @param maxPacketSize largest chunk size in bytes.
+	 */
+	public PacketSizeController(int packetSize, int minPacketSize,
+			int maxPacketSize)
+	{
+		this.minPacketSize = Math.max(1, minPacketSize);
+		this.maxPacketSize = Math.max(this.minPacketSize, maxPacketSize);
+		this.packetSize = clamp(packetSize);
+		this.threshold = this.maxPacketSize;
+		this.lastGoodPacketSize = this.packetSize;
+	}
+
+	private int clamp(long size){
+		return (int) Math.max(minPacketSize, Math.min(maxPacketSize, size));
+	}
+
+	/** @return the size of the next chunk in bytes. */
+	public int getPacketSize(){
+		return packetSize;
+	}
+
+	/**
+	 * Marks a chunk as sent.
+	 * @return a sequence number to pass back with the outcome.
+	 */
+	public long onSend(){
+		return ++sequence;
+	}
+
+	/**
+	 * Records an acknowledged chunk.
+	 *
+	 * @param sent the sequence number from {@link #onSend()}.
+	 * @param bytes the chunk length.
+	 * @param elapsed milliseconds from sending until acknowledged.
+	 */
+	public void onSuccess(long sent, int bytes, long elapsed){
+		elapsed = Math.max(1, elapsed);
+		samples++;
+		lastGoodPacketSize = Math.max(bytes, minPacketSize);
+
+		// time spent transferring, at least half of the whole so that a drop
+		// in bandwidth is not mistaken for a longer delay
+		double transfer = elapsed - Math.min(Math.max(delay, 0.0),
+				elapsed / 2.0);
+		// averaged as time per byte, which favours the slower samples
+		double rate = bytes / transfer;
+		bandwidth = (bandwidth <= 0.0)? rate:
+			1.0 / ((1 - GAIN) / bandwidth + GAIN / rate);
+		double estimate = Math.min(Math.max(0.0, elapsed - bytes / bandwidth),
+				elapsed / 2.0);
+		delay = (delay < 0.0)? estimate: (1 - GAIN) * delay + GAIN * estimate;
+
+		if(sent <= recoverySequence)
+			return;
+		long next;
+		if(packetSize < threshold)
+			next = (long) packetSize * 2;
+		else
+			next = packetSize + Math.max(minPacketSize, packetSize / 8);
+		packetSize = clamp(Math.min(next, getBandwidthLimit()));
+	}
+
+	/**
+	 * Records a chunk which was not acknowledged.
+	 * @param sent the sequence number from {@link #onSend()}.
+	 */
+	public void onFailure(long sent){
+		failures++;
+		// only one reduction for the chunks in flight at the time
+		if(sent <= recoverySequence)
+			return;
+		threshold = clamp(packetSize / 2);
+		packetSize = threshold;
+		recoverySequence = sequence;
+	}
+
+	/**
+	 * The largest chunk the estimated bandwidth can carry in the target
+	 * time.
+	 * @return the size limit in bytes.
+	 */
+	public long getBandwidthLimit(){
+		if(bandwidth <= 0.0)
+			return maxPacketSize;
+		return (long) (bandwidth * TARGET_CHUNK_MILLIS);
+	}
+
+	/** @return estimated bandwidth in bytes per second, 0 if unknown. */
+	public double getBandwidth(){
+		return bandwidth * 1000;
+	}
+
+	/** @return estimated per request delay in milliseconds, -1 if unknown. */
+	public double getDelay(){
+		return delay;
+	}
+
+	/** @return the size of the last acknowledged chunk. */
+	public int getLastGoodPacketSize(){
+		return lastGoodPacketSize;
+	}
+
+	/** @return the number of acknowledged chunks recorded. */
+	public long getSampleCount(){
+		return samples;
+	}
+
+	/** @return the number of failed chunks recorded. */
+	public long getFailureCount(){
+		return failures;
+	}
+
+	/**
+	 * Encodes the state which is kept between uploads.
+	 * @return the encoded state.
+	 */
+	public String encode(){
+		return VERSION + "," + lastGoodPacketSize + "," + threshold + ","
+			+ bandwidth + "," + delay + "," + samples + "," + failures;
+	}
+
+	/**
+	 * Restores a controller from the state saved by {@link #encode()}. The
+	 * controller starts from the last good chunk size, halved if that was
+	 * above the slow start threshold.
+	 *
+	 * @param state the encoded state or null.
+	 * @param minPacketSize smallest chunk size in bytes.
+	 * @param maxPacketSize largest chunk size in bytes.
+	 * @return the restored controller, or null if the state could not be
+	 * 		read.
+	 */
+	public static PacketSizeController decode(String state, int minPacketSize,
+			int maxPacketSize)
+	{
+		if(state == null)
+			return null;
+		String[] values = state.split(",");
+		if(values.length != 7 || !VERSION.equals(values[0]))
+			return null;
+		try {
+			PacketSizeController c = new PacketSizeController(
+					Integer.parseInt(values[1]), minPacketSize, maxPacketSize);
+			c.threshold = c.clamp(Integer.parseInt(values[2]));
+			if(c.packetSize > c.threshold)
+				c.packetSize = c.threshold;
+			c.bandwidth = Double.parseDouble(values[3]);
+			c.delay = Double.parseDouble(values[4]);
+			c.samples = Long.parseLong(values[5]);
+			c.failures = Long.parseLong(values[6]);
+			c.packetSize = c.clamp(Math.min(c.packetSize,
+					c.getBandwidthLimit()));
+			return c;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString(){
+		return String.format("packet=%d threshold=%d lastGood=%d "
+				+ "bandwidth=%.0fB/s delay=%.0fms samples=%d failures=%d",
+				packetSize, threshold, lastGoodPacketSize, getBandwidth(),
+				delay, samples, failures);
+	}
+}
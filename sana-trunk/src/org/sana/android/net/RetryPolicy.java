@@ -0,0 +1,114 @@
+package org.sana.android.net;
+
+import java.util.Random;
+
+/**
+ * Spaces out the attempts to send something which keeps failing. The wait
+ * before each attempt doubles, up to a ceiling, and is jittered so that
+ * uploads which failed together, such as the chunks in flight when a link
+ * drops, do not all try again at the same moment. A retry budget limits the
+ * number of attempts.
+ *
+ * @author Sana Development Team
+ */
+public class RetryPolicy {
+	public static final String TAG = RetryPolicy.class.getSimpleName();
+
+	private final long baseDelay;
+	private final long maxDelay;
+	private final int maxAttempts;
+	private final Random random;
+
+	/**
+	 * Creates a new policy.
+	 *
+	 * @param baseDelay the most milliseconds to wait after the first failure
+	 * @param maxDelay the most milliseconds to wait after any failure
+	 * @param maxAttempts the number of attempts allowed
+	 */
+	public RetryPolicy(long baseDelay, long maxDelay, int maxAttempts) {
+		this(baseDelay, maxDelay, maxAttempts, new Random());
+	}
+
+	/**
+	 * Creates a new policy with the given source of jitter.
+	 *
+	 * @param baseDelay the most milliseconds to wait after the first failure
+	 * @param maxDelay the most milliseconds to wait after any failure
+	 * @param maxAttempts the number of attempts allowed
+	 * @param random the source of jitter
+	 */
+	public RetryPolicy(long baseDelay, long maxDelay, int maxAttempts,
+			Random random)
+	{
+		this.baseDelay = Math.max(1, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.random = random;
+	}
+
+	/** @return the number of attempts allowed */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/** @return the most milliseconds to wait after any failure */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Checks whether another attempt is allowed.
+	 *
+	 * @param failures the number of attempts which failed so far
+	 * @return true if the retry budget is not spent
+	 */
+	public boolean canRetry(int failures) {
+		return failures < maxAttempts;
+	}
+
+	/**
+	 * The ceiling of the wait after a number of failures, without jitter.
+	 *
+	 * @param failures the number of attempts which failed so far, at least 1
+	 * @return the ceiling in milliseconds
+	 */
+	public long getCeiling(int failures) {
+		long ceiling = baseDelay;
+		for (int i = 1; i < failures && ceiling < maxDelay; i++)
+			ceiling *= 2;
+		return Math.min(ceiling, maxDelay);
+	}
+
+	/**
+	 * Picks the wait after a number of failures, between half the ceiling
+	 * and the ceiling.
+	 *
+	 * @param failures the number of attempts which failed so far, at least 1
+	 * @return the wait in milliseconds
+	 */
+	public long getDelay(int failures) {
+		long ceiling = getCeiling(failures);
+		long half = ceiling / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (ceiling - half));
+		}
+	}
+
+	/**
+	 * Waits before the next attempt.
+	 *
+	 * @param failures the number of attempts which failed so far, at least 1
+	 * @return false if the wait was interrupted, in which case the thread's
+	 * 		interrupt status is set again
+	 */
+	public boolean await(int failures) {
+		try {
+			Thread.sleep(getDelay(failures));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package org.sana.android.net;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Persists the {@link PacketSizeController} state of each network the phone
+ * uploads over. Networks are identified by the wifi SSID or by the mobile
+ * network type and carrier name.
+ *
+ * @author Sana Development Team
+ */
+public class ThroughputModelStore {
+	public static final String TAG = ThroughputModelStore.class.getSimpleName();
+
+	/** Name of the preferences file holding the saved states. */
+	static final String PREFERENCES = "throughput";
+
+	/**
+	 * Identifies the network currently used for data.
+	 * @param c the current Context
+	 * @return a key for the network.
+	 */
+	public static String getNetworkKey(Context c){
+		WifiManager wifi = (WifiManager) c.getSystemService(
+				Context.WIFI_SERVICE);
+		WifiInfo info = (wifi != null)? wifi.getConnectionInfo(): null;
+		if(wifi != null && wifi.isWifiEnabled() && info != null
+				&& info.getNetworkId() != -1)
+			return "wifi:" + info.getSSID();
+		TelephonyManager telephony = (TelephonyManager) c.getSystemService(
+				Context.TELEPHONY_SERVICE);
+		if(telephony == null)
+			return "unknown";
+		return "mobile:" + telephony.getNetworkType() + ":"
+				+ telephony.getNetworkOperatorName();
+	}
+
+	/**
+	 * Loads the saved controller for a network, or creates a new one.
+	 *
+	 * @param c the current Context
+	 * @param key the network key.
+	 * @param packetSize initial chunk size for a network with no history.
+	 * @param minPacketSize smallest chunk size in bytes.
+	 * @param maxPacketSize largest chunk size in bytes.
+	 * @return the controller.
+	 */
+	public static PacketSizeController load(Context c, String key,
+			int packetSize, int minPacketSize, int maxPacketSize)
+	{
+		String state = c.getSharedPreferences(PREFERENCES,
+				Context.MODE_PRIVATE).getString(key, null);
+		PacketSizeController controller = PacketSizeController.decode(state,
+				minPacketSize, maxPacketSize);
+		if(controller == null)
+			controller = new PacketSizeController(packetSize, minPacketSize,
+					maxPacketSize);
+		Log.i(TAG, "Loaded " + key + ": " + controller);
+		return controller;
+	}
+
+	/**
+	 * Saves the controller state for a network.
+	 * @param c the current Context
+	 * @param key the network key.
+	 * @param controller the controller to save.
+	 */
+	public static void save(Context c, String key,
+			PacketSizeController controller)
+	{
+		SharedPreferences.Editor editor = c.getSharedPreferences(PREFERENCES,
+				Context.MODE_PRIVATE).edit();
+		editor.putString(key, controller.encode());
+		editor.commit();
+		Log.i(TAG, "Saved " + key + ": " + controller);
+	}
+
+	/**
+	 * The saved state of every known network, for diagnostics.
+	 * @param c the current Context
+	 * @param minPacketSize smallest chunk size in bytes.
+	 * @param maxPacketSize largest chunk size in bytes.
+	 * @return readable descriptions of each state, by network key.
+	 */
+	public static Map<String, String> describe(Context c, int minPacketSize,
+			int maxPacketSize)
+	{
+		Map<String, String> result = new TreeMap<String, String>();
+		Map<String, ?> saved = c.getSharedPreferences(PREFERENCES,
+				Context.MODE_PRIVATE).getAll();
+		for(Map.Entry<String, ?> e: saved.entrySet()){
+			PacketSizeController controller = PacketSizeController.decode(
+					String.valueOf(e.getValue()), minPacketSize, maxPacketSize);
+			if(controller != null)
+				result.put(e.getKey(), controller.toString());
+		}
+		return result;
+	}
+}
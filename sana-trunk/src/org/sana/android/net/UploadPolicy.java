@@ -0,0 +1,286 @@
+package org.sana.android.net;
+
+import org.sana.android.Constants;
+import org.sana.android.procedure.ProcedureElement.ElementType;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.preference.PreferenceManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Decides what may be uploaded over the current connection. The link is
+ * classified by its type, and a link whose measured throughput is below the
+ * slow threshold is treated as slow whatever its type. By default only the
+ * responses go over a slow link, pictures also go over a 3G link, and sounds
+ * and files wait for Wi-Fi. What goes over a slow or a mobile link, and
+ * whether anything goes while roaming, are set in the network settings.
+ *
+ * @author Sana Development Team
+ */
+public class UploadPolicy {
+	public static final String TAG = UploadPolicy.class.getSimpleName();
+
+	/**
+	 * Classes of link, slowest first.
+	 *
+	 * @author Sana Development Team
+	 */
+	public enum Link {
+		/** No data connection. */
+		NONE,
+		/** GPRS, EDGE, CDMA and 1xRTT, or any link measured to be slow. */
+		SLOW,
+		/** 3G and faster mobile data. */
+		MOBILE,
+		/** Wi-Fi. */
+		WIFI
+	}
+
+	/**
+	 * What may be uploaded, each allowing everything the ones before it do.
+	 *
+	 * @author Sana Development Team
+	 */
+	public enum Allowance {
+		/** Nothing is uploaded. */
+		NOTHING,
+		/** The responses of a case. */
+		RESPONSES,
+		/** The responses and pictures. */
+		IMAGES,
+		/** Everything, including sounds and files. */
+		ALL;
+
+		/**
+		 * @param type the type of an element
+		 * @return true if the answer to the element may be uploaded
+		 */
+		public boolean allows(ElementType type) {
+			switch (type) {
+			case PICTURE:
+				return compareTo(IMAGES) >= 0;
+			case SOUND:
+			case BINARYFILE:
+				return this == ALL;
+			default:
+				return compareTo(RESPONSES) >= 0;
+			}
+		}
+
+		/**
+		 * @return true if pictures may be sent at full resolution, otherwise
+		 * 		they are sent as their upload rendition, if they have one
+		 */
+		public boolean allowsOriginals() {
+			return this == ALL;
+		}
+	}
+
+	/**
+	 * Tells the policy about the current connection.
+	 *
+	 * @author Sana Development Team
+	 */
+	public interface ConnectivitySource {
+		/** @return the class of the current link from its type alone */
+		Link getLink();
+
+		/** @return true if the current link is roaming */
+		boolean isRoaming();
+
+		/**
+		 * @return the throughput recently measured on the current network,
+		 * 		in bytes per second, or 0 if unknown
+		 */
+		double getBandwidth();
+	}
+
+	/**
+	 * Reads the current connection from the system, and the throughput
+	 * measured by the upload engine from the {@link ThroughputModelStore}.
+	 *
+	 * @author Sana Development Team
+	 */
+	public static class AndroidConnectivity implements ConnectivitySource {
+		private final Context context;
+
+		public AndroidConnectivity(Context context) {
+			this.context = context;
+		}
+
+		private NetworkInfo getNetworkInfo() {
+			ConnectivityManager connectivity = (ConnectivityManager)
+				context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			return (connectivity != null)?
+					connectivity.getActiveNetworkInfo(): null;
+		}
+
+		public Link getLink() {
+			NetworkInfo info = getNetworkInfo();
+			if (info == null || !info.isConnected())
+				return Link.NONE;
+			return classify(info.getType(), info.getSubtype());
+		}
+
+		public boolean isRoaming() {
+			NetworkInfo info = getNetworkInfo();
+			return info != null && info.isRoaming();
+		}
+
+		public double getBandwidth() {
+			try {
+				return ThroughputModelStore.load(context,
+						ThroughputModelStore.getNetworkKey(context),
+						Constants.DEFAULT_INIT_PACKET_SIZE * 1000,
+						Constants.MIN_PACKET_SIZE * 1000,
+						Constants.MAX_PACKET_SIZE * 1000).getBandwidth();
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Could not read the throughput: " + e.toString());
+				return 0;
+			}
+		}
+	}
+
+	private final ConnectivitySource source;
+	private Allowance slowAllowance = Allowance.RESPONSES;
+	private Allowance mobileAllowance = Allowance.IMAGES;
+	private boolean roamingAllowed = true;
+	private double slowBandwidth = Constants.DEFAULT_SLOW_BANDWIDTH * 1024;
+
+	/**
+	 * Creates a policy with the default settings.
+	 *
+	 * @param source tells the policy about the current connection
+	 */
+	public UploadPolicy(ConnectivitySource source) {
+		this.source = source;
+	}
+
+	/**
+	 * Creates a policy for the current connection with the settings in the
+	 * preferences.
+	 *
+	 * @param c the current context
+	 * @return the policy
+	 */
+	public static UploadPolicy fromPreferences(Context c) {
+		SharedPreferences preferences =
+			PreferenceManager.getDefaultSharedPreferences(c);
+		UploadPolicy policy = new UploadPolicy(new AndroidConnectivity(c));
+		policy.setSlowAllowance(preferences.getBoolean(
+				Constants.PREFERENCE_SLOW_LINK_IMAGES, false)?
+						Allowance.IMAGES: Allowance.RESPONSES);
+		policy.setMobileAllowance(preferences.getBoolean(
+				Constants.PREFERENCE_MOBILE_LINK_ALL, false)?
+						Allowance.ALL: Allowance.IMAGES);
+		policy.setRoamingAllowed(preferences.getBoolean(
+				Constants.PREFERENCE_ROAMING_UPLOAD, true));
+		int slowBandwidth;
+		try {
+			slowBandwidth = Integer.parseInt(preferences.getString(
+					Constants.PREFERENCE_SLOW_BANDWIDTH,
+					Integer.toString(Constants.DEFAULT_SLOW_BANDWIDTH)));
+		} catch (NumberFormatException e) {
+			slowBandwidth = Constants.DEFAULT_SLOW_BANDWIDTH;
+		}
+		policy.setSlowBandwidth(slowBandwidth * 1024);
+		return policy;
+	}
+
+	/**
+	 * Classifies a link by its type.
+	 *
+	 * @param type the {@link ConnectivityManager} network type
+	 * @param subtype the {@link TelephonyManager} network type of a mobile
+	 * 		link
+	 * @return the class of the link
+	 */
+	public static Link classify(int type, int subtype) {
+		if (type == ConnectivityManager.TYPE_WIFI)
+			return Link.WIFI;
+		switch (subtype) {
+		case TelephonyManager.NETWORK_TYPE_GPRS:
+		case TelephonyManager.NETWORK_TYPE_EDGE:
+		case TelephonyManager.NETWORK_TYPE_CDMA:
+		case TelephonyManager.NETWORK_TYPE_1xRTT:
+			return Link.SLOW;
+		default:
+			return Link.MOBILE;
+		}
+	}
+
+	/** Sets what may be uploaded over a slow link. */
+	public void setSlowAllowance(Allowance allowance) {
+		slowAllowance = allowance;
+	}
+
+	/** Sets what may be uploaded over a 3G or faster mobile link. */
+	public void setMobileAllowance(Allowance allowance) {
+		mobileAllowance = allowance;
+	}
+
+	/**
+	 * Sets whether anything is uploaded over a roaming link. When allowed,
+	 * no more than the responses are.
+	 */
+	public void setRoamingAllowed(boolean allowed) {
+		roamingAllowed = allowed;
+	}
+
+	/**
+	 * Sets the throughput, in bytes per second, below which a link is
+	 * treated as slow.
+	 */
+	public void setSlowBandwidth(double bytesPerSecond) {
+		slowBandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * @return the class of the current link, lowered to slow if its
+	 * 		measured throughput is below the slow threshold
+	 */
+	public Link getLink() {
+		Link link = source.getLink();
+		if (link.compareTo(Link.SLOW) > 0) {
+			double bandwidth = source.getBandwidth();
+			if (bandwidth > 0 && bandwidth < slowBandwidth)
+				return Link.SLOW;
+		}
+		return link;
+	}
+
+	/** @return what may be uploaded over the current link */
+	public Allowance getAllowance() {
+		Link link = getLink();
+		Allowance allowance;
+		switch (link) {
+		case WIFI:
+			return Allowance.ALL;
+		case MOBILE:
+			allowance = mobileAllowance;
+			break;
+		case SLOW:
+			allowance = slowAllowance;
+			break;
+		default:
+			return Allowance.NOTHING;
+		}
+		if (source.isRoaming()) {
+			if (!roamingAllowed)
+				return Allowance.NOTHING;
+			if (allowance.compareTo(Allowance.RESPONSES) > 0)
+				return Allowance.RESPONSES;
+		}
+		return allowance;
+	}
+
+	@Override
+	public String toString() {
+		return getLink() + (source.isRoaming()? " roaming": "") + ": "
+			+ getAllowance();
+	}
+}
@@ -8,6 +8,7 @@ import java.util.List;
 import org.sana.android.Constants;
 import org.sana.android.R;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.Context;
 import android.preference.PreferenceManager;
@@ -193,6 +194,15 @@ public class BinaryUploadElement extends ProcedureElement implements
         		audio);
     }
 
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+    public static BinaryUploadElement fromXML(String id, String question, 
+    		String answer, String concept, String figure, String audio, 
+    		Attributes attributes) throws ProcedureParseException 
+    {
+        return new BinaryUploadElement(id, question, answer, concept, figure, 
+        		audio);
+    }
+
     /** {@inheritDoc} */
 	public void onItemSelected(AdapterView<?> arg0, View arg1, int arg2,
 			long arg3) {
@@ -1,9 +1,12 @@
 package org.sana.android.procedure;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Date;
 
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.Context;
 import android.view.View;
@@ -20,6 +23,8 @@ import android.widget.DatePicker;
  * @author Sana Development Team
  */
 public class DateElement extends ProcedureElement {
+	/** The format of the answers of a DateElement. */
+	public static final String DATE_FORMAT = "yyyy/MM/dd";
 
 	DatePicker dp = null;
 	Date dateAnswer = new Date();
@@ -29,8 +34,9 @@ public class DateElement extends ProcedureElement {
 	protected View createView(Context c) {
 		dp = new DatePicker(c);
 		if (dateAnswer != null) {
-			dp.init(dateAnswer.getYear() + 1900, dateAnswer.getMonth(), 
-					dateAnswer.getDate(), null);
+			Calendar date = toCalendar(dateAnswer);
+			dp.init(date.get(Calendar.YEAR), date.get(Calendar.MONTH), 
+					date.get(Calendar.DAY_OF_MONTH), null);
 		}
 		return encapsulateQuestion(c, dp);
 	}
@@ -41,9 +47,12 @@ public class DateElement extends ProcedureElement {
 		 if(!isViewActive())
 			 return answer;
 		 else {
-			 dateAnswer = new Date(dp.getYear(), dp.getMonth(), 
-					 dp.getDayOfMonth());
-			 SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd");
+			 // the picker gives the full year, as a Calendar takes it
+			 Calendar date = Calendar.getInstance();
+			 date.clear();
+			 date.set(dp.getYear(), dp.getMonth(), dp.getDayOfMonth());
+			 dateAnswer = date.getTime();
+			 SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
 			 return sdf.format(dateAnswer);
 		 }
 	}
@@ -57,13 +66,29 @@ public class DateElement extends ProcedureElement {
     /** {@inheritDoc} */
 	@Override
 	public void setAnswer(String answer) {
-		dateAnswer = new Date(answer);
+		this.answer = answer;
+		// a blank or unreadable answer leaves the picker on today
+		dateAnswer = null;
+		if (answer == null)
+			return;
+		try {
+			dateAnswer = new SimpleDateFormat(DATE_FORMAT).parse(answer);
+		} catch (ParseException e) {
+			return;
+		}
 		if (isViewActive()) {
-			dp.updateDate(dateAnswer.getYear(), dateAnswer.getMonth(), 
-					dateAnswer.getDay());
+			Calendar date = toCalendar(dateAnswer);
+			dp.updateDate(date.get(Calendar.YEAR), date.get(Calendar.MONTH), 
+					date.get(Calendar.DAY_OF_MONTH));
 		}
 	}
 	
+	private static Calendar toCalendar(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		return calendar;
+	}
+	
 	private DateElement(String id, String question, String answer, 
 			String concept, String figure, String audio) 
 	{
@@ -91,4 +116,11 @@ public class DateElement extends ProcedureElement {
 		return new DateElement(id, question, answer, concept, figure, audio);
     }
 
+	public static DateElement fromXML(String id, String question, String answer,
+			String concept, String figure, String audio, Attributes attributes) throws 
+			ProcedureParseException 
+	{
+		return new DateElement(id, question, answer, concept, figure, audio);
+    }
+
 }
@@ -13,6 +13,7 @@ import org.sana.android.media.EducationResourceParser;
 import org.sana.android.media.EducationResource.Audience;
 import org.sana.android.util.MocaUtil;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
@@ -143,6 +144,15 @@ public class EducationResourceElement extends ProcedureElement implements
         return new EducationResourceElement(id, question, answer, concept, 
         		figure, audio);
     }
+
+    public static EducationResourceElement fromXML(String id, String question, 
+    	String answer, String concept, String figure, String audio, 
+    		Attributes attributes)
+		throws ProcedureParseException  
+    {
+        return new EducationResourceElement(id, question, answer, concept, 
+        		figure, audio);
+    }
     
     /**
      * Creates a new HelpInfo object from this Element which can be used to 
@@ -2,6 +2,7 @@ package org.sana.android.procedure;
 
 import org.sana.android.R;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.Context;
 import android.location.Location;
@@ -125,6 +126,14 @@ public class GpsElement extends ProcedureElement implements OnClickListener {
     {
         return new GpsElement(id, question, answer, concept, figure, audio);
     }
+
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+    public static GpsElement fromXML(String id, String question, String answer, 
+    		String concept, String figure, String audio, 
+    		Attributes attributes) 
+    {
+        return new GpsElement(id, question, answer, concept, figure, audio);
+    }
     
     /**
      * Listener for changes to GPS service.
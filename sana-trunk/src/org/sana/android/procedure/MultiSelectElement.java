@@ -6,6 +6,7 @@ import java.util.List;
 
 import org.sana.android.util.MocaUtil;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.Context;
 import android.text.TextUtils;
@@ -140,4 +141,16 @@ public class MultiSelectElement extends ProcedureElement {
         return new MultiSelectElement(id, question, answer, concept, figure, 
         		audio, choicesStr.split(","));
     }
+
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+    public static MultiSelectElement fromXML(String id, String question, 
+    	String answer, String concept, String figure, String audio, 
+    		Attributes attributes) 
+		throws ProcedureParseException  
+    {
+        String choicesStr = MocaUtil.getAttributeOrDefault(attributes, 
+        		"choices", "");
+        return new MultiSelectElement(id, question, answer, concept, figure, 
+        		audio, choicesStr.split(","));
+    }
 }
@@ -0,0 +1,373 @@
+package org.sana.android.procedure;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.sana.android.media.EducationResource;
+import org.sana.android.media.EducationResource.Audience;
+import org.sana.android.media.EducationResourceParser;
+import org.xml.sax.InputSource;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Looks up what the pages about to be shown need before they are shown, so
+ * that it is not looked up on the UI thread as their views are made or their
+ * education resources are asked for.
+ * <p/>
+ * The runner names the current page and the show-able pages predicted to
+ * follow it after each change of page. For those pages without a view, the
+ * figures of their elements are loaded and the resources of their audio
+ * prompts found. For all of them, the education resources of their elements
+ * are found in the manifest. What was looked up for pages no longer named is
+ * dropped. Each figure is handed out once, since a Drawable belongs to a
+ * single view.
+ * <p/>
+ * Every lookup made through this object is counted as a hit if it had been
+ * done ahead of time, and as a miss if not.
+ *
+ * @author Sana Development Team
+ */
+public class PagePrefetcher {
+	public static final String TAG = PagePrefetcher.class.getSimpleName();
+
+	/**
+	 * Number of show-able pages after the current one which are looked up,
+	 * one more than the pages whose views are made around it.
+	 */
+	public static final int DEPTH = Procedure.VIEW_WINDOW + 1;
+
+	/**
+	 * Finds what a page needs. Called on the prefetch thread only.
+	 */
+	public interface Resolver {
+
+		/**
+		 * @param figure the figure attribute of an element
+		 * @return the resource id of the figure, or 0 if there is none
+		 */
+		int getFigureId(String figure);
+
+		/**
+		 * @param id the resource id of a figure
+		 * @return the figure, or null if it can not be loaded
+		 */
+		Drawable getFigure(int id);
+
+		/**
+		 * @param audioPrompt the audio attribute of an element
+		 * @return the resource id of the prompt, or 0 if there is none
+		 */
+		int getAudioPromptId(String audioPrompt);
+
+		/**
+		 * @param ids the education resource ids of the elements of a page
+		 * @return the resources found, or null if they can not be looked up
+		 */
+		List<EducationResource> findEducationResources(List<String> ids);
+	}
+
+	private final Resolver resolver;
+	private final Executor executor;
+	// the pages last named and those whose lookups have been queued
+	private Set<ProcedurePage> wanted = new HashSet<ProcedurePage>();
+	private final Set<ProcedurePage> mediaQueued = new HashSet<ProcedurePage>();
+	private final Set<ProcedurePage> resourcesQueued =
+		new HashSet<ProcedurePage>();
+	private final Map<String, Drawable> figures =
+		new HashMap<String, Drawable>();
+	private final Map<String, Integer> audioPrompts =
+		new HashMap<String, Integer>();
+	private final Map<ProcedurePage, List<EducationResource>> resources =
+		new HashMap<ProcedurePage, List<EducationResource>>();
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * Creates a prefetcher.
+	 *
+	 * @param resolver finds what pages need
+	 * @param executor runs the lookups
+	 */
+	public PagePrefetcher(Resolver resolver, Executor executor) {
+		this.resolver = resolver;
+		this.executor = executor;
+	}
+
+	/**
+	 * Creates a prefetcher which looks up the resources of an application on
+	 * a background thread of its own.
+	 *
+	 * @param c the current context
+	 * @param audience the audience whose education resources are looked up,
+	 * 		or null if they are not
+	 * @return a new prefetcher
+	 */
+	public static PagePrefetcher create(Context c, Audience audience) {
+		ExecutorService executor = Executors.newSingleThreadExecutor(
+				new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(
+								Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		return new PagePrefetcher(new ResourceResolver(c, audience), executor);
+	}
+
+	/**
+	 * Names the pages to look up, dropping what was looked up for any other.
+	 * Must be called on the UI thread.
+	 *
+	 * @param pages the current page and those predicted to follow it
+	 */
+	public synchronized void prefetch(List<ProcedurePage> pages) {
+		wanted = new HashSet<ProcedurePage>(pages);
+		mediaQueued.retainAll(wanted);
+		resourcesQueued.retainAll(wanted);
+		resources.keySet().retainAll(wanted);
+		Set<String> kept = new HashSet<String>();
+		for (ProcedurePage page : wanted) {
+			for (ProcedureElement pe : page.elements)
+				kept.add(pe.getFigure());
+		}
+		figures.keySet().retainAll(kept);
+
+		for (ProcedurePage page : pages) {
+			// a page with a view has already made it
+			boolean media = !page.hasView() && mediaQueued.add(page);
+			boolean education = resourcesQueued.add(page);
+			if (media || education)
+				executor.execute(new Lookup(page, media, education));
+		}
+	}
+
+	/**
+	 * Takes the figure of an element, if it has been loaded.
+	 *
+	 * @param figure the figure attribute of the element
+	 * @return the figure, or null if it must be loaded now
+	 */
+	public synchronized Drawable takeFigure(String figure) {
+		return count(figures.remove(figure));
+	}
+
+	/**
+	 * Finds the resource id of an audio prompt, if it has been looked up.
+	 *
+	 * @param audioPrompt the audio attribute of an element
+	 * @return the resource id, or 0 if it must be looked up now
+	 */
+	public synchronized int getAudioPromptId(String audioPrompt) {
+		Integer id = count(audioPrompts.get(audioPrompt));
+		return (id == null)? 0: id;
+	}
+
+	/**
+	 * Finds the education resources of the elements of a page, if they have
+	 * been looked up.
+	 *
+	 * @param page the page
+	 * @return the resources, or null if they must be looked up now
+	 */
+	public synchronized ArrayList<EducationResource> getEducationResources(
+			ProcedurePage page)
+	{
+		List<EducationResource> found = count(resources.get(page));
+		return (found == null)? null: new ArrayList<EducationResource>(found);
+	}
+
+	/** @return the number of lookups which had been done ahead of time */
+	public synchronized int getHitCount() {
+		return hits;
+	}
+
+	/** @return the number of lookups which had not */
+	public synchronized int getMissCount() {
+		return misses;
+	}
+
+	/** @return the percentage of lookups which had been done ahead of time */
+	public synchronized int getHitRate() {
+		int lookups = hits + misses;
+		return (lookups == 0)? 0: 100 * hits / lookups;
+	}
+
+	/** Stops looking up pages and drops what was looked up. */
+	public synchronized void shutdown() {
+		if (executor instanceof ExecutorService)
+			((ExecutorService) executor).shutdownNow();
+		wanted.clear();
+		figures.clear();
+		resources.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Prefetched " + hits + " of " + (hits + misses) + " lookups ("
+			+ getHitRate() + "%)";
+	}
+
+	private <T> T count(T found) {
+		if (found == null)
+			misses++;
+		else
+			hits++;
+		return found;
+	}
+
+	/** The lookups for a single page. */
+	private class Lookup implements Runnable {
+		private final ProcedurePage page;
+		private final boolean media;
+		private final boolean education;
+
+		Lookup(ProcedurePage page, boolean media, boolean education) {
+			this.page = page;
+			this.media = media;
+			this.education = education;
+		}
+
+		public void run() {
+			try {
+				if (media)
+					lookUpMedia();
+				if (education)
+					lookUpEducation();
+			} catch (Exception e) {
+				// whatever is not found here is found when it is needed
+				Log.w(TAG, "Could not look up page " + page.id + ": "
+						+ e.toString());
+			}
+		}
+
+		private void lookUpMedia() {
+			for (ProcedureElement pe : page.elements) {
+				if (!isWanted())
+					return;
+				String figure = pe.getFigure();
+				if (figure != null && figure.length() > 0) {
+					int id = resolver.getFigureId(figure);
+					Drawable d = (id == 0)? null: resolver.getFigure(id);
+					if (d != null) {
+						synchronized (PagePrefetcher.this) {
+							if (wanted.contains(page))
+								figures.put(figure, d);
+						}
+					}
+				}
+				String audio = pe.getAudioPrompt();
+				if (audio != null && audio.length() > 0) {
+					int id = resolver.getAudioPromptId(audio);
+					if (id != 0) {
+						synchronized (PagePrefetcher.this) {
+							audioPrompts.put(audio, id);
+						}
+					}
+				}
+			}
+		}
+
+		private void lookUpEducation() {
+			if (!isWanted())
+				return;
+			List<EducationResource> found = resolver.findEducationResources(
+					page.getEducationResourceIds());
+			if (found == null)
+				return;
+			synchronized (PagePrefetcher.this) {
+				if (wanted.contains(page))
+					resources.put(page, found);
+			}
+		}
+
+		private boolean isWanted() {
+			synchronized (PagePrefetcher.this) {
+				return wanted.contains(page);
+			}
+		}
+	}
+
+	/**
+	 * Finds figures and prompts among the resources of an application and
+	 * education resources in the manifest on external storage, which is read
+	 * again whenever it changes.
+	 */
+	static class ResourceResolver implements Resolver {
+		private final Resources res;
+		private final String packageName;
+		private final Audience audience;
+		private EducationResourceParser parser = null;
+		private long parsed = 0;
+
+		ResourceResolver(Context c, Audience audience) {
+			res = c.getResources();
+			packageName = c.getPackageName();
+			this.audience = audience;
+		}
+
+		public int getFigureId(String figure) {
+			return res.getIdentifier(figure, null, null);
+		}
+
+		public Drawable getFigure(int id) {
+			return res.getDrawable(id);
+		}
+
+		public int getAudioPromptId(String audioPrompt) {
+			return res.getIdentifier(packageName + ":" + audioPrompt, null,
+					null);
+		}
+
+		public List<EducationResource> findEducationResources(
+				List<String> ids)
+		{
+			if (audience == null)
+				return null;
+			File metadata = EducationResource.getMetadata();
+			long modified = metadata.lastModified();
+			if (modified == 0)
+				return null;
+			if (parser == null || modified != parsed) {
+				try {
+					InputStream in = new FileInputStream(metadata);
+					try {
+						EducationResourceParser p =
+							EducationResourceParser.newInstance();
+						p.parse(new InputSource(in));
+						parser = p;
+						parsed = modified;
+					} finally {
+						in.close();
+					}
+				} catch (Exception e) {
+					Log.w(TAG, "Could not read " + metadata + ": "
+							+ e.toString());
+					return null;
+				}
+			}
+			return parser.infoList(ids, audience);
+		}
+	}
+}
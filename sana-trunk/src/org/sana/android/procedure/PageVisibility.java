@@ -0,0 +1,202 @@
+package org.sana.android.procedure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps whether each page of a procedure should be displayed, so that the
+ * branching criteria of a page are checked again only when an answer they
+ * depend on has changed.
+ * <p/>
+ * When created, it indexes the pages by the ids of the elements their
+ * criteria refer to. Before each query it compares the answers of those
+ * elements with the ones last seen. A changed answer marks only the pages
+ * which depend on it. Answers are compared rather than reported because
+ * most elements keep theirs in their widgets until asked.
+ *
+ * @author Sana Development Team
+ */
+public class PageVisibility {
+	public static final String TAG = PageVisibility.class.getSimpleName();
+
+	private final List<ProcedurePage> pages;
+	// the elements criteria refer to and the answers last seen for them
+	private final ProcedureElement[] watched;
+	private final String[] answers;
+	// the indices of the pages whose criteria refer to each element, by id
+	private final Map<String, int[]> dependents;
+	private final boolean[] displayed;
+	private final boolean[] stale;
+	// the number of displayed pages before each index, or null if any is stale
+	private int[] displayedBefore = null;
+
+	/**
+	 * Indexes the criteria of a list of pages. Every page is checked on first
+	 * use.
+	 *
+	 * @param pages the pages in procedure order
+	 */
+	public PageVisibility(List<ProcedurePage> pages) {
+		this.pages = pages;
+		int count = pages.size();
+		displayed = new boolean[count];
+		stale = new boolean[count];
+		Arrays.fill(stale, true);
+
+		Map<String, List<Integer>> index = new HashMap<String, List<Integer>>();
+		Map<String, ProcedureElement> elements =
+			new HashMap<String, ProcedureElement>();
+		for (int i = 0; i < count; i++) {
+			Set<ProcedureElement> refs = new LinkedHashSet<ProcedureElement>();
+			pages.get(i).criteria.collectElements(refs);
+			for (ProcedureElement pe : refs) {
+				List<Integer> list = index.get(pe.getId());
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					index.put(pe.getId(), list);
+					elements.put(pe.getId(), pe);
+				}
+				list.add(i);
+			}
+		}
+		dependents = new HashMap<String, int[]>(index.size());
+		for (Map.Entry<String, List<Integer>> e : index.entrySet()) {
+			int[] indices = new int[e.getValue().size()];
+			for (int i = 0; i < indices.length; i++)
+				indices[i] = e.getValue().get(i);
+			dependents.put(e.getKey(), indices);
+		}
+		watched = elements.values().toArray(
+				new ProcedureElement[elements.size()]);
+		answers = new String[watched.length];
+		for (int i = 0; i < watched.length; i++)
+			answers[i] = answerOf(watched[i]);
+	}
+
+	/**
+	 * Whether a page should be displayed, given the answers thus far.
+	 *
+	 * @param index the index of the page
+	 * @return true if its criteria are met
+	 */
+	public boolean isDisplayed(int index) {
+		update();
+		return check(index);
+	}
+
+	/**
+	 * The number of pages which should be displayed.
+	 *
+	 * @return a count of pages
+	 */
+	public int getDisplayedCount() {
+		return getDisplayedBefore(pages.size());
+	}
+
+	/**
+	 * The number of pages before an index which should be displayed.
+	 *
+	 * @param index the index of a page, or the number of pages
+	 * @return a count of pages
+	 */
+	public int getDisplayedBefore(int index) {
+		update();
+		if (displayedBefore == null) {
+			int[] counts = new int[pages.size() + 1];
+			for (int i = 0; i < pages.size(); i++)
+				counts[i + 1] = counts[i] + (check(i)? 1: 0);
+			displayedBefore = counts;
+		}
+		return displayedBefore[index];
+	}
+
+	/**
+	 * The index of the first page after another which should be displayed.
+	 *
+	 * @param index the index of a page
+	 * @return the index of the next page or -1 if there is none
+	 */
+	public int nextDisplayed(int index) {
+		if (index + 1 >= pages.size())
+			return -1;
+		int before = getDisplayedBefore(index + 1);
+		if (before == getDisplayedCount())
+			return -1;
+		return reaching(before + 1) - 1;
+	}
+
+	/**
+	 * The index of the last page before another which should be displayed.
+	 *
+	 * @param index the index of a page
+	 * @return the index of the previous page or -1 if there is none
+	 */
+	public int previousDisplayed(int index) {
+		int before = getDisplayedBefore(index);
+		if (before == 0)
+			return -1;
+		return reaching(before) - 1;
+	}
+
+	/**
+	 * The index of the page at a position among the displayed pages.
+	 *
+	 * @param position the number of displayed pages before it
+	 * @return the index of the first page with that many displayed pages
+	 * 		before it, or -1 if there is none
+	 */
+	public int indexAtPosition(int position) {
+		int index = reaching(position);
+		return (index < pages.size())? index: -1;
+	}
+
+	// the first index at which the count of displayed pages reaches a value
+	private int reaching(int count) {
+		int low = 0;
+		int high = pages.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (displayedBefore[middle] < count)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	// marks the pages depending on any answer which has changed
+	private void update() {
+		for (int i = 0; i < watched.length; i++) {
+			String answer = answerOf(watched[i]);
+			if (answer == null? answers[i] == null: answer.equals(answers[i]))
+				continue;
+			answers[i] = answer;
+			for (int page : dependents.get(watched[i].getId()))
+				stale[page] = true;
+			displayedBefore = null;
+		}
+	}
+
+	// the cached visibility of a page, checking its criteria if stale
+	private boolean check(int index) {
+		if (stale[index]) {
+			displayed[index] = pages.get(index).shouldDisplay();
+			stale[index] = false;
+		}
+		return displayed[index];
+	}
+
+	private static String answerOf(ProcedureElement element) {
+		try {
+			return element.getAnswer();
+		} catch (NullPointerException e) {
+			// criteria treat an unreadable answer as a blank one
+			return null;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package org.sana.android.procedure;
 
 import org.sana.android.R;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -121,6 +122,15 @@ public class PatientIdElement extends ProcedureElement implements
     {
         return new PatientIdElement(id, question, answer, concept, figure, audio);
     }
+
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+    public static PatientIdElement fromXML(String id, String question, 
+    		String answer, String concept, String figure, String audio, 
+    		Attributes attributes) 
+			throws ProcedureParseException 
+    {
+        return new PatientIdElement(id, question, answer, concept, figure, audio);
+    }
     
     /** Launches the barcode reader if available */
     public void onClick(View v) {
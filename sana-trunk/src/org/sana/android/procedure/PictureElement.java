@@ -1,6 +1,5 @@
 package org.sana.android.procedure;
 
-import java.io.IOException;
 import java.util.ArrayList;
 
 import org.sana.android.ImagePreviewDialog;
@@ -8,7 +7,9 @@ import org.sana.android.ScalingImageAdapter;
 import org.sana.android.activity.ProcedureRunner;
 import org.sana.android.db.DispatchableContract;
 import org.sana.android.db.DispatchableContract.ImageSQLFormat;
+import org.sana.android.media.ImageRendition;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.app.Activity;
 import android.content.ContentUris;
@@ -54,6 +55,7 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
     private GridView imageGrid;
     private ImagePreviewDialog imageReview;
     private Intent imageCaptureIntent;
+    private final ImageRendition imageRendition;
     
     /** {@inheritDoc} */
     @Override
@@ -79,8 +81,11 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
 		if (c instanceof Activity) {
 			((Activity)c).startManagingCursor(cursor);
 		}
+		ScalingImageAdapter previous = imageAdapter;
         imageAdapter = new ScalingImageAdapter(c, cursor, 
         		THUMBNAIL_SCALE_FACTOR);
+        if (previous != null)
+        	imageAdapter.keepSelections(previous);
         imageGrid.setAdapter(imageAdapter);     
         imageGrid.setNumColumns(3);
         imageGrid.setVerticalSpacing(5);
@@ -165,19 +170,26 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
 		long imageId = imageAdapter.getItemId(position);
 		Uri imageUri = ContentUris.withAppendedId(ImageSQLFormat.CONTENT_URI,
 				imageId);
-		try {
-			// hack for in-emulator demo, commented out here, but use to load a
-			// static image
-			// imageReview.showImage(getContext().getContentResolver().openInputStream(Uri.parse("android.resource://org.moca/"
-			// + R.drawable.incision2)));
-			imageReview.showImage(imageUri);
-			imageReview.show();
-		} catch (IOException e) {
-			Log.e(TAG, "Can't open the image file for uri " + imageUri);
-		}
+		// hack for in-emulator demo, commented out here, but use to load a
+		// static image
+		// imageReview.showImage(getContext().getContentResolver().openInputStream(Uri.parse("android.resource://org.moca/"
+		// + R.drawable.incision2)));
+		imageReview.showImage(imageUri);
+		imageReview.show();
 		return false;
 	}
     
+    /** Closes the cursor of the image grid. */
+    @Override
+    protected void onViewReleased() {
+    	Cursor cursor = imageAdapter.getCursor();
+    	if (cursor == null)
+    		return;
+    	if (getContext() instanceof Activity)
+    		((Activity) getContext()).stopManagingCursor(cursor);
+    	cursor.close();
+    }
+    
     /** {@inheritDoc} */
     @Override
 	public void setAnswer(String answer) {
@@ -228,10 +240,27 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
     	}
     }
      
+    /**
+     * How the pictures taken for this element are prepared for upload, 
+     * unless the procedure or settings say otherwise.
+     * @return the rendition, whose values may be unset.
+     */
+    public ImageRendition getImageRendition() {
+    	return imageRendition;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void appendOptionalAttributes(StringBuilder sb){
+    	imageRendition.appendAttributes(sb, ImageRendition.ELEMENT_ATTRIBUTES);
+    }
+     
     /** Default Constructor */
     private PictureElement(String id, String question, String answer, 
-    		String concept, String figure, String audio) {
+    		String concept, String figure, String audio, 
+    		ImageRendition imageRendition) {
         super(id, question, answer, concept, figure, audio);
+        this.imageRendition = imageRendition;
     }
 
     /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Node) */
@@ -239,7 +268,19 @@ public class PictureElement extends ProcedureElement implements OnClickListener,
     		String answer, String concept, String figure, String audio, 
     		Node node) throws ProcedureParseException 
     {
-    	return new PictureElement(id, question, answer, concept, figure, audio);
+    	return new PictureElement(id, question, answer, concept, figure, audio,
+    			ImageRendition.fromNode(node, 
+    					ImageRendition.ELEMENT_ATTRIBUTES));
+    }
+
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+    public static PictureElement fromXML(String id, String question, 
+    		String answer, String concept, String figure, String audio, 
+    		Attributes attributes) throws ProcedureParseException 
+    {
+    	return new PictureElement(id, question, answer, concept, figure, audio,
+    			ImageRendition.fromAttributes(attributes, 
+    					ImageRendition.ELEMENT_ATTRIBUTES));
     }
 
 	
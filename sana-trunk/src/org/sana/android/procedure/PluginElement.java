@@ -8,6 +8,7 @@ import org.sana.android.db.BinaryDAO;
 import org.sana.android.db.DispatchableContract.BinarySQLFormat;
 import org.sana.android.service.PluginService;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.app.Activity;
 import android.content.ContentUris;
@@ -212,6 +213,17 @@ public class PluginElement extends ProcedureElement implements
     	return new PluginElement(id, question, answer, concept, figure, audio,
     			action,pkg);
     }
+
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+     public static PluginElement fromXML(String id, String question, 
+    		String answer, String concept, String figure, String audio, 
+    		Attributes attributes) throws ProcedureParseException  
+    {
+        String action = attributes.getValue("action");
+        String pkg = attributes.getValue("mimeType");
+    	return new PluginElement(id, question, answer, concept, figure, audio,
+    			action,pkg);
+    }
      
 	/** {@inheritDoc} */
 	@Override
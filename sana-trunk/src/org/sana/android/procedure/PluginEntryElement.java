@@ -1,6 +1,7 @@
 package org.sana.android.procedure;
 
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.Context;
 import android.util.Log;
@@ -58,6 +59,18 @@ public class PluginEntryElement extends PluginElement {
     	return new PluginEntryElement(id, question, answer, concept, figure, 
     			audio, action,pkg);
     }
+
+	/** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+    public static PluginEntryElement fromXML(String id, String question, 
+    	String answer, String concept, String figure, String audio, 
+    		Attributes attributes)  
+		throws ProcedureParseException  
+    {
+        String action = attributes.getValue("action");
+        String pkg = attributes.getValue("mimeType");
+    	return new PluginEntryElement(id, question, answer, concept, figure, 
+    			audio, action,pkg);
+    }
     
     /** {@inheritDoc} */
 	@Override
@@ -5,11 +5,11 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -19,6 +19,7 @@ import org.sana.android.Constants;
 import org.sana.android.R;
 import org.sana.android.db.PatientInfo;
 import org.sana.android.db.PatientValidator;
+import org.sana.android.media.ImageRendition;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -38,12 +39,35 @@ import android.widget.ViewAnimator;
  * entry criteria (checks that allow the procedure to branch if previous 
  * responses were made a certain way), the methods in the Procedure take care of 
  * checking these criteria.
+ * <p/>
+ * Only the views of the current page and of the show-able pages on either 
+ * side of it are made. Pages which leave that window keep their answers and 
+ * drop their views, which are made again if the page is shown later.
+ * <p/>
+ * Whether each page is show-able is kept in a {@link PageVisibility}, which 
+ * checks the criteria of a page again only when an answer they refer to has 
+ * changed.
  * 
  * @author Sana Development Team
  */
 public class Procedure {
     public static final String TAG = Procedure.class.getSimpleName();
     
+    /** Clinical priority of procedures which do not declare one. */
+    public static final int PRIORITY_ROUTINE = 0;
+    
+    /** Clinical priority of procedures which should be seen soon. */
+    public static final int PRIORITY_URGENT = 1;
+    
+    /** Clinical priority of procedures which should be seen at once. */
+    public static final int PRIORITY_EMERGENCY = 2;
+    
+    /** 
+     * Number of show-able pages on either side of the current page whose 
+     * views are kept.
+     */
+    public static final int VIEW_WINDOW = 1;
+    
     private View cachedView;
     private Context cachedContext;
     
@@ -51,11 +75,17 @@ public class Procedure {
     private String title;
     private String author;
     private String guid;
+    private int priority = PRIORITY_ROUTINE;
+    private ImageRendition imageRendition = ImageRendition.NONE;
     private List<ProcedurePage> pages;
     public ListIterator<ProcedurePage> pagesIterator;
     private ProcedurePage currentPage;
+    private final PageVisibility visibility;
     private ViewAnimator viewAnimator;
+    // pages whose views are children of viewAnimator, in the same order
+    private final List<ProcedurePage> inflated = new ArrayList<ProcedurePage>();
     private PatientInfo patientInfo = null;
+    private PagePrefetcher prefetcher = null;
 
     /**
      * Constructs a new Procedure.
@@ -71,7 +101,7 @@ public class Procedure {
     public Procedure(String title, String author, String guid, 
     	List<ProcedurePage> pages, HashMap<String, ProcedureElement> elements) 
     {
-        this.pages = new LinkedList<ProcedurePage>();
+        this.pages = new ArrayList<ProcedurePage>(pages.size());
         //this.pages.addAll(pages);
         for(ProcedurePage pp : pages) {
             pp.setProcedure(this);
@@ -80,6 +110,7 @@ public class Procedure {
         this.title = title;
         this.author = author;
         this.guid = guid;
+        visibility = new PageVisibility(this.pages);
         pagesIterator = pages.listIterator();
         
         next();
@@ -180,11 +211,7 @@ public class Procedure {
     public void next() {
         if (hasNext()) {
             currentPage = pagesIterator.next();
-            if(viewAnimator != null && cachedContext != null) {
-                viewAnimator.setInAnimation(cachedContext,R.anim.slide_from_right);
-                viewAnimator.setOutAnimation(cachedContext,R.anim.slide_to_left);
-                viewAnimator.showNext();
-            }
+            showPage(currentPage, R.anim.slide_from_right, R.anim.slide_to_left);
         }
     }
     
@@ -195,11 +222,7 @@ public class Procedure {
     public void prev() {
         if (hasPrev()) {
             currentPage = pagesIterator.previous();
-            if(viewAnimator != null && cachedContext != null) {
-                viewAnimator.setInAnimation(cachedContext,R.anim.slide_from_left);
-                viewAnimator.setOutAnimation(cachedContext,R.anim.slide_to_right);
-                viewAnimator.showPrevious();
-            }
+            showPage(currentPage, R.anim.slide_from_left, R.anim.slide_to_right);
         }
     }
     
@@ -215,11 +238,7 @@ public class Procedure {
             return false;
         if (!pagesIterator.hasNext())
             return false;
-        for (int i = pagesIterator.nextIndex(); i < pages.size(); i++) {
-            if (pages.get(i).shouldDisplay())
-                return true;
-        }
-        return false;
+        return visibility.nextDisplayed(pagesIterator.nextIndex() - 1) != -1;
     }
     
     /**
@@ -236,11 +255,7 @@ public class Procedure {
             return false;
         if (pagesIterator.previousIndex() == 0)
         	return false;
-        for (int i = pagesIterator.previousIndex(); i >= 0; i--) {
-            if (pages.get(i).shouldDisplay())
-                return true;
-        }
-        return false;
+        return visibility.getDisplayedBefore(pagesIterator.nextIndex()) > 0;
     }
             
     /**
@@ -251,13 +266,13 @@ public class Procedure {
     public void advance() {
         if (!hasNextShowable())
             return;
+        int target = visibility.nextDisplayed(pagesIterator.nextIndex() - 1);
         ProcedurePage pp = pagesIterator.next();
-        viewAnimator.showNext();
-        while (hasNext() && !pp.shouldDisplay()) {
+        while (pagesIterator.nextIndex() <= target) {
             pp = pagesIterator.next();
-            viewAnimator.showNext();
         }
         currentPage = pp;
+        showPage(currentPage, 0, 0);
         
         // Fill in default values for data from patient in the database
 		PatientValidator.populateSpecialElements(this, patientInfo);
@@ -272,17 +287,14 @@ public class Procedure {
     public void back() {
         if (!hasPrevShowable())
             return;
-        ProcedurePage pp;
-        // this will refer to the current page
-        pagesIterator.previous();
-        pp = pages.get(pagesIterator.previousIndex());
-        viewAnimator.showPrevious();
-        while (hasPrev() && !pp.shouldDisplay()) {
+        // the first page is where going back stops, show-able or not
+        int target = Math.max(visibility.previousDisplayed(
+        		pagesIterator.nextIndex() - 1), 0);
+        while (pagesIterator.nextIndex() > target + 1) {
             pagesIterator.previous();
-            pp = pages.get(pagesIterator.previousIndex());
-            viewAnimator.showPrevious();
         }
-        currentPage = pp;
+        currentPage = pages.get(target);
+        showPage(currentPage, 0, 0);
     }
     
     /**
@@ -302,9 +314,7 @@ public class Procedure {
         Log.i(TAG, "current index of page: " + getCurrentIndex());
         currentPage = pagesIterator.next();
         Log.i(TAG, "current index of page: " + getCurrentIndex());
-        viewAnimator.setInAnimation(null);
-        viewAnimator.setOutAnimation(null);
-        viewAnimator.setDisplayedChild(pageIndex);
+        showPage(currentPage, 0, 0);
     }
     
 
@@ -319,25 +329,47 @@ public class Procedure {
     	if (pageIndex < 0 || pageIndex >= pages.size())
     		return;
     	
-    	pagesIterator = pages.listIterator();
-    	int visibleIndex = 0;
-    	int actualIndex = 0;
-    	while (pagesIterator.hasNext()) {
-    		ProcedurePage page = pagesIterator.next();
-    		
-    		if (visibleIndex == pageIndex) {
-    			currentPage = page;
-    	        viewAnimator.setInAnimation(null);
-    	        viewAnimator.setOutAnimation(null);
-    	        viewAnimator.setDisplayedChild(actualIndex);
-    	        break;
-    		}
-    		
-    		if (page.shouldDisplay()) {
-    			visibleIndex++;
-    		}
-    		actualIndex++;
-    	}
+    	int actualIndex = visibility.indexAtPosition(pageIndex);
+    	if (actualIndex == -1)
+    		return;
+    	pagesIterator = pages.listIterator(actualIndex);
+    	currentPage = pagesIterator.next();
+    	showPage(currentPage, 0, 0);
+    }
+    
+    /**
+     * The show-able pages after the current one, given user selections thus 
+     * far, in the order they would be shown.
+     * 
+     * @param count The most pages to return
+     * @return Up to count pages
+     */
+    public List<ProcedurePage> getUpcomingPages(int count) {
+        List<ProcedurePage> upcoming = new ArrayList<ProcedurePage>(count);
+        int i = getCurrentIndex();
+        while (upcoming.size() < count 
+        		&& (i = visibility.nextDisplayed(i)) != -1) 
+        {
+            upcoming.add(pages.get(i));
+        }
+        return upcoming;
+    }
+    
+    /**
+     * Sets what looks up the figures, prompts and education resources of 
+     * pages before they are shown.
+     * 
+     * @param prefetcher The prefetcher, or null if there is none
+     */
+    public void setPrefetcher(PagePrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+    
+    /**
+     * @return The prefetcher of this procedure, or null if there is none
+     */
+    public PagePrefetcher getPrefetcher() {
+        return prefetcher;
     }
     
     /**
@@ -356,18 +388,8 @@ public class Procedure {
      * @return The index value of the current page if visible else 0.
      */
     public int getCurrentVisibleIndex() {
-    	Iterator<ProcedurePage> pageIterator = pages.iterator();
-    	int visibleIndex = 0;
-    	while (pageIterator.hasNext()) {
-    		ProcedurePage page = pageIterator.next();
-    		if (page == currentPage) {
-    			return visibleIndex;
-    		}
-    		if (page.shouldDisplay()) {
-    			visibleIndex++;
-    		}
-    	}
-    	return 0;
+    	int index = getCurrentIndex();
+    	return (index == -1)? 0: visibility.getDisplayedBefore(index);
     }
 
     /**
@@ -384,15 +406,7 @@ public class Procedure {
      * @return The total number of pages 
      */
     public int getVisiblePageCount() {
-    	Iterator<ProcedurePage> pageIterator = pages.iterator();
-    	int visibleCount = 0;
-    	while (pageIterator.hasNext()) {
-    		ProcedurePage page = pageIterator.next();
-    		if (page.shouldDisplay()) {
-    			visibleCount++;
-    		}
-    	}
-    	return visibleCount;
+    	return visibility.getDisplayedCount();
     }
     
     /**
@@ -419,6 +433,80 @@ public class Procedure {
     	return guid;
     }
     
+    /**
+     * The clinical priority declared by the procedure, which orders the 
+     * upload of its encounters.
+     * @return one of the PRIORITY constants or a larger value.
+     */
+    public int getPriority() {
+    	return priority;
+    }
+    
+    /**
+     * Sets the clinical priority.
+     * @param priority the new priority.
+     */
+    public void setPriority(int priority) {
+    	this.priority = priority;
+    }
+    
+    /**
+     * How the pictures of this procedure are prepared for upload, unless an
+     * element says otherwise.
+     * @return the rendition, whose values may be unset.
+     */
+    public ImageRendition getImageRendition() {
+    	return imageRendition;
+    }
+    
+    /**
+     * Sets how the pictures of this procedure are prepared for upload.
+     * @param imageRendition the new rendition.
+     */
+    public void setImageRendition(ImageRendition imageRendition) {
+    	this.imageRendition = imageRendition;
+    }
+    
+    /**
+     * How the pictures taken for an element are prepared for upload.
+     * @param elementId the id of a picture element.
+     * @return the rendition of the element over that of the procedure.
+     */
+    public ImageRendition getImageRendition(String elementId) {
+    	for (ProcedurePage page : pages) {
+    		ProcedureElement element = page.getElementMap().get(elementId);
+    		if (element instanceof PictureElement)
+    			return ((PictureElement) element).getImageRendition().over(
+    					imageRendition);
+    	}
+    	return imageRendition;
+    }
+    
+    /**
+     * Reads the priority attribute of a procedure, which may be "routine", 
+     * "urgent", "emergency" or a number.
+     * @param value the attribute value, may be null.
+     * @return the priority, {@link #PRIORITY_ROUTINE} if it is not given or
+     * 		not understood.
+     */
+    public static int parsePriority(String value) {
+    	if (value == null)
+    		return PRIORITY_ROUTINE;
+    	value = value.trim();
+    	if (value.equalsIgnoreCase("emergency"))
+    		return PRIORITY_EMERGENCY;
+    	if (value.equalsIgnoreCase("urgent"))
+    		return PRIORITY_URGENT;
+    	if (value.equalsIgnoreCase("routine"))
+    		return PRIORITY_ROUTINE;
+    	try {
+    		return Math.max(PRIORITY_ROUTINE, Integer.parseInt(value));
+    	} catch (NumberFormatException e) {
+    		Log.w(TAG, "Unknown procedure priority: " + value);
+    		return PRIORITY_ROUTINE;
+    	}
+    }
+    
     /**
      * Writes the procedure, including all of its child elements, to an XML 
      * String. 
@@ -437,7 +525,12 @@ public class Procedure {
      */
     public void buildXML(StringBuilder sb) {
     	sb.append("<Procedure title =\"" + title + "\" author =\"" + author 
-    			+ "\" guid =\"" + guid + "\">\n");
+    			+ "\" guid =\"" + guid + "\"");
+    	if (priority != PRIORITY_ROUTINE)
+    		sb.append(" priority =\"" + priority + "\"");
+    	imageRendition.appendAttributes(sb, 
+    			ImageRendition.PROCEDURE_ATTRIBUTES);
+    	sb.append(">\n");
         
         for (ProcedurePage p : pages) {
             p.buildXML(sb);
@@ -535,6 +628,12 @@ public class Procedure {
         }
         
         Procedure procedure = new Procedure(title, author, guid, pages, elts);
+        Node priorityNode = node.getAttributes().getNamedItem("priority");
+        if(priorityNode != null) {
+        	procedure.setPriority(parsePriority(priorityNode.getNodeValue()));
+        }
+        procedure.setImageRendition(ImageRendition.fromNode(node, 
+        		ImageRendition.PROCEDURE_ATTRIBUTES));
         return procedure;
     }
     
@@ -566,11 +665,23 @@ public class Procedure {
     public static Procedure fromXMLString(String xml) throws IOException, 
     		ParserConfigurationException, SAXException, ProcedureParseException 
     {
-    	return fromXML(new InputSource(new StringReader(xml)));
+    	try {
+    		return fromXML(new InputSource(new StringReader(xml)));
+    	} catch (ProcedureParseException e) {
+    		Log.w(TAG, "Streaming parse failed, falling back to DOM: " 
+    				+ e.getMessage());
+    	} catch (SAXException e) {
+    		Log.w(TAG, "Streaming parse failed, falling back to DOM: " 
+    				+ e.getMessage());
+    	}
+    	return fromXMLDocument(new InputSource(new StringReader(xml)));
     }
     
     /**
-     * Constructs a new Procedure from an InputSource.
+     * Constructs a new Procedure from an InputSource. The source is read in a 
+     * single pass by a {@link ProcedureStreamParser} without building a 
+     * document tree.
+     * 
      * @param xml The InputSource to read.
      * @return A new Procedure instance.
      * @throws IOException
@@ -581,6 +692,30 @@ public class Procedure {
     public static Procedure fromXML(InputSource xml) throws IOException, 
     	ParserConfigurationException, SAXException, ProcedureParseException 
     {
+    	long processingTime = System.currentTimeMillis();
+    	Procedure result = ProcedureStreamParser.parse(xml);
+        processingTime = System.currentTimeMillis() - processingTime;
+        Log.i(TAG, "Streaming procedure XML took " + processingTime 
+        		+ " milliseconds.");
+        return result;
+    }
+    
+    /**
+     * Constructs a new Procedure from an InputSource by building the complete
+     * document tree first. Requires considerably more memory than 
+     * {@link #fromXML(InputSource)} and is kept as a fallback.
+     * 
+     * @param xml The InputSource to read.
+     * @return A new Procedure instance.
+     * @throws IOException
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws Exception
+     */
+    public static Procedure fromXMLDocument(InputSource xml) throws 
+    	IOException, ParserConfigurationException, SAXException, 
+    	ProcedureParseException 
+    {
     	
     	long processingTime = System.currentTimeMillis();
     	
@@ -612,25 +747,106 @@ public class Procedure {
         return result;
     }
     
-    // creates the views for this object and indirectly all of its child pages 
+    // creates the view for this object and the pages around the current one 
     private View createView(Context c) {
-        viewAnimator = new ViewAnimator(c);
-        //viewAnimator.setInAnimation(AnimationUtils.loadAnimation(c,R.anim.slide_from_right));
-        //viewAnimator.setOutAnimation(AnimationUtils.loadAnimation(c,R.anim.slide_to_left));
-
-        for(ProcedurePage page : pages) {
-            viewAnimator.addView(page.toView(c));
+        // views made for another Context can not be moved to this one
+        for (ProcedurePage pp : inflated) {
+            pp.releaseView();
         }
-
+        inflated.clear();
+        viewAnimator = new ViewAnimator(c);
+        showPage(currentPage, 0, 0);
         return viewAnimator;
     }
     
+    // the current page and the show-able pages within VIEW_WINDOW of it
+    private Set<ProcedurePage> getViewWindow(ProcedurePage page) {
+        Set<ProcedurePage> window = new HashSet<ProcedurePage>();
+        int index = pages.indexOf(page);
+        window.add(page);
+        int i = index;
+        for (int found = 0; found < VIEW_WINDOW; found++) {
+            i = visibility.nextDisplayed(i);
+            if (i == -1)
+                break;
+            window.add(pages.get(i));
+        }
+        i = index;
+        for (int found = 0; found < VIEW_WINDOW; found++) {
+            i = visibility.previousDisplayed(i);
+            if (i == -1)
+                break;
+            window.add(pages.get(i));
+        }
+        return window;
+    }
+    
+    /*
+     * Displays a page, making the views of the pages in the window around it
+     * and dropping the views of the pages outside it. The page shown before is
+     * kept while it is animated out. An animation of 0 is none.
+     */
+    private void showPage(ProcedurePage page, int inAnimation, 
+    		int outAnimation) 
+    {
+        if (viewAnimator == null || cachedContext == null || page == null)
+            return;
+        Set<ProcedurePage> window = getViewWindow(page);
+        int displayed = viewAnimator.getDisplayedChild();
+        ProcedurePage shown = (displayed < inflated.size())? 
+        		inflated.get(displayed): null;
+        boolean animate = inAnimation != 0 || outAnimation != 0;
+        if (animate && shown != null)
+            window.add(shown);
+        
+        for (int i = inflated.size() - 1; i >= 0; i--) {
+            ProcedurePage pp = inflated.get(i);
+            if (!window.contains(pp)) {
+                viewAnimator.removeViewAt(i);
+                inflated.remove(i);
+                pp.releaseView();
+            }
+        }
+        // what is left is in page order, so the window is merged into it
+        int position = 0;
+        for (ProcedurePage pp : pages) {
+            if (!window.contains(pp))
+                continue;
+            if (position == inflated.size() || inflated.get(position) != pp) {
+                viewAnimator.addView(pp.toView(cachedContext), position);
+                inflated.add(position, pp);
+            }
+            position++;
+        }
+        
+        // the child indices have moved, so the shown page is found again first
+        viewAnimator.setInAnimation(null);
+        viewAnimator.setOutAnimation(null);
+        if (inflated.contains(shown))
+            viewAnimator.setDisplayedChild(inflated.indexOf(shown));
+        if (animate) {
+            viewAnimator.setInAnimation(cachedContext, inAnimation);
+            viewAnimator.setOutAnimation(cachedContext, outAnimation);
+        }
+        viewAnimator.setDisplayedChild(inflated.indexOf(page));
+    }
+    
+    /**
+     * The number of pages whose views are currently made.
+     * @return The number of pages with a view.
+     */
+    public int getInflatedPageCount() {
+        return inflated.size();
+    }
+    
     /**
      * Clears any views cached in this object.
      */
     public void clearCachedViews() {
     	cachedView = null;
     	cachedContext = null;
+    	viewAnimator = null;
+    	inflated.clear();
     	
     	for (ProcedurePage pp : pages) {
     		pp.clearCachedView();
@@ -644,8 +860,8 @@ public class Procedure {
      */
     public View toView(Context c) {
         if(cachedView == null || cachedContext != c) {
-            cachedView = createView(c);
             cachedContext = c;
+            cachedView = createView(c);
         }
         return cachedView;
     }
@@ -656,10 +872,9 @@ public class Procedure {
      */
     public ArrayList<String> toStringArray() {
         ArrayList<String> stringList= new ArrayList<String>();
-        for (ProcedurePage cp : pages) {
-        	if(cp.shouldDisplay()) {
-        		stringList.add(cp.getSummary());
-        	}
+        for (int i = visibility.nextDisplayed(-1); i != -1; 
+        		i = visibility.nextDisplayed(i)) {
+        	stringList.add(pages.get(i).getSummary());
         }
         return stringList;
     }
@@ -0,0 +1,118 @@
+package org.sana.android.procedure;
+
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Process wide cache of compiled procedure definitions. Templates are keyed by
+ * the id of the row they were read from and invalidated when the modification
+ * time of that row changes. The least recently used templates are evicted
+ * once their estimated size exceeds a fixed fraction of the heap.
+ *
+ * @author Sana Development Team
+ */
+public class ProcedureCache {
+	public static final String TAG = ProcedureCache.class.getSimpleName();
+
+	/** Fraction of the maximum heap size which the cache may use. */
+	public static final int HEAP_FRACTION = 32;
+
+	private static ProcedureCache instance = null;
+
+	/** A template and the modification time of its source. */
+	private static class Entry {
+		final long modified;
+		final ProcedureTemplate template;
+
+		Entry(long modified, ProcedureTemplate template){
+			this.modified = modified;
+			this.template = template;
+		}
+	}
+
+	private final LruCache<Long, Entry> cache;
+	private int hits = 0;
+	private int misses = 0;
+
+	private ProcedureCache(int maxBytes){
+		cache = new LruCache<Long, Entry>(maxBytes){
+			@Override
+			protected int sizeOf(Long key, Entry value) {
+				return value.template.sizeOf();
+			}
+		};
+	}
+
+	/**
+	 * Returns the shared cache instance, creating it if necessary.
+	 * @return the cache.
+	 */
+	public static synchronized ProcedureCache getInstance(){
+		if(instance == null){
+			long maxBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+			instance = new ProcedureCache((int) Math.min(maxBytes,
+					Integer.MAX_VALUE));
+		}
+		return instance;
+	}
+
+	/**
+	 * Looks up the template for a procedure.
+	 *
+	 * @param id the procedure row id.
+	 * @param modified the current modification time of the row.
+	 * @return the template or null if not cached or the cached template is
+	 * 		older than <code>modified</code>.
+	 */
+	public synchronized ProcedureTemplate get(long id, long modified){
+		Entry entry = cache.get(id);
+		if(entry != null && entry.modified != modified){
+			cache.remove(id);
+			entry = null;
+		}
+		if(entry == null){
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.template;
+	}
+
+	/**
+	 * Adds a template to the cache.
+	 *
+	 * @param id the procedure row id.
+	 * @param modified the modification time of the row it was compiled from.
+	 * @param template the compiled template.
+	 */
+	public synchronized void put(long id, long modified,
+			ProcedureTemplate template)
+	{
+		cache.put(id, new Entry(modified, template));
+		Log.d(TAG, "Cached procedure " + id + ", " + template.sizeOf()
+				+ " bytes, total " + cache.size() + "/" + cache.maxSize());
+	}
+
+	/**
+	 * Removes a template from the cache.
+	 * @param id the procedure row id.
+	 */
+	public synchronized void remove(long id){
+		cache.remove(id);
+	}
+
+	/** Removes all templates. */
+	public synchronized void clear(){
+		cache.evictAll();
+	}
+
+	/** @return number of lookups which returned a template. */
+	public synchronized int hitCount(){
+		return hits;
+	}
+
+	/** @return number of lookups which did not return a template. */
+	public synchronized int missCount(){
+		return misses;
+	}
+}
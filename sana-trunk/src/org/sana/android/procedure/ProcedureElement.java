@@ -5,8 +5,10 @@ import org.sana.android.media.AudioPlayer;
 import org.sana.android.media.EducationResource;
 import org.sana.android.util.MocaUtil;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.Context;
+import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Gravity;
@@ -140,6 +142,23 @@ public abstract class ProcedureElement {
     	cachedView = null;
     }
     
+    // keeps the answer shown in the view and drops it until shown again
+    void releaseView() {
+    	if (cachedView == null)
+    		return;
+    	answer = getAnswer();
+    	onViewReleased();
+    	cachedView = null;
+    }
+    
+    /**
+     * Called before the view of this element is dropped, once its answer has
+     * been kept, so that anything held for the view can be released. Does 
+     * nothing unless overridden.
+     */
+    protected void onViewReleased() {
+    }
+    
     /**
      * Constructs a new Instance.
      * 
@@ -424,10 +443,124 @@ public abstract class ProcedureElement {
         
         String helpStr = MocaUtil.getNodeAttributeOrDefault(node, "helpText",
         		"");
-        el.setHelpText(helpStr);
-        
         String requiredStr = MocaUtil.getNodeAttributeOrDefault(node, 
         		"required", "false");
+        setOptionalAttributes(el, idStr, helpStr, requiredStr);
+        return el;
+    }
+    
+    /**
+     * Create an element from the attributes of an Element tag reported by a
+     * streaming parser. This is the counterpart of 
+     * {@link #createElementfromXML(Node)} which does not require a document 
+     * tree.
+     * 
+     * @param attributes the attributes of an Element tag
+     */
+    public static ProcedureElement createElementFromAttributes(
+    		Attributes attributes) throws ProcedureParseException 
+    {
+        String questionStr = MocaUtil.getAttributeOrDefault(attributes, 
+        		"question", "");
+        String answerStr = MocaUtil.getAttributeOrDefault(attributes, 
+        		"answer", null);
+        String typeStr = MocaUtil.getAttributeOrDefault(attributes, 
+        		"type", "INVALID");
+        String conceptStr = MocaUtil.getAttributeOrDefault(attributes, 
+        		"concept", "");
+        String idStr = MocaUtil.getAttributeOrFail(attributes, "id", 
+        		new ProcedureParseException("Element doesn't have id number"));
+        String figureStr = MocaUtil.getAttributeOrDefault(attributes, 
+        		"figure", "");
+        String audioStr = MocaUtil.getAttributeOrDefault(attributes, 
+        		"audio", "");
+        
+        ElementType etype = ElementType.valueOf(typeStr);
+        
+        ProcedureElement el = null;
+        switch(etype) {
+        case TEXT:
+            el = TextElement.fromXML(idStr, questionStr, answerStr, conceptStr, 
+            		figureStr, audioStr, attributes);
+            break;
+        case ENTRY:
+            el = TextEntryElement.fromXML(idStr, questionStr, answerStr, 
+            		conceptStr, figureStr, audioStr, attributes);
+            break;
+        case SELECT:
+            el = SelectElement.fromXML(idStr, questionStr, answerStr, 
+            		conceptStr, figureStr, audioStr, attributes);
+            break;
+        case MULTI_SELECT:
+            el = MultiSelectElement.fromXML(idStr, questionStr, answerStr, 
+            		conceptStr, figureStr, audioStr, attributes);
+            break;
+        case RADIO:
+            el = RadioElement.fromXML(idStr, questionStr, answerStr, 
+            		conceptStr, figureStr, audioStr, attributes);
+            break;
+        case PICTURE:
+            el = PictureElement.fromXML(idStr, questionStr, answerStr, 
+            		conceptStr, figureStr, audioStr, attributes);
+            break;
+        case SOUND:
+            el = SoundElement.fromXML(idStr, questionStr, answerStr, 
+            		conceptStr, figureStr, audioStr, attributes);
+            break;
+        case GPS:
+        	el = GpsElement.fromXML(idStr, questionStr, answerStr, 
+        			conceptStr, figureStr, audioStr, attributes);
+        	break;
+        case BINARYFILE:
+            el = BinaryUploadElement.fromXML(idStr, questionStr, answerStr, 
+            		conceptStr, figureStr, audioStr, attributes);
+            break;
+        case PATIENT_ID:
+        	el = PatientIdElement.fromXML(idStr, questionStr, answerStr, 
+        			conceptStr, figureStr, audioStr, attributes);
+        	break;
+        case DATE:
+        	el = DateElement.fromXML(idStr, questionStr, answerStr, conceptStr, 
+        			figureStr, audioStr, attributes);
+        	break;
+        case EDUCATION_RESOURCE:
+        	el = EducationResourceElement.fromXML(idStr, questionStr, answerStr,
+        			conceptStr, figureStr, audioStr, attributes);
+        	break;
+        case PLUGIN:
+        	el = PluginElement.fromXML(idStr, questionStr, answerStr, 
+        			conceptStr, figureStr, audioStr, attributes);
+        	break;
+        case ENTRY_PLUGIN:
+        	el = PluginEntryElement.fromXML(idStr, questionStr, answerStr, 
+        			conceptStr, figureStr, audioStr, attributes);
+        	break;
+        case INVALID:
+        default:
+            throw new ProcedureParseException("Got invalid node type : " 
+            		+ etype);
+        }
+        
+        if (el == null) {
+        	throw new ProcedureParseException("Failed to parse node with id " 
+        			+ idStr);
+        }
+        
+        String helpStr = MocaUtil.getAttributeOrDefault(attributes, "helpText",
+        		"");
+        String requiredStr = MocaUtil.getAttributeOrDefault(attributes, 
+        		"required", "false");
+        setOptionalAttributes(el, idStr, helpStr, requiredStr);
+        return el;
+    }
+    
+    // sets the attributes common to all element types which are not passed 
+    // to the type specific factory methods
+    private static void setOptionalAttributes(ProcedureElement el, 
+    		String idStr, String helpStr, String requiredStr) 
+    		throws ProcedureParseException
+    {
+        el.setHelpText(helpStr);
         if ("true".equals(requiredStr)) {
         	el.setRequired(true);
         } else if ("false".equals(requiredStr)) {
@@ -437,7 +570,6 @@ public abstract class ProcedureElement {
         			"attribute invalid for id " + idStr 
         			+ ". Must be \'true\' or \'false\'");
         }
-        return el;
     }
     
     /** @return The value of the id attribute */
@@ -513,17 +645,25 @@ public abstract class ProcedureElement {
     	View questionView = textView;
     	
         ImageView imageView = null;
+        // Figures and prompts may have been looked up before they are needed
+        PagePrefetcher prefetcher = (procedure == null)? null: 
+        	procedure.getPrefetcher();
         
         //Set accompanying figure
         if(!TextUtils.isEmpty(figure)) {    
 	        try{
-	        	String imagePath = c.getPackageName() + ":" + figure;
 	        	Log.d(TAG, "Using figure: " + figure);
-	        	int resID = c.getResources().getIdentifier(figure, null, 
-	        			null);
-	        	Log.d(TAG, "Using figure id: " + resID);
+	        	Drawable prefetched = (prefetcher == null)? null: 
+	        		prefetcher.takeFigure(figure);
 	        	imageView = new ImageView(c);
-	        	imageView.setImageResource(resID);
+	        	if (prefetched != null) {
+	        		imageView.setImageDrawable(prefetched);
+	        	} else {
+	        		int resID = c.getResources().getIdentifier(figure, null, 
+	        				null);
+	        		Log.d(TAG, "Using figure id: " + resID);
+	        		imageView.setImageResource(resID);
+	        	}
 	        	imageView.setAdjustViewBounds(true);
 	        	 // set the ImageView bounds to match the Drawable's dimensions
 	        	imageView.setLayoutParams(new Gallery.LayoutParams(
@@ -537,11 +677,16 @@ public abstract class ProcedureElement {
         
         if (hasAudioPrompt()) {
         	try {
-        		String resourcePath = c.getPackageName() + ":" + audioPrompt;
-        		int resID = c.getResources().getIdentifier(resourcePath, 
-        				null, null);
-        		Log.i(TAG, "Looking up ID for resource: " + resourcePath + ", " 
-        				+ "got " + resID);
+        		int resID = (prefetcher == null)? 0: 
+        			prefetcher.getAudioPromptId(audioPrompt);
+        		if (resID == 0) {
+        			String resourcePath = c.getPackageName() + ":" 
+        				+ audioPrompt;
+        			resID = c.getResources().getIdentifier(resourcePath, 
+        					null, null);
+        			Log.i(TAG, "Looking up ID for resource: " + resourcePath 
+        					+ ", got " + resID);
+        		}
         		
         		if (resID != 0) {
 	        		mAudioPlayer = new AudioPlayer(resID);
@@ -614,4 +759,26 @@ public abstract class ProcedureElement {
     {
     	throw new UnsupportedOperationException();
     }
+    
+    /** 
+     * Creates the element from the attributes of an Element tag in an XML 
+     * procedure definition read by a streaming parser.
+     * 
+     * @param id The unique identifier of this element within its procedure.
+     * @param question The text that will be displayed to the user as a question
+     * @param answer The result of data capture.
+     * @param concept A required categorization of the type of data captured.
+     * @param figure An optional figure to display to the user.
+     * @param audio An optional audio prompt to play for the user. 
+     * @param attributes The source tag attributes. 
+     * @return A new element.
+     * @throws ProcedureParseException if an error occurred while parsing 
+     * 		additional information from the attributes
+     */
+    public static ProcedureElement fromXML(String id, String question, 
+    	String answer, String concept, String figure, String audio, 
+    	Attributes attributes) throws ProcedureParseException 
+    {
+    	throw new UnsupportedOperationException();
+    }
 }
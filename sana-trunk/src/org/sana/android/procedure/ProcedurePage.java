@@ -92,6 +92,20 @@ public class ProcedurePage {
 		for (ProcedureElement pe : elements) {
 			pe.clearCachedView();
 		}
+		cachedView = null;
+	}
+	
+	// keeps the answers shown in the view and drops it until shown again
+	void releaseView() {
+		for (ProcedureElement pe : elements) {
+			pe.releaseView();
+		}
+		cachedView = null;
+	}
+	
+	// whether the view of this page has been made
+	boolean hasView() {
+		return cachedView != null;
 	}
 	
 
@@ -254,7 +268,6 @@ public class ProcedurePage {
 	 * user selections thus far.
 	 */
 	public boolean shouldDisplay() {
-		Log.i(TAG, "shouldDisplay() called");
 		return criteria.criteriaMet();
 	}
 
@@ -319,6 +332,17 @@ public class ProcedurePage {
 	 * @return
 	 */
 	public Intent educationResources(Audience audience){
+		Intent intent = EducationResourceList.getIntent(
+				getEducationResourceIds(), audience);
+		return intent;
+	}
+	
+	/**
+	 * The ids under which the media available for the elements on this page
+	 * are listed.
+	 * @return a list of EducationResource ids.
+	 */
+	public List<String> getEducationResourceIds(){
 		List<String> ids = new ArrayList<String>();
 		for(ProcedureElement pe: getElementMap().values()){
 			switch(pe.getType()){
@@ -329,8 +353,7 @@ public class ProcedurePage {
 				ids.add(EducationResource.toId(rawStr));
 			}
 		}
-		Intent intent = EducationResourceList.getIntent(ids, audience);
-		return intent;
+		return ids;
 	}
 
 	/** A scrollable view of the elements in this procedure */
@@ -0,0 +1,257 @@
+package org.sana.android.procedure;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.sana.android.media.ImageRendition;
+import org.sana.android.procedure.branching.Criteria;
+import org.sana.android.procedure.branching.LogicAnd;
+import org.sana.android.procedure.branching.LogicBase;
+import org.sana.android.procedure.branching.LogicNot;
+import org.sana.android.procedure.branching.LogicOr;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import android.util.Log;
+
+/**
+ * Single pass, streaming reader for XML procedure definitions. Pages, elements
+ * and branching Criteria are created directly from the parser events so that
+ * no document tree is held in memory while a procedure is loaded. The
+ * resulting Procedure is equivalent to the one constructed by the DOM based
+ * {@link Procedure#fromXMLDocument(InputSource)}.
+ *
+ * @author Sana Development Team
+ */
+public class ProcedureStreamParser extends DefaultHandler {
+    public static final String TAG =
+    	ProcedureStreamParser.class.getSimpleName();
+
+    // Tag names used in procedure definitions
+    static final String PROCEDURE = "Procedure";
+    static final String PAGE = "Page";
+    static final String ELEMENT = "Element";
+    static final String SHOW_IF = "ShowIf";
+    static final String CRITERIA = "Criteria";
+    static final String AND = "and";
+    static final String OR = "or";
+    static final String NOT = "not";
+
+    // names of the open tags which are part of the procedure definition
+    private LinkedList<String> tags = new LinkedList<String>();
+    // depth within a tag which is not part of the procedure definition
+    private int skipDepth = 0;
+
+    private String title = "Untitled Procedure";
+    private String author = "";
+    private String guid = "";
+    private int priority = Procedure.PRIORITY_ROUTINE;
+    private ImageRendition imageRendition = ImageRendition.NONE;
+    private List<ProcedurePage> pages = new ArrayList<ProcedurePage>();
+    private Procedure procedure = null;
+
+    // Elements from completed pages which ShowIf criteria may refer to
+    private HashMap<String, ProcedureElement> elts =
+    	new HashMap<String, ProcedureElement>();
+
+    // State of the page currently being read
+    private List<ProcedureElement> pageElements = null;
+    private Criteria pageCriteria = null;
+    private boolean showIfAlreadyExists = false;
+
+    // Operands of the ShowIf, and, or, and not tags which are open
+    private LinkedList<List<Criteria>> operands =
+    	new LinkedList<List<Criteria>>();
+
+    ProcedureStreamParser(){}
+
+    /**
+     * The Procedure constructed from the events received so far.
+     * @return the Procedure or null if the end of the Procedure tag has not
+     * 		been reached.
+     */
+    Procedure getProcedure() {
+        return procedure;
+    }
+
+    /**
+     * Reads a Procedure from an InputSource.
+     *
+     * @param xml The InputSource to read.
+     * @return A new Procedure instance.
+     * @throws IOException
+     * @throws ParserConfigurationException
+     * @throws SAXException if the source is not well formed xml
+     * @throws ProcedureParseException if the source is not a valid procedure
+     */
+    public static Procedure parse(InputSource xml) throws IOException,
+    	ParserConfigurationException, SAXException, ProcedureParseException
+    {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setValidating(false);
+        factory.setNamespaceAware(false);
+        SAXParser parser = factory.newSAXParser();
+        ProcedureStreamParser handler = new ProcedureStreamParser();
+        try {
+            parser.parse(xml, handler);
+        } catch (SAXException e) {
+            // unwrap errors thrown while constructing the procedure objects
+            if (e.getException() instanceof ProcedureParseException)
+                throw (ProcedureParseException) e.getException();
+            throw e;
+        }
+        if (handler.procedure == null)
+            throw new ProcedureParseException("Can't get procedure");
+        return handler.procedure;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void startElement(String uri, String localName, String qName,
+    		Attributes attributes) throws SAXException
+    {
+        if (skipDepth > 0) {
+            skipDepth++;
+            return;
+        }
+        String parent = tags.peek();
+        try {
+            if (parent == null) {
+                if (!qName.equals(PROCEDURE))
+                    throw new ProcedureParseException("Procedure got NodeName"
+                    		+ qName);
+                startProcedure(attributes);
+            } else if (parent.equals(PROCEDURE) && qName.equals(PAGE)) {
+                startPage();
+            } else if (parent.equals(PAGE) && qName.equals(ELEMENT)) {
+                pageElements.add(
+                	ProcedureElement.createElementFromAttributes(attributes));
+            } else if (parent.equals(PAGE) && qName.equals(SHOW_IF)) {
+                if (showIfAlreadyExists)
+                    throw new ProcedureParseException(
+                    		"More than one ShowIf statement!");
+                showIfAlreadyExists = true;
+                operands.push(new ArrayList<Criteria>());
+            } else if (parent.equals(CRITERIA)) {
+                throw new ProcedureParseException(
+                		"A single criteria has children.");
+            } else if (isLogicTag(parent) && qName.equals(CRITERIA)) {
+                operands.peek().add(LogicBase.fromXML(attributes, elts));
+            } else if (isLogicTag(parent) && isLogicTag(qName)
+            		&& !qName.equals(SHOW_IF))
+            {
+                operands.push(new ArrayList<Criteria>());
+            } else {
+                // not part of the procedure definition
+                skipDepth = 1;
+                return;
+            }
+        } catch (ProcedureParseException e) {
+            throw new SAXException(e);
+        }
+        tags.push(qName);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void endElement(String uri, String localName, String qName)
+    		throws SAXException
+    {
+        if (skipDepth > 0) {
+            skipDepth--;
+            return;
+        }
+        tags.pop();
+        try {
+            if (qName.equals(PROCEDURE)) {
+                procedure = new Procedure(title, author, guid, pages, elts);
+                procedure.setPriority(priority);
+                procedure.setImageRendition(imageRendition);
+            } else if (qName.equals(PAGE)) {
+                endPage();
+            } else if (qName.equals(SHOW_IF)) {
+                pageCriteria = endShowIf(operands.pop());
+            } else if (qName.equals(AND) || qName.equals(OR)
+            		|| qName.equals(NOT))
+            {
+                Criteria c = endLogic(qName, operands.pop());
+                operands.peek().add(c);
+            }
+        } catch (ProcedureParseException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    // ShowIf and the logical operators may contain Criteria
+    private static boolean isLogicTag(String tag) {
+        return tag.equals(SHOW_IF) || tag.equals(AND) || tag.equals(OR)
+        	|| tag.equals(NOT);
+    }
+
+    private void startProcedure(Attributes attributes) {
+        String value = attributes.getValue("title");
+        if (value != null) {
+            title = value;
+            Log.i(TAG, "Loading Procedure from XML: " + title);
+        }
+        value = attributes.getValue("author");
+        if (value != null)
+            author = value;
+        value = attributes.getValue("guid");
+        if (value != null)
+            guid = value;
+        priority = Procedure.parsePriority(attributes.getValue("priority"));
+        imageRendition = ImageRendition.fromAttributes(attributes, 
+        		ImageRendition.PROCEDURE_ATTRIBUTES);
+    }
+
+    private void startPage() {
+        pageElements = new ArrayList<ProcedureElement>();
+        pageCriteria = new Criteria();
+        showIfAlreadyExists = false;
+    }
+
+    private void endPage() {
+        ProcedurePage page = new ProcedurePage(pageElements, pageCriteria);
+        // Criteria may only refer to elements on previous pages
+        elts.putAll(page.getElementMap());
+        pages.add(page);
+        pageElements = null;
+        pageCriteria = null;
+    }
+
+    private Criteria endShowIf(List<Criteria> crits)
+    	throws ProcedureParseException
+    {
+        if (crits.size() > 1)
+            throw new ProcedureParseException(
+                    "Too many child nodes for a ShowIf: " + crits.size());
+        return (crits.size() == 1)? crits.get(0): new Criteria();
+    }
+
+    private Criteria endLogic(String tag, List<Criteria> crits)
+    	throws ProcedureParseException
+    {
+        if (tag.equals(NOT)) {
+            if (crits.size() != 1)
+                throw new ProcedureParseException("LogicNot wrong number of "
+                		+"elements: expects 1");
+            return new LogicNot(crits.get(0));
+        }
+        if (crits.size() == 0)
+            throw new ProcedureParseException("Logic no arguments to <"
+            		+ tag + ">");
+        if (tag.equals(AND))
+            return new LogicAnd(crits);
+        return new LogicOr(crits);
+    }
+}
@@ -0,0 +1,306 @@
+package org.sana.android.procedure;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * An immutable, compiled form of an XML procedure definition. The tags and
+ * attributes of the definition are recorded once, when the template is
+ * compiled, and replayed through a {@link ProcedureStreamParser} each time a
+ * new Procedure is required. New instances therefore never share answers or
+ * views and do not require the XML text to be read again.
+ *
+ * @author Sana Development Team
+ */
+public class ProcedureTemplate {
+    public static final String TAG = ProcedureTemplate.class.getSimpleName();
+
+    // binary format header
+    static final int MAGIC = 0x53504246;
+    static final int VERSION = 1;
+
+    // approximate overhead, in bytes, of each recorded object
+    private static final int EVENT_OVERHEAD = 32;
+    private static final int ATTRIBUTE_OVERHEAD = 64;
+
+    // tag names of the recorded events
+    private final String[] tags;
+    // tag attributes for start events, null for end events
+    private final Attributes[] attributes;
+    private final int size;
+
+    private ProcedureTemplate(List<String> tags, List<Attributes> attributes) {
+        this.tags = tags.toArray(new String[tags.size()]);
+        this.attributes = attributes.toArray(
+        		new Attributes[attributes.size()]);
+        int bytes = 0;
+        for (int i = 0; i < this.tags.length; i++) {
+            bytes += EVENT_OVERHEAD + 2 * this.tags[i].length();
+            Attributes atts = this.attributes[i];
+            if (atts == null)
+                continue;
+            for (int j = 0; j < atts.getLength(); j++) {
+                bytes += ATTRIBUTE_OVERHEAD + 2 * (atts.getQName(j).length()
+                		+ atts.getValue(j).length());
+            }
+        }
+        this.size = bytes;
+    }
+
+    /**
+     * The approximate number of bytes retained by this template.
+     * @return the size estimate in bytes.
+     */
+    public int sizeOf() {
+        return size;
+    }
+
+    /**
+     * Number of recorded tag events.
+     * @return the count of start and end tag events.
+     */
+    public int getEventCount() {
+        return tags.length;
+    }
+
+    /**
+     * The tag name of a recorded event.
+     * @param index the event index.
+     * @return the tag name.
+     */
+    public String getTag(int index) {
+        return tags[index];
+    }
+
+    /**
+     * The attributes of a recorded event.
+     * @param index the event index.
+     * @return the attributes of a start event or null for an end event.
+     */
+    public Attributes getAttributes(int index) {
+        return attributes[index];
+    }
+
+    /**
+     * Constructs a new Procedure from this template.
+     *
+     * @return A new Procedure instance.
+     * @throws ProcedureParseException if the recorded definition is not a
+     * 		valid procedure.
+     */
+    public Procedure newInstance() throws ProcedureParseException {
+        ProcedureStreamParser handler = new ProcedureStreamParser();
+        try {
+            for (int i = 0; i < tags.length; i++) {
+                if (attributes[i] != null)
+                    handler.startElement("", tags[i], tags[i], attributes[i]);
+                else
+                    handler.endElement("", tags[i], tags[i]);
+            }
+        } catch (SAXException e) {
+            if (e.getException() instanceof ProcedureParseException)
+                throw (ProcedureParseException) e.getException();
+            throw new ProcedureParseException(e.getMessage());
+        }
+        Procedure procedure = handler.getProcedure();
+        if (procedure == null)
+            throw new ProcedureParseException("Can't get procedure");
+        return procedure;
+    }
+
+    /**
+     * Encodes this template in a compact binary form which may be stored in
+     * place of, or alongside, the xml it was compiled from. Each distinct tag
+     * name, attribute name, and attribute value is written once to a string
+     * table and the events refer to the table by index.
+     *
+     * @return the encoded template.
+     * @throws IOException if the template can not be encoded.
+     */
+    public byte[] toBytes() throws IOException {
+        List<String> strings = new ArrayList<String>();
+        Map<String, Integer> indices = new HashMap<String, Integer>();
+        int[][] events = new int[tags.length][];
+        for (int i = 0; i < tags.length; i++) {
+            Attributes atts = attributes[i];
+            int[] event = new int[(atts == null) ? 1 : 1 + 2 * atts.getLength()];
+            event[0] = intern(tags[i], strings, indices);
+            for (int j = 0; atts != null && j < atts.getLength(); j++) {
+                event[1 + 2 * j] = intern(atts.getQName(j), strings, indices);
+                event[2 + 2 * j] = intern(atts.getValue(j), strings, indices);
+            }
+            events[i] = event;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size / 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(strings.size());
+        for (String string : strings)
+            out.writeUTF(string);
+        out.writeInt(events.length);
+        for (int i = 0; i < events.length; i++) {
+            int[] event = events[i];
+            out.writeInt(event[0]);
+            // attribute count, or -1 for an end event
+            out.writeShort((attributes[i] == null) ? -1
+            		: (event.length - 1) / 2);
+            for (int j = 1; j < event.length; j++)
+                out.writeInt(event[j]);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static int intern(String value, List<String> strings,
+    		Map<String, Integer> indices)
+    {
+        Integer index = indices.get(value);
+        if (index == null) {
+            index = Integer.valueOf(strings.size());
+            strings.add(value);
+            indices.put(value, index);
+        }
+        return index.intValue();
+    }
+
+    /**
+     * Decodes a template written by {@link #toBytes()}. The decoded events are
+     * not validated until {@link #newInstance()} is called.
+     *
+     * @param data the encoded template.
+     * @return A new ProcedureTemplate.
+     * @throws IOException if the data is not an encoded template or was
+     * 		written by an unsupported version.
+     */
+    public static ProcedureTemplate fromBytes(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a compiled procedure");
+        int version = in.readByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported compiled procedure version: "
+            		+ version);
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = in.readUTF();
+        int count = in.readInt();
+        List<String> tags = new ArrayList<String>(count);
+        List<Attributes> attributes = new ArrayList<Attributes>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                tags.add(strings[in.readInt()]);
+                int length = in.readShort();
+                if (length < 0) {
+                    attributes.add(null);
+                    continue;
+                }
+                AttributesImpl atts = new AttributesImpl();
+                for (int j = 0; j < length; j++) {
+                    String name = strings[in.readInt()];
+                    atts.addAttribute("", name, name, "CDATA",
+                    		strings[in.readInt()]);
+                }
+                attributes.add(atts);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid string index in compiled procedure");
+        }
+        return new ProcedureTemplate(tags, attributes);
+    }
+
+    /**
+     * Compiles a template from an xml string.
+     * @param xml The xml string to read.
+     * @return A new ProcedureTemplate.
+     * @throws IOException
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws ProcedureParseException
+     */
+    public static ProcedureTemplate fromXMLString(String xml) throws
+    	IOException, ParserConfigurationException, SAXException,
+    	ProcedureParseException
+    {
+        return fromXML(new InputSource(new StringReader(xml)));
+    }
+
+    /**
+     * Compiles a template from an InputSource. The definition is validated by
+     * building a Procedure from it while it is recorded.
+     *
+     * @param xml The InputSource to read.
+     * @return A new ProcedureTemplate.
+     * @throws IOException
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws ProcedureParseException
+     */
+    public static ProcedureTemplate fromXML(InputSource xml) throws
+    	IOException, ParserConfigurationException, SAXException,
+    	ProcedureParseException
+    {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setValidating(false);
+        factory.setNamespaceAware(false);
+        SAXParser parser = factory.newSAXParser();
+        Recorder recorder = new Recorder();
+        try {
+            parser.parse(xml, recorder);
+        } catch (SAXException e) {
+            if (e.getException() instanceof ProcedureParseException)
+                throw (ProcedureParseException) e.getException();
+            throw e;
+        }
+        if (recorder.validator.getProcedure() == null)
+            throw new ProcedureParseException("Can't get procedure");
+        return new ProcedureTemplate(recorder.tags, recorder.attributes);
+    }
+
+    /**
+     * Records the tag events of a definition while passing them to a
+     * ProcedureStreamParser for validation.
+     */
+    private static class Recorder extends DefaultHandler {
+        final List<String> tags = new ArrayList<String>();
+        final List<Attributes> attributes = new ArrayList<Attributes>();
+        final ProcedureStreamParser validator = new ProcedureStreamParser();
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+        		Attributes atts) throws SAXException
+        {
+            validator.startElement(uri, localName, qName, atts);
+            tags.add(qName);
+            attributes.add(new AttributesImpl(atts));
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+        		throws SAXException
+        {
+            validator.endElement(uri, localName, qName);
+            tags.add(qName);
+            attributes.add(null);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.util.List;
 
 import org.sana.android.util.MocaUtil;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.Context;
 import android.text.TextUtils;
@@ -121,5 +122,16 @@ public class RadioElement extends ProcedureElement {
         return new RadioElement(id, question, answer, concept, figure, audio, 
         		choicesStr.split(","));
     }
+
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+    public static RadioElement fromXML(String id, String question, 
+    		String answer, String concept, String figure, String audio, 
+    		Attributes attributes) throws ProcedureParseException  
+    {
+        String choicesStr = MocaUtil.getAttributeOrDefault(attributes, 
+        		"choices", "");
+        return new RadioElement(id, question, answer, concept, figure, audio, 
+        		choicesStr.split(","));
+    }
     
 }
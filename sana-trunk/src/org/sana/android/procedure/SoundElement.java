@@ -10,6 +10,7 @@ import java.io.OutputStream;
 
 import org.sana.android.db.DispatchableContract.SoundSQLFormat;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -225,4 +226,12 @@ public class SoundElement extends ProcedureElement implements OnClickListener {
         return new SoundElement(id, question, answer, concept, figure, audio);
     }
 
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+   public static SoundElement fromXML(String id, String question, 
+    		String answer, String concept, String figure, String audio, 
+    		Attributes attributes)  throws ProcedureParseException 
+    {
+        return new SoundElement(id, question, answer, concept, figure, audio);
+    }
+
 }
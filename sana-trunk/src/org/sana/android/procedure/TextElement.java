@@ -1,6 +1,7 @@
 package org.sana.android.procedure;
 
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.Context;
 import android.view.View;
@@ -52,4 +53,13 @@ public class TextElement extends ProcedureElement {
     {
         return new TextElement(id, question, answer, concept, figure, audio);
     }
+
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+    public static TextElement fromXML(String id, String question, String answer,
+    	String concept, String figure, String audio, 
+    		Attributes attributes)    
+		throws ProcedureParseException 
+    {
+        return new TextElement(id, question, answer, concept, figure, audio);
+    }
 }
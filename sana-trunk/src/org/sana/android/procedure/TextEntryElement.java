@@ -2,6 +2,7 @@ package org.sana.android.procedure;
 
 import org.sana.android.util.MocaUtil;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 import android.content.Context;
 import android.text.InputType;
@@ -144,4 +145,22 @@ public class TextEntryElement extends ProcedureElement {
         return new TextEntryElement(id, question, answer, concept, figure, 
         		audio, numericType);
     }
+
+    /** @see ProcedureElement#fromXML(String, String, String, String, String, String, Attributes) */
+    public static TextEntryElement fromXML(String id, String question, 
+    		String answer, String concept, String figure, String audio, 
+    		Attributes attributes) throws ProcedureParseException 
+    {
+    	String numericStr = MocaUtil.getAttributeOrDefault(attributes, 
+    			"numeric", "NONE");
+    	NumericType numericType = NumericType.NONE;
+    	try {
+    		numericType = NumericType.valueOf(numericStr);
+    	} catch (Exception e) {
+    		Log.e(TAG, "Could not parse numeric type: " + e.toString());
+    		e.printStackTrace();
+    	}
+        return new TextEntryElement(id, question, answer, concept, figure, 
+        		audio, numericType);
+    }
 }
@@ -1,5 +1,6 @@
 package org.sana.android.procedure.branching;
 
+import java.util.Collection;
 import java.util.HashMap;
 
 import org.sana.android.procedure.ProcedureElement;
@@ -40,6 +41,14 @@ public class Criteria {
     public boolean criteriaMet() {
         return true;
     }
+    
+    /**
+     * Adds the elements whose answers this criteria depends on. Child classes
+     * which hold a Criterion or other Criteria should override this method.
+     * @param elements where the elements are added
+     */
+    public void collectElements(Collection<ProcedureElement> elements) {
+    }
 
     /**
      * A call to fromXML on a base Criteria type should only be used as a parse
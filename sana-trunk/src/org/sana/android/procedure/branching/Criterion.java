@@ -1,30 +1,43 @@
 package org.sana.android.procedure.branching;
 
-import org.sana.android.procedure.MultiSelectElement;
 import org.sana.android.procedure.ProcedureElement;
 import org.sana.android.procedure.ProcedureParseException;
 import org.sana.android.procedure.ProcedureElement.ElementType;
 
-import android.util.Log;
-
 /**
  * The Criterion class is a data representation of the XML 
  * <p/>
  * &lt;Criteria type="" elementId="" value=""/&gt;
  * <p/>
  * It holds a reference to the element elementId refers to so that it can 
- * determine user responses. The three Criterion Types (EQUALS, GREATER, LESS) 
- * are logically-complete, since a Criterion object will always sit inside a 
- * Criteria object, which can perform arbitrary boolean logic on it.
+ * determine user responses. The three basic Criterion Types (EQUALS, GREATER, 
+ * LESS) are logically-complete, since a Criterion object will always sit 
+ * inside a Criteria object, which can perform arbitrary boolean logic on it. 
+ * The others say the same more directly:
+ * <ul>
+ * <li>BETWEEN - a number within "low,high", inclusive; either may be left 
+ * out</li>
+ * <li>IN - one of the comma separated values</li>
+ * <li>MATCHES - matches the regular expression</li>
+ * <li>BEFORE, AFTER - a date, as a DateElement writes it, before or after 
+ * the yyyy/MM/dd value</li>
+ * <li>COUNT - the number of choices selected is within "low,high", or is 
+ * the value</li>
+ * </ul>
+ * The value is compiled once, when the Criterion is created, and the answer 
+ * is converted and checked once each time it changes.
  */
 public class Criterion {
     public static enum CriterionType {
-        EQUALS, GREATER, LESS
+        EQUALS, GREATER, LESS, BETWEEN, IN, MATCHES, BEFORE, AFTER, COUNT
     }
-    private static final String TAG = "Criterion";
     private CriterionType criterionType;
     private ProcedureElement element;
     private String value;
+    private final Operator operator;
+    // the answer last checked, converted, and whether it met this Criterion
+    private TypedAnswer answer = null;
+    private boolean met;
     
     /**
      * A new Criterion object
@@ -41,88 +54,67 @@ public class Criterion {
         this.value = val;
         if (elmt == null)
             throw new ProcedureParseException("Null element");
-        if ((critType == CriterionType.GREATER) || 
-        		(critType == CriterionType.LESS)) 
-        {
-            try {
-                Integer.parseInt(val);
-            } catch (NumberFormatException e) {
-                throw new ProcedureParseException("Cannot compare non-integer "
-                		+"value. Cannot create criterion for element " 
-                		+ elmt.getId());
-            }
+        try {
+            operator = Operator.compile(critType, val);
+        } catch (ProcedureParseException e) {
+            throw new ProcedureParseException(e.getMessage() + ". Cannot "
+            		+"create criterion for element " + elmt.getId());
         }
     }
     
+    /**
+     * The element whose answer this Criterion checks.
+     * @return the source element in the Procedure
+     */
+    public ProcedureElement getElement() {
+        return element;
+    }
+    
+    /**
+     * The type of this Criterion.
+     * @return the type
+     */
+    public CriterionType getType() {
+        return criterionType;
+    }
+    
+    /**
+     * The <code>value</code> attribute for this Criterion.
+     * @return the value as written
+     */
+    public String getValue() {
+        return value;
+    }
+    
     /**
      * Checks if the given Criterion is met, given user responses.
      * 
      * For a Criterion based on a Multi-Select element, if any of the choices
-     * evaluates as true, then the Criterion is met.
+     * evaluates as true, then the Criterion is met. A COUNT Criterion checks 
+     * the number of choices instead.
      * 
      * For blank (unanswered, blank default) elements, criterionMet evaluates 
      * as true.
      */
     public boolean criterionMet() {
-    	Log.i(TAG, "criterionMet() called");
         // lookup what the user selected
         String userVal = "";
         try {
             userVal = element.getAnswer();
         } catch (NullPointerException e) {
-            Log.i(TAG, "criterionMet() invalid answer");
             // play it safe and show the page
             return true;
         }           
         // check if it is empty
-        if ((userVal == "") || (userVal== null)) {
+        if ((userVal == null) || (userVal.length() == 0)) {
             // empty user response, lets play it safe and show the page
-        	Log.i(TAG, "criterionMet() empty answer so allowing page view");
             return true;
         }
-        // special case MULTI-SELECT
-        if (element.getType() == ElementType.MULTI_SELECT) {
-            // We (arbitrarily) handle MultiSelect by seeing if 
-            // ANY selection in the "answer" matches "val" 
-            // if so, then it evaluates as true
-            String[] vals = userVal.split(MultiSelectElement.TOKEN_DELIMITER);
-            for (String s : vals) {
-                if (criterionMetHelper(s))
-                    return true;
-            }
-            return false;
-        } else {
-            // test the user's answer against the criterion
-            return criterionMetHelper(userVal);
-        }
-    }
-    
-    private boolean criterionMetHelper(String userVal) {
-    	boolean result = false;
-        switch(criterionType) {
-        case EQUALS:
-            if (value.equals(userVal)) {
-                result = true;
-            }
-            break;
-        case GREATER:
-            try {
-                if (Double.parseDouble(userVal) > Double.parseDouble(value))
-                    result =  true;
-            // show the page if we can't parse
-            } catch (NumberFormatException e) {return true;}
-            break;
-        case LESS:
-            try {
-                if (Double.parseDouble(userVal) < Double.parseDouble(value))
-                    result = true;
-            // show the page if we can't parse
-            } catch (NumberFormatException e) {return true;}
-            break;
+        if (answer == null || !answer.text.equals(userVal)) {
+            answer = new TypedAnswer(userVal, 
+            		element.getType() == ElementType.MULTI_SELECT);
+            met = operator.test(answer);
         }
-    	Log.d(TAG, "criterionMetHelper(): " + criterionType 
-    			+ "(Criterion,User Value): (" +value +"," + userVal + ") "
-    			+ " result = " + result);
-        return result;
+        return met;
     }
 }
@@ -1,6 +1,7 @@
 package org.sana.android.procedure.branching;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
@@ -30,6 +31,13 @@ public class LogicAnd extends Criteria {
         return true;
     }
     
+    @Override
+    public void collectElements(Collection<ProcedureElement> elements) {
+        for(Criteria c : criteria) {
+            c.collectElements(elements);
+        }
+    }
+    
     /**
      * Constructs a LogicAnd Criteria from an XML Node
      * @param node The source Node
@@ -1,5 +1,6 @@
 package org.sana.android.procedure.branching;
 
+import java.util.Collection;
 import java.util.HashMap;
 
 import org.sana.android.procedure.ProcedureElement;
@@ -7,6 +8,7 @@ import org.sana.android.procedure.ProcedureParseException;
 import org.sana.android.procedure.branching.Criterion.CriterionType;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 
 /**
  * LogicBase is a Criteria subclass that serves as a container for a single
@@ -24,6 +26,11 @@ public  class LogicBase extends Criteria {
         return criterion.criterionMet();
     }
     
+    @Override
+    public void collectElements(Collection<ProcedureElement> elements) {
+        elements.add(criterion.getElement());
+    }
+    
     public static LogicBase fromXML(Node node, HashMap<String, ProcedureElement> elts) throws ProcedureParseException {
         if(!node.getNodeName().equals("Criteria")) {
             throw new ProcedureParseException("LogicBase got NodeName " + node.getNodeName());
@@ -38,15 +45,12 @@ public  class LogicBase extends Criteria {
         CriterionType critType;
         if(typeNode != null) {                
             type = typeNode.getNodeValue();
-            if (type.equals("EQUALS"))
-                critType = CriterionType.EQUALS;
-            else if (type.equals("GREATER"))
-                critType = CriterionType.GREATER;
-            else if (type.equals("LESS"))
-                critType = CriterionType.LESS;
-            else
+            try {
+                critType = CriterionType.valueOf(type);
+            } catch (IllegalArgumentException e) {
                 throw new ProcedureParseException("LogicBase bad type for "
                 		+"NodeName " + node.getNodeName());
+            }
         } else {
             throw new ProcedureParseException("LogicBase no type for NodeName " 
             		+ node.getNodeName());
@@ -73,4 +77,45 @@ public  class LogicBase extends Criteria {
             		+"#" + elementId);
         return new LogicBase(new Criterion(critType, elt, value));
     }
+    
+    /**
+     * Constructs a LogicBase Criteria from the attributes of a Criteria tag 
+     * reported by a streaming parser.
+     * @param attributes The tag attributes
+     * @param elts The elements which have been parsed so far, mapped by id
+     * @return
+     * @throws ProcedureParseException
+     */
+    public static LogicBase fromXML(Attributes attributes, 
+    		HashMap<String, ProcedureElement> elts) 
+    		throws ProcedureParseException 
+    {
+        String type = attributes.getValue("type");
+        CriterionType critType;
+        if(type == null) {
+            throw new ProcedureParseException("LogicBase no type for "
+            		+"NodeName Criteria");
+        }
+        try {
+            critType = CriterionType.valueOf(type);
+        } catch (IllegalArgumentException e) {
+            throw new ProcedureParseException("LogicBase bad type for "
+            		+"NodeName Criteria");
+        }
+        String elementId = attributes.getValue("id");
+        if(elementId == null) {
+            throw new ProcedureParseException("LogicBase no id for "
+            		+"NodeName Criteria");
+        }
+        String value = attributes.getValue("value");
+        if(value == null) {
+            throw new ProcedureParseException("LogicBase no value for "
+            		+"NodeName Criteria");
+        }
+        ProcedureElement elt = elts.get(elementId);
+        if (elt == null)
+            throw new ProcedureParseException("LogicBase cannot resolve element"
+            		+"#" + elementId);
+        return new LogicBase(new Criterion(critType, elt, value));
+    }
 }    
@@ -1,5 +1,6 @@
 package org.sana.android.procedure.branching;
 
+import java.util.Collection;
 import java.util.HashMap;
 
 import org.sana.android.procedure.ProcedureElement;
@@ -24,6 +25,11 @@ public class LogicNot extends Criteria {
     public boolean criteriaMet() {
         return !criteria.criteriaMet();
     }
+    
+    @Override
+    public void collectElements(Collection<ProcedureElement> elements) {
+        criteria.collectElements(elements);
+    }
     /**
      * Constructs a negation Criteria from an XML Node
      * @param node The source Node
@@ -1,6 +1,7 @@
 package org.sana.android.procedure.branching;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
@@ -9,8 +10,6 @@ import org.sana.android.procedure.ProcedureParseException;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import android.util.Log;
-
 /**
  * LogicOr is a Criteria subclass that serves as a container to hold multiple
  * Criteria. The key difference between LogicOr and LogicAnd is the criteriaMet()
@@ -25,14 +24,18 @@ public class LogicOr extends Criteria {
     }
     
     public boolean criteriaMet() {
-    	Log.d(TAG, "criterionMet(): OR: Begin:");
-    	boolean result = false;
         for(Criteria c : criteria) {
             if (c.criteriaMet())
-                result = result || true;
+                return true;
+        }
+        return false;
+    }
+    
+    @Override
+    public void collectElements(Collection<ProcedureElement> elements) {
+        for(Criteria c : criteria) {
+            c.collectElements(elements);
         }
-    	Log.d(TAG, "criterionMet(): OR: Result:" + result);
-    	return result;
     }
     /**
      * Constructs a logical or Criteria from an XML Node
@@ -0,0 +1,213 @@
+package org.sana.android.procedure.branching;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.sana.android.procedure.ProcedureParseException;
+import org.sana.android.procedure.branching.Criterion.CriterionType;
+
+/**
+ * The test a Criterion applies to an answer, compiled once from the
+ * <code>value</code> attribute of the Criteria so that checking it neither
+ * parses nor splits the value again.
+ * <p/>
+ * Except for COUNT, an operator is met if any choice of the answer meets it.
+ * A choice which can not be read as the number or date an operator compares
+ * meets it, so that the page is shown rather than hidden by mistake.
+ */
+abstract class Operator {
+
+    /** Whether a choice of the answer meets this operator. */
+    abstract boolean test(TypedAnswer answer, int choice);
+
+    /** Whether the answer meets this operator. */
+    boolean test(TypedAnswer answer) {
+        for (int i = 0; i < answer.choices.length; i++) {
+            if (test(answer, i))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compiles the value of a Criteria.
+     *
+     * @param type the type of the Criteria
+     * @param value its value attribute
+     * @return the compiled test
+     * @throws ProcedureParseException if the value does not suit the type
+     */
+    static Operator compile(CriterionType type, String value)
+    	throws ProcedureParseException
+    {
+        switch (type) {
+        case EQUALS:
+            return new Equals(value);
+        case GREATER:
+            return new Range(parseNumber(value), false,
+            		Double.POSITIVE_INFINITY, false);
+        case LESS:
+            return new Range(Double.NEGATIVE_INFINITY, false,
+            		parseNumber(value), false);
+        case BETWEEN:
+            return compileRange(value);
+        case IN:
+            return new In(value);
+        case MATCHES:
+            try {
+                return new Matches(Pattern.compile(value));
+            } catch (PatternSyntaxException e) {
+                throw new ProcedureParseException("Bad pattern " + value
+                		+ ": " + e.getDescription());
+            }
+        case BEFORE:
+            return new Dates(parseDay(value), true);
+        case AFTER:
+            return new Dates(parseDay(value), false);
+        case COUNT:
+            return new Count((Range) compileRange(value));
+        default:
+            throw new ProcedureParseException("Unknown criterion " + type);
+        }
+    }
+
+    private static double parseNumber(String value)
+    	throws ProcedureParseException
+    {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ProcedureParseException("Cannot compare non-numeric "
+            		+"value " + value);
+        }
+    }
+
+    private static int parseDay(String value) throws ProcedureParseException {
+        int day = TypedAnswer.parseDay(value);
+        if (day == TypedAnswer.UNREADABLE)
+            throw new ProcedureParseException("Cannot compare to " + value
+            		+ ", dates are written yyyy/MM/dd");
+        return day;
+    }
+
+    /*
+     * An inclusive range written "low,high", either of which may be left out,
+     * or a single number.
+     */
+    private static Operator compileRange(String value)
+    	throws ProcedureParseException
+    {
+        int comma = value.indexOf(',');
+        if (comma == -1) {
+            double n = parseNumber(value);
+            return new Range(n, true, n, true);
+        }
+        String low = value.substring(0, comma).trim();
+        String high = value.substring(comma + 1).trim();
+        return new Range(
+        		(low.length() == 0)? Double.NEGATIVE_INFINITY: parseNumber(low),
+        		true,
+        		(high.length() == 0)? Double.POSITIVE_INFINITY: parseNumber(high),
+        		true);
+    }
+
+    static class Equals extends Operator {
+        private final String value;
+
+        Equals(String value) {
+            this.value = value;
+        }
+
+        boolean test(TypedAnswer answer, int choice) {
+            return value.equals(answer.choices[choice]);
+        }
+    }
+
+    static class Range extends Operator {
+        private final double low;
+        private final boolean includeLow;
+        private final double high;
+        private final boolean includeHigh;
+
+        Range(double low, boolean includeLow, double high,
+        		boolean includeHigh)
+        {
+            this.low = low;
+            this.includeLow = includeLow;
+            this.high = high;
+            this.includeHigh = includeHigh;
+        }
+
+        boolean contains(double n) {
+            return ((includeLow)? n >= low: n > low)
+            		&& ((includeHigh)? n <= high: n < high);
+        }
+
+        boolean test(TypedAnswer answer, int choice) {
+            double n = answer.number(choice);
+            return Double.isNaN(n) || contains(n);
+        }
+    }
+
+    static class In extends Operator {
+        private final Set<String> values = new HashSet<String>();
+
+        In(String value) {
+            for (String s : value.split(",")) {
+                values.add(s.trim());
+            }
+        }
+
+        boolean test(TypedAnswer answer, int choice) {
+            return values.contains(answer.choices[choice]);
+        }
+    }
+
+    static class Matches extends Operator {
+        private final Pattern pattern;
+
+        Matches(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        boolean test(TypedAnswer answer, int choice) {
+            return pattern.matcher(answer.choices[choice]).matches();
+        }
+    }
+
+    static class Dates extends Operator {
+        private final int day;
+        private final boolean before;
+
+        Dates(int day, boolean before) {
+            this.day = day;
+            this.before = before;
+        }
+
+        boolean test(TypedAnswer answer, int choice) {
+            int d = answer.day(choice);
+            if (d == TypedAnswer.UNREADABLE)
+                return true;
+            return (before)? d < day: d > day;
+        }
+    }
+
+    static class Count extends Operator {
+        private final Range range;
+
+        Count(Range range) {
+            this.range = range;
+        }
+
+        boolean test(TypedAnswer answer, int choice) {
+            return test(answer);
+        }
+
+        @Override
+        boolean test(TypedAnswer answer) {
+            return range.contains(answer.count());
+        }
+    }
+}
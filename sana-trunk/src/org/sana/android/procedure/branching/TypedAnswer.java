@@ -0,0 +1,88 @@
+package org.sana.android.procedure.branching;
+
+import org.sana.android.procedure.MultiSelectElement;
+
+/**
+ * An answer as text and, once asked for, as the numbers and dates of its
+ * choices. A Criterion keeps one until the answer changes, so that each
+ * answer is split and converted once rather than on every check.
+ */
+class TypedAnswer {
+    /** The value of a choice which could not be read as a number or date. */
+    static final int UNREADABLE = Integer.MIN_VALUE;
+
+    final String text;
+    final String[] choices;
+    private double[] numbers = null;
+    private int[] days = null;
+
+    /**
+     * @param text a non-empty answer
+     * @param multiSelect whether the answer lists several choices
+     */
+    TypedAnswer(String text, boolean multiSelect) {
+        this.text = text;
+        this.choices = (multiSelect)?
+        		text.split(MultiSelectElement.TOKEN_DELIMITER):
+        		new String[] { text };
+    }
+
+    /** The number of choices given. */
+    int count() {
+        int count = 0;
+        for (String s : choices) {
+            if (s.length() > 0)
+                count++;
+        }
+        return count;
+    }
+
+    /** A choice as a number, or NaN if it is not one. */
+    double number(int choice) {
+        if (numbers == null) {
+            numbers = new double[choices.length];
+            for (int i = 0; i < choices.length; i++) {
+                try {
+                    numbers[i] = Double.parseDouble(choices[i]);
+                } catch (NumberFormatException e) {
+                    numbers[i] = Double.NaN;
+                }
+            }
+        }
+        return numbers[choice];
+    }
+
+    /** A choice as a date, or UNREADABLE if it is not one. */
+    int day(int choice) {
+        if (days == null) {
+            days = new int[choices.length];
+            for (int i = 0; i < choices.length; i++) {
+                days[i] = parseDay(choices[i]);
+            }
+        }
+        return days[choice];
+    }
+
+    /**
+     * Reads a date as written by a DateElement, yyyy/MM/dd, into a number
+     * which orders as the date does.
+     *
+     * @param date the date
+     * @return yyyyMMdd as a number, or UNREADABLE
+     */
+    static int parseDay(String date) {
+        String[] fields = date.trim().split("/");
+        if (fields.length != 3)
+            return UNREADABLE;
+        try {
+            int year = Integer.parseInt(fields[0]);
+            int month = Integer.parseInt(fields[1]);
+            int day = Integer.parseInt(fields[2]);
+            if (month < 1 || month > 12 || day < 1 || day > 31)
+                return UNREADABLE;
+            return (year * 100 + month) * 100 + day;
+        } catch (NumberFormatException e) {
+            return UNREADABLE;
+        }
+    }
+}
@@ -1,23 +1,37 @@
 package org.sana.android.service;
 
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.sana.android.Constants;
 import org.sana.android.db.DispatchableContract.Procedures;
 import org.sana.android.db.DispatchableContract.Encounters;
+import org.sana.android.net.APIException;
 import org.sana.android.net.MDSInterface;
+import org.sana.android.net.RetryPolicy;
+import org.sana.android.net.UploadPolicy;
 import org.sana.android.task.CheckCredentialsTask;
 import org.sana.android.task.ValidationListener;
 import org.sana.android.util.MocaUtil;
 
+import android.app.AlarmManager;
 import android.app.Application;
+import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ContentUris;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -27,6 +41,14 @@ import android.widget.Toast;
 /**
  * Background service to upload pending cases when data service is available.
  * This class will try to upload pending cases when a connection is available.
+ * Several cases are uploaded at once by an {@link UploadWorkerPool}, which
+ * never lets two workers upload the same case. A case which fails stays in
+ * the queue and is tried again after a growing wait. What is sent over the
+ * current link is decided by an {@link UploadPolicy}; the binaries it holds
+ * back are sent once a better link comes up. The next attempt is kept by the
+ * {@link AlarmManager}, which starts the service with 
+ * {@link #ACTION_NEXT_ATTEMPT} when it is due, even if the process was killed
+ * in the meantime.
  * 
  * @author Sana Development Team
  */
@@ -34,6 +56,16 @@ public class BackgroundUploader extends Service {
 	
 	private static final String TAG = BackgroundUploader.class.getSimpleName();
 	
+	/** Action of the intent which runs the queue when a failed case is due. */
+	public static final String ACTION_NEXT_ATTEMPT = 
+		"org.sana.android.service.NEXT_ATTEMPT";
+	
+	/** Spaces out the attempts to upload a case which keeps failing. */
+	private static final RetryPolicy UPLOAD_RETRY = new RetryPolicy(
+			Constants.UPLOAD_RETRY_DELAY * 1000L, 
+			Constants.MAX_UPLOAD_RETRY_DELAY * 1000L, 
+			Constants.UPLOAD_RETRY_BUDGET);
+	
 	/**
 	 * Available states of authorization status.
 	 * 
@@ -46,11 +78,19 @@ public class BackgroundUploader extends Service {
 		INVALID
 	}
 	
-	private PriorityQueue<Uri> queue = null;
-
-	private CredentialStatus credentialStatus = CredentialStatus.UNKNOWN;
+	private volatile CredentialStatus credentialStatus = 
+		CredentialStatus.UNKNOWN;
+	// guarded by this
 	private CheckCredentialsTask checkCredentialsTask = null;
 	
+	// posts to the main thread
+	private Handler handler = null;
+	private UploadWorkerPool<Uri> workers = null;
+	private volatile UploadPolicy policy = null;
+	// procedures partly sent, and the allowance they were sent with
+	private final ConcurrentHashMap<Uri, UploadPolicy.Allowance> deferredOn = 
+		new ConcurrentHashMap<Uri, UploadPolicy.Allowance>();
+	
 	/**
 	 * Provides a Binder to the BackgoundUploader Service.
 	 * 
@@ -83,9 +123,25 @@ public class BackgroundUploader extends Service {
 		}
 	}
 	
+	/**
+	 * Notices changes between mobile data and Wi-Fi, which the 
+	 * DataConnectionListener does not hear about.
+	 */
+	private final BroadcastReceiver connectivityReceiver = 
+		new BroadcastReceiver() 
+	{
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			Log.i(TAG, "Connectivity changed");
+			BackgroundUploader.this.onConnectionChanged();
+		}
+	};
+	
 	private class CredentialValidationListener implements ValidationListener {
 		public void onValidationComplete(int validationResult) {
-			checkCredentialsTask = null;
+			synchronized (BackgroundUploader.this) {
+				checkCredentialsTask = null;
+			}
 			if (validationResult == CheckCredentialsTask.CREDENTIALS_INVALID) {
 				credentialStatus = CredentialStatus.INVALID;
 			} else if (
@@ -110,9 +166,13 @@ public class BackgroundUploader extends Service {
 	public void onCreate() {
 		super.onCreate();
 		Log.v(TAG, "onCreate()");
+		handler = new Handler();
+		policy = UploadPolicy.fromPreferences(this);
+		workers = new UploadWorkerPool<Uri>(new QueueUploader(), 
+				getUploadWorkers());
 		try {
-			queue = QueueManager.initQueue(this);
-			
+			// Uploads left in progress were stopped with the last process
+			QueueManager.resetInProgress(this);
 			// Try to process the upload queue. Will check credentials if necessary.
 			processUploadQueue();
 		} catch (Exception e) {
@@ -126,17 +186,23 @@ public class BackgroundUploader extends Service {
 			telephony.listen(new DataConnectionListener(), 
 					PhoneStateListener.LISTEN_DATA_CONNECTION_STATE);
 		}
+		registerReceiver(connectivityReceiver, 
+				new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
 	}
 	
 	@Override
 	public void onStart(Intent data, int startId) {
 		Log.v(TAG, "onStart() intent " + data + " start ID: " + startId);
+		if (data != null && ACTION_NEXT_ATTEMPT.equals(data.getAction()))
+			processUploadQueue();
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
 		Log.v(TAG, "onDestroy()");
+		unregisterReceiver(connectivityReceiver);
+		workers.cancel();
 	}
 
 	@Override
@@ -173,7 +239,7 @@ public class BackgroundUploader extends Service {
 					Log.i(TAG, "Credential status: " + credentialStatus);
 					int status = getUploadStatusForCredentialStatus(
 							credentialStatus);
-					QueueManager.setProceduresUploadStatus(this, queue, status);
+					QueueManager.setQueueUploadStatus(this, status);
 				} catch (Exception e) {
 					Log.e(TAG, "Exception updating upload status in database: "
 							+ e.toString());
@@ -182,7 +248,7 @@ public class BackgroundUploader extends Service {
 			} else {
 				try {
 					// Signify procedures waiting for connectivity to upload
-					QueueManager.setProceduresUploadStatus(this, queue, 
+					QueueManager.setQueueUploadStatus(this, 
 							QueueManager.UPLOAD_NO_CONNECTIVITY);
 				} catch (Exception e) {
 					Log.e(TAG, "Exception updating upload status in database: "
@@ -198,15 +264,21 @@ public class BackgroundUploader extends Service {
 	
 	public void addProcedureToQueue(Uri procedureUri) {
 		
-		if (QueueManager.isInQueue(queue, procedureUri)) {
+		if (QueueManager.isInQueue(this, procedureUri)) {
+			// Sending again by hand does not wait for the next retry
 			Log.i(TAG, "Procedure " + procedureUri + " is already in the queue."
-					+"Skipping add request.");
+					+" Retrying it now.");
+			QueueManager.resetRetries(this, procedureUri);
+			QueueManager.setProcedureUploadStatus(this, procedureUri, 
+					getUploadStatusForCredentialStatus(credentialStatus));
+			processUploadQueue();
 			return;
 		}
 		
 		Log.i(TAG, "Adding " + procedureUri + " to the upload queue.");
-		QueueManager.addToQueue(this, queue, procedureUri);
-		Log.i(TAG, "Queue is now: " + queue.toString());
+		QueueManager.addToQueue(this, procedureUri);
+		Log.i(TAG, "Queue now holds " + QueueManager.size(this) 
+				+ " procedures.");
 		
 		int status = getUploadStatusForCredentialStatus(credentialStatus);
 		QueueManager.setProcedureUploadStatus(getApplicationContext(), 
@@ -232,37 +304,167 @@ public class BackgroundUploader extends Service {
 		processUploadQueue();
 	}
 	
-	class UploadResult {
-		public UploadResult(Uri procedure, boolean uploaded, String message) {
-			this.procedure = procedure;
-			this.uploaded = uploaded;
-			this.message = message;
+	/** The number of procedures to upload at once from the preferences. */
+	private int getUploadWorkers() {
+		SharedPreferences preferences = 
+			PreferenceManager.getDefaultSharedPreferences(this);
+		try {
+			int count = Integer.parseInt(preferences.getString(
+					Constants.PREFERENCE_UPLOAD_WORKERS, 
+					Integer.toString(Constants.DEFAULT_UPLOAD_WORKERS)));
+			return (count > 0)? count: Constants.DEFAULT_UPLOAD_WORKERS;
+		} catch (NumberFormatException e) {
+			return Constants.DEFAULT_UPLOAD_WORKERS;
+		}
+	}
+	
+	/**
+	 * Uploads the queued procedures for the worker pool. Results are 
+	 * reported on the main thread.
+	 */
+	private class QueueUploader implements UploadWorkerPool.Uploader<Uri> {
+		
+		public boolean canUpload() {
+			return CredentialStatus.VALID.equals(credentialStatus) 
+				&& updateQueueStatusAndCheckConnection()
+				&& policy.getAllowance() != UploadPolicy.Allowance.NOTHING;
+		}
+		
+		public void prepare() {
+			postQueuedResponses();
+		}
+		
+		public List<Uri> next(int count) {
+			// skip what was sent as far as the current link allows
+			UploadPolicy.Allowance allowance = policy.getAllowance();
+			List<Uri> due = QueueManager.getDue(BackgroundUploader.this, 
+					count + deferredOn.size());
+			List<Uri> next = new ArrayList<Uri>(count);
+			for (Uri procedure : due) {
+				UploadPolicy.Allowance sent = deferredOn.get(procedure);
+				if (sent != null && sent.compareTo(allowance) >= 0)
+					continue;
+				next.add(procedure);
+				if (next.size() == count)
+					break;
+			}
+			return next;
+		}
+		
+		public boolean upload(Uri procedure) throws Exception {
+			UploadPolicy.Allowance allowance = policy.getAllowance();
+			Log.i(TAG,"Uploading procedure " + procedure + " allowing " 
+					+ allowance);
+			deferredOn.remove(procedure);
+			// Signify procedure upload in progress
+			QueueManager.setProcedureUploadStatus(BackgroundUploader.this, 
+					procedure, QueueManager.UPLOAD_STATUS_IN_PROGRESS);
+			MDSInterface.SubmitResult result = 
+				MDSInterface.postProcedureToDjangoServer(procedure, 
+						BackgroundUploader.this, allowance);
+			if (result == MDSInterface.SubmitResult.DEFERRED)
+				deferredOn.put(procedure, allowance);
+			return result != MDSInterface.SubmitResult.FAILED;
+		}
+		
+		public void onUploaded(final Uri procedure, boolean uploaded) {
+			if (!uploaded) {
+				onFailure(procedure, "");
+				return;
+			}
+			if (deferredOn.containsKey(procedure)) {
+				// Left in the queue for the rest to go over a better link
+				QueueManager.setProcedureUploadStatus(BackgroundUploader.this, 
+						procedure, QueueManager.UPLOAD_STATUS_DEFERRED);
+				return;
+			}
+			// Remove the procedure from the queue after it has been uploaded
+			QueueManager.removeFromQueue(BackgroundUploader.this, procedure, 
+					QueueManager.UPLOAD_STATUS_SUCCESS);
+			handler.post(new Runnable() {
+				public void run() {
+					onUploadSuccess(procedure); 
+				}
+			});
+		}
+		
+		public void onError(Uri procedure, Throwable e) {
+			onFailure(procedure, (e instanceof OutOfMemoryError)? 
+					"Out of Memory\n": "");
+		}
+		
+		// Leaves a failed procedure in the queue to be tried again later
+		private void onFailure(final Uri procedure, String message) {
+			long wait = QueueManager.scheduleRetry(BackgroundUploader.this, 
+					procedure, UPLOAD_RETRY) - System.currentTimeMillis();
+			final String retryMessage = message + "Will try again in " 
+				+ Math.max(1, (wait + 30000) / 60000) + " minutes.";
+			scheduleRetry();
+			handler.post(new Runnable() {
+				public void run() {
+					onUploadFailure(procedure, retryMessage);
+				}
+			});
+		}
+		
+		public void onCancelled(Uri procedure) {
+			// Left in the queue to resume when the connection returns
+			QueueManager.setProcedureUploadStatus(BackgroundUploader.this, 
+					procedure, QueueManager.UPLOAD_NO_CONNECTIVITY);
+		}
+	}
+	
+	/** Runs the queue again when the next failed procedure is due. */
+	private void scheduleRetry() {
+		AlarmManager alarms = (AlarmManager) getSystemService(
+				Context.ALARM_SERVICE);
+		// the alarm replaces any set with an equal intent
+		Intent intent = new Intent(ACTION_NEXT_ATTEMPT, null, this, 
+				BackgroundUploader.class);
+		PendingIntent retry = PendingIntent.getService(this, 0, intent, 0);
+		long nextAttempt = QueueManager.getNextAttempt(this);
+		if (nextAttempt > 0) {
+			alarms.set(AlarmManager.RTC_WAKEUP, nextAttempt, retry);
+		} else {
+			alarms.cancel(retry);
 		}
-		Uri procedure;
-		boolean uploaded;
-		String message;
 	}
 	
-	AsyncTask<Void, UploadResult, Void> uploadTask = null; 
+	/** Starts checking the credentials, unless a check is running. */
+	private synchronized void checkCredentials() {
+		if (checkCredentialsTask != null)
+			return;
+		// Spawn worker to check. It must be started on the main thread.
+		final CheckCredentialsTask task = new CheckCredentialsTask();
+		task.setValidationListener(new CredentialValidationListener());
+		checkCredentialsTask = task;
+		handler.post(new Runnable() {
+			public void run() {
+				task.execute(BackgroundUploader.this);
+			}
+		});
+	}
 
 	private void processUploadQueue() {
 		Log.i(TAG, "processUploadQueue()");
 		
 		// check if there are pending transfers in the database
-		// if so, then spawn a thread to upload the first one
+		// if so, then start the workers to upload them
 		boolean credentialsValid = CredentialStatus.VALID.equals(
 				credentialStatus);
 		boolean connectionAvailable = updateQueueStatusAndCheckConnection();
+		policy = UploadPolicy.fromPreferences(this);
+		Log.i(TAG, "Upload policy: " + policy);
+		
+		if (!connectionAvailable) {
+			// Stop the uploads in progress. They resume from what the server
+			// has received once the connection returns.
+			workers.cancel();
+		}
 		
 		if (!credentialsValid) {
 			if (CredentialStatus.UNKNOWN.equals(credentialStatus)) {
-				if (checkCredentialsTask == null) {
-					// Spawn worker to check
-					checkCredentialsTask = new CheckCredentialsTask();
-					checkCredentialsTask.setValidationListener(
-							new CredentialValidationListener());
-					checkCredentialsTask.execute(this);
-				}
+				checkCredentials();
 			} else {
 				Log.i(TAG, "OpenMRS username/password incorrect - will not " +
 						"attempt to upload");
@@ -270,83 +472,42 @@ public class BackgroundUploader extends Service {
 			return;
 		} 
 		
-		if (!queue.isEmpty() && connectionAvailable) {
+		if (!QueueManager.isEmpty(this) && connectionAvailable) {
 			Log.i(TAG, "Queue not empty and connection is available, so " +
-					"spawning upload worker.");
-			new AsyncTask<Void, UploadResult, Void>() {
-
-				@Override 
-				protected void onProgressUpdate(UploadResult... results) {
-					for (UploadResult result : results) {
-						if (result.uploaded) {
-							onUploadSuccess(result.procedure); 
-						} else {
-							onUploadFailure(result.procedure, result.message);
-						}
-					}
-				}
-				
-				@Override
-				protected Void doInBackground(Void... params) {
-					while (!queue.isEmpty() && updateQueueStatusAndCheckConnection()) {
-						Uri procedure = queue.element();
-						Log.i(TAG,"Uploading procedure " + procedure);
-						
-						try {
-							// Signify procedure upload in progress
-							QueueManager.setProcedureUploadStatus(
-									BackgroundUploader.this, procedure, 
-									QueueManager.UPLOAD_STATUS_IN_PROGRESS);
-							
-							boolean uploadResult = 
-								MDSInterface.postProcedureToDjangoServer(
-										procedure, BackgroundUploader.this);	
-							
-							if (uploadResult) {
-								// Remove the procedure from the queue after it 
-								// has been successfully uploaded
-								QueueManager.removeFromQueue(
-										BackgroundUploader.this, queue, 
-										procedure, 
-										QueueManager.UPLOAD_STATUS_SUCCESS); 
-							} else {
-								// Remove the procedure from the queue so it 
-								// does not keep trying to upload
-								QueueManager.removeFromQueue(
-										BackgroundUploader.this, 
-										queue, procedure, 
-										QueueManager.UPLOAD_STATUS_FAILURE); 
-							}
-							
-							UploadResult result = new UploadResult(procedure, 
-									uploadResult, "");
-							publishProgress(result);
-						} catch (OutOfMemoryError e) {
-							Log.e(TAG, "While uploading procedure, " +
-									"got Out of Memory error.");
-							e.printStackTrace();
-							UploadResult result = new UploadResult(procedure, 
-									false, "Out of Memory");
-							publishProgress(result);
-						} catch (Exception e) {
-							Log.e(TAG, "While uploading procedure + " + 
-									procedure + " got exception: " 
-									+ e.toString());
-							e.printStackTrace();
-							
-							UploadResult result = new UploadResult(procedure, 
-									false, "");
-							publishProgress(result);
-						}
-					}
-					
-					return null;
-				}
-				
-			}.execute();
+					"starting upload workers.");
+			workers.setConcurrency(getUploadWorkers());
+			workers.start();
+			scheduleRetry();
 		} else {
 			Log.i(TAG, "Either queue is empty or connection is not available, " +
-					"so not spawning upload worker.");
+					"so not starting upload workers.");
+		}
+	}
+	
+	/**
+	 * Sends the responses of the queued procedures in as few requests as 
+	 * possible. The binaries, and any procedure whose responses were not 
+	 * accepted, are then sent one procedure at a time by the upload loop.
+	 */
+	private void postQueuedResponses() {
+		List<Uri> pending = QueueManager.getDue(this);
+		for (int i = 0; i < pending.size(); i += Constants.UPLOAD_BATCH_SIZE) {
+			if (!updateQueueStatusAndCheckConnection())
+				return;
+			List<Uri> batch = pending.subList(i, Math.min(pending.size(), 
+					i + Constants.UPLOAD_BATCH_SIZE));
+			try {
+				MDSInterface.postResponsesBatch(this, batch);
+			} catch (APIException e) {
+				Log.w(TAG, "Batch upload failed, sending procedures one at " +
+						"a time: " + e.toString());
+				return;
+			} catch (Exception e) {
+				Log.e(TAG, "While uploading a batch of procedures got " +
+						"exception: " + e.toString());
+				e.printStackTrace();
+				return;
+			}
 		}
 	}
 	
@@ -396,7 +557,7 @@ public class BackgroundUploader extends Service {
 		//String msg = "Successfully sent " + procedureTitle + " procedure\nwith ID = " + savedProcedureId;
 		//String msg = "Successfully sent procedure\nwith ID = " + savedProcedureId;
 		
-		int sizeOfQueue = queue.size();
+		int sizeOfQueue = QueueManager.size(this);
 		if (sizeOfQueue != 0) {
 			msg += "\nThere are still " + sizeOfQueue+"\ncases to be uploaded.";
 		}
@@ -422,7 +583,7 @@ public class BackgroundUploader extends Service {
 		//String msg = "Successfully sent " + procedureTitle + " procedure\nwith ID = " + savedProcedureId;
 		//String msg = "Successfully sent procedure\nwith ID = " + savedProcedureId;
 		
-		int sizeOfQueue = queue.size();
+		int sizeOfQueue = QueueManager.size(this);
 		if (sizeOfQueue != 0) {
 			msg += "\nThere are still " + sizeOfQueue + "\ncases to be uploaded.";
 		}
@@ -1,9 +1,13 @@
 package org.sana.android.service;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.PriorityQueue;
+import java.util.List;
 
+import org.sana.android.db.DispatchableContract;
 import org.sana.android.db.DispatchableContract.Encounters;
+import org.sana.android.db.DispatchableContract.UploadQueue;
+import org.sana.android.net.RetryPolicy;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -13,8 +17,11 @@ import android.net.Uri;
 import android.util.Log;
 
 /**
- * Manages the items in the queue awaiting upload.
- * 
+ * Manages the items in the queue awaiting upload. The queue is kept in the
+ * database, in the {@link UploadQueue} table, so that adding or removing an
+ * item touches only that item and its encounter. Items are placed in the 
+ * queue by the {@link UploadScheduler}.
+ *
  * @author Sana Development Team
  *
  */
@@ -28,185 +35,407 @@ public class QueueManager {
 	public static final int UPLOAD_NO_CONNECTIVITY = 4;
 	public static final int UPLOAD_STATUS_FAILURE = 5;
 	public static final int UPLOAD_STATUS_CREDENTIALS_INVALID = 6;
-	
-	private static final String[] PROJECTION = { Encounters._ID,
-		Encounters.UUID, Encounters.PROCEDURE_ID,
-		Encounters.UPLOAD_QUEUE };
-	
+	public static final int UPLOAD_STATUS_DEFERRED = 7;
+
+	private static final String[] PROJECTION = { UploadQueue._ID,
+		UploadQueue.ENCOUNTER, UploadQueue.PRIORITY, UploadQueue.DEADLINE };
+
+	private static final String[] COUNT_PROJECTION = { "count(*)" };
+
+	/** Selects the entry of a single encounter. */
+	private static final String ENCOUNTER_SELECTION =
+		UploadQueue.ENCOUNTER + " = ?";
+
+	/** Selects the entries ahead of a given priority, deadline and entry. */
+	private static final String AHEAD_SELECTION = UploadQueue.PRIORITY
+		+ " > ? OR (" + UploadQueue.PRIORITY + " = ? AND ("
+		+ UploadQueue.DEADLINE + " < ? OR (" + UploadQueue.DEADLINE
+		+ " = ? AND " + UploadQueue._ID + " < ?)))";
+
+	/** Selects the encounters which are in the queue. */
+	private static final String QUEUED_SELECTION = Encounters._ID
+		+ " IN (SELECT " + UploadQueue.ENCOUNTER + " FROM upload_queue)";
+
+	/**
+	 * Selects the queued encounters which are neither being uploaded, out
+	 * of retries nor partly sent.
+	 */
+	private static final String IDLE_SELECTION = QUEUED_SELECTION + " AND "
+		+ Encounters.UPLOAD_STATUS + " NOT IN (" + UPLOAD_STATUS_IN_PROGRESS
+		+ ", " + UPLOAD_STATUS_FAILURE + ", " + UPLOAD_STATUS_DEFERRED + ")";
+
+	/** Selects the queue entries whose encounter is waiting to retry. */
+	private static final String DUE_SELECTION = UploadQueue.ENCOUNTER
+		+ " NOT IN (SELECT " + Encounters._ID + " FROM saved_procedures WHERE "
+		+ Encounters.NEXT_ATTEMPT + " > ?)";
+
+	/** Selects the queued encounters which are waiting to retry. */
+	private static final String RETRY_SELECTION = QUEUED_SELECTION + " AND "
+		+ Encounters.NEXT_ATTEMPT + " > ?";
+
+	private static final String[] RETRY_PROJECTION = { 
+		Encounters.UPLOAD_ATTEMPTS };
+
+	/** Selects the queued encounters which are being uploaded. */
+	private static final String IN_PROGRESS_SELECTION = QUEUED_SELECTION
+		+ " AND " + Encounters.UPLOAD_STATUS + " = "
+		+ UPLOAD_STATUS_IN_PROGRESS;
+
+	private static Uri toEncounterUri(Cursor cursor){
+		return ContentUris.withAppendedId(Encounters.CONTENT_URI,
+				cursor.getLong(1));
+	}
+
+	private static String[] toSelectionArgs(Uri procedureUri){
+		return new String[]{
+				String.valueOf(ContentUris.parseId(procedureUri)) };
+	}
+
+	private static int count(Context c, String selection,
+			String[] selectionArgs)
+	{
+		Cursor cursor = null;
+		try {
+			cursor = c.getContentResolver().query(UploadQueue.CONTENT_URI,
+					COUNT_PROJECTION, selection, selectionArgs, null);
+			return cursor.moveToFirst()? cursor.getInt(0): 0;
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the procedures in the queue, in the order they will be
+	 * uploaded.
+	 *
+	 * @param c the current context
+	 */
+	public static List<Uri> getQueue(Context c) {
+		return getQueue(c, UploadQueue.CONTENT_URI, null, null);
+	}
+
+	/**
+	 * Returns the procedures in the queue which are not waiting to retry a
+	 * failed upload, in the order they will be uploaded.
+	 *
+	 * @param c the current context
+	 */
+	public static List<Uri> getDue(Context c) {
+		return getQueue(c, UploadQueue.CONTENT_URI, DUE_SELECTION, 
+				new String[]{ String.valueOf(System.currentTimeMillis()) });
+	}
+
 	/**
-	 * Initializes the in-memory queue with what is stored in the database.
+	 * Returns the procedures at the head of the queue which are not waiting
+	 * to retry a failed upload, in the order they will be uploaded.
+	 *
+	 * @param c the current context
+	 * @param count the most procedures to return
 	 */
-	public static PriorityQueue<Uri> initQueue(Context c) {
-		PriorityQueue<Uri> queue = new PriorityQueue<Uri>();
+	public static List<Uri> getDue(Context c, int count) {
+		return getQueue(c, UploadQueue.CONTENT_URI.buildUpon()
+				.appendQueryParameter(DispatchableContract.LIMIT,
+						String.valueOf(count)).build(), DUE_SELECTION, 
+				new String[]{ String.valueOf(System.currentTimeMillis()) });
+	}
+
+	private static List<Uri> getQueue(Context c, Uri uri, String selection,
+			String[] selectionArgs) 
+	{
+		List<Uri> queue = new ArrayList<Uri>();
 		Cursor cursor = null;
 		try {
-			// Initialize the queue from the database
-			Log.i(TAG, "In initQueue - getting queue from database");
-			cursor = c.getContentResolver().query(
-					Encounters.CONTENT_URI, PROJECTION,
-					Encounters.UPLOAD_QUEUE + " >= 0", null,
-					Encounters.QUEUE_SORT_ORDER);
-			cursor.moveToFirst();
-
-			int position = 0;
-			while (!cursor.isAfterLast()) {
-				int savedProcedureId = cursor.getInt(0);
-				Uri savedProcedureUri = ContentUris.withAppendedId(
-						Encounters.CONTENT_URI, savedProcedureId);
-				Log.i(TAG, "Queue item #" + position + " has URI " + savedProcedureUri);
-				queue.add(savedProcedureUri);
-				cursor.moveToNext();
-				position++;
+			cursor = c.getContentResolver().query(uri, PROJECTION, selection, 
+					selectionArgs, UploadQueue.QUEUE_SORT_ORDER);
+			while (cursor.moveToNext()) {
+				queue.add(toEncounterUri(cursor));
 			}
-			Log.i(TAG, "Queue has been extracted from database. Here is the "
-					+" queue: " + queue);
-		} catch (Exception e) {
-			Log.e(TAG, "Exception in getting queue from database: "
-					+ e.toString());
-			e.printStackTrace();
 		} finally {
 			if (cursor != null)
 				cursor.close();
 		}
 		return queue;
 	}
-	
+
 	/**
-	 * Updates upload status of items currently in the queue
-	 *  
+	 * Returns the procedure which will be uploaded next.
+	 *
 	 * @param c the current context
-	 * @param queue
+	 * @return the procedure at the head of the queue or null if it is empty
 	 */
-	public static void updateQueueInDB(Context c, PriorityQueue<Uri> queue) {
-		Log.i(TAG, "Updating queue information in the database");
-		Log.i(TAG, "Queue is now: " + queue.toString());
-		
-		// Reset all saved procedure to have -1 for UPLOAD_QUEUE. This takes
-		// everything out of the queue, then we re-add everything that is in the
-		// in-memory queue.
-		ContentValues cv = new ContentValues();
-		cv.put(Encounters.UPLOAD_QUEUE, -1);
-		c.getContentResolver().update(Encounters.CONTENT_URI, cv, 
-				null, null);
-		
-		// TODO(XXX) This loop is inefficient -- O(n^2) when it could be O(n)
-		for (Uri procedureUri : queue) {
-			cv = new ContentValues();
-			int index = queueIndex(queue, procedureUri);
-			Log.i(TAG, "In updateQueueInDB, queueIndex(" + procedureUri
-					+ ") returns: " + index);
-			cv.put(Encounters.UPLOAD_QUEUE, index);
-			c.getContentResolver().update(procedureUri, cv, null, null);
+	public static Uri peek(Context c) {
+		Uri head = UploadQueue.CONTENT_URI.buildUpon().appendQueryParameter(
+				DispatchableContract.LIMIT, "1").build();
+		Cursor cursor = null;
+		try {
+			cursor = c.getContentResolver().query(head, PROJECTION, null,
+					null, UploadQueue.QUEUE_SORT_ORDER);
+			return cursor.moveToFirst()? toEncounterUri(cursor): null;
+		} finally {
+			if (cursor != null)
+				cursor.close();
 		}
 	}
-	
+
 	/**
-	 * Adds an item to the global queue.
-	 * 
+	 * Returns the number of procedures in the queue.
+	 *
 	 * @param c the current context
-	 * @param queue the queue to update from 
-	 * @param procedureUri the procedure in the queue
 	 */
-	public static void addToQueue(Context c, PriorityQueue<Uri> queue, 
-			Uri procedureUri) 
+	public static int size(Context c) {
+		return count(c, null, null);
+	}
+
+	/**
+	 * Checks whether the queue is empty.
+	 *
+	 * @param c the current context
+	 * @return true if no procedure is waiting for upload
+	 */
+	public static boolean isEmpty(Context c) {
+		return peek(c) == null;
+	}
+
+	/**
+	 * Adds an item to the global queue, with the priority of its procedure
+	 * and a deadline from its size. An item already in the queue keeps its
+	 * place.
+	 *
+	 * @param c the current context
+	 * @param procedureUri the procedure to add
+	 * @return true if the procedure is in the queue
+	 */
+	public static boolean addToQueue(Context c, Uri procedureUri) {
+		return addToQueue(c, UploadScheduler.createEntry(c, procedureUri));
+	}
+
+	/**
+	 * Adds an item to the global queue with the given priority rather than 
+	 * that of its procedure.
+	 *
+	 * @param c the current context
+	 * @param procedureUri the procedure to add
+	 * @param priority the priority of the procedure
+	 * @return true if the procedure is in the queue
+	 */
+	public static boolean addToQueue(Context c, Uri procedureUri,
+			int priority)
 	{
-		queue.add(procedureUri);
+		ContentValues cv = UploadScheduler.createEntry(c, procedureUri);
+		cv.put(UploadQueue.PRIORITY, priority);
+		return addToQueue(c, cv);
+	}
+
+	private static boolean addToQueue(Context c, ContentValues cv) {
+		Uri procedureUri = ContentUris.withAppendedId(Encounters.CONTENT_URI,
+				cv.getAsLong(UploadQueue.ENCOUNTER));
+		Uri entry = c.getContentResolver().insert(UploadQueue.CONTENT_URI, cv);
+		if (entry == null) {
+			Log.w(TAG, "Could not add " + procedureUri + " to the queue");
+			return false;
+		}
 		setProcedureUploadStatus(c, procedureUri, UPLOAD_STATUS_WAITING);
-		updateQueueInDB(c, queue);
+		return true;
 	}
-	
 
 	/**
-	 * Removes an item to the global queue.
-	 * 
+	 * Adds several items to the global queue, in order, in a single
+	 * transaction.
+	 *
+	 * @param c the current context
+	 * @param procedureUris the procedures to add
+	 * @return the number of procedures in the queue
+	 */
+	public static int addToQueue(Context c, Collection<Uri> procedureUris) {
+		ContentValues[] entries = new ContentValues[procedureUris.size()];
+		int index = 0;
+		for (Uri uri : procedureUris) {
+			entries[index++] = UploadScheduler.createEntry(c, uri);
+		}
+		int count = c.getContentResolver().bulkInsert(UploadQueue.CONTENT_URI,
+				entries);
+		setQueueUploadStatus(c, UPLOAD_STATUS_WAITING);
+		return count;
+	}
+
+	/**
+	 * Removes an item from the global queue.
+	 *
 	 * @param c the current context
-	 * @param queue the queue to update from 
 	 * @param procedureUri the procedure in the queue
 	 */
-	public static boolean removeFromQueue(Context c, PriorityQueue<Uri> queue, 
-			Uri procedureUri) 
-	{
-		return removeFromQueue(c, queue, procedureUri, 
+	public static boolean removeFromQueue(Context c, Uri procedureUri) {
+		return removeFromQueue(c, procedureUri,
 				QueueManager.UPLOAD_STATUS_NOT_IN_QUEUE);
 	}
-	
+
 	/**
-	 * Removes an item to the global queue and updates its upload status. 
-	 * 
+	 * Removes an item from the global queue, updates its upload status and
+	 * forgets its failed attempts.
+	 *
 	 * @param c the current context
-	 * @param queue the queue to update from 
 	 * @param procedureUri the procedure in the queue
 	 * @param newStatus the new upload status
 	 * @return true if the procedure was in the queue and updated
 	 */
-	public static boolean removeFromQueue(Context c, PriorityQueue<Uri> queue, 
-			Uri procedureUri, int newStatus) 
+	public static boolean removeFromQueue(Context c, Uri procedureUri,
+			int newStatus)
 	{
-		if (QueueManager.isInQueue(queue, procedureUri)) {
-			queue.remove(procedureUri);
-			QueueManager.updateQueueInDB(c, queue);
-			QueueManager.setProcedureUploadStatus(c, procedureUri, newStatus);
+		int removed = c.getContentResolver().delete(UploadQueue.CONTENT_URI,
+				ENCOUNTER_SELECTION, toSelectionArgs(procedureUri));
+		if (removed > 0) {
+			Log.v(TAG, "Setting upload status for " + procedureUri + " to " 
+					+ newStatus);
+			ContentValues cv = new ContentValues();
+			cv.put(Encounters.UPLOAD_STATUS, newStatus);
+			cv.put(Encounters.UPLOAD_ATTEMPTS, 0);
+			cv.put(Encounters.NEXT_ATTEMPT, 0);
+			c.getContentResolver().update(procedureUri, cv, null, null);
 			return true;
 		}
 		return false;
 	}
-	
+
+	/**
+	 * Records a failed upload of a procedure, which stays in the queue, and
+	 * sets when it is next tried. Once its retry budget is spent it is
+	 * marked as failed and tried at the longest wait of the policy.
+	 *
+	 * @param c the current context
+	 * @param procedureUri the procedure in the queue
+	 * @param policy the waits between attempts and the retry budget
+	 * @return the time of the next attempt, in milliseconds
+	 */
+	public static long scheduleRetry(Context c, Uri procedureUri, 
+			RetryPolicy policy) 
+	{
+		int failures = 0;
+		Cursor cursor = null;
+		try {
+			cursor = c.getContentResolver().query(procedureUri, 
+					RETRY_PROJECTION, null, null, null);
+			if (cursor != null && cursor.moveToFirst())
+				failures = cursor.getInt(0);
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		failures++;
+		boolean spent = !policy.canRetry(failures);
+		long nextAttempt = System.currentTimeMillis() + (spent? 
+				policy.getMaxDelay(): policy.getDelay(failures));
+		Log.i(TAG, procedureUri + " failed " + failures + " times, next "
+				+ "attempt in " + (nextAttempt - System.currentTimeMillis())
+				+ " ms");
+		ContentValues cv = new ContentValues();
+		cv.put(Encounters.UPLOAD_ATTEMPTS, failures);
+		cv.put(Encounters.NEXT_ATTEMPT, nextAttempt);
+		cv.put(Encounters.UPLOAD_STATUS, spent? UPLOAD_STATUS_FAILURE: 
+			UPLOAD_STATUS_WAITING);
+		c.getContentResolver().update(procedureUri, cv, null, null);
+		return nextAttempt;
+	}
+
+	/**
+	 * Forgets the failed attempts of a procedure so that it is tried as soon
+	 * as possible.
+	 *
+	 * @param c the current context
+	 * @param procedureUri the procedure
+	 */
+	public static void resetRetries(Context c, Uri procedureUri) {
+		ContentValues cv = new ContentValues();
+		cv.put(Encounters.UPLOAD_ATTEMPTS, 0);
+		cv.put(Encounters.NEXT_ATTEMPT, 0);
+		c.getContentResolver().update(procedureUri, cv, null, null);
+	}
+
+	/**
+	 * Returns when the first procedure waiting to retry is due.
+	 *
+	 * @param c the current context
+	 * @return the time in milliseconds, or -1 if none is waiting
+	 */
+	public static long getNextAttempt(Context c) {
+		Cursor cursor = null;
+		try {
+			cursor = c.getContentResolver().query(Encounters.CONTENT_URI, 
+					new String[] { "min(" + Encounters.NEXT_ATTEMPT + ")" }, 
+					RETRY_SELECTION, new String[] { 
+						String.valueOf(System.currentTimeMillis()) }, null);
+			if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0))
+				return cursor.getLong(0);
+			return -1;
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+	}
+
 	/**
 	 * Checks whether a procedure is in the queue
-	 * 
-	 * @param queue the queue to check 
+	 *
+	 * @param c the current context
 	 * @param procedureUri the procedure look for
-	 * @return true if the procedure was in the queue and updated
+	 * @return true if the procedure is in the queue
 	 */
-	public static boolean isInQueue(PriorityQueue<Uri> queue, Uri procedureUri) {
-		return queue.contains(procedureUri);
+	public static boolean isInQueue(Context c, Uri procedureUri) {
+		return count(c, ENCOUNTER_SELECTION, toSelectionArgs(procedureUri)) > 0;
 	}
-	
+
 	/**
 	 * Finds the location of procedure is in the queue
-	 * 
-	 * @param queue the queue to check 
+	 *
+	 * @param c the current context
 	 * @param procedureUri the procedure look for
 	 * @return index of the procedure in the queue or -1
 	 */
-	public static int queueIndex(PriorityQueue<Uri> queue, Uri procedureUri) {
-		if (isInQueue(queue, procedureUri)) {
-			int index = 0;
-			for (Uri uri : queue) {
-				if (uri.equals(procedureUri)) {
-					return index;
-				}
-				index++;
-			}
+	public static int queueIndex(Context c, Uri procedureUri) {
+		Cursor cursor = null;
+		String[] ahead;
+		try {
+			cursor = c.getContentResolver().query(UploadQueue.CONTENT_URI,
+					PROJECTION, ENCOUNTER_SELECTION,
+					toSelectionArgs(procedureUri), null);
+			if (!cursor.moveToFirst())
+				return -1;
+			String priority = cursor.getString(2);
+			String deadline = cursor.getString(3);
+			ahead = new String[]{ priority, priority, deadline, deadline,
+					cursor.getString(0) };
+		} finally {
+			if (cursor != null)
+				cursor.close();
 		}
-		return -1;
+		return count(c, AHEAD_SELECTION, ahead);
 	}
-	
+
 	/**
 	 * Updates the upload status of a procedure.
-	 * 
+	 *
 	 * @param c the current context
 	 * @param procedureUri the procedure
 	 * @param status the new status
 	 */
-	public static void setProcedureUploadStatus(Context c, Uri procedureUri, 
-			int status) 
+	public static void setProcedureUploadStatus(Context c, Uri procedureUri,
+			int status)
 	{
 		Log.v(TAG, "Setting upload status for " + procedureUri + " to " + status);
 		ContentValues cv = new ContentValues();
-		cv.put(Encounters.UPLOAD_STATUS, status); 
-		c.getContentResolver().update(procedureUri, cv, null, null); 
+		cv.put(Encounters.UPLOAD_STATUS, status);
+		c.getContentResolver().update(procedureUri, cv, null, null);
 	}
-	
+
 	/**
 	 * Updates the upload status for a list procedures.
-	 * 
+	 *
 	 * @param c the current context
 	 * @param procedureUris the procedures to update
 	 * @param status the new status
 	 */
-	public static void setProceduresUploadStatus(Context c, 
-			Collection<Uri> procedureUris, int status) 
+	public static void setProceduresUploadStatus(Context c,
+			Collection<Uri> procedureUris, int status)
 	{
 		ContentValues cv = new ContentValues();
 		cv.put(Encounters.UPLOAD_STATUS, status);
@@ -215,4 +444,31 @@ public class QueueManager {
 		}
 	}
 
+	/**
+	 * Updates the upload status of every procedure in the queue, other than
+	 * those being uploaded, with a single update.
+	 *
+	 * @param c the current context
+	 * @param status the new status
+	 */
+	public static void setQueueUploadStatus(Context c, int status) {
+		ContentValues cv = new ContentValues();
+		cv.put(Encounters.UPLOAD_STATUS, status);
+		c.getContentResolver().update(Encounters.CONTENT_URI, cv,
+				IDLE_SELECTION, null);
+	}
+
+	/**
+	 * Marks the procedures left in progress by uploads which are no longer
+	 * running as waiting.
+	 *
+	 * @param c the current context
+	 */
+	public static void resetInProgress(Context c) {
+		ContentValues cv = new ContentValues();
+		cv.put(Encounters.UPLOAD_STATUS, UPLOAD_STATUS_WAITING);
+		c.getContentResolver().update(Encounters.CONTENT_URI, cv,
+				IN_PROGRESS_SELECTION, null);
+	}
+
 }
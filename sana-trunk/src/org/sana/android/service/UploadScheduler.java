@@ -0,0 +1,369 @@
+package org.sana.android.service;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.sana.android.Constants;
+import org.sana.android.db.DispatchableContract.Encounters;
+import org.sana.android.db.DispatchableContract.ImageSQLFormat;
+import org.sana.android.db.DispatchableContract.Procedures;
+import org.sana.android.db.DispatchableContract.SoundSQLFormat;
+import org.sana.android.db.DispatchableContract.UploadQueue;
+import org.sana.android.db.ProcedureDAO;
+import org.sana.android.net.PacketSizeController;
+import org.sana.android.net.ThroughputModelStore;
+import org.sana.android.procedure.Procedure;
+import org.sana.android.procedure.ProcedureElement.ElementType;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Decides the order in which queued encounters are uploaded and estimates
+ * how long each will wait. Encounters are ordered by the clinical priority
+ * their procedure declares, then by deadline: the time they were queued plus
+ * the time their payload takes at {@link #REFERENCE_BANDWIDTH}. A small, text
+ * only encounter so goes ahead of a large one queued shortly before it, but
+ * a large encounter is not held back for ever. An encounter whose upload
+ * failed is not taken again before its next attempt is due.
+ *
+ * @author Sana Development Team
+ */
+public class UploadScheduler {
+	private static final String TAG = UploadScheduler.class.getSimpleName();
+
+	/** Bytes per second used to turn a payload into a deadline. */
+	public static final int REFERENCE_BANDWIDTH = 1024;
+
+	/** Bytes per second assumed for a network which was never measured. */
+	public static final int DEFAULT_BANDWIDTH = 2048;
+
+	private static final String[] ENCOUNTER_PROJECTION = { Encounters._ID,
+		Encounters.PROCEDURE_ID, Encounters.PROCEDURE_STATE,
+		Encounters.UPLOADED };
+
+	private static final String[] QUEUE_PROJECTION = { UploadQueue._ID,
+		UploadQueue.ENCOUNTER, UploadQueue.PRIORITY, UploadQueue.PAYLOAD,
+		UploadQueue.DEADLINE };
+
+	/**
+	 * The scheduling decision for a queued encounter.
+	 *
+	 * @author Sana Development Team
+	 */
+	public static class Entry {
+		/** The queued encounter. */
+		public final Uri encounter;
+
+		/** Clinical priority of the encounter's procedure. */
+		public final int priority;
+
+		/** Estimated bytes to send when the encounter was queued. */
+		public final long payload;
+
+		/** Time by which the encounter should be sent, in milliseconds. */
+		public final long deadline;
+
+		/**
+		 * Time before which a failed encounter is not tried again, in
+		 * milliseconds, or 0.
+		 */
+		public long nextAttempt = 0;
+
+		/**
+		 * Estimated milliseconds until the encounter is sent, including the
+		 * entries ahead of it.
+		 */
+		public long expectedMillis;
+
+		public Entry(Uri encounter, int priority, long payload,
+				long deadline)
+		{
+			this.encounter = encounter;
+			this.priority = priority;
+			this.payload = payload;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public String toString(){
+			return encounter + ": priority " + priority + ", " + payload
+				+ " bytes, deadline " + deadline + ", expected in "
+				+ expectedMillis + " ms";
+		}
+	}
+
+	/**
+	 * Computes the deadline of an encounter.
+	 *
+	 * @param queued the time the encounter was queued, in milliseconds
+	 * @param payload the number of bytes to send
+	 * @return the deadline, in milliseconds
+	 */
+	public static long getDeadline(long queued, long payload) {
+		return queued + payload * 1000 / REFERENCE_BANDWIDTH;
+	}
+
+	/**
+	 * Creates the upload queue entry of an encounter, with the priority of
+	 * its procedure and a deadline from now and its payload.
+	 *
+	 * @param c the current context
+	 * @param encounter the encounter to queue
+	 * @return the values of the entry
+	 */
+	public static ContentValues createEntry(Context c, Uri encounter) {
+		int priority = Procedure.PRIORITY_ROUTINE;
+		long payload = 0;
+		Cursor cursor = null;
+		try {
+			cursor = c.getContentResolver().query(encounter,
+					ENCOUNTER_PROJECTION, null, null, null);
+			if (cursor != null && cursor.moveToFirst()) {
+				boolean uploaded = cursor.getInt(3) != 0;
+				String answers = cursor.getString(2);
+				Procedure procedure = null;
+				if (!cursor.isNull(1))
+					procedure = getProcedure(c, cursor.getLong(1));
+				if (procedure != null)
+					priority = procedure.getPriority();
+				payload = getPayload(c, procedure, answers, uploaded);
+			}
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		ContentValues cv = new ContentValues();
+		cv.put(UploadQueue.ENCOUNTER, ContentUris.parseId(encounter));
+		cv.put(UploadQueue.PRIORITY, priority);
+		cv.put(UploadQueue.PAYLOAD, payload);
+		cv.put(UploadQueue.DEADLINE, getDeadline(System.currentTimeMillis(),
+				payload));
+		return cv;
+	}
+
+	private static Procedure getProcedure(Context c, long procedureId) {
+		try {
+			return ProcedureDAO.getProcedure(c, ContentUris.withAppendedId(
+					Procedures.CONTENT_URI, procedureId));
+		} catch (Exception e) {
+			Log.w(TAG, "Could not read procedure " + procedureId + ": "
+					+ e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Estimates the bytes still to be sent for an encounter: its responses,
+	 * unless already sent, and what remains of each of its binaries.
+	 */
+	static long getPayload(Context c, Procedure procedure, String answers,
+			boolean uploaded)
+	{
+		long payload = (uploaded || answers == null)? 0: answers.length();
+		if (procedure == null || answers == null)
+			return payload;
+		Map<String, Map<String,String>> elementMap;
+		try {
+			JSONObject answersDict = new JSONObject(new JSONTokener(answers));
+			Map<String,String> answersMap = new HashMap<String,String>();
+			Iterator<?> it = answersDict.keys();
+			while (it.hasNext()) {
+				String key = (String) it.next();
+				answersMap.put(key, answersDict.getString(key));
+			}
+			procedure.restoreAnswers(answersMap);
+			elementMap = procedure.toElementMap();
+		} catch (JSONException e) {
+			Log.w(TAG, "Could not read answers: " + e.toString());
+			return payload;
+		}
+		for (Map<String,String> element : elementMap.values()) {
+			String answer = element.get("answer");
+			if (answer == null || answer.length() == 0)
+				continue;
+			ElementType type;
+			try {
+				type = ElementType.valueOf(element.get("type"));
+			} catch (Exception e) {
+				continue;
+			}
+			switch (type) {
+			case PICTURE:
+				for (String id : answer.split(","))
+					payload += getRemaining(c, ImageSQLFormat.CONTENT_URI, id);
+				break;
+			case SOUND:
+				for (String id : answer.split(","))
+					payload += getRemaining(c, SoundSQLFormat.CONTENT_URI, id);
+				break;
+			case BINARYFILE:
+				payload += new File(answer).length();
+				break;
+			default:
+				break;
+			}
+		}
+		return payload;
+	}
+
+	/**
+	 * The bytes of an image or sound not yet sent. The upload columns are
+	 * the same for both.
+	 */
+	private static long getRemaining(Context c, Uri contentUri, String id) {
+		Uri uri;
+		try {
+			uri = ContentUris.withAppendedId(contentUri,
+					Long.parseLong(id.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+		long progress = 0;
+		Cursor cursor = null;
+		ParcelFileDescriptor fd = null;
+		try {
+			cursor = c.getContentResolver().query(uri, new String[] {
+					ImageSQLFormat.UPLOADED, ImageSQLFormat.UPLOAD_PROGRESS },
+					null, null, null);
+			if (cursor != null && cursor.moveToFirst()) {
+				if (cursor.getInt(0) != 0)
+					return 0;
+				progress = cursor.getLong(1);
+			}
+			fd = c.getContentResolver().openFileDescriptor(uri, "r");
+			return Math.max(0, fd.getStatSize() - progress);
+		} catch (FileNotFoundException e) {
+			return 0;
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Could not size " + uri + ": " + e.toString());
+			return 0;
+		} finally {
+			if (cursor != null)
+				cursor.close();
+			if (fd != null) {
+				try {
+					fd.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the scheduling decisions for every queued encounter, in the
+	 * order they will be uploaded, with the time each is expected to wait
+	 * on the current network.
+	 *
+	 * @param c the current context
+	 */
+	public static List<Entry> getSchedule(Context c) {
+		List<Entry> schedule = new ArrayList<Entry>();
+		Cursor cursor = null;
+		try {
+			cursor = c.getContentResolver().query(UploadQueue.CONTENT_URI,
+					QUEUE_PROJECTION, null, null, UploadQueue.QUEUE_SORT_ORDER);
+			while (cursor.moveToNext()) {
+				schedule.add(new Entry(ContentUris.withAppendedId(
+						Encounters.CONTENT_URI, cursor.getLong(1)),
+						cursor.getInt(2), cursor.getLong(3),
+						cursor.getLong(4)));
+			}
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		Map<Long, Long> retries = getNextAttempts(c);
+		for (Entry entry : schedule) {
+			Long nextAttempt = retries.get(ContentUris.parseId(
+					entry.encounter));
+			if (nextAttempt != null)
+				entry.nextAttempt = nextAttempt;
+		}
+		PacketSizeController controller = ThroughputModelStore.load(c,
+				ThroughputModelStore.getNetworkKey(c),
+				Constants.DEFAULT_INIT_PACKET_SIZE * 1000,
+				Constants.MIN_PACKET_SIZE * 1000,
+				Constants.MAX_PACKET_SIZE * 1000);
+		estimate(schedule, controller.getBandwidth(), controller.getDelay());
+		return schedule;
+	}
+
+	// the next attempts of the queued encounters waiting to retry
+	private static Map<Long, Long> getNextAttempts(Context c) {
+		Map<Long, Long> retries = new HashMap<Long, Long>();
+		Cursor cursor = null;
+		try {
+			cursor = c.getContentResolver().query(Encounters.CONTENT_URI,
+					new String[] { Encounters._ID, Encounters.NEXT_ATTEMPT },
+					Encounters.UPLOAD_QUEUE + " >= 0 AND " 
+					+ Encounters.NEXT_ATTEMPT + " > ?", new String[] { 
+						String.valueOf(System.currentTimeMillis()) }, null);
+			while (cursor != null && cursor.moveToNext())
+				retries.put(cursor.getLong(0), cursor.getLong(1));
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		return retries;
+	}
+
+	/**
+	 * Sets the expected wait of each entry, as the time to send its payload
+	 * and those of the entries ahead of it.
+	 *
+	 * @param schedule the entries in upload order
+	 * @param bytesPerSecond the expected bandwidth, if known
+	 * @param delayMillis the expected delay of each encounter, if known
+	 */
+	public static void estimate(List<Entry> schedule, double bytesPerSecond,
+			double delayMillis)
+	{
+		estimate(schedule, bytesPerSecond, delayMillis, 
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Sets the expected wait of each entry, as the time to send its payload
+	 * and those of the entries ahead of it. An entry waiting to retry is
+	 * sent once it is due and does not hold back the entries behind it.
+	 *
+	 * @param schedule the entries in upload order
+	 * @param bytesPerSecond the expected bandwidth, if known
+	 * @param delayMillis the expected delay of each encounter, if known
+	 * @param now the current time, in milliseconds
+	 */
+	public static void estimate(List<Entry> schedule, double bytesPerSecond,
+			double delayMillis, long now)
+	{
+		if (bytesPerSecond <= 0)
+			bytesPerSecond = DEFAULT_BANDWIDTH;
+		delayMillis = Math.max(0, delayMillis);
+		double elapsed = 0;
+		for (Entry entry : schedule) {
+			double sending = delayMillis + entry.payload * 1000 
+				/ bytesPerSecond;
+			if (entry.nextAttempt > now) {
+				entry.expectedMillis = (long) (Math.max(elapsed, 
+						entry.nextAttempt - now) + sending);
+			} else {
+				elapsed += sending;
+				entry.expectedMillis = (long) elapsed;
+			}
+		}
+	}
+}
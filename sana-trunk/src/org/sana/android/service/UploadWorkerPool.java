@@ -0,0 +1,323 @@
+package org.sana.android.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sana.android.net.HttpClientPool;
+
+import android.util.Log;
+
+/**
+ * Runs a fixed number of worker threads which take items from the upload
+ * queue and upload them. Each item is leased to a single worker while it is
+ * uploaded, so that no item is ever sent twice at the same time however often
+ * the pool is started. Leases are kept in a concurrent map, so workers
+ * contend only when two of them try to lease the same item.
+ *
+ * Starting a pool which is already running only wakes it up. Cancelling it
+ * stops the workers from leasing more items and interrupts the uploads in
+ * progress, aborting the request each worker is making, and those uploads
+ * are reported as cancelled rather than failed.
+ *
+ * @param <T> the type of the queued items
+ * @author Sana Development Team
+ */
+public class UploadWorkerPool<T> {
+	public static final String TAG = UploadWorkerPool.class.getSimpleName();
+
+	/**
+	 * The work done by the pool. Every method other than
+	 * {@link #prepare()} may be called from several workers at once.
+	 *
+	 * @param <T> the type of the queued items
+	 * @author Sana Development Team
+	 */
+	public interface Uploader<T> {
+		/** @return true if the uploads may go ahead */
+		boolean canUpload();
+
+		/**
+		 * Called once by the first worker of a run, before any item is
+		 * uploaded.
+		 */
+		void prepare();
+
+		/**
+		 * Returns the items at the head of the queue.
+		 *
+		 * @param count the most items to return
+		 * @return the items, in the order they should be uploaded
+		 */
+		List<T> next(int count);
+
+		/**
+		 * Uploads an item.
+		 *
+		 * @param item the leased item
+		 * @return true if the item was uploaded
+		 * @throws Exception if the item could not be uploaded
+		 */
+		boolean upload(T item) throws Exception;
+
+		/** Called when an upload returns, unless it was cancelled. */
+		void onUploaded(T item, boolean uploaded);
+
+		/**
+		 * Called when an upload throws, unless it was cancelled. The item is
+		 * not leased again until the pool is next started.
+		 */
+		void onError(T item, Throwable e);
+
+		/** Called when an upload was interrupted by {@link #cancel()}. */
+		void onCancelled(T item);
+	}
+
+	private final Uploader<T> uploader;
+	private final ConcurrentHashMap<T, Thread> leases =
+		new ConcurrentHashMap<T, Thread>();
+	// items which threw since the pool was last started
+	private final ConcurrentHashMap<T, Boolean> deferred =
+		new ConcurrentHashMap<T, Boolean>();
+	private final AtomicInteger threadCount = new AtomicInteger();
+	// uploads finished, counted before their lease is released
+	private final AtomicInteger finished = new AtomicInteger();
+	private volatile boolean cancelled = false;
+
+	// guarded by this
+	private int concurrency;
+	private int active = 0;
+	private int requests = 0;
+	private boolean preparing = false;
+
+	/**
+	 * Creates a new pool. No worker is started until {@link #start()}.
+	 *
+	 * @param uploader does the work
+	 * @param concurrency the most items uploaded at once
+	 */
+	public UploadWorkerPool(Uploader<T> uploader, int concurrency) {
+		this.uploader = uploader;
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Sets the most items uploaded at once. Workers above a lower limit stop
+	 * after their current item.
+	 */
+	public synchronized void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/** @return the most items uploaded at once */
+	public synchronized int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Starts workers up to the concurrency level and wakes any which are
+	 * about to stop, so that items queued since will be uploaded. Items
+	 * whose upload threw are tried again.
+	 */
+	public void start() {
+		synchronized (this) {
+			cancelled = false;
+			requests++;
+		}
+		deferred.clear();
+		spawn();
+	}
+
+	/**
+	 * Stops the workers from leasing more items, interrupts the uploads in
+	 * progress and aborts the requests the workers are making. The workers
+	 * stop once their current upload returns.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			cancelled = true;
+			notifyAll();
+		}
+		for (Thread worker : leases.values()) {
+			worker.interrupt();
+			HttpClientPool.abort(worker);
+		}
+	}
+
+	/** @return true if the pool has been cancelled since it was started */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** @return true if an upload of the item is in progress */
+	public boolean isLeased(T item) {
+		return leases.containsKey(item);
+	}
+
+	/** @return the items being uploaded */
+	public List<T> getLeased() {
+		return new ArrayList<T>(leases.keySet());
+	}
+
+	/** @return the number of running workers */
+	public synchronized int getActiveCount() {
+		return active;
+	}
+
+	/**
+	 * Waits for every worker to stop.
+	 *
+	 * @param timeout the most milliseconds to wait
+	 * @return true if no worker is running
+	 * @throws InterruptedException if the wait is interrupted
+	 */
+	public synchronized boolean awaitIdle(long timeout)
+			throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while (active > 0 && remaining > 0) {
+			wait(remaining);
+			remaining = end - System.currentTimeMillis();
+		}
+		return active == 0;
+	}
+
+	// starts workers up to the concurrency level. The first worker of a run
+	// prepares it alone and then starts the others.
+	private synchronized void spawn() {
+		if (cancelled || preparing)
+			return;
+		if (active == 0) {
+			preparing = true;
+			startWorker(true);
+			return;
+		}
+		while (active < concurrency)
+			startWorker(false);
+	}
+
+	// guarded by this
+	private void startWorker(final boolean first) {
+		active++;
+		Thread worker = new Thread(TAG + "-" + threadCount.incrementAndGet()) {
+			public void run() {
+				work(first);
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	// stops the current worker if the pool is over its concurrency level
+	// or, when the worker found nothing to do, unless it was asked for more
+	// work since it last looked.
+	private synchronized boolean retire(int seen, boolean idle) {
+		if (active <= concurrency) {
+			if (!idle || (!cancelled && seen != requests))
+				return false;
+		}
+		active--;
+		notifyAll();
+		return true;
+	}
+
+	private synchronized int getRequests() {
+		return requests;
+	}
+
+	// worker loop
+	private void work(boolean first) {
+		if (first) {
+			try {
+				if (!cancelled && uploader.canUpload())
+					uploader.prepare();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Preparing uploads failed: " + e.toString());
+			} finally {
+				synchronized (this) {
+					preparing = false;
+				}
+			}
+			spawn();
+		}
+		while (true) {
+			// clear an interrupt or abort aimed at a previous upload
+			Thread.interrupted();
+			HttpClientPool.release();
+			int seen = getRequests();
+			if (retire(seen, false))
+				return;
+			T item = (cancelled || !uploader.canUpload()) ? null : lease();
+			if (item == null) {
+				if (retire(seen, true))
+					return;
+				continue;
+			}
+			try {
+				// a cancel may have come between the check and the lease
+				if (!cancelled)
+					run(item);
+			} finally {
+				finished.incrementAndGet();
+				leases.remove(item);
+			}
+		}
+	}
+
+	// leases the first item at the head of the queue no other worker has.
+	// An upload which finished while the queue was read may have removed
+	// the item since, so the lease is only kept if none did.
+	private T lease() {
+		while (true) {
+			int seen = finished.get();
+			int count = concurrency() + leases.size() + deferred.size();
+			T leased = null;
+			for (T item : uploader.next(count)) {
+				if (deferred.containsKey(item))
+					continue;
+				if (leases.putIfAbsent(item, Thread.currentThread()) == null) {
+					leased = item;
+					break;
+				}
+			}
+			if (leased == null || finished.get() == seen)
+				return leased;
+			leases.remove(leased);
+		}
+	}
+
+	private synchronized int concurrency() {
+		return concurrency;
+	}
+
+	// uploads a leased item and reports how it went
+	private void run(T item) {
+		boolean uploaded = false;
+		Throwable error = null;
+		try {
+			uploaded = uploader.upload(item);
+		} catch (Exception e) {
+			error = e;
+		} catch (OutOfMemoryError e) {
+			error = e;
+		}
+		if (Thread.interrupted() || cancelled) {
+			// an interrupted upload may have failed only for being stopped
+			if (!uploaded) {
+				Log.i(TAG, "Upload of " + item + " cancelled");
+				uploader.onCancelled(item);
+				return;
+			}
+		}
+		if (error != null) {
+			Log.e(TAG, "While uploading " + item + " got exception: "
+					+ error.toString());
+			deferred.put(item, Boolean.TRUE);
+			uploader.onError(item, error);
+		} else {
+			uploader.onUploaded(item, uploaded);
+		}
+	}
+}
@@ -10,12 +10,18 @@ import java.io.OutputStream;
 import org.sana.android.db.EventDAO;
 import org.sana.android.db.ImageProvider;
 import org.sana.android.db.DispatchableContract.ImageSQLFormat;
+import org.sana.android.media.ImageRendition;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -104,6 +110,78 @@ public class ImageProcessingTask extends
 		return is;
 	}   	
 
+	/**
+	 * Writes the upload rendition of an image. The image is subsampled as it
+	 * is decoded so that no more of it is held in memory than the rendition
+	 * needs, then scaled and, if asked for, stripped of color in one pass.
+	 * 
+	 * @param request the request holding the image
+	 * @param renditionUri where the rendition is written
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @throws IOException if the image can not be read or the rendition 
+	 * 		written
+	 */
+	private void writeRendition(ImageProcessingTaskRequest request, 
+			Uri renditionUri, int width, int height) throws IOException
+	{
+		ImageRendition rendition = request.rendition;
+		int[] size = rendition.getSize(width, height);
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = rendition.getSampleSize(width, height);
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		InputStream is = getImageInputStreamWithWorkaround(request);
+		Bitmap bitmap;
+		try {
+			bitmap = BitmapFactory.decodeStream(is, null, options);
+		} finally {
+			is.close();
+		}
+		if (bitmap == null)
+			throw new IOException("Could not decode the image");
+		
+		if (rendition.isGrayscale() || bitmap.getWidth() != size[0] 
+				|| bitmap.getHeight() != size[1]) 
+		{
+			Bitmap decoded = bitmap;
+			bitmap = Bitmap.createBitmap(size[0], size[1], 
+					Bitmap.Config.RGB_565);
+			Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+			if (rendition.isGrayscale()) {
+				ColorMatrix matrix = new ColorMatrix();
+				matrix.setSaturation(0);
+				paint.setColorFilter(new ColorMatrixColorFilter(matrix));
+			}
+			new Canvas(bitmap).drawBitmap(decoded, null, 
+					new Rect(0, 0, size[0], size[1]), paint);
+			decoded.recycle();
+		}
+		
+		int quality = (rendition.getQuality() == ImageRendition.UNSET)? 
+				100: rendition.getQuality();
+		OutputStream os = request.c.getContentResolver().openOutputStream(
+				renditionUri);
+		try {
+			bitmap.compress(Bitmap.CompressFormat.JPEG, quality, os);
+			os.flush();
+		} finally {
+			os.close();
+			bitmap.recycle();
+		}
+		Log.i(TAG, "Saved a " + size[0] + "x" + size[1] + " rendition of " 
+				+ width + "x" + height + " with " + quality + "% quality" 
+				+ (rendition.isGrayscale()? " in grayscale.": "."));
+	}
+	
+	// leaves an empty rendition, so that the image is sent as taken
+	private void clearRendition(Context c, Uri renditionUri) {
+		try {
+			c.getContentResolver().openOutputStream(renditionUri).close();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not clear the rendition " + renditionUri);
+		}
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	protected Void doInBackground(ImageProcessingTaskRequest... params) {
@@ -164,27 +242,30 @@ public class ImageProcessingTask extends
 			os.flush();
 			os.close();
 			
-			int thumbCompression = 50;
-			int thumbMaxSize = 100;
-			int largestDimension = (iWidth > iHeight) ? iWidth : iHeight;
-			
-			Log.i(TAG, "Saving thumbnail for " + imageUri + " with " 
-					+ thumbCompression + "% quality.");
-			// We want a picture with it's largest side 100 pixels.
-			int scaleFactor = largestDimension / thumbMaxSize;
-			options = new BitmapFactory.Options();
-			options.inSampleSize = scaleFactor;
-			
-			is = getImageInputStreamWithWorkaround(request);
-			Bitmap thumbBitmap = BitmapFactory.decodeStream(is, null, options);
+			// The thumbnail, preview and screen views are made together from
+			// one decode of the stored image, and kept in the provider's cache
+			try {
+				c.getContentResolver().openFileDescriptor(thumbUri, "r").close();
+			} catch (FileNotFoundException e) {
+				Log.w(TAG, "Could not make the views of " + imageUri + ": " 
+						+ e.toString());
+			}
 			
-			os = c.getContentResolver().openOutputStream(thumbUri);
-			thumbBitmap.compress(Bitmap.CompressFormat.JPEG, thumbCompression, 
-					os);
-			os.flush();
-			os.close();
-			is.close();
-			thumbBitmap.recycle();
+			// The original is kept, and sent once the link allows
+			ImageRendition rendition = request.rendition;
+			if (rendition != null && !rendition.isOriginal()) {
+				Uri renditionUri = ImageProvider.getRenditionUri(imageUri);
+				try {
+					writeRendition(request, renditionUri, iWidth, iHeight);
+				} catch (IOException e) {
+					Log.w(TAG, "Could not save a rendition of " + imageUri 
+							+ ": " + e.toString());
+					clearRendition(c, renditionUri);
+				} catch (OutOfMemoryError e) {
+					Log.w(TAG, "Out of memory for a rendition of " + imageUri);
+					clearRendition(c, renditionUri);
+				}
+			}
 
 			// Flag the file as saved - does not record image size
 			values = new ContentValues();
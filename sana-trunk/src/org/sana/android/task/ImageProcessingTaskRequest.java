@@ -2,6 +2,8 @@ package org.sana.android.task;
 
 import java.io.File;
 
+import org.sana.android.media.ImageRendition;
+
 import android.content.Context;
 import android.content.Intent;
 
@@ -29,4 +31,9 @@ public class ImageProcessingTaskRequest {
 	 * collected. 
 	 */
 	public String elementId;
+	
+	/** How the image is prepared for upload over slower links, or null if 
+	 * it is always sent as taken. 
+	 */
+	public ImageRendition rendition;
 }
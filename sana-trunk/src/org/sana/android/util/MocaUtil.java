@@ -22,8 +22,10 @@ import org.sana.android.net.MDSInterface;
 import org.sana.android.net.ProcedureInfo;
 import org.sana.android.procedure.Procedure;
 import org.sana.android.procedure.ProcedureParseException;
+import org.sana.android.procedure.ProcedureTemplate;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
 import android.app.Activity;
@@ -166,7 +168,42 @@ public class MocaUtil {
             throw e;
         return valueNode.getNodeValue();
     }
-    
+
+    /**
+     * Retrieves the value for a SAX element attribute or a default if not
+     * found.
+     *
+     * @param attributes The attributes of the element.
+     * @param name The attribute name.
+     * @param defaultValue The default value to return if not found.
+     * @return an attribute value or a default if not found.
+     */
+    public static String getAttributeOrDefault(Attributes attributes,
+    		String name, String defaultValue)
+    {
+        String value = attributes.getValue(name);
+        return (value != null)? value: defaultValue;
+    }
+
+    /**
+     * Retrieves the value for a SAX element attribute or fails if not found.
+     *
+     * @param <T> the exception type to throw
+     * @param attributes The attributes of the element.
+     * @param name The attribute name.
+     * @param e an Exception instance
+     * @return the attribute value
+     * @throws T
+     */
+    public static <T extends Exception> String getAttributeOrFail(
+    		Attributes attributes, String name, T e) throws T
+    {
+        String value = attributes.getValue(name);
+        if(value == null)
+            throw e;
+        return value;
+    }
+
 
     /**
      * Utility method for deleting all the elements from a given content URI. 
@@ -278,7 +315,9 @@ public class MocaUtil {
         	xmlFullProcedure = xmlHeader + xmlFindPatient + xmlRestOfProcedure;
         }
                     
-        Procedure p = Procedure.fromXMLString(xmlFullProcedure);
+        ProcedureTemplate template = compileProcedure(xmlFullProcedure);
+        Procedure p = (template != null)? template.newInstance():
+        	Procedure.fromXMLString(xmlFullProcedure);
         title = p.getTitle();
         author = p.getAuthor();
         
@@ -287,10 +326,50 @@ public class MocaUtil {
         cv.put(Procedures.AUTHOR, author);
          
         cv.put(Procedures.PROCEDURE, xmlFullProcedure);
+        if (template != null)
+        	putCompiledProcedure(cv, template);
         ctx.getContentResolver().insert(Procedures.CONTENT_URI, cv);
         
     }
     
+    /**
+     * Compiles a procedure before it is stored.
+     * @param xml the procedure xml
+     * @return the compiled procedure or null if it could only be read by the 
+     * 		DOM parser
+     * @throws IOException
+     * @throws ParserConfigurationException
+     */
+    private static ProcedureTemplate compileProcedure(String xml) 
+    	throws IOException, ParserConfigurationException
+    {
+    	try {
+    		return ProcedureTemplate.fromXMLString(xml);
+    	} catch (ProcedureParseException e) {
+    		Log.w(TAG, "Couldn't compile procedure: " + e.toString());
+    	} catch (SAXException e) {
+    		Log.w(TAG, "Couldn't compile procedure: " + e.toString());
+    	}
+    	return null;
+    }
+    
+    /**
+     * Adds the compiled form of a procedure to the values which will be 
+     * stored. The procedure is stored without it, and loaded from the xml, if 
+     * it can not be encoded. 
+     * @param cv the values which will be stored
+     * @param template the compiled procedure
+     */
+    private static void putCompiledProcedure(ContentValues cv, 
+    		ProcedureTemplate template)
+    {
+    	try {
+    		cv.put(Procedures.COMPILED, template.toBytes());
+    	} catch (IOException e) {
+    		Log.w(TAG, "Couldn't encode compiled procedure: " + e.toString());
+    	}
+    }
+    
     /**
      * Inserts a new procedure into the data store
      * @param ctx the Context where the data is stored
@@ -375,7 +454,9 @@ public class MocaUtil {
             						+ xmlRestOfProcedure;
             }
                         
-            Procedure p = Procedure.fromXMLString(xmlFullProcedure);
+            ProcedureTemplate template = compileProcedure(xmlFullProcedure);
+            Procedure p = (template != null)? template.newInstance():
+            	Procedure.fromXMLString(xmlFullProcedure);
             title = p.getTitle();
             author = p.getAuthor();
             guid = p.getGuid();
@@ -385,6 +466,8 @@ public class MocaUtil {
             cv.put(Procedures.AUTHOR, author);
             cv.put(Procedures.UUID, guid);
             cv.put(Procedures.PROCEDURE, xmlFullProcedure);
+            if (template != null)
+            	putCompiledProcedure(cv, template);
 
             if (searchDuplicateTitleAuthor(ctx, title, author)){
             	Log.i(TAG, "Duplicate found!");
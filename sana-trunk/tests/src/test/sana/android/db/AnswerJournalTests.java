@@ -0,0 +1,118 @@
+package test.sana.android.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.sana.android.db.AnswerJournal;
+
+import android.util.Log;
+
+/**
+ * Checks that the {@link AnswerJournal} saves only the answers which changed,
+ * and that folding what it saved into the last state written in full gives
+ * the answers as they were when last saved.
+ *
+ * @author Sana Development
+ *
+ */
+public class AnswerJournalTests extends TestCase {
+	public static final String TAG = AnswerJournalTests.class.getSimpleName();
+
+	static Map<String, String> answers(String... pairs){
+		Map<String, String> answers = new HashMap<String, String>();
+		for(int i = 0; i < pairs.length; i += 2)
+			answers.put(pairs[i], pairs[i + 1]);
+		return answers;
+	}
+
+	/** Only new and changed answers are saved, blank ones included. */
+	public void testChanges(){
+		Map<String, String> saved = answers("1", "Chest", "2", "", "3", "40");
+		Map<String, String> current = answers("1", "Chest", "2", "12",
+				"3", "40", "4", "");
+		Map<String, String> changes = AnswerJournal.changes(saved, current);
+		assertTrue("changes " + changes,
+				changes.equals(answers("2", "12", "4", "")));
+		assertTrue("unchanged answers were saved",
+				AnswerJournal.changes(current, current).isEmpty());
+		assertTrue("a first save left answers out",
+				AnswerJournal.changes(new HashMap<String, String>(), current)
+				.equals(current));
+	}
+
+	/** A state is read back as it was written. */
+	public void testState(){
+		Map<String, String> answers = answers("1", "Fever,Cough,",
+				"2", "a \"quoted\" note", "3", "");
+		assertTrue("state did not survive",
+				AnswerJournal.parseState(AnswerJournal.toState(answers))
+				.equals(answers));
+		assertTrue("blank state has answers",
+				AnswerJournal.parseState("").isEmpty()
+				&& AnswerJournal.parseState(null).isEmpty());
+		assertTrue("unreadable state has answers",
+				AnswerJournal.parseState("{not json").isEmpty());
+	}
+
+	/**
+	 * A long procedure saved at every page, with a few answers changed
+	 * between saves, is restored from its journal as from a full write.
+	 */
+	public void testSession(){
+		Random random = new Random(24);
+		int elements = 200;
+		Map<String, String> current = new HashMap<String, String>();
+		for(int i = 0; i < elements; i++)
+			current.put(String.valueOf(i), "");
+		// what a runner which knows nothing of the saved answers writes
+		String state = AnswerJournal.toState(current);
+		Map<String, String> saved = new HashMap<String, String>(current);
+		List<String[]> journal = new ArrayList<String[]>();
+		int written = 0;
+		for(int save = 0; save < 500; save++){
+			for(int i = random.nextInt(4); i > 0; i--)
+				current.put(String.valueOf(random.nextInt(elements)),
+						String.valueOf(random.nextInt(100)));
+			Map<String, String> changes = AnswerJournal.changes(saved,
+					current);
+			for(Map.Entry<String, String> e: changes.entrySet())
+				journal.add(new String[]{ e.getKey(), e.getValue() });
+			written += changes.size();
+			saved = new HashMap<String, String>(current);
+			if(journal.size() >= AnswerJournal.COMPACT_THRESHOLD){
+				state = fold(state, journal);
+				journal.clear();
+			}
+		}
+		assertTrue("restored answers differ",
+				AnswerJournal.parseState(fold(state, journal)).equals(current));
+		assertTrue(written + " answers written for 500 saves",
+				written < 500 * 4);
+		Log.i(TAG, written + " answers journaled instead of "
+				+ (500 * elements));
+	}
+
+	// folds entries into a state as the provider does
+	static String fold(String state, List<String[]> journal){
+		Map<String, String> answers = new HashMap<String, String>();
+		for(String[] entry: journal)
+			answers.put(entry[0], entry[1]);
+		return AnswerJournal.fold(state, answers);
+	}
+
+	/** A state which can not be read is not replaced by the journal. */
+	public void testCorruptState(){
+		List<String[]> journal = new ArrayList<String[]>();
+		journal.add(new String[]{ "1", "Yes" });
+		assertTrue("an unreadable state was folded",
+				fold("{\"1\":\"No\",\"2\":", journal) == null);
+		assertTrue("a blank state was not folded",
+				AnswerJournal.parseState(fold("", journal))
+				.equals(answers("1", "Yes")));
+	}
+}
@@ -0,0 +1,74 @@
+package test.sana.android.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.sana.android.db.BlobStore;
+
+/**
+ * Checks that the {@link BlobStore} keeps content once by its digest.
+ *
+ * @author Sana Development
+ *
+ */
+public class BlobStoreTests extends TestCase {
+	static File write(File directory, String name, String content)
+		throws IOException
+	{
+		File file = new File(directory, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	static void delete(File file){
+		File[] children = file.listFiles();
+		if(children != null)
+			for(File child: children)
+				delete(child);
+		file.delete();
+	}
+
+	/** The digest is SHA-256, in hex. */
+	public void testDigest() throws IOException {
+		String hash = BlobStore.digest(new ByteArrayInputStream(
+				"abc".getBytes("UTF-8")));
+		assertTrue(hash,
+				"ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"
+				.equals(hash));
+	}
+
+	/** The same content stored twice is kept once. */
+	public void testStore() throws IOException {
+		File work = File.createTempFile("blobs", "");
+		work.delete();
+		work.mkdirs();
+		File store = new File(work, "store");
+		try {
+			File first = write(work, "first", "the same content");
+			File second = write(work, "second", "the same content");
+			File other = write(work, "other", "other content");
+			String hash = BlobStore.store(store, first);
+			assertTrue("digests differ",
+					hash.equals(BlobStore.store(store, second)));
+			assertTrue("different content has the same digest",
+					!hash.equals(BlobStore.store(store, other)));
+			assertTrue("stored files were left behind",
+					!first.exists() && !second.exists() && !other.exists());
+			assertTrue(store.list().length + " blobs",
+					store.list().length == 2);
+			assertTrue("content was not kept",
+					BlobStore.getFile(store, hash).length() == 16);
+		} finally {
+			delete(work);
+		}
+	}
+}
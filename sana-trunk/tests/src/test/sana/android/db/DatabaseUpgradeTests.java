@@ -0,0 +1,184 @@
+package test.sana.android.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sana.android.db.DispatchableContract;
+import org.sana.android.db.DispatchableContract.BinarySQLFormat;
+import org.sana.android.db.DispatchableContract.Blobs;
+import org.sana.android.db.DispatchableContract.Encounters;
+import org.sana.android.db.DispatchableContract.ImageSQLFormat;
+import org.sana.android.db.DispatchableContract.Procedures;
+import org.sana.android.db.DispatchableContract.UploadQueue;
+import org.sana.android.db.DispatchableProvider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Upgrades a database as the 1.0 release left it to the current version,
+ * checking that the tables and columns added since are there, that the
+ * queued encounters move to the upload queue and that nothing already saved
+ * is lost. The upgrade is then run again over the upgraded database.
+ *
+ * @author Sana Development
+ *
+ */
+public class DatabaseUpgradeTests extends AndroidTestCase {
+
+	/** The tables of the 1.0 release which later versions change. */
+	static final String[] VERSION_1 = {
+		"CREATE TABLE procedures ("
+			+ Procedures._ID + " INTEGER PRIMARY KEY,"
+			+ Procedures.TITLE + " TEXT,"
+			+ Procedures.AUTHOR + " TEXT,"
+			+ Procedures.UUID + " TEXT,"
+			+ Procedures.PROCEDURE + " TEXT,"
+			+ Procedures.CREATED_DATE + " INTEGER,"
+			+ Procedures.MODIFIED_DATE + " INTEGER);",
+		"CREATE TABLE saved_procedures ("
+			+ Encounters._ID + " INTEGER PRIMARY KEY,"
+			+ Encounters.UUID + " TEXT,"
+			+ Encounters.PROCEDURE_ID + " INTEGER,"
+			+ Encounters.PROCEDURE_STATE + " TEXT,"
+			+ Encounters.FINISHED + " INTEGER,"
+			+ Encounters.UPLOADED + " INTEGER,"
+			+ Encounters.UPLOAD_STATUS + " TEXT,"
+			+ Encounters.UPLOAD_QUEUE + " TEXT,"
+			+ Encounters.CREATED_DATE + " INTEGER,"
+			+ Encounters.MODIFIED_DATE + " INTEGER,"
+			+ Encounters.SUBJECT + " TEXT,"
+			+ Encounters.OBSERVER + " TEXT,"
+			+ Encounters.PROCEDURE + " TEXT);",
+		"CREATE TABLE images ("
+			+ ImageSQLFormat._ID + " INTEGER PRIMARY KEY,"
+			+ ImageSQLFormat.SAVED_PROCEDURE_ID + " TEXT,"
+			+ ImageSQLFormat.ELEMENT_ID + " TEXT,"
+			+ ImageSQLFormat.FILE_URI + " TEXT,"
+			+ ImageSQLFormat.FILE_VALID + " INTEGER,"
+			+ ImageSQLFormat.FILE_SIZE + " INTEGER,"
+			+ ImageSQLFormat.UPLOAD_PROGRESS + " INTEGER,"
+			+ ImageSQLFormat.UPLOADED + " INTEGER,"
+			+ ImageSQLFormat.CREATED_DATE + " INTEGER,"
+			+ ImageSQLFormat.MODIFIED_DATE + " INTEGER);",
+		"CREATE TABLE binaries ("
+			+ BinarySQLFormat._ID + " INTEGER PRIMARY KEY,"
+			+ BinarySQLFormat.SAVED_PROCEDURE_ID + " TEXT,"
+			+ BinarySQLFormat.ELEMENT_ID + " TEXT,"
+			+ BinarySQLFormat.UPLOAD_PROGRESS + " INTEGER,"
+			+ BinarySQLFormat.UPLOADED + " INTEGER,"
+			+ BinarySQLFormat.CREATED_DATE + " INTEGER,"
+			+ BinarySQLFormat.MODIFIED_DATE + " INTEGER,"
+			+ BinarySQLFormat.CONTENT + " TEXT,"
+			+ BinarySQLFormat.MIME + " TEXT,"
+			+ BinarySQLFormat.DATA + " TEXT);",
+		"INSERT INTO saved_procedures (" + Encounters._ID + ", "
+			+ Encounters.UPLOAD_QUEUE + ", " + Encounters.MODIFIED_DATE
+			+ ") VALUES (1, '-1', 100);",
+		"INSERT INTO saved_procedures (" + Encounters._ID + ", "
+			+ Encounters.UPLOAD_QUEUE + ", " + Encounters.MODIFIED_DATE
+			+ ") VALUES (2, '0', 200);",
+		"INSERT INTO binaries (" + BinarySQLFormat._ID + ", "
+			+ BinarySQLFormat.ELEMENT_ID + ") VALUES (1, 'scan');"
+	};
+
+	File file;
+	SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = new File(getContext().getCacheDir(), "upgrade-test.db");
+		file.delete();
+		db = SQLiteDatabase.openOrCreateDatabase(file, null);
+		for(String stmt: VERSION_1)
+			db.execSQL(stmt);
+		db.setVersion(1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		file.delete();
+		super.tearDown();
+	}
+
+	// upgrades as an open helper does, in one transaction
+	void upgrade(){
+		db.beginTransaction();
+		try {
+			DispatchableProvider.onUpgradeDatabase(db, db.getVersion(),
+					DispatchableContract.DATABASE_VERSION);
+			db.setVersion(DispatchableContract.DATABASE_VERSION);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	List<String> columns(String table){
+		List<String> columns = new ArrayList<String>();
+		Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+		try {
+			while(c.moveToNext())
+				columns.add(c.getString(c.getColumnIndex("name")));
+		} finally {
+			c.close();
+		}
+		return columns;
+	}
+
+	long count(String table){
+		Cursor c = db.rawQuery("SELECT count(*) FROM " + table, null);
+		try {
+			c.moveToFirst();
+			return c.getLong(0);
+		} finally {
+			c.close();
+		}
+	}
+
+	void checkUpgraded(){
+		assertTrue("compiled procedure column",
+				columns("procedures").contains(Procedures.COMPILED));
+		List<String> encounters = columns("saved_procedures");
+		assertTrue("retry columns",
+				encounters.contains(Encounters.UPLOAD_ATTEMPTS)
+				&& encounters.contains(Encounters.NEXT_ATTEMPT));
+		assertTrue("upload queue deadline",
+				columns("upload_queue").contains(UploadQueue.DEADLINE));
+		assertTrue("content digest of binaries",
+				columns("binaries").contains(Blobs.CONTENT_HASH));
+		assertTrue("rendition progress of images", columns("images")
+				.contains(ImageSQLFormat.RENDITION_PROGRESS));
+		assertTrue("blob table", columns("blobs").contains(Blobs.HASH));
+		assertFalse("answer journal", columns("answer_journal").isEmpty());
+		assertEquals("binaries were lost", 1, count("binaries"));
+		assertEquals("queued encounters", 1, count("upload_queue"));
+		Cursor c = db.rawQuery("SELECT " + UploadQueue.ENCOUNTER + " FROM "
+				+ "upload_queue", null);
+		try {
+			c.moveToFirst();
+			assertEquals("encounter queued", 2, c.getLong(0));
+		} finally {
+			c.close();
+		}
+	}
+
+	/** A 1.0 database is brought up to the current version. */
+	public void testUpgrade(){
+		upgrade();
+		assertEquals(DispatchableContract.DATABASE_VERSION, db.getVersion());
+		checkUpgraded();
+	}
+
+	/** Upgrading again changes nothing, rather than failing. */
+	public void testUpgradeAgain(){
+		upgrade();
+		db.setVersion(1);
+		upgrade();
+		checkUpgraded();
+	}
+}
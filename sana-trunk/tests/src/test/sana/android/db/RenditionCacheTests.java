@@ -0,0 +1,115 @@
+package test.sana.android.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.sana.android.db.RenditionCache;
+
+/**
+ * Checks that the {@link RenditionCache} keeps its files within its capacity,
+ * deleting the least recently used first.
+ *
+ * @author Sana Development
+ *
+ */
+public class RenditionCacheTests extends TestCase {
+	static File workDirectory(){
+		try {
+			File work = File.createTempFile("renditions", "");
+			work.delete();
+			work.mkdirs();
+			return work;
+		} catch (IOException e) {
+			throw new AssertionFailedError(e.toString());
+		}
+	}
+
+	static void put(RenditionCache cache, String key, int length)
+		throws IOException
+	{
+		File file = cache.createTempFile();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[length]);
+		} finally {
+			out.close();
+		}
+		cache.put(key, file);
+	}
+
+	/** The least recently used file is evicted first. */
+	public void testEviction() throws IOException {
+		File work = workDirectory();
+		try {
+			RenditionCache cache = new RenditionCache(work, 300);
+			put(cache, "1_thumb", 100);
+			put(cache, "1_preview", 100);
+			put(cache, "2_thumb", 100);
+			assertTrue(cache.getSize() + " bytes", cache.getSize() == 300);
+			assertTrue("thumb was not kept", cache.get("1_thumb") != null);
+			put(cache, "2_preview", 100);
+			assertTrue("least recent was kept", cache.get("1_preview") == null);
+			assertTrue("recently used was evicted",
+					cache.get("1_thumb") != null);
+			assertTrue(cache.getSize() + " bytes", cache.getSize() == 300);
+			assertTrue("file was left", !new File(work, "1_preview").exists());
+		} finally {
+			BlobStoreTests.delete(work);
+		}
+	}
+
+	/** A file larger than the capacity is kept alone. */
+	public void testOversized() throws IOException {
+		File work = workDirectory();
+		try {
+			RenditionCache cache = new RenditionCache(work, 100);
+			put(cache, "1_thumb", 50);
+			put(cache, "1_screen", 500);
+			assertTrue(cache.getCount() + " files", cache.getCount() == 1);
+			assertTrue("newest was evicted", cache.get("1_screen") != null);
+		} finally {
+			BlobStoreTests.delete(work);
+		}
+	}
+
+	/** Every view of an image is removed at once. */
+	public void testRemoveAll() throws IOException {
+		File work = workDirectory();
+		try {
+			RenditionCache cache = new RenditionCache(work, 1000);
+			put(cache, "1_thumb", 10);
+			put(cache, "1_screen", 10);
+			put(cache, "11_thumb", 10);
+			cache.removeAll("1_");
+			assertTrue(cache.getCount() + " files", cache.getCount() == 1);
+			assertTrue("other image was removed",
+					cache.get("11_thumb") != null);
+			assertTrue(cache.getSize() + " bytes", cache.getSize() == 10);
+		} finally {
+			BlobStoreTests.delete(work);
+		}
+	}
+
+	/** A new cache over the same directory finds what was kept. */
+	public void testReload() throws IOException {
+		File work = workDirectory();
+		try {
+			RenditionCache cache = new RenditionCache(work, 1000);
+			put(cache, "1_thumb", 10);
+			put(cache, "1_preview", 20);
+			new File(work, "rendition0.tmp").createNewFile();
+			RenditionCache reloaded = new RenditionCache(work, 1000);
+			assertTrue(reloaded.getCount() + " files",
+					reloaded.getCount() == 2);
+			assertTrue(reloaded.getSize() + " bytes", reloaded.getSize() == 30);
+			assertTrue("partial file was kept",
+					!new File(work, "rendition0.tmp").exists());
+		} finally {
+			BlobStoreTests.delete(work);
+		}
+	}
+}
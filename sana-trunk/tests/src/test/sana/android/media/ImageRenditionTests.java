@@ -0,0 +1,95 @@
+package test.sana.android.media;
+
+import junit.framework.TestCase;
+
+import org.sana.android.media.ImageRendition;
+import org.sana.android.procedure.Procedure;
+
+/**
+ * Checks how an {@link ImageRendition} sizes pictures and how renditions are
+ * read from a procedure.
+ *
+ * @author Sana Development
+ *
+ */
+public class ImageRenditionTests extends TestCase {
+	static final String PROCEDURE =
+		"<Procedure title=\"Slides\" author=\"test\" guid=\"slides\""
+		+ " imageMaxDimension=\"800\" imageQuality=\"60\">"
+		+ "<Page><Element type=\"PICTURE\" id=\"1\" concept=\"SLIDE\""
+		+ " question=\"Sputum slide\" answer=\"\" grayscale=\"true\"/>"
+		+ "<Element type=\"PICTURE\" id=\"2\" concept=\"WOUND\""
+		+ " question=\"Wound\" answer=\"\" maxDimension=\"0\"/>"
+		+ "</Page></Procedure>";
+
+	/** The decode is subsampled no further than the rendition's size. */
+	public void testSampleSize(){
+		ImageRendition rendition = new ImageRendition(1024, 75, null);
+		assertTrue("5MP", rendition.getSampleSize(2592, 1944) == 2);
+		assertTrue("12MP", rendition.getSampleSize(4096, 3072) == 4);
+		assertTrue("already small", rendition.getSampleSize(1024, 768) == 1);
+		assertTrue("smaller", rendition.getSampleSize(640, 480) == 1);
+		assertTrue("unscaled",
+				new ImageRendition(0, 75, null).getSampleSize(4096, 3072) == 1);
+	}
+
+	/** The rendition keeps the aspect ratio and never grows a picture. */
+	public void testSize(){
+		ImageRendition rendition = new ImageRendition(1024, 75, null);
+		int[] size = rendition.getSize(2592, 1944);
+		assertTrue(size[0] + "x" + size[1], size[0] == 1024 && size[1] == 768);
+		size = rendition.getSize(1944, 2592);
+		assertTrue(size[0] + "x" + size[1], size[0] == 768 && size[1] == 1024);
+		size = rendition.getSize(640, 480);
+		assertTrue(size[0] + "x" + size[1], size[0] == 640 && size[1] == 480);
+		size = new ImageRendition(0, 75, null).getSize(2592, 1944);
+		assertTrue(size[0] + "x" + size[1], size[0] == 2592 && size[1] == 1944);
+	}
+
+	/** Unset values are taken from the more general rendition. */
+	public void testOver(){
+		ImageRendition base = new ImageRendition(1024, 75, Boolean.FALSE);
+		ImageRendition element = ImageRendition.parse(null, "40", "true");
+		ImageRendition resolved = element.over(base);
+		assertTrue(resolved.toString(), resolved.getMaxDimension() == 1024);
+		assertTrue(resolved.toString(), resolved.getQuality() == 40);
+		assertTrue(resolved.toString(), resolved.isGrayscale());
+		assertTrue("nothing set",
+				ImageRendition.NONE.over(base).toString().equals(
+				base.toString()));
+		assertTrue("base", !base.isOriginal());
+		assertTrue("original",
+				new ImageRendition(0, 100, Boolean.FALSE).isOriginal());
+	}
+
+	/** Values which can not be read are left unset. */
+	public void testParse(){
+		ImageRendition rendition = ImageRendition.parse("big", "500", null);
+		assertTrue(rendition.toString(),
+				rendition.getMaxDimension() == ImageRendition.UNSET);
+		assertTrue(rendition.toString(), rendition.getQuality() == 100);
+		assertTrue(rendition.toString(), !rendition.isGrayscale());
+		assertTrue("empty", ImageRendition.parse(null, null, null).isEmpty());
+	}
+
+	/** Elements override their procedure, and both are written back. */
+	public void testProcedure() throws Exception {
+		Procedure procedure = Procedure.fromXMLString(PROCEDURE);
+		ImageRendition base = new ImageRendition(1024, 75, Boolean.FALSE);
+		ImageRendition slide = procedure.getImageRendition("1").over(base);
+		assertTrue(slide.toString(),
+				slide.getMaxDimension() == 800 && slide.getQuality() == 60
+				&& slide.isGrayscale());
+		ImageRendition wound = procedure.getImageRendition("2").over(base);
+		assertTrue(wound.toString(),
+				wound.getMaxDimension() == 0 && !wound.isGrayscale());
+
+		Procedure copy = Procedure.fromXMLString(procedure.toXML());
+		assertTrue("round trip",
+				copy.getImageRendition("1").toString().equals(
+				procedure.getImageRendition("1").toString()));
+		assertTrue("round trip",
+				copy.getImageRendition("2").toString().equals(
+				procedure.getImageRendition("2").toString()));
+	}
+}
@@ -0,0 +1,83 @@
+package test.sana.android.media;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.sana.android.media.MemoryCache;
+
+/**
+ * Checks that a {@link MemoryCache} keeps its values within its capacity,
+ * dropping the least recently used first.
+ *
+ * @author Sana Development
+ *
+ */
+public class MemoryCacheTests extends TestCase {
+	/** A cache of strings sized by their length. */
+	static class StringCache extends MemoryCache<String, String> {
+		final List<String> dropped = new ArrayList<String>();
+
+		StringCache(long capacity){
+			super(capacity);
+		}
+
+		@Override
+		protected long sizeOf(String value){
+			return value.length();
+		}
+
+		@Override
+		protected void onDropped(String key, String value){
+			dropped.add(key);
+		}
+	}
+
+	/** The least recently used value is dropped first. */
+	public void testEviction(){
+		StringCache cache = new StringCache(10);
+		cache.put("a", "aaaa");
+		cache.put("b", "bbbb");
+		assertTrue("a was not kept", cache.get("a") != null);
+		cache.put("c", "cccc");
+		assertTrue("least recent was kept", cache.get("b") == null);
+		assertTrue("recent values were dropped",
+				cache.get("a") != null && cache.get("c") != null);
+		assertTrue(cache.getSize() + " kept", cache.getSize() == 8);
+		assertTrue("dropped " + cache.dropped,
+				cache.dropped.size() == 1 && "b".equals(cache.dropped.get(0)));
+	}
+
+	/** Replacing a value counts only the new one. */
+	public void testReplace(){
+		StringCache cache = new StringCache(10);
+		cache.put("a", "aaaa");
+		cache.put("a", "aa");
+		assertTrue(cache.getSize() + " kept", cache.getSize() == 2);
+		assertTrue(cache.getCount() + " values", cache.getCount() == 1);
+	}
+
+	/** A value larger than the capacity is not kept. */
+	public void testOversized(){
+		StringCache cache = new StringCache(10);
+		cache.put("a", "aaaa");
+		cache.put("big", "0123456789ab");
+		assertTrue("oversized value was kept", cache.get("big") == null);
+		assertTrue("kept value was dropped", cache.get("a") != null);
+	}
+
+	/** Hits and misses are counted. */
+	public void testCounts(){
+		StringCache cache = new StringCache(10);
+		cache.put("a", "aaaa");
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+		assertTrue(cache.getHitCount() + " hits", cache.getHitCount() == 2);
+		assertTrue(cache.getMissCount() + " misses", cache.getMissCount() == 1);
+		cache.clear();
+		assertTrue("not cleared",
+				cache.getSize() == 0 && cache.getCount() == 0);
+	}
+}
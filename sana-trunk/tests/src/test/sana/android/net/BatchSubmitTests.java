@@ -0,0 +1,153 @@
+package test.sana.android.net;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.sana.android.Constants;
+import org.sana.android.net.APIException;
+import org.sana.android.net.APIResultCode;
+import org.sana.android.net.MDSResult;
+import org.sana.android.net.MocaAPI;
+
+/**
+ * Exercises batched submission of case responses with
+ * {@link MocaAPI#transmitCaseResponsesBatch(String, Map)} against a
+ * {@link StandInMDS}, including servers which refuse some cases and servers
+ * which do not accept batches at all.
+ *
+ * @author Sana Development
+ *
+ */
+public class BatchSubmitTests extends TestCase {
+	static final String PHONE = "5555550100";
+
+	static Map<String, String> createCases(int count){
+		Map<String, String> cases = new LinkedHashMap<String, String>();
+		for(int i = 0; i < count; i++){
+			cases.put("encounter-" + i, "{\"procedureTitle\":{\"answer\":"
+					+ "\"Test\",\"id\":\"procedureTitle\",\"type\":\"HIDDEN\"},"
+					+ "\"q" + i + "\":{\"answer\":\"" + i + "\",\"id\":\"q" + i
+					+ "\",\"type\":\"TEXT\"}}");
+		}
+		return cases;
+	}
+
+	static int countRequests(StandInMDS server, String pattern){
+		int count = 0;
+		for(StandInMDS.Request request: server.getRequests()){
+			if(request.path.startsWith(pattern))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * A full batch must be sent in a single request, compressed when
+	 * compression is enabled, and every case must be stored and
+	 * acknowledged.
+	 */
+	public void testBatch() throws IOException, APIException {
+		StandInMDS server = new StandInMDS(1);
+		server.start();
+		try {
+			Map<String, String> cases = createCases(
+					Constants.UPLOAD_BATCH_SIZE);
+			Map<String, MDSResult> results = new MocaAPI(server.getHost(),
+					"test", "test", false, true)
+					.transmitCaseResponsesBatch(PHONE, cases);
+			List<StandInMDS.Request> requests = server.getRequests();
+			assertTrue(requests.size() + " requests sent",
+					requests.size() == 1);
+			assertTrue("request was not compressed",
+					requests.get(0).compressed);
+			assertTrue("phone was "
+					+ requests.get(0).get("phone"),
+					PHONE.equals(requests.get(0).get("phone")));
+			assertTrue("cases were not received"
+					+ " intact",
+					server.getCases().equals(cases));
+			assertTrue(results.size()
+					+ " results for " + cases.size() + " cases",
+					results.size() == cases.size());
+			for(String guid: cases.keySet()){
+				assertTrue(guid + " failed", results.get(guid).succeeded());
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Cases refused by the server must be reported with their own result
+	 * code without affecting the rest of the batch.
+	 */
+	public void testPartialFailure() throws IOException, APIException {
+		StandInMDS server = new StandInMDS(2);
+		server.reject("encounter-1");
+		server.reject("encounter-3");
+		server.start();
+		try {
+			Map<String, String> cases = createCases(5);
+			Map<String, MDSResult> results = new MocaAPI(server.getHost(),
+					"test", "test").transmitCaseResponsesBatch(PHONE, cases);
+			for(String guid: cases.keySet()){
+				boolean refused = guid.equals("encounter-1")
+						|| guid.equals("encounter-3");
+				MDSResult result = results.get(guid);
+				assertTrue("no result for " + guid, result != null);
+				assertTrue(guid + " status was "
+						+ (result.succeeded()? "success": "failure"),
+						result.succeeded() != refused);
+				assertTrue(guid + " was stored " + !refused,
+						server.getCases().containsKey(guid) != refused);
+				if(refused)
+					assertTrue(guid + " code was "
+							+ result.getCode(),
+							APIResultCode.parseMDSCode(result.getCode())
+							== APIResultCode.SAVE_FAILED);
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A server without the batch endpoint must fail the batch, and the cases
+	 * must still be accepted one at a time.
+	 */
+	public void testFallback() throws IOException, APIException {
+		StandInMDS server = new StandInMDS(3);
+		server.setBatchesEnabled(false);
+		server.start();
+		try {
+			MocaAPI api = new MocaAPI(server.getHost(), "test", "test");
+			Map<String, String> cases = createCases(3);
+			boolean failed = false;
+			try {
+				api.transmitCaseResponsesBatch(PHONE, cases);
+			} catch (APIException e) {
+				failed = true;
+			}
+			assertTrue("batch was accepted by a server without batches",
+					failed);
+			assertTrue("cases stored from the batch",
+					server.getCases().isEmpty());
+			for(Map.Entry<String, String> e: cases.entrySet()){
+				assertTrue(e.getKey() + " was not accepted",
+						api.transmitCaseResponses(e.getKey(), "0", PHONE,
+						e.getValue()));
+			}
+			assertTrue("cases were not received"
+					+ " intact",
+					server.getCases().equals(cases));
+			assertEquals("batch was retried", 1, countRequests(server,
+					Constants.PROCEDURE_BATCH_SUBMIT_PATTERN));
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,725 @@
+package test.sana.android.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import org.sana.android.net.APIException;
+import org.sana.android.net.BinaryUploadEngine;
+import org.sana.android.net.BinaryUploadEngine.Binary;
+import org.sana.android.net.BinaryUploadEngine.Chunk;
+import org.sana.android.net.HttpClientPool;
+import org.sana.android.net.MocaAPI;
+import org.sana.android.net.PacketSizeController;
+import org.sana.android.net.RetryPolicy;
+import org.sana.android.procedure.ProcedureElement.ElementType;
+
+import android.util.Log;
+
+/**
+ * Exercises the {@link BinaryUploadEngine} against a {@link StandInMDS} over
+ * the loopback interface, with and without injected latency and loss. Every
+ * test checks that the server received each binary byte for byte and that
+ * the progress committed for a binary never runs ahead of what the server
+ * holds.
+ *
+ * @author Sana Development
+ *
+ */
+public class BinaryUploadEngineTests extends TestCase {
+	public static final String TAG =
+		BinaryUploadEngineTests.class.getSimpleName();
+
+	static final String SAVED_PROCEDURE = "test-encounter";
+	static final int PACKET_SIZE = 8 * 1024;
+	static final int MIN_PACKET_SIZE = 1024;
+	static final int MAX_PACKET_SIZE = 64 * 1024;
+	/** Number of times a lossy upload is resumed before giving up. */
+	static final int MAX_RESUMES = 50;
+
+	static PacketSizeController newController(){
+		return new PacketSizeController(PACKET_SIZE, MIN_PACKET_SIZE,
+				MAX_PACKET_SIZE);
+	}
+
+	/** Sends chunks through the MocaAPI used by the application. */
+	static class APITransport implements BinaryUploadEngine.ChunkTransport {
+		final MocaAPI api;
+
+		APITransport(StandInMDS server){
+			api = new MocaAPI(server.getHost(), "test", "test");
+		}
+
+		public boolean send(Binary binary, Chunk chunk) throws APIException {
+			return api.transmitBinaryChunk(SAVED_PROCEDURE, binary, chunk,
+					false);
+		}
+
+		public int getOffset(Binary binary) throws APIException {
+			return api.getBinaryOffset(SAVED_PROCEDURE, binary);
+		}
+	}
+
+	/**
+	 * Records committed progress, checking that it only grows and never
+	 * exceeds the contiguous data held by the server. The first violation is
+	 * kept, rather than thrown on an upload thread, and rethrown by
+	 * {@link #verify()}.
+	 */
+	static class CheckingListener implements
+		BinaryUploadEngine.ProgressListener
+	{
+		final StandInMDS server;
+		final Map<String, Integer> progress = new HashMap<String, Integer>();
+		final List<String> completed = new ArrayList<String>();
+		AssertionFailedError error = null;
+
+		CheckingListener(StandInMDS server){
+			this.server = server;
+		}
+
+		void expect(boolean condition, String message){
+			if(!condition && error == null)
+				error = new AssertionFailedError(message);
+		}
+
+		void verify(){
+			if(error != null)
+				throw error;
+		}
+
+		public void onProgress(Binary binary, int value) {
+			Integer last = progress.get(binary.guid);
+			expect(last == null || value > last, binary.guid
+					+ " progress went from " + last + " to " + value);
+			int held = server.getContiguousLength(binary.guid);
+			expect(value <= held, binary.guid + " progress " + value
+					+ " is ahead of the " + held + " bytes received");
+			progress.put(binary.guid, value);
+		}
+
+		public void onComplete(Binary binary) {
+			expect(!completed.contains(binary.guid), binary.guid
+					+ " completed twice");
+			completed.add(binary.guid);
+		}
+
+		int get(String guid){
+			Integer value = progress.get(guid);
+			return (value == null)? 0: value;
+		}
+	}
+
+	static Map<String, byte[]> createBinaries(long seed, int... sizes){
+		Random random = new Random(seed);
+		Map<String, byte[]> binaries = new HashMap<String, byte[]>();
+		for(int i = 0; i < sizes.length; i++){
+			byte[] data = new byte[sizes[i]];
+			random.nextBytes(data);
+			binaries.put("binary-" + i, data);
+		}
+		return binaries;
+	}
+
+	static List<Binary> open(Map<String, byte[]> binaries,
+			CheckingListener listener)
+	{
+		List<Binary> list = new ArrayList<Binary>();
+		for(Map.Entry<String, byte[]> e: binaries.entrySet()){
+			if(listener.completed.contains(e.getKey()))
+				continue;
+			byte[] data = e.getValue();
+			Binary binary = new Binary("element", e.getKey(),
+					ElementType.PICTURE, null, new ByteArrayInputStream(data),
+					data.length, listener.get(e.getKey()));
+			binary.setHash(DigestUtils.sha256Hex(data));
+			list.add(binary);
+		}
+		return list;
+	}
+
+	/**
+	 * Uploads the binaries, resuming from the committed progress whenever an
+	 * upload is abandoned, as the background uploader would.
+	 *
+	 * @return the number of uploads which were abandoned.
+	 */
+	static int uploadUntilComplete(StandInMDS server, int window,
+			Map<String, byte[]> binaries) throws IOException
+	{
+		CheckingListener listener = new CheckingListener(server);
+		int resumes = 0;
+		while(true){
+			BinaryUploadEngine engine = new BinaryUploadEngine(
+					new APITransport(server), listener, window,
+					newController());
+			try {
+				engine.upload(open(binaries, listener));
+				listener.verify();
+				break;
+			} catch (IOException e) {
+				listener.verify();
+				Log.i(TAG, "Upload abandoned, resuming: " + e.getMessage());
+				assertTrue("upload never completed", ++resumes < MAX_RESUMES);
+			}
+		}
+		for(Map.Entry<String, byte[]> e: binaries.entrySet()){
+			assertTrue(e.getKey()
+					+ " was not completed",
+					listener.completed.contains(e.getKey()));
+			assertTrue(e.getKey() + " was not received intact",
+					Arrays.equals(e.getValue(), server.getBinary(e.getKey())));
+		}
+		return resumes;
+	}
+
+	/**
+	 * Uploads several binaries through a clean connection.
+	 * @param window the number of chunks in flight.
+	 */
+	public static void testUpload(int window) throws IOException {
+		StandInMDS server = new StandInMDS(1);
+		server.start();
+		try {
+			uploadUntilComplete(server, window,
+					createBinaries(window, 100000, 37000, 0, 1, PACKET_SIZE));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Uploads several binaries through a slow connection which loses
+	 * requests and responses.
+	 * @param window the number of chunks in flight.
+	 * @param latency the delay, in milliseconds, of each request.
+	 * @param loss the fraction of requests or responses lost.
+	 * @return the number of times the upload was resumed.
+	 */
+	public static int testLossyUpload(int window, int latency, double loss)
+		throws IOException
+	{
+		StandInMDS server = new StandInMDS(window);
+		server.setLatency(latency);
+		server.setLossRate(loss);
+		server.start();
+		try {
+			int resumes = uploadUntilComplete(server, window,
+					createBinaries(7, 120000, 45000, 3000));
+			assertTrue("no exchanges were lost", server.getLostCount() > 0);
+			return resumes;
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Chunk buffers must be reused rather than allocated for each chunk.
+	 * @param window the number of chunks in flight.
+	 */
+	public static void testBufferReuse(int window) throws IOException {
+		StandInMDS server = new StandInMDS(2);
+		server.start();
+		try {
+			int[] sizes = new int[20];
+			Arrays.fill(sizes, 1000);
+			Map<String, byte[]> binaries = createBinaries(2, sizes);
+			CheckingListener listener = new CheckingListener(server);
+			BinaryUploadEngine engine = new BinaryUploadEngine(
+					new APITransport(server), listener, window,
+					newController());
+			engine.upload(open(binaries, listener));
+			listener.verify();
+			assertTrue(listener.completed.size() + " binaries completed",
+					listener.completed.size() == sizes.length);
+			assertTrue("allocated " + engine.getAllocatedBufferCount()
+					+ " buffers for a window of " + window,
+					engine.getAllocatedBufferCount() <= window);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Chunks must be sent over a few kept alive connections rather than a
+	 * new connection each.
+	 * @param window the number of chunks in flight.
+	 */
+	public static void testConnectionReuse(int window) throws IOException {
+		StandInMDS server = new StandInMDS(4);
+		server.start();
+		try {
+			long requests = HttpClientPool.getRequestCount();
+			long reused = HttpClientPool.getReusedCount();
+			int[] sizes = new int[10];
+			Arrays.fill(sizes, 5000);
+			uploadUntilComplete(server, window, createBinaries(4, sizes));
+			int sent = (int) (HttpClientPool.getRequestCount() - requests);
+			assertTrue(sent + " requests sent", sent >= sizes.length);
+			assertTrue(server.getConnectionCount() + " connections for a window"
+					+ " of " + window,
+					server.getConnectionCount() <= window + 1);
+			assertTrue("reuse not counted: "
+					+ HttpClientPool.getStatistics(),
+					HttpClientPool.getReusedCount() - reused
+					>= sent - server.getConnectionCount());
+		} finally {
+			server.stop();
+			HttpClientPool.shutdown();
+		}
+	}
+
+	/**
+	 * Binaries opened as files must be sent straight from the file, without
+	 * chunk buffers, including the chunks which are retried and a binary
+	 * which is resumed.
+	 * @param window the number of chunks in flight.
+	 */
+	public static void testFileUpload(int window) throws IOException {
+		StandInMDS server = new StandInMDS(5);
+		server.setLossRate(0.1);
+		server.start();
+		List<File> files = new ArrayList<File>();
+		try {
+			Map<String, byte[]> binaries = createBinaries(5, 150000, 20000, 1);
+			CheckingListener listener = new CheckingListener(server);
+			int resumes = 0;
+			while(listener.completed.size() < binaries.size()){
+				List<Binary> list = new ArrayList<Binary>();
+				for(Map.Entry<String, byte[]> e: binaries.entrySet()){
+					if(listener.completed.contains(e.getKey()))
+						continue;
+					File file = File.createTempFile(e.getKey(), ".bin");
+					files.add(file);
+					FileOutputStream out = new FileOutputStream(file);
+					out.write(e.getValue());
+					out.close();
+					FileChannel channel = new RandomAccessFile(file, "r")
+						.getChannel();
+					list.add(new Binary("element", e.getKey(),
+							ElementType.PICTURE, null, channel,
+							e.getValue().length, listener.get(e.getKey())));
+				}
+				BinaryUploadEngine engine = new BinaryUploadEngine(
+						new APITransport(server), listener, window,
+						newController());
+				try {
+					engine.upload(list);
+				} catch (IOException e) {
+					assertTrue("upload never completed",
+							++resumes < MAX_RESUMES);
+				}
+				listener.verify();
+				assertTrue("allocated "
+						+ engine.getAllocatedBufferCount() + " buffers",
+						engine.getAllocatedBufferCount() == 0);
+				for(Binary binary: list)
+					assertTrue(binary.guid
+							+ " was left open",
+							!binary.channel.isOpen());
+			}
+			assertTrue("no exchanges were lost", server.getLostCount() > 0);
+			for(Map.Entry<String, byte[]> e: binaries.entrySet()){
+				assertTrue(e.getKey()
+						+ " was not received intact",
+						Arrays.equals(e.getValue(),
+						server.getBinary(e.getKey())));
+			}
+		} finally {
+			server.stop();
+			for(File file: files)
+				file.delete();
+		}
+	}
+
+	/**
+	 * Resuming a binary must not send any of the bytes already committed.
+	 */
+	public void testResume() throws IOException, APIException {
+		StandInMDS server = new StandInMDS(3);
+		server.start();
+		try {
+			byte[] data = createBinaries(3, 50000).get("binary-0");
+			int progress = 20000;
+			// the bytes sent before the upload was killed
+			assertTrue("first upload failed",
+					new MocaAPI(server.getHost(), "test", "test")
+					.transmitBinarySequence(SAVED_PROCEDURE, "element",
+					"binary-0", ElementType.PICTURE.toString(),
+					ElementType.PICTURE.getFilename(), data.length, 0,
+					progress, data, 0, progress));
+			CheckingListener listener = new CheckingListener(server);
+			BinaryUploadEngine engine = new BinaryUploadEngine(
+					new APITransport(server), listener, 4,
+					newController());
+			List<Binary> list = new ArrayList<Binary>();
+			list.add(new Binary("element", "binary-0", ElementType.PICTURE,
+					null, new ByteArrayInputStream(data), data.length,
+					progress));
+			engine.upload(list);
+			listener.verify();
+			List<Integer> offsets = server.getChunkOffsets("binary-0");
+			assertTrue("resumed at " + offsets.get(1)
+					+ " rather than " + progress,
+					offsets.get(1) == progress);
+			assertTrue("binary-0 was not received intact",
+					Arrays.equals(data, server.getBinary("binary-0")));
+			assertTrue("progress is " + list.get(0).getProgress(),
+					list.get(0).getProgress() == data.length);
+			assertTrue("not completed",
+					listener.completed.contains("binary-0"));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A chunk which fails must not be sent again, nor any other chunk be
+	 * started, before the retry policy's wait.
+	 */
+	public void testRetryBackoff() throws IOException {
+		final int failures = 3;
+		final long delay = 200;
+		StandInMDS server = new StandInMDS(1);
+		server.start();
+		try {
+			final List<Long> sends = new ArrayList<Long>();
+			final APITransport api = new APITransport(server);
+			BinaryUploadEngine.ChunkTransport transport =
+				new BinaryUploadEngine.ChunkTransport(){
+				public boolean send(Binary binary, Chunk chunk)
+					throws APIException
+				{
+					synchronized(sends){
+						sends.add(System.currentTimeMillis());
+						if(sends.size() <= failures)
+							return false;
+					}
+					return api.send(binary, chunk);
+				}
+
+				public int getOffset(Binary binary) throws APIException {
+					return api.getOffset(binary);
+				}
+			};
+			Map<String, byte[]> binaries = createBinaries(4, 40000);
+			CheckingListener listener = new CheckingListener(server);
+			BinaryUploadEngine engine = new BinaryUploadEngine(transport,
+					listener, 1, newController());
+			engine.setRetryPolicy(new RetryPolicy(delay, delay * 4,
+					failures + 1));
+			engine.upload(open(binaries, listener));
+			listener.verify();
+			assertTrue("binary-0 was not received intact",
+					Arrays.equals(binaries.get("binary-0"),
+					server.getBinary("binary-0")));
+			for(int i = 1; i <= failures; i++){
+				long wait = sends.get(i) - sends.get(i - 1);
+				long least = new RetryPolicy(delay, delay * 4, failures + 1)
+					.getCeiling(i) / 2;
+				assertTrue("retry " + i + " after " + wait
+						+ " ms rather than at least " + least,
+						wait >= least);
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A binary received in full is held by its digest, and the MDS answers
+	 * which of the binaries asked about it holds. An MDS which does not know
+	 * the request fails it, so that everything is sent.
+	 */
+	public void testKnownBinaries() throws IOException, APIException {
+		StandInMDS server = new StandInMDS(6);
+		server.start();
+		try {
+			Map<String, byte[]> binaries = createBinaries(6, 30000, 2000);
+			byte[] sent = binaries.get("binary-0");
+			MocaAPI api = new MocaAPI(server.getHost(), "test", "test");
+			assertTrue("upload failed",
+					api.transmitBinarySequence(SAVED_PROCEDURE, "element",
+					"binary-0", ElementType.PICTURE.toString(),
+					ElementType.PICTURE.getFilename(), sent.length, 0,
+					sent.length, sent, 0, sent.length));
+
+			List<Binary> list = new ArrayList<Binary>();
+			for(String guid: new String[]{ "binary-0", "binary-1" }){
+				byte[] data = binaries.get(guid);
+				Binary binary = new Binary("element", "copy-of-" + guid,
+						ElementType.PICTURE, null,
+						new ByteArrayInputStream(data), data.length, 0);
+				binary.setHash(DigestUtils.sha256Hex(data));
+				list.add(binary);
+			}
+			Set<String> known = api.findKnownBinaries(SAVED_PROCEDURE, list);
+			assertTrue("held " + known, known.size() == 1);
+			assertTrue("binary-0 not held",
+					known.contains(list.get(0).getHash()));
+
+			server.setLookupsEnabled(false);
+			try {
+				api.findKnownBinaries(SAVED_PROCEDURE, list);
+				assertTrue("lookup did not fail", false);
+			} catch (APIException e) {
+				// an older MDS is sent everything
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Chunks damaged in transit, dropped or acknowledged out of order must
+	 * be refused by their digest and sent again, so that every binary is
+	 * received intact.
+	 * @param window the number of chunks in flight.
+	 */
+	public static void testCorruptedChunks(int window) throws IOException {
+		StandInMDS server = new StandInMDS(8 + window);
+		server.setCorruptionRate(0.2);
+		server.setLossRate(0.1);
+		server.start();
+		try {
+			uploadUntilComplete(server, window,
+					createBinaries(8, 90000, 30000, 500));
+			assertTrue("no chunks were damaged",
+					server.getCorruptedCount() > 0);
+			assertTrue("discarded "
+					+ server.getDiscarded(),
+					server.getDiscarded().isEmpty());
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A binary is resumed from the offset the server has committed, whether
+	 * that is behind the recorded progress, as when the server lost data, or
+	 * ahead of it, as when an acknowledgement was lost.
+	 */
+	public void testServerOffset() throws IOException, APIException {
+		StandInMDS server = new StandInMDS(9);
+		server.start();
+		try {
+			byte[] data = createBinaries(9, 60000).get("binary-0");
+			MocaAPI api = new MocaAPI(server.getHost(), "test", "test");
+			assertTrue("first upload failed",
+					api.transmitBinarySequence(SAVED_PROCEDURE, "element",
+					"binary-0", ElementType.PICTURE.toString(),
+					ElementType.PICTURE.getFilename(), data.length, 0,
+					30000, data, 0, 30000));
+			server.truncate("binary-0", 10000);
+			assertTrue("did not resume where the server lost data",
+					upload(server, "binary-0", data, 30000) == 10000);
+
+			assertTrue("first upload failed",
+					api.transmitBinarySequence(SAVED_PROCEDURE, "element",
+					"binary-1", ElementType.PICTURE.toString(),
+					ElementType.PICTURE.getFilename(), data.length, 0,
+					40000, data, 0, 40000));
+			assertTrue("sent again what the server holds",
+					upload(server, "binary-1", data, 20000) == 40000);
+		} finally {
+			server.stop();
+		}
+	}
+
+	// resumes a binary from recorded progress, returns the first offset sent
+	static int upload(StandInMDS server, String guid, byte[] data,
+			int progress) throws IOException
+	{
+		final List<Integer> starts = new ArrayList<Integer>();
+		final APITransport api = new APITransport(server);
+		BinaryUploadEngine.ChunkTransport transport =
+			new BinaryUploadEngine.ChunkTransport(){
+			public boolean send(Binary binary, Chunk chunk)
+				throws APIException
+			{
+				synchronized(starts){
+					starts.add(chunk.start);
+				}
+				return api.send(binary, chunk);
+			}
+
+			public int getOffset(Binary binary) throws APIException {
+				return api.getOffset(binary);
+			}
+		};
+		CheckingListener listener = new CheckingListener(server);
+		List<Binary> list = new ArrayList<Binary>();
+		Binary binary = new Binary("element", guid, ElementType.PICTURE,
+				null, new ByteArrayInputStream(data), data.length, progress);
+		binary.setHash(DigestUtils.sha256Hex(data));
+		list.add(binary);
+		new BinaryUploadEngine(transport, listener, 2, newController())
+			.upload(list);
+		listener.verify();
+		assertTrue(guid + " not completed", listener.completed.contains(guid));
+		assertTrue(guid + " was not received intact",
+				Arrays.equals(data, server.getBinary(guid)));
+		return starts.isEmpty()? data.length: starts.get(0);
+	}
+
+	/**
+	 * A binary whose reassembled bytes do not match its digest is discarded
+	 * by the server and must not be reported complete. A server which does
+	 * not report offsets is trusted by its acknowledgements.
+	 */
+	public void testWholeDigest() throws IOException {
+		StandInMDS server = new StandInMDS(10);
+		server.start();
+		try {
+			byte[] data = createBinaries(10, 25000).get("binary-0");
+			CheckingListener listener = new CheckingListener(server);
+			List<Binary> list = new ArrayList<Binary>();
+			Binary binary = new Binary("element", "binary-0",
+					ElementType.PICTURE, null, new ByteArrayInputStream(data),
+					data.length, 0);
+			binary.setHash(DigestUtils.sha256Hex("something else"));
+			list.add(binary);
+			try {
+				new BinaryUploadEngine(new APITransport(server), listener, 3,
+						newController()).upload(list);
+				assertTrue("a binary with the wrong digest was accepted",
+						false);
+			} catch (IOException e) {
+				// the server holds none of it
+			}
+			listener.verify();
+			assertTrue("reported complete", listener.completed.isEmpty());
+			assertTrue("not discarded",
+					server.getDiscarded().contains("binary-0"));
+
+			server.setOffsetsEnabled(false);
+			uploadUntilComplete(server, 3, createBinaries(11, 20000, 3000));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Interrupting an upload must abort the chunks in flight rather than wait
+	 * for their responses, and return only once no chunk is being sent, so
+	 * that the files are not closed under a request.
+	 * @param window the number of chunks in flight.
+	 */
+	public static void testCancel(int window) throws IOException,
+		InterruptedException
+	{
+		final int latency = 3000;
+		StandInMDS server = new StandInMDS(12);
+		server.setLatency(latency);
+		server.start();
+		byte[] data = createBinaries(12, 200000).get("binary-0");
+		File file = File.createTempFile("binary-0", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(data);
+			out.close();
+			final List<Binary> list = new ArrayList<Binary>();
+			list.add(new Binary("element", "binary-0", ElementType.PICTURE,
+					null, new RandomAccessFile(file, "r").getChannel(),
+					data.length, 0));
+			CheckingListener listener = new CheckingListener(server);
+			final BinaryUploadEngine engine = new BinaryUploadEngine(
+					new APITransport(server), listener, window,
+					newController());
+			final IOException[] failure = new IOException[1];
+			final boolean[] interrupted = new boolean[1];
+			Thread uploader = new Thread(TAG){
+				public void run(){
+					try {
+						engine.upload(list);
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+					interrupted[0] = isInterrupted();
+				}
+			};
+			uploader.start();
+			// let the first chunks reach the server
+			Thread.sleep(latency / 6);
+			long start = System.currentTimeMillis();
+			uploader.interrupt();
+			uploader.join(latency * 2);
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue("the upload did not stop", !uploader.isAlive());
+			assertTrue("took " + elapsed
+					+ " ms to stop rather than aborting",
+					elapsed < latency / 2);
+			assertTrue("the interrupted upload did not fail",
+					failure[0] != null);
+			assertTrue("the interrupt was not kept", interrupted[0]);
+			assertTrue("binary-0 was left open", !list.get(0).channel.isOpen());
+			int requests = server.getRequests().size();
+			Thread.sleep(latency / 3);
+			assertTrue("chunks were sent after the upload returned",
+					server.getRequests().size() == requests);
+			listener.verify();
+		} finally {
+			server.stop();
+			file.delete();
+		}
+	}
+
+	/** Uploads with one to four chunks in flight. */
+	public void testUpload() throws IOException {
+		for(int window = 1; window <= 4; window++)
+			testUpload(window);
+	}
+
+	/** Reuses chunk buffers with one to four chunks in flight. */
+	public void testBufferReuse() throws IOException {
+		for(int window = 1; window <= 4; window++)
+			testBufferReuse(window);
+	}
+
+	/** Reuses connections with one to four chunks in flight. */
+	public void testConnectionReuse() throws IOException {
+		for(int window = 1; window <= 4; window++)
+			testConnectionReuse(window);
+	}
+
+	/** Uploads files with one to four chunks in flight. */
+	public void testFileUpload() throws IOException {
+		for(int window = 1; window <= 4; window++)
+			testFileUpload(window);
+	}
+
+	/** Resends corrupted chunks with one and with four chunks in flight. */
+	public void testCorruptedChunks() throws IOException {
+		for(int window = 1; window <= 4; window += 3)
+			testCorruptedChunks(window);
+	}
+
+	/** Cancels with one and with four chunks in flight. */
+	public void testCancel() throws IOException, InterruptedException {
+		testCancel(1);
+		testCancel(4);
+	}
+
+	/** Uploads over lossy links, with and without chunks in parallel. */
+	public void testLossyUpload() throws IOException {
+		int resumes = testLossyUpload(4, 20, 0.2);
+		Log.i(TAG, "Lossy upload resumed " + resumes + " times");
+		resumes = testLossyUpload(1, 5, 0.25);
+		Log.i(TAG, "Lossy sequential upload resumed " + resumes + " times");
+	}
+}
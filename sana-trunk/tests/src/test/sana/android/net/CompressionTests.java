@@ -0,0 +1,360 @@
+package test.sana.android.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sana.android.Constants;
+import org.sana.android.net.APIException;
+import org.sana.android.net.Base64FormEntity;
+import org.sana.android.net.ByteArrayRangeBody;
+import org.sana.android.net.CompactResponses;
+import org.sana.android.net.GzipEntity;
+import org.sana.android.net.MocaAPI;
+
+import android.util.Log;
+
+/**
+ * Exercises compressed request bodies, which are sent only when enabled, the
+ * fallback to uncompressed bodies for servers which refuse them, the compact
+ * form of case responses and the streamed Base64 encoding of the upload hack,
+ * against a {@link StandInMDS}.
+ *
+ * @author Sana Development
+ *
+ */
+public class CompressionTests extends TestCase {
+	public static final String TAG = CompressionTests.class.getSimpleName();
+
+	static final String PHONE = "5555550100";
+
+	/** An element map like the one built for an encounter. */
+	static Map<String, Map<String,String>> createElementMap(int count){
+		Map<String, Map<String,String>> elementMap =
+			new LinkedHashMap<String, Map<String,String>>();
+		for(int i = 0; i < count; i++){
+			Map<String,String> element = new HashMap<String,String>();
+			element.put("question", "How many days has symptom " + i
+					+ " been present?");
+			element.put("answer", (i % 3 == 0)? "": Integer.toString(i));
+			element.put("type", (i % 5 == 0)? "PICTURE": "TEXT");
+			element.put("concept", (i % 2 == 0)? "": "SYMPTOM " + i);
+			elementMap.put("q" + i, element);
+		}
+		Map<String,String> title = new HashMap<String,String>();
+		title.put("answer", "Test Procedure");
+		title.put("id", "procedureTitle");
+		title.put("type", "HIDDEN");
+		elementMap.put("procedureTitle", title);
+		return elementMap;
+	}
+
+	static String toJSON(Map<String, Map<String,String>> elementMap){
+		JSONObject json = new JSONObject();
+		try {
+			for(Map.Entry<String, Map<String,String>> e:
+				elementMap.entrySet())
+			{
+				json.put(e.getKey(), new JSONObject(e.getValue()));
+			}
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Case responses must be sent compressed and stored intact, in fewer
+	 * bytes than the uncompressed form.
+	 */
+	public void testCompressedResponses() throws IOException,
+		APIException
+	{
+		StandInMDS server = new StandInMDS(1);
+		server.start();
+		try {
+			String responses = toJSON(createElementMap(40));
+			MocaAPI api = new MocaAPI(server.getHost(), "test", "test",
+					false, true);
+			assertTrue("responses were not accepted",
+					api.transmitCaseResponses("encounter-0", "0", PHONE,
+					responses));
+			StandInMDS.Request request = server.getRequests().get(0);
+			assertTrue("request was not compressed", request.compressed);
+			assertTrue(request.length
+					+ " bytes sent for " + responses.length()
+					+ " bytes of responses",
+					request.length < responses.length() / 2);
+			assertTrue("responses were not received intact",
+					responses.equals(server.getCases().get("encounter-0")));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Unless compression is enabled, case responses must be sent
+	 * uncompressed, so a server which cannot read compressed bodies
+	 * receives them in one request.
+	 */
+	public void testUncompressedByDefault() throws IOException,
+		APIException
+	{
+		StandInMDS server = new StandInMDS(7);
+		server.setCompressionEnabled(false);
+		server.start();
+		try {
+			String responses = toJSON(createElementMap(5));
+			MocaAPI api = new MocaAPI(server.getHost(), "test", "test");
+			assertTrue("compressing by default", !api.isCompressing());
+			assertTrue("responses were not accepted",
+					api.transmitCaseResponses("encounter-0", "0", PHONE,
+					responses));
+			assertTrue(server.getRequests().size()
+					+ " requests for 1 case",
+					server.getRequests().size() == 1);
+			assertTrue("request was compressed",
+					!server.getRequests().get(0).compressed);
+			assertTrue("responses were not received intact",
+					responses.equals(server.getCases().get("encounter-0")));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A server which refuses compressed bodies must still receive every
+	 * case, and compression must be tried only once.
+	 */
+	public void testRefusedCompression() throws IOException,
+		APIException
+	{
+		StandInMDS server = new StandInMDS(2);
+		server.setCompressionEnabled(false);
+		server.start();
+		try {
+			MocaAPI api = new MocaAPI(server.getHost(), "test", "test",
+					false, true);
+			Map<String, String> cases = new HashMap<String, String>();
+			for(int i = 0; i < 3; i++){
+				String guid = "encounter-" + i;
+				cases.put(guid, toJSON(createElementMap(i + 1)));
+				assertTrue(guid + " was not accepted",
+						api.transmitCaseResponses(guid, "0", PHONE,
+						cases.get(guid)));
+			}
+			assertTrue("still compressing", !api.isCompressing());
+			int compressed = 0;
+			for(StandInMDS.Request request: server.getRequests()){
+				if(request.compressed)
+					compressed++;
+			}
+			assertTrue(compressed + " compressed requests", compressed == 1);
+			assertTrue(server.getRequests().size()
+					+ " requests for 3 cases",
+					server.getRequests().size() == 4);
+			assertTrue("cases were not received"
+					+ " intact",
+					server.getCases().equals(cases));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A malformed request refused with 400 must not be sent again, nor turn
+	 * compression off for the requests which follow.
+	 */
+	public void testBadRequest() throws IOException {
+		StandInMDS server = new StandInMDS(6);
+		server.malformed("encounter-bad");
+		server.start();
+		try {
+			MocaAPI api = new MocaAPI(server.getHost(), "test", "test",
+					false, true);
+			String responses = toJSON(createElementMap(5));
+			try {
+				api.transmitCaseResponses("encounter-bad", "0", PHONE,
+						responses);
+				assertTrue("a malformed request was accepted", false);
+			} catch (APIException e) {
+				// the server's answer to the request
+			}
+			assertTrue(server.getRequests()
+					.size() + " requests for a malformed case",
+					server.getRequests().size() == 1);
+			assertTrue("compression was turned off", api.isCompressing());
+			MocaAPI other = new MocaAPI(server.getHost(), "test", "test",
+					false, true);
+			assertTrue("responses were not accepted",
+					other.transmitCaseResponses("encounter-0", "0", PHONE,
+					responses));
+			assertTrue("request after a malformed one was not compressed",
+					server.getRequests().get(1).compressed);
+		} catch (APIException e) {
+			fail(e.toString());
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Compact responses must be smaller than the full form and expand back
+	 * to the same elements.
+	 */
+	public void testCompactResponses() throws IOException,
+		APIException, JSONException
+	{
+		Map<String, Map<String,String>> elementMap = createElementMap(40);
+		String full = toJSON(elementMap);
+		String compact = CompactResponses.encode(elementMap).toString();
+		Log.i(TAG, "Responses: " + full.length() + " bytes full, "
+				+ compact.length() + " compact");
+		assertTrue(compact.length()
+				+ " bytes compact, " + full.length() + " full",
+				compact.length() < full.length());
+
+		StandInMDS server = new StandInMDS(3);
+		server.start();
+		try {
+			MocaAPI api = new MocaAPI(server.getHost(), "test", "test",
+					false, true);
+			assertTrue("responses were not accepted",
+					api.transmitCaseResponses("encounter-0", "0", PHONE,
+					compact));
+			JSONObject stored = new JSONObject(
+					server.getCases().get("encounter-0"));
+			assertTrue(stored.length()
+					+ " elements stored of " + elementMap.size(),
+					stored.length() == elementMap.size());
+			for(Map.Entry<String, Map<String,String>> e:
+				elementMap.entrySet())
+			{
+				JSONObject element = stored.getJSONObject(e.getKey());
+				assertTrue("id of "
+						+ e.getKey() + " was " + element.optString("id"),
+						e.getKey().equals(element.getString("id")));
+				for(String key: e.getValue().keySet()){
+					assertTrue(key + " of "
+							+ e.getKey() + " was " + element.optString(key),
+							e.getValue().get(key).equals(
+							element.optString(key)));
+				}
+				Iterator<?> keys = element.keys();
+				while(keys.hasNext()){
+					String key = (String) keys.next();
+					assertTrue("unexpected " + key + " in " + e.getKey(),
+							key.equals("id") || e.getValue().containsKey(key));
+				}
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Base64 encoded chunks must be sent compressed, in little more than the
+	 * length of the binary, and stored intact.
+	 */
+	public void testBase64Compressed() throws IOException,
+		APIException
+	{
+		StandInMDS server = new StandInMDS(4);
+		server.start();
+		try {
+			byte[] data = new byte[30000];
+			new Random(4).nextBytes(data);
+			MocaAPI api = new MocaAPI(server.getHost(), "test", "test",
+					false, true);
+			assertTrue("chunk was not accepted",
+					api.transmitBinarySequenceAsBase64Text("encounter-0", "q0",
+					"binary-0", "PICTURE", "q0.jpg", data.length, 0,
+					data.length, data));
+			StandInMDS.Request request = server.getRequests().get(0);
+			assertTrue("sent to "
+					+ request.path,
+					request.path.startsWith(
+					Constants.BINARYCHUNK_HACK_SUBMIT_PATTERN));
+			assertTrue("request was not compressed", request.compressed);
+			assertTrue(request.length
+					+ " bytes sent for " + data.length + " bytes of data",
+					request.length < 1.1 * data.length);
+			assertTrue("binary was not received intact",
+					Arrays.equals(data, server.getBinary("binary-0")));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A binary streamed through a Base64FormEntity must give the same body
+	 * as a UrlEncodedFormEntity holding its Base64 text, with the length
+	 * reported in advance, and so must its compressed form.
+	 */
+	public void testBase64Entity() throws IOException {
+		Random random = new Random(5);
+		List<NameValuePair> fields = new ArrayList<NameValuePair>();
+		fields.add(new BasicNameValuePair("binary_guid", "binary-0"));
+		fields.add(new BasicNameValuePair("note", "a b&c=d/\u00e9"));
+		int[] sizes = { 0, 1, 2, 3, 4, 5000, 6144, 6145, 20000, 100000 };
+		for(int size: sizes){
+			int offset = 7;
+			byte[] data = new byte[offset + size];
+			random.nextBytes(data);
+			byte[] range = new byte[size];
+			System.arraycopy(data, offset, range, 0, size);
+			List<NameValuePair> form = new ArrayList<NameValuePair>(fields);
+			form.add(new BasicNameValuePair("byte_data",
+					new String(new Base64().encode(range))));
+			byte[] expected = EntityUtils.toByteArray(
+					new UrlEncodedFormEntity(form, "UTF-8"));
+
+			Base64FormEntity entity = new Base64FormEntity(fields,
+					"byte_data", new ByteArrayRangeBody(data, offset, size,
+							"binary"));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			entity.writeTo(out);
+			assertTrue("body of "
+					+ size + " bytes differs",
+					Arrays.equals(expected, out.toByteArray()));
+			assertTrue("length "
+					+ entity.getContentLength() + " of " + expected.length,
+					entity.getContentLength() == expected.length);
+
+			GzipEntity gzip = new GzipEntity(entity);
+			long length = gzip.getContentLength();
+			out = new ByteArrayOutputStream();
+			gzip.writeTo(out);
+			assertTrue("compressed length " + length
+					+ " but " + out.size() + " bytes written",
+					out.size() == length);
+			GZIPInputStream in = new GZIPInputStream(
+					new ByteArrayInputStream(out.toByteArray()));
+			ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while((n = in.read(buffer)) > 0)
+				inflated.write(buffer, 0, n);
+			assertTrue("compressed body of " + size + " bytes differs",
+					Arrays.equals(expected, inflated.toByteArray()));
+		}
+	}
+}
@@ -0,0 +1,356 @@
+package test.sana.android.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.StringBody;
+import org.apache.http.message.BasicNameValuePair;
+import org.sana.android.net.Base64FormEntity;
+import org.sana.android.net.FileRangeBody;
+import org.sana.android.procedure.ProcedureElement.ElementType;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Measures the bytes allocated per megabyte of binary written as multipart
+ * chunk requests, as MocaAPI builds them, when each chunk is read into a new
+ * array for a {@link ByteArrayBody} and when it is streamed from the file by
+ * a {@link FileRangeBody}. The same is measured for the Base64 forms of the
+ * upload hack, encoded into new arrays or by a {@link Base64FormEntity}. The requests are written to a stream which
+ * discards them, so only the cost of building and writing the body is
+ * measured. Also checks that the content length reported for each request is
+ * the number of bytes written.
+ *
+ * Allocations are counted for the calling thread, with the HotSpot thread
+ * bean where available and with {@link Debug} on a device.
+ *
+ * @author Sana Development
+ *
+ */
+public class MultipartAllocationBenchmark extends TestCase {
+	public static final String TAG =
+		MultipartAllocationBenchmark.class.getSimpleName();
+
+	static final int MEGABYTE = 1024 * 1024;
+	static final int FILE_SIZE = 4 * MEGABYTE;
+	/** Rounds run before measuring, so that classes are loaded. */
+	static final int WARM_UP = 2;
+
+	/** Multipart chunks read into new arrays. */
+	public static final int COPIES = 0;
+	/** Multipart chunks streamed from the file. */
+	public static final int RANGES = 1;
+	/** Base64 form chunks encoded into new arrays and strings. */
+	public static final int BASE64_COPIES = 2;
+	/** Base64 form chunks encoded as they are streamed from the file. */
+	public static final int BASE64_RANGES = 3;
+
+	/** Counts and discards what is written. */
+	static class CountingSink extends OutputStream {
+		long count = 0;
+
+		@Override
+		public void write(int b){
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len){
+			count += len;
+		}
+	}
+
+	// HotSpot's com.sun.management.ThreadMXBean, if present
+	private static Object bean = null;
+	private static Method allocatedBytes = null;
+	static {
+		try {
+			bean = Class.forName("java.lang.management.ManagementFactory")
+				.getMethod("getThreadMXBean").invoke(null);
+			allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+				.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			bean = null;
+		}
+	}
+
+	/**
+	 * @return bytes allocated so far by the calling thread, or -1 if they
+	 * 		can not be counted.
+	 */
+	static long getAllocatedBytes(){
+		if(bean != null){
+			try {
+				return (Long) allocatedBytes.invoke(bean,
+						Thread.currentThread().getId());
+			} catch (Exception e) {
+				return -1;
+			}
+		}
+		try {
+			return Debug.getThreadAllocSize();
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	// starts the counting read by Debug.getThreadAllocSize()
+	static void startCounting(){
+		try {
+			Debug.resetThreadAllocSize();
+			Debug.startAllocCounting();
+		} catch (RuntimeException e) {
+			// not on a device
+		}
+	}
+
+	static void stopCounting(){
+		try {
+			Debug.stopAllocCounting();
+		} catch (RuntimeException e) {
+			// not on a device
+		}
+	}
+
+	static MultipartEntity createEntity(int fileSize, int start, int end,
+			ContentBody data) throws IOException
+	{
+		MultipartEntity entity = new MultipartEntity();
+		entity.addPart("procedure_guid", new StringBody("test-encounter"));
+		entity.addPart("element_id", new StringBody("element"));
+		entity.addPart("binary_guid", new StringBody("binary-0"));
+		entity.addPart("element_type", new StringBody(
+				ElementType.PICTURE.toString()));
+		entity.addPart("file_size", new StringBody(Integer.toString(fileSize)));
+		entity.addPart("byte_start", new StringBody(Integer.toString(start)));
+		entity.addPart("byte_end", new StringBody(Integer.toString(end)));
+		entity.addPart("byte_data", data);
+		return entity;
+	}
+
+	static void write(HttpEntity entity) throws IOException {
+		long length = entity.getContentLength();
+		CountingSink sink = new CountingSink();
+		entity.writeTo(sink);
+		assertTrue("content length " + length + " but "
+				+ sink.count + " bytes written",
+				length == sink.count);
+	}
+
+	// writes every chunk of the file, each read into a new array
+	static void writeCopies(File file, int chunkSize) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int size = (int) file.length();
+			for(int start = 0; start < size; start += chunkSize){
+				int length = Math.min(chunkSize, size - start);
+				byte[] data = new byte[length];
+				int read = 0;
+				while(read < length)
+					read += in.read(data, read, length - read);
+				write(createEntity(size, start, start + length,
+						new ByteArrayBody(data,
+								ElementType.PICTURE.getFilename())));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// writes every chunk of the file, streamed from its channel
+	static void writeRanges(File file, int chunkSize) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			int size = (int) channel.size();
+			for(int start = 0; start < size; start += chunkSize){
+				int length = Math.min(chunkSize, size - start);
+				write(createEntity(size, start, start + length,
+						new FileRangeBody(channel, start, length,
+								ElementType.PICTURE.getFilename())));
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	static List<NameValuePair> createForm(int fileSize, int start, int end){
+		List<NameValuePair> form = new ArrayList<NameValuePair>();
+		form.add(new BasicNameValuePair("procedure_guid", "test-encounter"));
+		form.add(new BasicNameValuePair("element_id", "element"));
+		form.add(new BasicNameValuePair("binary_guid", "binary-0"));
+		form.add(new BasicNameValuePair("element_type",
+				ElementType.PICTURE.toString()));
+		form.add(new BasicNameValuePair("file_size",
+				Integer.toString(fileSize)));
+		form.add(new BasicNameValuePair("byte_start", Integer.toString(start)));
+		form.add(new BasicNameValuePair("byte_end", Integer.toString(end)));
+		return form;
+	}
+
+	// writes every chunk of the file as a form, each read into a new array
+	// and encoded into a new array and string
+	static void writeBase64Copies(File file, int chunkSize)
+		throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int size = (int) file.length();
+			for(int start = 0; start < size; start += chunkSize){
+				int length = Math.min(chunkSize, size - start);
+				byte[] data = new byte[length];
+				int read = 0;
+				while(read < length)
+					read += in.read(data, read, length - read);
+				List<NameValuePair> form = createForm(size, start,
+						start + length);
+				form.add(new BasicNameValuePair("byte_data",
+						new String(new Base64().encode(data))));
+				write(new UrlEncodedFormEntity(form, "UTF-8"));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// writes every chunk of the file as a form, encoded as it is streamed
+	// from the channel
+	static void writeBase64Ranges(File file, int chunkSize)
+		throws IOException
+	{
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			int size = (int) channel.size();
+			for(int start = 0; start < size; start += chunkSize){
+				int length = Math.min(chunkSize, size - start);
+				write(new Base64FormEntity(createForm(size, start,
+						start + length), "byte_data", new FileRangeBody(
+								channel, start, length,
+								ElementType.PICTURE.getFilename())));
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	static void write(File file, int chunkSize, int method)
+		throws IOException
+	{
+		switch(method){
+		case COPIES:
+			writeCopies(file, chunkSize);
+			break;
+		case RANGES:
+			writeRanges(file, chunkSize);
+			break;
+		case BASE64_COPIES:
+			writeBase64Copies(file, chunkSize);
+			break;
+		case BASE64_RANGES:
+			writeBase64Ranges(file, chunkSize);
+			break;
+		default:
+			throw new IllegalArgumentException("No method " + method);
+		}
+	}
+
+	/**
+	 * Writes a file as chunks one way and measures the allocations.
+	 *
+	 * @param file the file.
+	 * @param chunkSize bytes per chunk.
+	 * @param method how the chunks are written, {@link #COPIES},
+	 * 		{@link #RANGES}, {@link #BASE64_COPIES} or
+	 * 		{@link #BASE64_RANGES}.
+	 * @return bytes allocated per megabyte of file, or -1 if allocations can
+	 * 		not be counted.
+	 */
+	public static long measure(File file, int chunkSize, int method)
+		throws IOException
+	{
+		for(int i = 0; i < WARM_UP; i++)
+			write(file, chunkSize, method);
+		boolean counting = (bean == null);
+		if(counting)
+			startCounting();
+		long before = getAllocatedBytes();
+		write(file, chunkSize, method);
+		long after = getAllocatedBytes();
+		if(counting)
+			stopCounting();
+		if(before < 0 || after < 0)
+			return -1;
+		return (after - before) * MEGABYTE / file.length();
+	}
+
+	/**
+	 * Runs the benchmark for a few chunk sizes, checking that streamed
+	 * chunks do not allocate the data they send.
+	 */
+	public void testChunkSizes() throws IOException {
+		File file = File.createTempFile("benchmark", ".bin");
+		try {
+			byte[] data = new byte[FILE_SIZE];
+			new Random(1).nextBytes(data);
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(data);
+			out.close();
+
+			int[] chunkSizes = { 8 * 1024, 64 * 1024, 512 * 1024 };
+			long smallest = -1;
+			for(int chunkSize: chunkSizes){
+				long copies = measure(file, chunkSize, COPIES);
+				long ranges = measure(file, chunkSize, RANGES);
+				Log.i(TAG, "Chunks of " + chunkSize + " bytes allocate "
+						+ copies + " bytes per MB copied, " + ranges
+						+ " streamed");
+				// what remains is the multipart headers of each request
+				if(ranges >= 0)
+					assertTrue("streamed chunks"
+							+ " allocate " + ranges + " bytes per MB, copied "
+							+ copies,
+							ranges < copies - MEGABYTE / 2);
+
+				copies = measure(file, chunkSize, BASE64_COPIES);
+				ranges = measure(file, chunkSize, BASE64_RANGES);
+				Log.i(TAG, "Base64 chunks of " + chunkSize + " bytes allocate "
+						+ copies + " bytes per MB copied, " + ranges
+						+ " streamed");
+				// what remains is the encoders' fixed buffers, allocated for
+				// each request and again to find its length
+				if(ranges >= 0)
+					assertTrue("streamed Base64 chunks"
+							+ " allocate " + ranges + " bytes per MB, copied "
+							+ copies,
+							ranges < copies / 2);
+				// the buffers are fixed, so larger chunks allocate less
+				if(smallest >= 0)
+					assertTrue("Base64 chunks of " + chunkSize
+							+ " bytes allocate " + ranges + " bytes per MB",
+							ranges <= smallest);
+				smallest = ranges;
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
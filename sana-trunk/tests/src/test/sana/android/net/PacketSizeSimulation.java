@@ -0,0 +1,284 @@
+package test.sana.android.net;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.sana.android.net.PacketSizeController;
+
+import android.util.Log;
+
+/**
+ * Replays throughput traces against a {@link PacketSizeController} on a
+ * virtual clock, one chunk at a time. A chunk takes the per request delay of
+ * the current trace segment plus its length over the segment bandwidth, and
+ * fails if it outlasts the request timeout or is lost. The chance of losing
+ * a chunk grows with its length, so that neither the smallest nor the largest
+ * chunks are best.
+ *
+ * The traces are synthetic, built from the GPRS and EDGE rates noted in
+ * Constants and from wifi to mobile handovers.
+ *
+ * @author Sana Development
+ *
+ */
+public class PacketSizeSimulation extends TestCase {
+	public static final String TAG = PacketSizeSimulation.class.getSimpleName();
+
+	static final int MIN_PACKET_SIZE = 1000;
+	static final int MAX_PACKET_SIZE = 512000;
+	/** Milliseconds before an unanswered request is abandoned. */
+	static final int TIMEOUT = 30000;
+
+	/** A stretch of a trace with constant link properties. */
+	static class Segment {
+		final long duration;
+		// bytes per millisecond
+		final double bandwidth;
+		final int delay;
+		// chance that each KB of a chunk is lost
+		final double loss;
+
+		Segment(long duration, double bandwidth, int delay, double loss){
+			this.duration = duration;
+			this.bandwidth = bandwidth;
+			this.delay = delay;
+			this.loss = loss;
+		}
+	}
+
+	// GPRS: about 10KB/s with slow round trips
+	static final Segment[] GPRS = {
+		new Segment(600000, 10.6, 800, 0.0005),
+	};
+
+	// EDGE: varies between 12 and 28KB/s
+	static final Segment[] EDGE = {
+		new Segment(120000, 28.0, 400, 0.0002),
+		new Segment(120000, 12.0, 600, 0.0005),
+		new Segment(120000, 24.0, 400, 0.0002),
+		new Segment(120000, 16.0, 500, 0.0004),
+	};
+
+	// wifi which hands over to GPRS and back
+	static final Segment[] HANDOVER = {
+		new Segment(120000, 500.0, 50, 0.00002),
+		new Segment(300000, 7.0, 900, 0.001),
+		new Segment(120000, 500.0, 50, 0.00002),
+	};
+
+	/** The outcome of replaying a trace. */
+	static class Result {
+		long bytes = 0;
+		int chunks = 0;
+		int failures = 0;
+		int minSize = Integer.MAX_VALUE;
+		int maxSize = 0;
+		// bytes acknowledged in each segment
+		long[] segmentBytes;
+
+		double goodput(long millis){
+			return (double) bytes / millis;
+		}
+	}
+
+	/**
+	 * Replays a trace.
+	 *
+	 * @param controller the controller, which is updated.
+	 * @param trace the trace segments.
+	 * @param millis how long to replay for, at most the trace length.
+	 * @param seed seed for the losses.
+	 * @return the outcome.
+	 */
+	static Result replay(PacketSizeController controller, Segment[] trace,
+			long millis, long seed)
+	{
+		Random random = new Random(seed);
+		Result result = new Result();
+		result.segmentBytes = new long[trace.length];
+		long now = 0;
+		int index = 0;
+		long segmentEnd = trace[0].duration;
+		while(now < millis){
+			while(now >= segmentEnd && index < trace.length - 1)
+				segmentEnd += trace[++index].duration;
+			Segment segment = trace[index];
+			int size = controller.getPacketSize();
+			result.minSize = Math.min(result.minSize, size);
+			result.maxSize = Math.max(result.maxSize, size);
+			long sent = controller.onSend();
+			long elapsed = segment.delay + (long) (size / segment.bandwidth);
+			double delivered = Math.pow(1 - segment.loss, size / 1000.0);
+			result.chunks++;
+			if(elapsed > TIMEOUT){
+				now += TIMEOUT;
+				result.failures++;
+				controller.onFailure(sent);
+			} else if(random.nextDouble() >= delivered){
+				now += elapsed;
+				result.failures++;
+				controller.onFailure(sent);
+			} else {
+				now += elapsed;
+				if(now > millis)
+					break;
+				result.bytes += size;
+				result.segmentBytes[index] += size;
+				controller.onSuccess(sent, size, elapsed);
+			}
+		}
+		return result;
+	}
+
+	static long length(Segment[] trace){
+		long length = 0;
+		for(Segment segment: trace)
+			length += segment.duration;
+		return length;
+	}
+
+	static PacketSizeController newController(int packetSize){
+		return new PacketSizeController(packetSize, MIN_PACKET_SIZE,
+				MAX_PACKET_SIZE);
+	}
+
+	/**
+	 * The chunk size must stay within its bounds on every trace, whatever the
+	 * initial size.
+	 */
+	public void testBounds(){
+		Segment[][] traces = { GPRS, EDGE, HANDOVER };
+		int[] sizes = { 1, MIN_PACKET_SIZE, 20000, MAX_PACKET_SIZE, 10000000 };
+		for(Segment[] trace: traces){
+			for(int size: sizes){
+				Result result = replay(newController(size), trace,
+						length(trace), size);
+				assertTrue("size fell to "
+						+ result.minSize,
+						result.minSize >= MIN_PACKET_SIZE);
+				assertTrue("size rose to "
+						+ result.maxSize,
+						result.maxSize <= MAX_PACKET_SIZE);
+				assertTrue("nothing was delivered", result.bytes > 0);
+			}
+		}
+	}
+
+	/**
+	 * On a steady link the goodput must approach the link bandwidth and the
+	 * bandwidth estimate must settle close to it.
+	 */
+	public void testConvergence(){
+		Segment link = GPRS[0];
+		PacketSizeController controller = newController(MIN_PACKET_SIZE);
+		Result result = replay(controller, GPRS, link.duration, 1);
+		double goodput = result.goodput(link.duration);
+		Log.i(TAG, "GPRS goodput " + goodput + " of " + link.bandwidth
+				+ ": " + controller);
+		assertTrue("goodput " + goodput
+				+ " on a link of " + link.bandwidth,
+				goodput > 0.7 * link.bandwidth);
+		double estimate = controller.getBandwidth() / 1000;
+		assertTrue("estimated " + estimate + " on a link of " + link.bandwidth,
+				Math.abs(estimate - link.bandwidth) < 0.2 * link.bandwidth);
+		assertTrue("no delay estimate", controller.getDelay() > 0);
+	}
+
+	/**
+	 * After a handover to a slow link the chunk size must shrink to what the
+	 * slow link can carry, and grow again once back on the fast link.
+	 */
+	public void testHandover(){
+		long fast = HANDOVER[0].duration;
+		long slow = fast + HANDOVER[1].duration;
+		PacketSizeController controller = newController(20000);
+		Result result = replay(controller, HANDOVER, slow, 2);
+		int slowSize = controller.getPacketSize();
+		double estimate = controller.getBandwidth() / 1000;
+		assertTrue("estimated " + estimate
+				+ " on a link of " + HANDOVER[1].bandwidth,
+				estimate < 2 * HANDOVER[1].bandwidth);
+		long limit = (long) (HANDOVER[1].bandwidth * TIMEOUT);
+		assertTrue("size " + slowSize
+				+ " still outlasts the timeout",
+				slowSize < limit);
+		assertTrue("only " + result.segmentBytes[1]
+				+ " bytes delivered on the slow link",
+				result.segmentBytes[1] > 0.5 * HANDOVER[1].bandwidth
+				* HANDOVER[1].duration);
+
+		// the trace starts on the fast link again
+		replay(controller, HANDOVER, fast, 2);
+		assertTrue("size did not grow back from " + slowSize,
+				controller.getPacketSize() > slowSize);
+	}
+
+	/**
+	 * Chunks which were in flight together must reduce the size only once,
+	 * and their later acknowledgements must not grow it.
+	 */
+	public void testSingleReductionPerLoss(){
+		PacketSizeController controller = newController(64000);
+		long[] sent = new long[4];
+		for(int i = 0; i < sent.length; i++)
+			sent[i] = controller.onSend();
+		controller.onFailure(sent[0]);
+		int reduced = controller.getPacketSize();
+		assertTrue("reduced to " + reduced, reduced == 32000);
+		controller.onFailure(sent[1]);
+		controller.onSuccess(sent[2], 64000, 1000);
+		controller.onFailure(sent[3]);
+		assertTrue("size changed to "
+				+ controller.getPacketSize() + " during recovery",
+				controller.getPacketSize() == reduced);
+		controller.onSuccess(controller.onSend(), reduced, 1000);
+		assertTrue("size did not grow after"
+				+ " recovery",
+				controller.getPacketSize() > reduced);
+		assertTrue(controller.getFailureCount()
+				+ " failures",
+				controller.getFailureCount() == 3);
+	}
+
+	/**
+	 * A controller restored from the saved state of a network must start near
+	 * the last good size and deliver more in the first minute than one which
+	 * starts cold.
+	 */
+	public void testWarmStart(){
+		long minute = 60000;
+		PacketSizeController previous = newController(MIN_PACKET_SIZE);
+		replay(previous, EDGE, length(EDGE), 3);
+		String state = previous.encode();
+		PacketSizeController restored = PacketSizeController.decode(state,
+				MIN_PACKET_SIZE, MAX_PACKET_SIZE);
+		assertTrue("could not decode " + state, restored != null);
+		assertTrue("state changed from " + state
+				+ " to " + restored.encode(),
+				restored.encode().equals(state));
+		assertTrue("restored at " + restored.getPacketSize() + " above "
+				+ previous.getLastGoodPacketSize(),
+				restored.getPacketSize() <= previous.getLastGoodPacketSize());
+		assertTrue("restored at " + restored.getPacketSize(),
+				restored.getPacketSize() > 4 * MIN_PACKET_SIZE);
+
+		Result warm = replay(restored, EDGE, minute, 4);
+		Result cold = replay(newController(MIN_PACKET_SIZE), EDGE, minute, 4);
+		Log.i(TAG, "First minute: warm " + warm.bytes + ", cold "
+				+ cold.bytes);
+		assertTrue("warm start delivered " + warm.bytes
+				+ " and cold start " + cold.bytes,
+				warm.bytes > cold.bytes);
+
+		assertTrue("decoded null",
+				PacketSizeController.decode(null, MIN_PACKET_SIZE,
+				MAX_PACKET_SIZE) == null);
+		assertTrue("decoded another version",
+				PacketSizeController.decode("0,1,2,3,4,5,6", MIN_PACKET_SIZE,
+				MAX_PACKET_SIZE) == null);
+		assertTrue("decoded garbage",
+				PacketSizeController.decode("1,x,2,3,4,5,6", MIN_PACKET_SIZE,
+				MAX_PACKET_SIZE) == null);
+	}
+}
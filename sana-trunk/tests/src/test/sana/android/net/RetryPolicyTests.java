@@ -0,0 +1,59 @@
+package test.sana.android.net;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.sana.android.net.RetryPolicy;
+
+/**
+ * Checks the waits and budget of a {@link RetryPolicy}.
+ *
+ * @author Sana Development
+ *
+ */
+public class RetryPolicyTests extends TestCase {
+	/** The ceiling doubles after each failure up to the longest wait. */
+	public void testCeiling(){
+		RetryPolicy policy = new RetryPolicy(1000, 10000, 5);
+		long[] expected = { 1000, 2000, 4000, 8000, 10000, 10000 };
+		for(int i = 0; i < expected.length; i++){
+			assertTrue("ceiling after "
+					+ (i + 1) + " failures is " + policy.getCeiling(i + 1),
+					policy.getCeiling(i + 1) == expected[i]);
+		}
+		assertTrue("ceiling overflowed", policy.getCeiling(1000) == 10000);
+	}
+
+	/** Each wait falls between half the ceiling and the ceiling. */
+	public void testJitter(){
+		RetryPolicy policy = new RetryPolicy(1000, 60000, 10,
+				new Random(7));
+		for(int failures = 1; failures <= 10; failures++){
+			long ceiling = policy.getCeiling(failures);
+			long least = Long.MAX_VALUE;
+			long most = 0;
+			for(int i = 0; i < 1000; i++){
+				long delay = policy.getDelay(failures);
+				assertTrue("wait "
+						+ delay + " outside [" + ceiling / 2 + ", " + ceiling
+						+ "]",
+						delay >= ceiling / 2 && delay <= ceiling);
+				least = Math.min(least, delay);
+				most = Math.max(most, delay);
+			}
+			// the waits are spread out rather than all the same
+			assertTrue("waits after " + failures
+					+ " failures only spread over " + (most - least) + " ms",
+					most - least > ceiling / 4);
+		}
+	}
+
+	/** Retries are allowed until the budget is spent. */
+	public void testBudget(){
+		RetryPolicy policy = new RetryPolicy(10, 100, 3);
+		assertTrue("first attempt refused", policy.canRetry(0));
+		assertTrue("third attempt refused", policy.canRetry(2));
+		assertTrue("fourth attempt allowed", !policy.canRetry(3));
+	}
+}
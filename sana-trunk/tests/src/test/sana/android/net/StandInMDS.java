@@ -0,0 +1,712 @@
+package test.sana.android.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sana.android.Constants;
+import org.sana.android.net.APIResultCode;
+import org.sana.android.net.CompactResponses;
+
+/**
+ * A minimal, local stand in for the Mobile Dispatch Server. Accepts case
+ * responses, singly or in gzip compressed batches and in full or compact
+ * form, and binary chunks, as multipart or Base64 form posts, on the loopback interface and keeps
+ * everything it receives in memory so that uploads can be checked byte for
+ * byte.
+ *
+ * Connections are kept alive between requests, as by the real server, and
+ * the number of connections accepted is counted.
+ *
+ * Latency and loss may be injected. A lost exchange either drops the request
+ * before it is stored or drops the response after it is stored, with equal
+ * probability, so clients must tolerate both unacknowledged and repeated
+ * chunks.
+ *
+ * Chunks sent with digests are checked as the real server checks them. A
+ * chunk whose bytes do not match its digest is refused, and a binary whose
+ * reassembled bytes do not match the digest of the whole is discarded. The
+ * committed offset of a binary, the prefix held without a gap, can be asked
+ * for. Chunks may be damaged in transit, and the tail of a binary dropped,
+ * to exercise both.
+ *
+ * @author Sana Development
+ *
+ */
+public class StandInMDS {
+	public static final String TAG = StandInMDS.class.getSimpleName();
+
+	static final String ISO_8859_1 = "ISO-8859-1";
+
+	/** A request received by the server. */
+	public static class Request {
+		public final String path;
+		public final Map<String, byte[]> fields;
+		/** Whether the request body was gzip compressed. */
+		public final boolean compressed;
+		/** Length of the body as sent, before any decompression. */
+		public final int length;
+
+		Request(String path, Map<String, byte[]> fields, boolean compressed,
+				int length)
+		{
+			this.path = path;
+			this.fields = fields;
+			this.compressed = compressed;
+			this.length = length;
+		}
+
+		/** @return a field value as text, or null if not present. */
+		public String get(String name){
+			byte[] value = fields.get(name);
+			try {
+				return (value == null)? null: new String(value, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private final ServerSocket server;
+	private final Random random;
+	private volatile int latency = 0;
+	private volatile double loss = 0.0;
+	private volatile boolean running = false;
+	private volatile boolean batches = true;
+	private volatile boolean compression = true;
+	private Thread acceptor;
+
+	// guarded by this
+	private final List<Request> requests = new ArrayList<Request>();
+	private final Map<String, TreeMap<Integer, byte[]>> chunks =
+		new HashMap<String, TreeMap<Integer, byte[]>>();
+	private final Map<String, String> cases = new HashMap<String, String>();
+	// the size of each binary, a binary sent again at another size replaces it
+	private final Map<String, String> sizes = new HashMap<String, String>();
+	private final Set<String> rejected = new HashSet<String>();
+	private final Set<String> malformed = new HashSet<String>();
+	// digests of the binary content held
+	private final Set<String> known = new HashSet<String>();
+	private volatile boolean lookups = true;
+	private volatile boolean offsets = true;
+	private volatile double corruption = 0.0;
+	// the digest of each whole binary, as sent with its chunks
+	private final Map<String, String> fileHashes = new HashMap<String, String>();
+	// binaries discarded because they did not match their digest
+	private final List<String> discarded = new ArrayList<String>();
+	private int corrupted = 0;
+	private final Set<Socket> sockets = new HashSet<Socket>();
+	private int lost = 0;
+	private int connections = 0;
+
+	/**
+	 * Creates a server on an unused loopback port.
+	 * @param seed seed for the loss injection.
+	 * @throws IOException
+	 */
+	public StandInMDS(long seed) throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		random = new Random(seed);
+	}
+
+	/** @return the host and port, as used in the MDS url preference. */
+	public String getHost(){
+		return "127.0.0.1:" + server.getLocalPort();
+	}
+
+	/** @param millis delay before each request is handled. */
+	public void setLatency(int millis){
+		latency = millis;
+	}
+
+	/** @param rate fraction of exchanges which are lost, 0 to 1. */
+	public void setLossRate(double rate){
+		loss = rate;
+	}
+
+	/**
+	 * @param enabled whether batches of case responses are accepted, as
+	 * 		they are not by older servers.
+	 */
+	public void setBatchesEnabled(boolean enabled){
+		batches = enabled;
+	}
+
+	/**
+	 * @param enabled whether gzip compressed bodies are accepted. Refused
+	 * 		bodies are answered with 415 Unsupported Media Type.
+	 */
+	public void setCompressionEnabled(boolean enabled){
+		compression = enabled;
+	}
+
+	/**
+	 * @param enabled whether binaries held can be looked up, if not the
+	 * 		request is answered 404 as by an older MDS.
+	 */
+	public void setLookupsEnabled(boolean enabled){
+		lookups = enabled;
+	}
+
+	/**
+	 * @param enabled whether the committed offset of a binary can be asked
+	 * 		for, if not the request is answered 404 as by an older MDS.
+	 */
+	public void setOffsetsEnabled(boolean enabled){
+		offsets = enabled;
+	}
+
+	/**
+	 * @param rate fraction of chunks which have a byte changed in transit,
+	 * 		before they are checked, 0 to 1.
+	 */
+	public void setCorruptionRate(double rate){
+		corruption = rate;
+	}
+
+	/** @return the number of chunks damaged in transit. */
+	public synchronized int getCorruptedCount(){
+		return corrupted;
+	}
+
+	/** @return the binaries discarded for not matching their digest. */
+	public synchronized List<String> getDiscarded(){
+		return new ArrayList<String>(discarded);
+	}
+
+	/**
+	 * Drops what is held of a binary from an offset on, as a server which
+	 * lost data would.
+	 * @param guid the binary guid.
+	 * @param length the number of bytes kept.
+	 */
+	public synchronized void truncate(String guid, int length){
+		TreeMap<Integer, byte[]> received = chunks.get(guid);
+		if(received == null)
+			return;
+		TreeMap<Integer, byte[]> kept = new TreeMap<Integer, byte[]>();
+		for(Map.Entry<Integer, byte[]> e: received.entrySet()){
+			int start = e.getKey();
+			if(start >= length)
+				break;
+			byte[] data = e.getValue();
+			byte[] part = new byte[Math.min(data.length, length - start)];
+			System.arraycopy(data, 0, part, 0, part.length);
+			kept.put(start, part);
+		}
+		chunks.put(guid, kept);
+	}
+
+	/** @param hash the digest of binary content held already. */
+	public synchronized void addKnown(String hash){
+		known.add(hash);
+	}
+
+	/** @return the digests of the binary content held. */
+	public synchronized Set<String> getKnown(){
+		return new HashSet<String>(known);
+	}
+
+	/** @param guid a saved procedure whose responses are refused. */
+	public synchronized void reject(String guid){
+		rejected.add(guid);
+	}
+
+	/**
+	 * @param guid a saved procedure whose responses are answered with 400
+	 * 		Bad Request, as a malformed request would be.
+	 */
+	public synchronized void malformed(String guid){
+		malformed.add(guid);
+	}
+
+	/** Starts accepting connections. */
+	public void start(){
+		running = true;
+		acceptor = new Thread(TAG) {
+			public void run(){
+				while(running){
+					try {
+						final Socket socket = server.accept();
+						socket.setTcpNoDelay(true);
+						synchronized(StandInMDS.this){
+							sockets.add(socket);
+							connections++;
+						}
+						Thread connection = new Thread(TAG + "-connection") {
+							public void run(){
+								handle(socket);
+							}
+						};
+						connection.setDaemon(true);
+						connection.start();
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			}
+		};
+		acceptor.start();
+	}
+
+	/** Stops the server. */
+	public void stop(){
+		running = false;
+		try { server.close(); } catch (IOException e) {}
+		synchronized(this){
+			for(Socket socket: sockets){
+				try { socket.close(); } catch (IOException e) {}
+			}
+			sockets.clear();
+		}
+	}
+
+	/** @return the requests which were received and not lost. */
+	public synchronized List<Request> getRequests(){
+		return new ArrayList<Request>(requests);
+	}
+
+	/** @return the responses accepted for each saved procedure guid. */
+	public synchronized Map<String, String> getCases(){
+		return new HashMap<String, String>(cases);
+	}
+
+	/** @return the number of connections accepted. */
+	public synchronized int getConnectionCount(){
+		return connections;
+	}
+
+	/** @return the number of exchanges which were lost. */
+	public synchronized int getLostCount(){
+		return lost;
+	}
+
+	/**
+	 * The start offsets of every chunk received for a binary.
+	 * @param guid the binary guid.
+	 * @return the chunk offsets in ascending order.
+	 */
+	public synchronized List<Integer> getChunkOffsets(String guid){
+		TreeMap<Integer, byte[]> received = chunks.get(guid);
+		return (received == null)? new ArrayList<Integer>():
+			new ArrayList<Integer>(received.keySet());
+	}
+
+	/**
+	 * The number of bytes of a binary received without any gap.
+	 * @param guid the binary guid.
+	 * @return the length of the contiguous prefix received.
+	 */
+	public synchronized int getContiguousLength(String guid){
+		TreeMap<Integer, byte[]> received = chunks.get(guid);
+		int end = 0;
+		if(received == null)
+			return end;
+		for(Map.Entry<Integer, byte[]> e: received.entrySet()){
+			if(e.getKey() > end)
+				break;
+			end = Math.max(end, e.getKey() + e.getValue().length);
+		}
+		return end;
+	}
+
+	/**
+	 * Reassembles the contiguous prefix of a binary.
+	 * @param guid the binary guid.
+	 * @return the bytes received.
+	 */
+	public synchronized byte[] getBinary(String guid){
+		byte[] data = new byte[getContiguousLength(guid)];
+		TreeMap<Integer, byte[]> received = chunks.get(guid);
+		if(received == null)
+			return data;
+		for(Map.Entry<Integer, byte[]> e: received.entrySet()){
+			int start = e.getKey();
+			if(start >= data.length)
+				break;
+			byte[] chunk = e.getValue();
+			System.arraycopy(chunk, 0, data, start,
+					Math.min(chunk.length, data.length - start));
+		}
+		return data;
+	}
+
+	// 0 deliver, 1 drop the request, 2 drop the response
+	private synchronized int nextFate(){
+		if(random.nextDouble() >= loss)
+			return 0;
+		lost++;
+		return (random.nextBoolean())? 1: 2;
+	}
+
+	private void handle(Socket socket){
+		try {
+			InputStream in = socket.getInputStream();
+			while(running && exchange(socket, in));
+		} catch (Exception e) {
+			// connection failed, client will retry
+		} finally {
+			try { socket.close(); } catch (IOException e) {}
+			synchronized(this){
+				sockets.remove(socket);
+			}
+		}
+	}
+
+	// handles one request, returns whether the connection is kept open
+	private boolean exchange(Socket socket, InputStream in) throws Exception {
+		String requestLine = readLine(in);
+		if(requestLine == null)
+			return false;
+		String path = requestLine.split(" ")[1];
+		Map<String, String> headers = new HashMap<String, String>();
+		String line;
+		while((line = readLine(in)) != null && line.length() > 0){
+			int colon = line.indexOf(':');
+			headers.put(line.substring(0, colon).trim().toLowerCase(),
+					line.substring(colon + 1).trim());
+		}
+		if("100-continue".equalsIgnoreCase(headers.get("expect"))){
+			OutputStream out = socket.getOutputStream();
+			out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(ISO_8859_1));
+			out.flush();
+		}
+		byte[] body = readBody(in, headers);
+		int length = body.length;
+		boolean compressed = "gzip".equalsIgnoreCase(
+				headers.get("content-encoding"));
+		boolean keepAlive = requestLine.endsWith("HTTP/1.1")
+				&& !"close".equalsIgnoreCase(headers.get("connection"));
+		if(compressed && !compression){
+			synchronized(this){
+				requests.add(new Request(path,
+						new HashMap<String, byte[]>(), true, length));
+			}
+			respondStatus(socket.getOutputStream(), "415 Unsupported Media Type",
+					keepAlive);
+			return keepAlive;
+		}
+		if(compressed)
+			body = gunzip(body);
+
+		if(latency > 0)
+			Thread.sleep(latency);
+		int fate = nextFate();
+		if(fate == 1)
+			return false;
+		Map<String, byte[]> fields = parseFields(
+				headers.get("content-type"), body);
+		if(isMalformed(path, fields)){
+			synchronized(this){
+				requests.add(new Request(path, fields, compressed, length));
+			}
+			respondStatus(socket.getOutputStream(), "400 Bad Request",
+					keepAlive);
+			return keepAlive;
+		}
+		String result = receive(path, fields, compressed, length);
+		if(fate == 2)
+			return false;
+		respond(socket.getOutputStream(), result, keepAlive);
+		return keepAlive;
+	}
+
+	static String result(boolean success, String data){
+		return "{\"status\":\"" + (success? "SUCCESS": "FAILURE")
+				+ "\",\"code\":\"\",\"data\":" + data + "}";
+	}
+
+	private synchronized boolean isMalformed(String path,
+			Map<String, byte[]> fields)
+	{
+		if(!path.startsWith(Constants.PROCEDURE_SUBMIT_PATTERN))
+			return false;
+		return malformed.contains(new Request(path, fields, false, 0)
+				.get("savedproc_guid"));
+	}
+
+	// stores a request, returns the response or null if the path is unknown
+	private synchronized String receive(String path,
+			Map<String, byte[]> fields, boolean compressed, int length)
+	{
+		Request request = new Request(path, fields, compressed, length);
+		requests.add(request);
+		if(path.startsWith(Constants.PROCEDURE_BATCH_SUBMIT_PATTERN))
+			return (batches)? receiveBatch(request): null;
+		if(path.startsWith(Constants.BINARY_KNOWN_PATTERN))
+			return (lookups)? receiveLookup(request): null;
+		if(path.startsWith(Constants.BINARY_OFFSET_PATTERN))
+			return (offsets)? receiveOffset(request): null;
+		if(path.startsWith(Constants.PROCEDURE_SUBMIT_PATTERN))
+			return result(receiveCase(request.get("savedproc_guid"),
+					request.get("responses")), "\"\"");
+		return result(receiveChunk(path, request), "\"\"");
+	}
+
+	// stores the responses of a case, expanded from the compact format if
+	// need be, returns whether they were accepted
+	private boolean receiveCase(String guid, String responses){
+		if(guid == null || responses == null || rejected.contains(guid))
+			return false;
+		try {
+			JSONObject json = new JSONObject(responses);
+			if(CompactResponses.isCompact(json))
+				responses = new JSONObject(
+						CompactResponses.decode(json)).toString();
+		} catch (JSONException e) {
+			return false;
+		}
+		cases.put(guid, responses);
+		return true;
+	}
+
+	// stores a batch of cases, returns a result for each
+	private String receiveBatch(Request request){
+		JSONArray results = new JSONArray();
+		try {
+			JSONArray batch = new JSONArray(request.get("cases"));
+			for(int i = 0; i < batch.length(); i++){
+				JSONObject c = batch.getJSONObject(i);
+				String guid = c.getString("savedproc_guid");
+				boolean success = receiveCase(guid, c.getString("responses"));
+				JSONObject result = new JSONObject();
+				result.put("status", success? "SUCCESS": "FAILURE");
+				result.put("code", success? "":
+						APIResultCode.SAVE_FAILED.toString());
+				result.put("encounter", guid);
+				results.put(result);
+			}
+		} catch (JSONException e) {
+			return result(false, JSONObject.quote(e.getMessage()));
+		}
+		return result(true, results.toString());
+	}
+
+	// answers with the digests held of those asked about
+	private String receiveLookup(Request request){
+		JSONArray held = new JSONArray();
+		try {
+			JSONArray binaries = new JSONArray(request.get("binaries"));
+			for(int i = 0; i < binaries.length(); i++){
+				String hash = binaries.getJSONObject(i).getString("hash");
+				if(known.contains(hash))
+					held.put(hash);
+			}
+		} catch (JSONException e) {
+			return result(false, JSONObject.quote(e.getMessage()));
+		}
+		return result(true, held.toString());
+	}
+
+	// answers with the committed offset of a binary
+	private String receiveOffset(Request request){
+		String guid = request.get("binary_guid");
+		String size = request.get("file_size");
+		if(guid == null)
+			return result(false, "\"\"");
+		// a binary of another size is started again
+		int offset = (size != null && sizes.containsKey(guid)
+				&& !size.equals(sizes.get(guid)))? 0: getContiguousLength(guid);
+		return result(true, Integer.toString(offset));
+	}
+
+	// stores a binary chunk, returns whether it was valid
+	private boolean receiveChunk(String path, Request request){
+		Map<String, byte[]> fields = request.fields;
+		boolean hack = path.startsWith(
+				Constants.BINARYCHUNK_HACK_SUBMIT_PATTERN);
+		if(!hack && !path.startsWith(Constants.BINARYCHUNK_SUBMIT_PATTERN))
+			return true;
+		String guid = request.get("binary_guid");
+		String start = request.get("byte_start");
+		String end = request.get("byte_end");
+		byte[] data = fields.get("byte_data");
+		if(guid == null || start == null || end == null || data == null)
+			return false;
+		if(hack)
+			data = Base64.decodeBase64(data);
+		int s = Integer.parseInt(start);
+		if(Integer.parseInt(end) - s != data.length)
+			return false;
+		if(corruption > 0 && random.nextDouble() < corruption){
+			data = data.clone();
+			if(data.length > 0)
+				data[random.nextInt(data.length)] ^= 0x5a;
+			corrupted++;
+		}
+		String chunkHash = request.get("chunk_sha256");
+		if(chunkHash != null && !chunkHash.equals(DigestUtils.sha256Hex(data)))
+			return false;
+		String size = request.get("file_size");
+		TreeMap<Integer, byte[]> received = chunks.get(guid);
+		if(received == null || (size != null && sizes.containsKey(guid)
+				&& !size.equals(sizes.get(guid)))){
+			received = new TreeMap<Integer, byte[]>();
+			chunks.put(guid, received);
+		}
+		if(size != null)
+			sizes.put(guid, size);
+		String fileHash = request.get("file_sha256");
+		if(fileHash != null)
+			fileHashes.put(guid, fileHash);
+		received.put(s, data);
+		// a binary received in full is checked and held by its digest
+		if(size != null && getContiguousLength(guid) == Integer.parseInt(size)){
+			String hash = DigestUtils.sha256Hex(getBinary(guid));
+			String expected = fileHashes.get(guid);
+			if(expected != null && !expected.equals(hash)){
+				chunks.remove(guid);
+				discarded.add(guid);
+				return false;
+			}
+			known.add(hash);
+		}
+		return true;
+	}
+
+	private static void respond(OutputStream out, String json,
+			boolean keepAlive) throws IOException
+	{
+		String connection = "Connection: "
+				+ (keepAlive? "keep-alive": "close") + "\r\n\r\n";
+		if(json == null){
+			respondStatus(out, "404 Not Found", keepAlive);
+			return;
+		}
+		byte[] body = json.getBytes("UTF-8");
+		String head = "HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: application/json\r\n"
+				+ "Content-Length: " + body.length + "\r\n"
+				+ connection;
+		out.write(head.getBytes(ISO_8859_1));
+		out.write(body);
+		out.flush();
+	}
+
+	// sends an empty response with an error status
+	private static void respondStatus(OutputStream out, String status,
+			boolean keepAlive) throws IOException
+	{
+		out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n"
+				+ "Connection: " + (keepAlive? "keep-alive": "close")
+				+ "\r\n\r\n").getBytes(ISO_8859_1));
+		out.flush();
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1){
+			if(b == '\n')
+				break;
+			if(b != '\r')
+				line.write(b);
+		}
+		if(b == -1 && line.size() == 0)
+			return null;
+		return line.toString(ISO_8859_1);
+	}
+
+	static byte[] readBody(InputStream in, Map<String, String> headers)
+		throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		String length = headers.get("content-length");
+		if(length != null){
+			copy(in, body, Integer.parseInt(length));
+		} else if("chunked".equalsIgnoreCase(
+				headers.get("transfer-encoding")))
+		{
+			int size;
+			while((size = Integer.parseInt(
+					readLine(in).split(";")[0].trim(), 16)) > 0)
+			{
+				copy(in, body, size);
+				readLine(in);
+			}
+			while(readLine(in).length() > 0);
+		}
+		return body.toByteArray();
+	}
+
+	static byte[] gunzip(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPInputStream in = new GZIPInputStream(
+				new ByteArrayInputStream(data));
+		byte[] buffer = new byte[8192];
+		int n;
+		while((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+
+	static void copy(InputStream in, OutputStream out, int count)
+		throws IOException
+	{
+		byte[] buffer = new byte[8192];
+		while(count > 0){
+			int n = in.read(buffer, 0, Math.min(buffer.length, count));
+			if(n < 0)
+				throw new IOException("Unexpected end of request");
+			out.write(buffer, 0, n);
+			count -= n;
+		}
+	}
+
+	static Map<String, byte[]> parseFields(String contentType, byte[] body)
+		throws IOException
+	{
+		Map<String, byte[]> fields = new HashMap<String, byte[]>();
+		if(contentType == null)
+			return fields;
+		if(contentType.startsWith("multipart/form-data")){
+			String boundary = "--" + contentType.substring(
+					contentType.indexOf("boundary=") + 9);
+			String text = new String(body, ISO_8859_1);
+			for(String part: text.split(boundary)){
+				int split = part.indexOf("\r\n\r\n");
+				int name = part.indexOf("name=\"");
+				if(split < 0 || name < 0 || name > split)
+					continue;
+				String key = part.substring(name + 6,
+						part.indexOf('"', name + 6));
+				String value = part.substring(split + 4);
+				if(value.endsWith("\r\n"))
+					value = value.substring(0, value.length() - 2);
+				fields.put(key, value.getBytes(ISO_8859_1));
+			}
+		} else {
+			for(String pair: new String(body, "UTF-8").split("&")){
+				int eq = pair.indexOf('=');
+				if(eq < 0)
+					continue;
+				fields.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8")
+						.getBytes("UTF-8"));
+			}
+		}
+		return fields;
+	}
+}
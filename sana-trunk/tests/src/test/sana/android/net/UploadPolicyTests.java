@@ -0,0 +1,125 @@
+package test.sana.android.net;
+
+import junit.framework.TestCase;
+
+import org.sana.android.net.UploadPolicy;
+import org.sana.android.net.UploadPolicy.Allowance;
+import org.sana.android.net.UploadPolicy.Link;
+import org.sana.android.procedure.ProcedureElement.ElementType;
+
+import android.net.ConnectivityManager;
+import android.telephony.TelephonyManager;
+
+/**
+ * Checks what an {@link UploadPolicy} allows over each kind of link.
+ *
+ * @author Sana Development
+ *
+ */
+public class UploadPolicyTests extends TestCase {
+	/** A connection set by the test. */
+	static class FakeConnectivity implements UploadPolicy.ConnectivitySource {
+		Link link = Link.WIFI;
+		boolean roaming = false;
+		double bandwidth = 0;
+
+		public Link getLink(){
+			return link;
+		}
+
+		public boolean isRoaming(){
+			return roaming;
+		}
+
+		public double getBandwidth(){
+			return bandwidth;
+		}
+	}
+
+	public void testClassify(){
+		assertTrue("wifi",
+				UploadPolicy.classify(ConnectivityManager.TYPE_WIFI, 0)
+				== Link.WIFI);
+		assertTrue("edge",
+				UploadPolicy.classify(ConnectivityManager.TYPE_MOBILE,
+				TelephonyManager.NETWORK_TYPE_EDGE) == Link.SLOW);
+		assertTrue("gprs",
+				UploadPolicy.classify(ConnectivityManager.TYPE_MOBILE,
+				TelephonyManager.NETWORK_TYPE_GPRS) == Link.SLOW);
+		assertTrue("umts",
+				UploadPolicy.classify(ConnectivityManager.TYPE_MOBILE,
+				TelephonyManager.NETWORK_TYPE_UMTS) == Link.MOBILE);
+	}
+
+	/** By default pictures wait for 3G, and sounds and files for Wi-Fi. */
+	public void testDefaults(){
+		FakeConnectivity source = new FakeConnectivity();
+		UploadPolicy policy = new UploadPolicy(source);
+		assertTrue(policy.toString(), policy.getAllowance() == Allowance.ALL);
+		source.link = Link.MOBILE;
+		assertTrue(policy.toString(),
+				policy.getAllowance() == Allowance.IMAGES);
+		source.link = Link.SLOW;
+		assertTrue(policy.toString(),
+				policy.getAllowance() == Allowance.RESPONSES);
+		source.link = Link.NONE;
+		assertTrue(policy.toString(),
+				policy.getAllowance() == Allowance.NOTHING);
+	}
+
+	/** A link measured to be slow is treated as slow whatever its type. */
+	public void testMeasuredBandwidth(){
+		FakeConnectivity source = new FakeConnectivity();
+		source.link = Link.MOBILE;
+		UploadPolicy policy = new UploadPolicy(source);
+		policy.setSlowBandwidth(8 * 1024);
+		source.bandwidth = 2 * 1024;
+		assertTrue(policy.toString(), policy.getLink() == Link.SLOW);
+		assertTrue(policy.toString(),
+				policy.getAllowance() == Allowance.RESPONSES);
+		source.link = Link.WIFI;
+		assertTrue("slow wifi " + policy, policy.getLink() == Link.SLOW);
+
+		// an unmeasured or fast link keeps its type
+		source.bandwidth = 0;
+		assertTrue(policy.toString(), policy.getLink() == Link.WIFI);
+		source.bandwidth = 64 * 1024;
+		assertTrue(policy.toString(), policy.getLink() == Link.WIFI);
+	}
+
+	/** Roaming sends no more than the responses, or nothing if disallowed. */
+	public void testRoaming(){
+		FakeConnectivity source = new FakeConnectivity();
+		source.link = Link.MOBILE;
+		source.roaming = true;
+		UploadPolicy policy = new UploadPolicy(source);
+		assertTrue(policy.toString(),
+				policy.getAllowance() == Allowance.RESPONSES);
+		policy.setRoamingAllowed(false);
+		assertTrue(policy.toString(),
+				policy.getAllowance() == Allowance.NOTHING);
+	}
+
+	/** The settings widen what goes over slow and mobile links. */
+	public void testSettings(){
+		FakeConnectivity source = new FakeConnectivity();
+		UploadPolicy policy = new UploadPolicy(source);
+		policy.setSlowAllowance(Allowance.IMAGES);
+		policy.setMobileAllowance(Allowance.ALL);
+		source.link = Link.SLOW;
+		assertTrue(policy.toString(),
+				policy.getAllowance() == Allowance.IMAGES);
+		source.link = Link.MOBILE;
+		assertTrue(policy.toString(), policy.getAllowance() == Allowance.ALL);
+	}
+
+	public void testAllows(){
+		assertTrue("text", Allowance.RESPONSES.allows(ElementType.TEXT));
+		assertTrue("picture", !Allowance.RESPONSES.allows(ElementType.PICTURE));
+		assertTrue("picture", Allowance.IMAGES.allows(ElementType.PICTURE));
+		assertTrue("sound", !Allowance.IMAGES.allows(ElementType.SOUND));
+		assertTrue("file", !Allowance.IMAGES.allows(ElementType.BINARYFILE));
+		assertTrue("sound", Allowance.ALL.allows(ElementType.SOUND));
+		assertTrue("nothing", !Allowance.NOTHING.allows(ElementType.TEXT));
+	}
+}
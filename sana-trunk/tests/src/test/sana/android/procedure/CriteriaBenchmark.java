@@ -0,0 +1,212 @@
+package test.sana.android.procedure;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.sana.android.procedure.DateElement;
+import org.sana.android.procedure.MultiSelectElement;
+import org.sana.android.procedure.ProcedureElement;
+import org.sana.android.procedure.ProcedureElement.ElementType;
+import org.sana.android.procedure.TextEntryElement;
+import org.sana.android.procedure.branching.Criterion;
+import org.sana.android.procedure.branching.Criterion.CriterionType;
+import org.xml.sax.helpers.AttributesImpl;
+
+import android.util.Log;
+
+/**
+ * Measures how many criteria can be checked per millisecond, compiled as
+ * {@link Criterion} now does and interpreted as it once did, by parsing the
+ * value and the answer and splitting multi-select answers on every check.
+ * Each is measured with an answer which stays the same between checks, as
+ * while navigating, and with one which changes before every check. The
+ * criterion types added with compilation are measured on their own. The two
+ * forms must agree on every check.
+ *
+ * @author Sana Development
+ *
+ */
+public class CriteriaBenchmark extends TestCase {
+	public static final String TAG = CriteriaBenchmark.class.getSimpleName();
+
+	/** Number of checks timed for each case. */
+	static final int CHECKS = 200000;
+
+	/** The results for a single case. */
+	public static class Result {
+		public String name;
+		public long interpretedPerMilli;
+		public long compiledPerMilli;
+
+		@Override
+		public String toString(){
+			return (interpretedPerMilli == 0)?
+				String.format("%s: %d compiled checks/ms", name,
+						compiledPerMilli):
+				String.format("%s: %d interpreted, %d compiled checks/ms",
+						name, interpretedPerMilli, compiledPerMilli);
+		}
+	}
+
+	/** A criterion as it was checked before it was compiled. */
+	static class Interpreted {
+		final CriterionType type;
+		final ProcedureElement element;
+		final String value;
+
+		Interpreted(CriterionType type, ProcedureElement element, String value){
+			this.type = type;
+			this.element = element;
+			this.value = value;
+		}
+
+		boolean met(){
+			String userVal = element.getAnswer();
+			if(userVal == null || userVal.length() == 0)
+				return true;
+			if(element.getType() == ElementType.MULTI_SELECT){
+				for(String s: userVal.split(MultiSelectElement.TOKEN_DELIMITER)){
+					if(met(s))
+						return true;
+				}
+				return false;
+			}
+			return met(userVal);
+		}
+
+		boolean met(String userVal){
+			try {
+				switch(type){
+				case EQUALS:
+					return value.equals(userVal);
+				case GREATER:
+					return Double.parseDouble(userVal)
+						> Double.parseDouble(value);
+				case LESS:
+					return Double.parseDouble(userVal)
+						< Double.parseDouble(value);
+				default:
+					throw new IllegalArgumentException(type.toString());
+				}
+			} catch (NumberFormatException e) {
+				return true;
+			}
+		}
+	}
+
+	static AttributesImpl choices(String choices){
+		AttributesImpl attributes = new AttributesImpl();
+		attributes.addAttribute("", "choices", "choices", "CDATA", choices);
+		return attributes;
+	}
+
+	static ProcedureElement entry(String id) throws Exception {
+		return TextEntryElement.fromXML(id, id, "", id, "", "",
+				new AttributesImpl());
+	}
+
+	static ProcedureElement multiSelect(String id) throws Exception {
+		return MultiSelectElement.fromXML(id, id, "", id, "", "",
+				choices("Fever,Cough,Rash,Pain,Vomiting,Diarrhea"));
+	}
+
+	static ProcedureElement date(String id) throws Exception {
+		return DateElement.fromXML(id, id, "", id, "", "",
+				new AttributesImpl());
+	}
+
+	/*
+	 * Times both forms of a criterion over a cycle of answers, which is a
+	 * single answer when it should stay the same.
+	 */
+	static Result run(String name, CriterionType type, ProcedureElement element,
+			String value, String[] answers) throws Exception
+	{
+		Criterion compiled = new Criterion(type, element, value);
+		Interpreted interpreted = new Interpreted(type, element, value);
+		Result result = new Result();
+		result.name = name;
+		// warm up and compare
+		for(int i = 0; i < CHECKS / 10; i++){
+			element.setAnswer(answers[i % answers.length]);
+			assertTrue(name + " disagrees for " + element.getAnswer(),
+					compiled.criterionMet() == interpreted.met());
+		}
+		long start = System.nanoTime();
+		for(int i = 0; i < CHECKS; i++){
+			if(answers.length > 1)
+				element.setAnswer(answers[i % answers.length]);
+			interpreted.met();
+		}
+		result.interpretedPerMilli = perMilli(System.nanoTime() - start);
+		start = System.nanoTime();
+		for(int i = 0; i < CHECKS; i++){
+			if(answers.length > 1)
+				element.setAnswer(answers[i % answers.length]);
+			compiled.criterionMet();
+		}
+		result.compiledPerMilli = perMilli(System.nanoTime() - start);
+		return result;
+	}
+
+	/* Times a criterion type which has no interpreted form. */
+	static Result run(String name, CriterionType type, ProcedureElement element,
+			String value, String answer) throws Exception
+	{
+		Criterion compiled = new Criterion(type, element, value);
+		element.setAnswer(answer);
+		Result result = new Result();
+		result.name = name;
+		for(int i = 0; i < CHECKS / 10; i++)
+			compiled.criterionMet();
+		long start = System.nanoTime();
+		for(int i = 0; i < CHECKS; i++)
+			compiled.criterionMet();
+		result.compiledPerMilli = perMilli(System.nanoTime() - start);
+		return result;
+	}
+
+	static long perMilli(long nanos){
+		return CHECKS * 1000000L / Math.max(nanos, 1);
+	}
+
+	/**
+	 * Runs every case and logs the results.
+	 *
+	 * @throws Exception if a criterion can not be created
+	 */
+	public void testCriteria() throws Exception {
+		ProcedureElement age = entry("age");
+		ProcedureElement symptoms = multiSelect("symptoms");
+		ProcedureElement onset = date("onset");
+		String[] ages = { "12", "35", "47", "71", "unknown" };
+		String[] selections = { "Fever,Cough,", "Rash,", "Pain,Vomiting,",
+				"Cough,Diarrhea,Rash," };
+
+		List<Result> results = new ArrayList<Result>();
+		results.add(run("GREATER, same answer", CriterionType.GREATER, age,
+				"40", new String[]{ "47" }));
+		results.add(run("GREATER, new answers", CriterionType.GREATER, age,
+				"40", ages));
+		results.add(run("LESS, same answer", CriterionType.LESS, age, "18",
+				new String[]{ "12" }));
+		results.add(run("EQUALS multi-select, same answer",
+				CriterionType.EQUALS, symptoms, "Rash",
+				new String[]{ "Cough,Diarrhea,Rash," }));
+		results.add(run("EQUALS multi-select, new answers",
+				CriterionType.EQUALS, symptoms, "Rash", selections));
+		results.add(run("BETWEEN", CriterionType.BETWEEN, age, "18,65", "47"));
+		results.add(run("IN", CriterionType.IN, symptoms, "Rash,Pain",
+				"Cough,Diarrhea,Rash,"));
+		results.add(run("MATCHES", CriterionType.MATCHES, age, "[0-9]{1,3}",
+				"47"));
+		results.add(run("BEFORE", CriterionType.BEFORE, onset, "2012/01/01",
+				"2011/06/15"));
+		results.add(run("COUNT", CriterionType.COUNT, symptoms, "2,",
+				"Cough,Diarrhea,Rash,"));
+		for(Result result: results)
+			Log.i(TAG, result.toString());
+	}
+}
@@ -0,0 +1,69 @@
+package test.sana.android.procedure;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.sana.android.procedure.DateElement;
+import org.w3c.dom.Node;
+
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+/**
+ * Reads the answer of a {@link DateElement} while its picker is shown, which
+ * is where the answer comes from once the element has a view, and checks it
+ * is the date which was set.
+ *
+ * @author Sana Development
+ *
+ */
+public class DateElementTests extends AndroidTestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		// the picker's buttons need a looper on the thread making them
+		if (Looper.myLooper() == null)
+			Looper.prepare();
+	}
+
+	static DateElement createElement(String answer) throws Exception {
+		return DateElement.fromXML("1", "Date of onset?", answer, "ONSET", "",
+				"", (Node) null);
+	}
+
+	/** The picker shows the saved answer, which is read back unchanged. */
+	public void testActiveAnswer() throws Exception {
+		DateElement element = createElement("2012/01/05");
+		element.setAnswer("2012/01/05");
+		element.toView(getContext());
+		assertEquals("2012/01/05", element.getAnswer());
+	}
+
+	/** An answer set while the picker is shown moves the picker to it. */
+	public void testUpdatedAnswer() throws Exception {
+		DateElement element = createElement("");
+		element.toView(getContext());
+		element.setAnswer("1999/12/31");
+		assertEquals("1999/12/31", element.getAnswer());
+	}
+
+	/** Saving and restoring the answer of an active picker keeps the date. */
+	public void testRestoredAnswer() throws Exception {
+		DateElement element = createElement("");
+		element.setAnswer("2010/06/15");
+		element.toView(getContext());
+		for (int i = 0; i < 3; i++)
+			element.setAnswer(element.getAnswer());
+		assertEquals("2010/06/15", element.getAnswer());
+	}
+
+	/** Without an answer the picker shows today. */
+	public void testToday() throws Exception {
+		DateElement element = createElement("");
+		element.setAnswer("");
+		element.toView(getContext());
+		assertEquals(new SimpleDateFormat(DateElement.DATE_FORMAT).format(
+				new Date()), element.getAnswer());
+	}
+}
@@ -0,0 +1,173 @@
+package test.sana.android.procedure;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import org.sana.android.media.EducationResource;
+import org.sana.android.procedure.PagePrefetcher;
+import org.sana.android.procedure.Procedure;
+import org.sana.android.procedure.ProcedurePage;
+import org.xml.sax.InputSource;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * Checks that a {@link PagePrefetcher} looks up the show-able pages predicted
+ * to follow the current one, once each, counts what it had looked up as hits
+ * and drops what was looked up for pages no longer named.
+ *
+ * @author Sana Development
+ *
+ */
+public class PagePrefetcherTests extends TestCase {
+	/** Pages with a figure and a prompt each, the third shown for "Yes". */
+	static final String XML =
+		"<Procedure title=\"Prefetch\" author=\"Sana\">"
+		+ page("1", "") + page("2", "")
+		+ page("3", "<ShowIf><Criteria type=\"EQUALS\" id=\"1\" "
+				+ "value=\"Yes\"/></ShowIf>")
+		+ page("4", "") + page("5", "") + page("6", "")
+		+"</Procedure>";
+
+	static String page(String id, String showIf){
+		return "<Page>" + showIf + "<Element type=\"ENTRY\" concept=\"C" + id
+			+ "\" id=\"" + id + "\" question=\"Q" + id + "\" answer=\"\" "
+			+ "figure=\"drawable/figure_" + id + "\" audio=\"raw/prompt_" + id
+			+ "\"/></Page>";
+	}
+
+	/** Runs lookups as they are queued. */
+	static final Executor DIRECT = new Executor(){
+		public void execute(Runnable r){
+			r.run();
+		}
+	};
+
+	/** Records what is looked up; figures are never found. */
+	static class FakeResolver implements PagePrefetcher.Resolver {
+		final List<String> figures = new ArrayList<String>();
+		final List<String> prompts = new ArrayList<String>();
+		int educationLookups = 0;
+
+		public int getFigureId(String figure){
+			figures.add(figure);
+			return 0;
+		}
+
+		public Drawable getFigure(int id){
+			return null;
+		}
+
+		public int getAudioPromptId(String audioPrompt){
+			prompts.add(audioPrompt);
+			return audioPrompt.hashCode() | 1;
+		}
+
+		public List<EducationResource> findEducationResources(
+				List<String> ids)
+		{
+			educationLookups++;
+			List<EducationResource> found = new ArrayList<EducationResource>();
+			for(int i = 0; i < ids.size(); i++)
+				found.add(new EducationResource());
+			return found;
+		}
+	}
+
+	static Procedure parse() throws Exception {
+		return Procedure.fromXML(new InputSource(new StringReader(XML)));
+	}
+
+	/** The element ids of pages, in order. */
+	static List<String> ids(List<ProcedurePage> pages){
+		List<String> ids = new ArrayList<String>();
+		for(ProcedurePage page: pages)
+			ids.addAll(page.getElementMap().keySet());
+		return ids;
+	}
+
+	/** The current page and those predicted to follow it. */
+	static List<ProcedurePage> named(Procedure p){
+		List<ProcedurePage> pages = new ArrayList<ProcedurePage>();
+		pages.add(p.current());
+		pages.addAll(p.getUpcomingPages(PagePrefetcher.DEPTH));
+		return pages;
+	}
+
+	/** Only the pages which would be shown are predicted. */
+	public void testPrediction() throws Exception {
+		Procedure p = parse();
+		assertTrue("upcoming with no answers " + ids(p.getUpcomingPages(3)),
+				ids(p.getUpcomingPages(3)).toString().equals("[2, 3, 4]"));
+		Map<String, String> answers = new HashMap<String, String>();
+		answers.put("1", "No");
+		p.restoreAnswers(answers);
+		assertTrue("upcoming for No " + ids(p.getUpcomingPages(3)),
+				ids(p.getUpcomingPages(3)).toString().equals("[2, 4, 5]"));
+		p.jumpToPage(4);
+		assertTrue("upcoming near the end " + ids(p.getUpcomingPages(3)),
+				ids(p.getUpcomingPages(3)).toString().equals("[6]"));
+	}
+
+	/** What was looked up ahead of time is a hit, what was not a miss. */
+	public void testHits() throws Exception {
+		Procedure p = parse();
+		FakeResolver resolver = new FakeResolver();
+		PagePrefetcher prefetcher = new PagePrefetcher(resolver, DIRECT);
+		prefetcher.prefetch(named(p));
+		int named = 1 + PagePrefetcher.DEPTH;
+		assertTrue("looked up " + resolver.prompts + " and "
+				+ resolver.educationLookups + " education resources",
+				resolver.prompts.size() == named
+				&& resolver.figures.size() == named
+				&& resolver.educationLookups == named);
+
+		assertTrue("prompt of the next page was not looked up",
+				prefetcher.getAudioPromptId("raw/prompt_2") != 0);
+		assertTrue("education resources of the current page were not looked up",
+				prefetcher.getEducationResources(p.current()).size() == 1);
+		assertTrue("prompt of a page beyond the depth was looked up",
+				prefetcher.getAudioPromptId("raw/prompt_6") == 0);
+		assertTrue("a figure which was not found was handed out",
+				prefetcher.takeFigure("drawable/figure_2") == null);
+		assertEquals(prefetcher.toString(), 2, prefetcher.getHitCount());
+		assertEquals(prefetcher.toString(), 2, prefetcher.getMissCount());
+		assertEquals(prefetcher.toString(), 50, prefetcher.getHitRate());
+
+		// naming the same pages again looks up nothing more
+		prefetcher.prefetch(named(p));
+		assertTrue("pages were looked up twice",
+				resolver.educationLookups == named);
+	}
+
+	/** Pages no longer named are dropped, those newly named looked up. */
+	public void testDropped() throws Exception {
+		Procedure p = parse();
+		FakeResolver resolver = new FakeResolver();
+		PagePrefetcher prefetcher = new PagePrefetcher(resolver, DIRECT);
+		prefetcher.prefetch(named(p));
+		ProcedurePage first = p.current();
+		p.next();
+		prefetcher.prefetch(named(p));
+		assertTrue("the page left behind was kept",
+				prefetcher.getEducationResources(first) == null);
+		assertTrue("the page now shown was dropped",
+				prefetcher.getEducationResources(p.current()) != null);
+		assertTrue(resolver.educationLookups + " pages looked up",
+				resolver.educationLookups == 2 + PagePrefetcher.DEPTH);
+		// going back names the first page again, so it is looked up again
+		p.back();
+		prefetcher.prefetch(named(p));
+		assertTrue("the page gone back to was not looked up",
+				prefetcher.getEducationResources(first) != null);
+		prefetcher.shutdown();
+		assertTrue("shutting down kept what was looked up",
+				prefetcher.getEducationResources(p.current()) == null);
+	}
+}
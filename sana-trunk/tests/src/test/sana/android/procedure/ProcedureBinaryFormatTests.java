@@ -0,0 +1,139 @@
+package test.sana.android.procedure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+import org.sana.android.R;
+import org.sana.android.procedure.Procedure;
+import org.sana.android.procedure.ProcedureTemplate;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Round trip tests of the compiled procedure format over every procedure
+ * bundled in <code>res/raw</code>. Each procedure is compiled, encoded and
+ * decoded, and the decoded template must replay the same events and build
+ * the same Procedure as the DOM parser.
+ *
+ * @author Sana Development
+ *
+ */
+public class ProcedureBinaryFormatTests extends AndroidTestCase {
+	public static final String TAG =
+		ProcedureBinaryFormatTests.class.getSimpleName();
+
+	static String read(Context c, int id) throws IOException {
+		InputStream in = c.getResources().openRawResource(id);
+		try {
+			byte[] data = new byte[in.available()];
+			in.read(data);
+			return new String(data);
+		} finally {
+			try { in.close(); } catch (IOException e) {}
+		}
+	}
+
+	/** The decoded template must record identical events. */
+	static void checkEvents(String name, ProcedureTemplate expected,
+			ProcedureTemplate actual)
+	{
+		assertTrue(name + ": event count",
+				expected.getEventCount() == actual.getEventCount());
+		for(int i = 0; i < expected.getEventCount(); i++){
+			assertTrue(name + ": tag at event " + i,
+					expected.getTag(i).equals(actual.getTag(i)));
+			Attributes a = expected.getAttributes(i);
+			Attributes b = actual.getAttributes(i);
+			if(a == null){
+				assertTrue(name + ": end event " + i, b == null);
+				continue;
+			}
+			assertTrue(name + ": attributes at event " + i,
+					b != null && a.getLength() == b.getLength());
+			for(int j = 0; j < a.getLength(); j++){
+				assertTrue(name + ": attribute " + a.getQName(j)
+						+ " at event " + i,
+						a.getQName(j).equals(b.getQName(j))
+						&& a.getValue(j).equals(b.getValue(j)));
+			}
+		}
+	}
+
+	/** The decoded template must build the same Procedure as the xml. */
+	static void checkProcedure(String name, Procedure expected,
+			Procedure actual)
+	{
+		assertTrue(name + ": title",
+				expected.getTitle().equals(actual.getTitle()));
+		assertTrue(name + ": author",
+				expected.getAuthor().equals(actual.getAuthor()));
+		assertTrue(name + ": guid",
+				expected.getGuid().equals(actual.getGuid()));
+		assertTrue(name + ": page count",
+				expected.getTotalPageCount() == actual.getTotalPageCount());
+		// evaluates the ShowIf criteria of every page
+		assertTrue(name + ": visible page count",
+				expected.getVisiblePageCount() == actual.getVisiblePageCount());
+		assertTrue(name + ": elements",
+				expected.toStringArray().equals(actual.toStringArray()));
+		assertTrue(name + ": answers",
+				expected.toXML().equals(actual.toXML()));
+	}
+
+	/**
+	 * Runs the round trip for a single procedure.
+	 *
+	 * @param name the procedure name used in failure messages
+	 * @param xml the procedure definition
+	 * @return the size of the encoded procedure in bytes
+	 * @throws Exception if the procedure can not be read
+	 */
+	public static int testRoundTrip(String name, String xml) throws Exception {
+		ProcedureTemplate template = ProcedureTemplate.fromXMLString(xml);
+		byte[] data = template.toBytes();
+		ProcedureTemplate decoded = ProcedureTemplate.fromBytes(data);
+		checkEvents(name, template, decoded);
+		assertTrue(name + ": encoding is not stable",
+				Arrays.equals(data, decoded.toBytes()));
+		Procedure dom = Procedure.fromXMLDocument(
+				new InputSource(new StringReader(xml)));
+		checkProcedure(name, dom, decoded.newInstance());
+		// instances must not share state
+		checkProcedure(name, decoded.newInstance(), decoded.newInstance());
+		return data.length;
+	}
+
+	/** Decoding must fail for data which is not a compiled procedure. */
+	public void testInvalidData() {
+		byte[][] invalid = { new byte[0], "<Procedure/>".getBytes() };
+		for(byte[] data: invalid){
+			try {
+				ProcedureTemplate.fromBytes(data);
+				fail("decoded invalid data");
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Runs the round trip over every raw resource and logs the encoded size
+	 * relative to the xml.
+	 *
+	 * @throws Exception if a procedure can not be read
+	 */
+	public void testRawResources() throws Exception {
+		for(Field field: R.raw.class.getFields()){
+			String name = field.getName();
+			String xml = read(getContext(), field.getInt(null));
+			int size = testRoundTrip(name, xml);
+			Log.i(TAG, String.format("%s: %d bytes compiled, %d chars xml",
+					name, size, xml.length()));
+		}
+	}
+}
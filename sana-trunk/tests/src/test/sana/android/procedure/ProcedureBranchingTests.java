@@ -0,0 +1,237 @@
+package test.sana.android.procedure;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.sana.android.procedure.Procedure;
+import org.sana.android.procedure.ProcedureParseException;
+import org.xml.sax.InputSource;
+
+/**
+ * Checks that a procedure which keeps the visibility of its pages between
+ * changes to its answers navigates as one which has just been given the same
+ * answers.
+ *
+ * @author Sana Development
+ *
+ */
+public class ProcedureBranchingTests extends TestCase {
+	public static final String TAG =
+		ProcedureBranchingTests.class.getSimpleName();
+
+	/** Pages whose criteria refer to the answers of earlier pages. */
+	static final String XML =
+		"<Procedure title=\"Branching\" author=\"Sana\">"
+		+"<Page><Element type=\"SELECT\" concept=\"SITE\" id=\"1\" "
+		+"question=\"Site\" answer=\"\" choices=\"Chest,Abdomen,Other\"/>"
+		+"</Page>"
+		+"<Page><ShowIf><Criteria type=\"EQUALS\" id=\"1\" value=\"Abdomen\"/>"
+		+"</ShowIf><Element type=\"ENTRY\" concept=\"AGE\" id=\"2\" "
+		+"question=\"Age\" answer=\"\"/></Page>"
+		+"<Page><ShowIf><and>"
+		+"<Criteria type=\"EQUALS\" id=\"1\" value=\"Abdomen\"/>"
+		+"<Criteria type=\"GREATER\" id=\"2\" value=\"40\"/>"
+		+"</and></ShowIf><Element type=\"ENTRY\" concept=\"PAIN\" id=\"3\" "
+		+"question=\"Pain\" answer=\"\"/></Page>"
+		+"<Page><ShowIf><not><Criteria type=\"LESS\" id=\"2\" value=\"18\"/>"
+		+"</not></ShowIf><Element type=\"ENTRY\" concept=\"WEIGHT\" id=\"4\" "
+		+"question=\"Weight\" answer=\"\"/></Page>"
+		+"<Page><Element type=\"ENTRY\" concept=\"NOTE\" id=\"5\" "
+		+"question=\"Note\" answer=\"\"/></Page>"
+		+"<Page><ShowIf><or>"
+		+"<Criteria type=\"EQUALS\" id=\"3\" value=\"Severe\"/>"
+		+"<Criteria type=\"EQUALS\" id=\"1\" value=\"Chest\"/>"
+		+"</or></ShowIf><Element type=\"ENTRY\" concept=\"REFER\" id=\"6\" "
+		+"question=\"Refer\" answer=\"\"/></Page>"
+		+"<Page><ShowIf><Criteria type=\"EQUALS\" id=\"5\" value=\"Follow\"/>"
+		+"</ShowIf><Element type=\"ENTRY\" concept=\"DATE\" id=\"7\" "
+		+"question=\"Date\" answer=\"\"/></Page>"
+		+"</Procedure>";
+
+	/** Pages shown by each of the other criterion types. */
+	static final String OPERATORS_XML =
+		"<Procedure title=\"Operators\" author=\"Sana\">"
+		+"<Page><Element type=\"MULTI_SELECT\" concept=\"SYMPTOMS\" id=\"1\" "
+		+"question=\"Symptoms\" answer=\"\" choices=\"Fever,Cough,Rash,Pain\"/>"
+		+"</Page>"
+		+"<Page><Element type=\"ENTRY\" concept=\"AGE\" id=\"2\" "
+		+"question=\"Age\" answer=\"\"/></Page>"
+		+"<Page><Element type=\"DATE\" concept=\"ONSET\" id=\"3\" "
+		+"question=\"Onset\" answer=\"\"/></Page>"
+		+ page("BETWEEN", "2", "18,65", "4")
+		+ page("IN", "1", "Rash,Pain", "5")
+		+ page("MATCHES", "2", "[0-9]+", "6")
+		+ page("BEFORE", "3", "2012/01/01", "7")
+		+ page("AFTER", "3", "2012/01/01", "8")
+		+ page("COUNT", "1", "2,", "9")
+		+"</Procedure>";
+
+	static String page(String type, String id, String value, String element){
+		return "<Page><ShowIf><Criteria type=\"" + type + "\" id=\"" + id
+			+ "\" value=\"" + value + "\"/></ShowIf>"
+			+ "<Element type=\"ENTRY\" concept=\"" + type + "\" id=\""
+			+ element + "\" question=\"" + type + "\" answer=\"\"/></Page>";
+	}
+
+	/** Answers tried for each element. */
+	static final String[][] ANSWERS = {
+		{ "", "Chest", "Abdomen", "Other" },
+		{ "", "12", "30", "65", "unknown" },
+		{ "", "Mild", "Severe" },
+		{ "", "70" },
+		{ "", "Follow", "None" },
+		{ "" },
+		{ "" },
+	};
+
+	static Procedure parse() throws Exception {
+		return Procedure.fromXML(new InputSource(new StringReader(XML)));
+	}
+
+	/** The page indices visited going forward, then back, from the start. */
+	static List<Integer> walk(Procedure p){
+		List<Integer> visited = forward(p);
+		while(p.hasPrevShowable()){
+			p.back();
+			visited.add(p.getCurrentIndex());
+		}
+		return visited;
+	}
+
+	/** Both procedures must agree on every query. */
+	static void compare(Procedure cached, Procedure fresh, String answers){
+		assertTrue("visible count for " + answers,
+				cached.getVisiblePageCount() == fresh.getVisiblePageCount());
+		assertTrue("summaries for " + answers,
+				cached.toStringArray().equals(fresh.toStringArray()));
+		for(int i = 0; i < cached.getTotalPageCount(); i++){
+			cached.jumpToPage(i);
+			fresh.jumpToPage(i);
+			assertTrue("visible index of " + i + " for " + answers,
+					cached.getCurrentVisibleIndex()
+					== fresh.getCurrentVisibleIndex());
+			assertTrue("showable neighbours of " + i + " for " + answers,
+					cached.hasNextShowable() == fresh.hasNextShowable()
+					&& cached.hasPrevShowable() == fresh.hasPrevShowable());
+		}
+		for(int i = 0; i < cached.getTotalPageCount(); i++){
+			cached.jumpToVisiblePage(i);
+			fresh.jumpToVisiblePage(i);
+			assertTrue("visible page " + i + " for " + answers,
+					cached.getCurrentIndex() == fresh.getCurrentIndex());
+		}
+		assertTrue("walk for " + answers, walk(cached).equals(walk(fresh)));
+	}
+
+	/** Pages are hidden and shown again as the answers they depend on. */
+	public void testBranching() throws Exception {
+		Procedure p = parse();
+		// a blank answer meets any criterion, so only the negation hides
+		assertTrue(p.getVisiblePageCount()
+				+ " pages shown with no answers",
+				p.getVisiblePageCount() == 6);
+		Map<String, String> answers = new HashMap<String, String>();
+		answers.put("1", "Other");
+		p.restoreAnswers(answers);
+		assertTrue(p.getVisiblePageCount()
+				+ " pages shown for another site",
+				p.getVisiblePageCount() == 4);
+		p.jumpToPage(0);
+		p.advance();
+		assertTrue("advanced to " + p.getCurrentIndex(),
+				p.getCurrentIndex() == 4);
+		answers.put("1", "Abdomen");
+		answers.put("2", "65");
+		p.restoreAnswers(answers);
+		assertTrue(p.getVisiblePageCount()
+				+ " pages shown for the abdomen",
+				p.getVisiblePageCount() == 7);
+		p.back();
+		assertTrue("went back to " + p.getCurrentIndex(),
+				p.getCurrentIndex() == 3);
+	}
+
+	/** The criterion types beyond EQUALS, GREATER and LESS. */
+	public void testOperators() throws Exception {
+		Procedure p = Procedure.fromXML(new InputSource(
+				new StringReader(OPERATORS_XML)));
+		Map<String, String> answers = new HashMap<String, String>();
+		answers.put("1", "Fever,Cough,");
+		answers.put("2", "30");
+		answers.put("3", "2011/12/31");
+		p.restoreAnswers(answers);
+		assertTrue("shown " + forward(p) + " for " + answers,
+				forward(p).equals(Arrays.asList(0, 1, 2, 3, 5, 6, 8)));
+
+		answers.put("1", "Pain,");
+		answers.put("2", "70");
+		answers.put("3", "2012/03/04");
+		p.restoreAnswers(answers);
+		assertTrue("shown " + forward(p) + " for " + answers,
+				forward(p).equals(Arrays.asList(0, 1, 2, 4, 5, 7)));
+
+		// unreadable numbers and blank answers show the page
+		answers.put("1", "");
+		answers.put("2", "unknown");
+		answers.put("3", "");
+		p.restoreAnswers(answers);
+		assertTrue("shown " + forward(p) + " for " + answers,
+				forward(p).equals(Arrays.asList(0, 1, 2, 3, 4, 6, 7, 8)));
+
+		String[][] bad = { { "BETWEEN", "low,high" }, { "MATCHES", "[" },
+				{ "BEFORE", "01/01/2012" }, { "COUNT", "many" } };
+		for(String[] criterion: bad){
+			String xml = OPERATORS_XML.replace("</Procedure>",
+					page(criterion[0], "2", criterion[1], "10")
+					+ "</Procedure>");
+			try {
+				Procedure.fromXML(new InputSource(new StringReader(xml)));
+				assertTrue(criterion[0] + " " + criterion[1] + " was parsed",
+						false);
+			} catch (ProcedureParseException e) {
+				// expected
+			}
+		}
+	}
+
+	/** The page indices visited going forward from the start. */
+	static List<Integer> forward(Procedure p){
+		List<Integer> visited = new ArrayList<Integer>();
+		p.jumpToPage(0);
+		visited.add(p.getCurrentIndex());
+		while(p.hasNextShowable()){
+			p.advance();
+			visited.add(p.getCurrentIndex());
+		}
+		return visited;
+	}
+
+	/**
+	 * Random changes to the answers must leave the procedure navigating as
+	 * one just given them.
+	 */
+	public void testRandomAnswers() throws Exception {
+		Random random = new Random(22);
+		Procedure cached = parse();
+		Map<String, String> answers = new HashMap<String, String>();
+		for(int i = 0; i < 200; i++){
+			int element = random.nextInt(ANSWERS.length);
+			String[] choices = ANSWERS[element];
+			Map<String, String> change = new HashMap<String, String>();
+			change.put(String.valueOf(element + 1),
+					choices[random.nextInt(choices.length)]);
+			answers.putAll(change);
+			cached.restoreAnswers(change);
+			Procedure fresh = parse();
+			fresh.restoreAnswers(answers);
+			compare(cached, fresh, answers.toString());
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package test.sana.android.procedure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+
+import org.sana.android.R;
+import org.sana.android.procedure.Procedure;
+import org.xml.sax.InputSource;
+
+import android.content.Context;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares the streaming and DOM procedure parsers over every procedure
+ * bundled in <code>res/raw</code>. For each file and parser the mean parse
+ * time, the bytes allocated by the parsing thread, and the peak change in
+ * used heap are reported. The peak is sampled by another thread while the
+ * parse runs, so a peak briefer than {@link #SAMPLE_MILLIS} may be missed.
+ *
+ * @author Sana Development
+ *
+ */
+public class ProcedureParserBenchmark extends AndroidTestCase {
+	public static final String TAG =
+		ProcedureParserBenchmark.class.getSimpleName();
+
+	/** Number of times each file is parsed by each parser. */
+	static final int ITERATIONS = 10;
+
+	/** Milliseconds between samples of the used heap. */
+	static final int SAMPLE_MILLIS = 1;
+
+	/** The results for a single file and parser. */
+	public static class Result {
+		public String name;
+		public String parser;
+		public long meanMillis;
+		public long allocatedBytes;
+		public long peakHeapBytes;
+
+		@Override
+		public String toString(){
+			return String.format("%s %s: %d ms, %d bytes allocated, "
+					+"%d bytes peak heap", name, parser, meanMillis,
+					allocatedBytes, peakHeapBytes);
+		}
+	}
+
+	/** Bytes currently used on the Java heap */
+	static long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/** Samples the used heap until finished, keeping the highest. */
+	static class HeapSampler extends Thread {
+		private volatile boolean sampling = true;
+		private long peak = 0;
+
+		HeapSampler(){
+			super(TAG + "-heap");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run(){
+			while(sampling){
+				peak = Math.max(peak, usedHeap());
+				try {
+					Thread.sleep(SAMPLE_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Stops sampling.
+		 *
+		 * @return the highest used heap seen, in bytes
+		 */
+		long finish() throws InterruptedException {
+			sampling = false;
+			interrupt();
+			join();
+			return Math.max(peak, usedHeap());
+		}
+	}
+
+	static Procedure parse(Context c, int id, boolean streaming)
+		throws Exception
+	{
+		InputStream in = c.getResources().openRawResource(id);
+		try {
+			InputSource source = new InputSource(in);
+			return (streaming)? Procedure.fromXML(source):
+				Procedure.fromXMLDocument(source);
+		} finally {
+			try { in.close(); } catch (IOException e) {}
+		}
+	}
+
+	static Result run(Context c, String name, int id, boolean streaming)
+		throws Exception
+	{
+		Result result = new Result();
+		result.name = name;
+		result.parser = (streaming)? "stream": "dom";
+
+		// warm up class loading and the parser factories
+		parse(c, id, streaming);
+
+		long elapsed = 0;
+		long peak = 0;
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocSize();
+		for(int i = 0; i < ITERATIONS; i++){
+			System.gc();
+			long base = usedHeap();
+			HeapSampler sampler = new HeapSampler();
+			sampler.start();
+			long start = System.currentTimeMillis();
+			parse(c, id, streaming);
+			elapsed += System.currentTimeMillis() - start;
+			peak = Math.max(peak, sampler.finish() - base);
+		}
+		Debug.stopAllocCounting();
+		result.allocatedBytes = Debug.getThreadAllocSize() / ITERATIONS;
+		result.meanMillis = elapsed / ITERATIONS;
+		result.peakHeapBytes = peak;
+		return result;
+	}
+
+	/**
+	 * Runs the benchmark over every raw resource and logs the results.
+	 *
+	 * @throws Exception if any procedure fails to parse
+	 */
+	public void testRawResources() throws Exception {
+		Context c = getContext();
+		for(Field field: R.raw.class.getFields()){
+			int id = field.getInt(null);
+			String name = field.getName();
+			Result stream = run(c, name, id, true);
+			Result dom = run(c, name, id, false);
+			Log.i(TAG, stream.toString());
+			Log.i(TAG, dom.toString());
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package test.sana.android.procedure;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.sana.android.R;
+import org.sana.android.db.DispatchableContract.Encounters;
+import org.sana.android.procedure.Procedure;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Measures how long the largest procedures bundled in <code>res/raw</code>
+ * take to show their first page, and how many views they keep. Each is
+ * compared with making the view of every page up front, as the procedure
+ * view once did. The views kept are counted again after stepping through
+ * every page, which the view window should bound.
+ *
+ * @author Sana Development
+ *
+ */
+public class ProcedureViewBenchmark extends AndroidTestCase {
+	public static final String TAG =
+		ProcedureViewBenchmark.class.getSimpleName();
+
+	/** Number of procedures measured, the ones with the most pages. */
+	static final int LARGEST = 3;
+
+	/** Number of times each procedure is measured. */
+	static final int ITERATIONS = 5;
+
+	/** The results for a single procedure. */
+	public static class Result {
+		public String name;
+		public int pages;
+		public long eagerMillis;
+		public int eagerViews;
+		public long firstPageMillis;
+		public int firstPageViews;
+		public int peakViews;
+		public int peakPages;
+
+		@Override
+		public String toString(){
+			return String.format("%s (%d pages): every page %d ms, %d views; "
+					+"first page %d ms, %d views; at most %d views on %d pages "
+					+"while stepping through", name, pages, eagerMillis,
+					eagerViews, firstPageMillis, firstPageViews, peakViews,
+					peakPages);
+		}
+	}
+
+	/** Counts a view and every view under it. */
+	static int countViews(View view){
+		int count = 1;
+		if(view instanceof ViewGroup){
+			ViewGroup group = (ViewGroup) view;
+			for(int i = 0; i < group.getChildCount(); i++)
+				count += countViews(group.getChildAt(i));
+		}
+		return count;
+	}
+
+	static Procedure load(Context c, int id) throws Exception {
+		Procedure p = Procedure.fromRawResource(c, id);
+		// elements which store media look up the saved procedure
+		p.setInstanceUri(ContentUris.withAppendedId(Encounters.CONTENT_URI, 0));
+		return p;
+	}
+
+	static Result run(Context c, String name, int id) throws Exception {
+		Result result = new Result();
+		result.name = name;
+		for(int i = 0; i < ITERATIONS; i++){
+			// every page, as the views were made before the view window
+			Procedure p = load(c, id);
+			result.pages = p.getTotalPageCount();
+			long start = System.currentTimeMillis();
+			int views = 0;
+			for(int page = 0; page < p.getTotalPageCount(); page++){
+				p.jumpToPage(page);
+				views += countViews(p.current().toView(c));
+			}
+			result.eagerMillis += System.currentTimeMillis() - start;
+			result.eagerViews = views;
+			p.clearCachedViews();
+
+			p = load(c, id);
+			start = System.currentTimeMillis();
+			View view = p.toView(c);
+			result.firstPageMillis += System.currentTimeMillis() - start;
+			result.firstPageViews = countViews(view);
+			result.peakViews = Math.max(result.peakViews,
+					result.firstPageViews);
+			while(p.hasNextShowable()){
+				p.advance();
+				result.peakViews = Math.max(result.peakViews,
+						countViews(view));
+				result.peakPages = Math.max(result.peakPages,
+						p.getInflatedPageCount());
+			}
+			p.clearCachedViews();
+		}
+		result.eagerMillis /= ITERATIONS;
+		result.firstPageMillis /= ITERATIONS;
+		return result;
+	}
+
+	/**
+	 * Runs the benchmark over the largest raw resources and logs the results.
+	 *
+	 * @throws Exception if any procedure fails to load
+	 */
+	public void testLargestProcedures() throws Exception {
+		Context c = getContext();
+		final List<Object[]> sizes = new ArrayList<Object[]>();
+		for(Field field: R.raw.class.getFields()){
+			int id = field.getInt(null);
+			int pages = Procedure.fromRawResource(c, id).getTotalPageCount();
+			sizes.add(new Object[]{ field.getName(), id, pages });
+		}
+		Collections.sort(sizes, new Comparator<Object[]>(){
+			public int compare(Object[] a, Object[] b){
+				return (Integer) b[2] - (Integer) a[2];
+			}
+		});
+		for(Object[] size: sizes.subList(0, Math.min(LARGEST, sizes.size()))){
+			Result result = run(c, (String) size[0], (Integer) size[1]);
+			Log.i(TAG, result.toString());
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package test.sana.android.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sana.android.db.DispatchableContract.Encounters;
+import org.sana.android.db.DispatchableContract.UploadQueue;
+import org.sana.android.procedure.Procedure;
+import org.sana.android.service.QueueManager;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Enqueues and drains a large number of encounters through the upload queue,
+ * one at a time and as a batch, checking the order in which they come out
+ * and reporting the mean time of each operation.
+ *
+ * @author Sana Development
+ *
+ */
+public class UploadQueueBenchmark extends AndroidTestCase {
+	public static final String TAG =
+		UploadQueueBenchmark.class.getSimpleName();
+
+	/** Number of encounters queued. */
+	static final int ENCOUNTERS = 10000;
+
+	/** Every this many encounters is queued with a higher priority. */
+	static final int PRIORITY_INTERVAL = 10;
+
+	/** Prefix of the uuid of the test encounters. */
+	static final String UUID_PREFIX = "TEST_QUEUE_";
+
+	/** The results for a single operation. */
+	public static class Result {
+		public String operation;
+		public int count;
+		public long totalMillis;
+
+		Result(String operation, int count, long totalMillis){
+			this.operation = operation;
+			this.count = count;
+			this.totalMillis = totalMillis;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%s: %d in %d ms, %.3f ms each", operation,
+					count, totalMillis, (double) totalMillis / count);
+		}
+	}
+
+	/** Creates the test encounters in one transaction. */
+	static List<Uri> createEncounters(ContentResolver resolver, int count){
+		ContentValues[] values = new ContentValues[count];
+		for(int i = 0; i < count; i++){
+			values[i] = new ContentValues();
+			values[i].put(Encounters.UUID, UUID_PREFIX + i);
+			values[i].put(Encounters.UPLOAD_QUEUE, -1);
+		}
+		resolver.bulkInsert(Encounters.CONTENT_URI, values);
+
+		List<Uri> encounters = new ArrayList<Uri>(count);
+		Cursor cursor = resolver.query(Encounters.CONTENT_URI,
+				new String[]{ Encounters._ID }, Encounters.UUID + " LIKE ?",
+				new String[]{ UUID_PREFIX + "%" }, Encounters._ID + " ASC");
+		try {
+			while(cursor.moveToNext()){
+				encounters.add(ContentUris.withAppendedId(
+						Encounters.CONTENT_URI, cursor.getLong(0)));
+			}
+		} finally {
+			cursor.close();
+		}
+		assertTrue(encounters.size()
+				+ " encounters created of " + count,
+				encounters.size() == count);
+		return encounters;
+	}
+
+	static void deleteEncounters(ContentResolver resolver){
+		resolver.delete(Encounters.CONTENT_URI, Encounters.UUID + " LIKE ?",
+				new String[]{ UUID_PREFIX + "%" });
+	}
+
+	/** The order of the encounters queued by {@link #enqueue(Context, List)} */
+	static List<Uri> expectedOrder(List<Uri> encounters){
+		List<Uri> order = new ArrayList<Uri>(encounters.size());
+		for(int i = 0; i < encounters.size(); i += PRIORITY_INTERVAL)
+			order.add(encounters.get(i));
+		for(int i = 0; i < encounters.size(); i++){
+			if(i % PRIORITY_INTERVAL != 0)
+				order.add(encounters.get(i));
+		}
+		return order;
+	}
+
+	static Result enqueue(Context c, List<Uri> encounters){
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < encounters.size(); i++){
+			int priority = (i % PRIORITY_INTERVAL == 0)?
+				Procedure.PRIORITY_URGENT: Procedure.PRIORITY_ROUTINE;
+			assertTrue(encounters.get(i) + " was not queued",
+					QueueManager.addToQueue(c, encounters.get(i), priority));
+		}
+		return new Result("enqueue", encounters.size(),
+				System.currentTimeMillis() - start);
+	}
+
+	static Result enqueueBatch(Context c, List<Uri> encounters){
+		long start = System.currentTimeMillis();
+		int count = QueueManager.addToQueue(c, encounters);
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue(count + " queued of "
+				+ encounters.size(),
+				count == encounters.size());
+		return new Result("enqueue batch", encounters.size(), elapsed);
+	}
+
+	/** Empties the queue, checking each item comes out in order. */
+	static Result drain(Context c, List<Uri> order){
+		long start = System.currentTimeMillis();
+		for(Uri expected: order){
+			Uri head = QueueManager.peek(c);
+			assertTrue("expected " + expected + " but "
+					+ head + " was next",
+					expected.equals(head));
+			assertTrue(head
+					+ " was not removed",
+					QueueManager.removeFromQueue(c, head,
+					QueueManager.UPLOAD_STATUS_SUCCESS));
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("queue is not empty", QueueManager.isEmpty(c));
+		return new Result("dequeue", order.size(), elapsed);
+	}
+
+	/** Checks that no test encounter is still marked as queued. */
+	static void checkUnqueued(ContentResolver resolver){
+		Cursor cursor = resolver.query(Encounters.CONTENT_URI,
+				new String[]{ Encounters._ID }, Encounters.UUID
+				+ " LIKE ? AND " + Encounters.UPLOAD_QUEUE + " >= 0",
+				new String[]{ UUID_PREFIX + "%" }, null);
+		try {
+			assertTrue(cursor.getCount()
+					+ " encounters still marked as queued",
+					cursor.getCount() == 0);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Runs the benchmark and logs the results. The queue must be empty
+	 * beforehand.
+	 */
+	public void testQueue() {
+		Context c = getContext();
+		ContentResolver resolver = c.getContentResolver();
+		assertTrue("upload queue is in use", QueueManager.isEmpty(c));
+		List<Result> results = new ArrayList<Result>();
+		try {
+			List<Uri> encounters = createEncounters(resolver, ENCOUNTERS);
+
+			results.add(enqueue(c, encounters));
+			assertTrue(QueueManager.size(c)
+					+ " queued of " + ENCOUNTERS,
+					QueueManager.size(c) == ENCOUNTERS);
+			List<Uri> order = expectedOrder(encounters);
+			assertTrue("queue is out of order",
+					order.equals(QueueManager.getQueue(c)));
+
+			// queuing again keeps the place in line
+			Uri last = order.get(order.size() - 1);
+			QueueManager.addToQueue(c, last, Procedure.PRIORITY_URGENT);
+			assertTrue("queued twice", QueueManager.size(c) == ENCOUNTERS);
+			assertTrue("moved to " + QueueManager.queueIndex(c, last),
+					QueueManager.queueIndex(c, last) == ENCOUNTERS - 1);
+
+			results.add(drain(c, order));
+			checkUnqueued(resolver);
+
+			results.add(enqueueBatch(c, encounters));
+			results.add(drain(c, encounters));
+			checkUnqueued(resolver);
+
+			// deleting an encounter takes it out of the queue
+			QueueManager.addToQueue(c, encounters.get(0));
+			deleteEncounters(resolver);
+			assertTrue("deleted encounter still queued",
+					QueueManager.isEmpty(c));
+		} finally {
+			deleteEncounters(resolver);
+			resolver.delete(UploadQueue.CONTENT_URI, null, null);
+		}
+		for(Result result: results)
+			Log.i(TAG, result.toString());
+	}
+}
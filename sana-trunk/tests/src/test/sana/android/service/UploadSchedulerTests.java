@@ -0,0 +1,113 @@
+package test.sana.android.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.sana.android.db.DispatchableContract.Encounters;
+import org.sana.android.procedure.Procedure;
+import org.sana.android.service.UploadScheduler;
+
+import android.content.ContentUris;
+
+/**
+ * Checks the deadlines and expected waits computed by the
+ * {@link UploadScheduler} and the parsing of procedure priorities.
+ *
+ * @author Sana Development
+ *
+ */
+public class UploadSchedulerTests extends TestCase {
+	public static final String TAG =
+		UploadSchedulerTests.class.getSimpleName();
+
+	static UploadScheduler.Entry createEntry(long id, long payload){
+		return new UploadScheduler.Entry(ContentUris.withAppendedId(
+				Encounters.CONTENT_URI, id), Procedure.PRIORITY_ROUTINE,
+				payload, UploadScheduler.getDeadline(0, payload));
+	}
+
+	/**
+	 * A small encounter goes ahead of a large one queued shortly before it,
+	 * but not of one queued long before it.
+	 */
+	public void testDeadline(){
+		long large = UploadScheduler.getDeadline(0, 1024 * 1024);
+		long small = UploadScheduler.getDeadline(60 * 1000, 2048);
+		assertTrue("small encounter " + small
+				+ " behind large encounter " + large,
+				small < large);
+		long late = UploadScheduler.getDeadline(2 * 3600 * 1000, 2048);
+		assertTrue("late encounter " + late
+				+ " ahead of large encounter " + large,
+				late > large);
+		assertTrue("empty payload changes the deadline",
+				UploadScheduler.getDeadline(1000, 0) == 1000);
+	}
+
+	/** Each entry waits for the entries ahead of it. */
+	public void testEstimate(){
+		List<UploadScheduler.Entry> schedule =
+			new ArrayList<UploadScheduler.Entry>();
+		schedule.add(createEntry(1, 4000));
+		schedule.add(createEntry(2, 0));
+		schedule.add(createEntry(3, 8000));
+		UploadScheduler.estimate(schedule, 4000, 500);
+		assertTrue(schedule.get(0).toString(),
+				schedule.get(0).expectedMillis == 1500);
+		assertTrue(schedule.get(1).toString(),
+				schedule.get(1).expectedMillis == 2000);
+		assertTrue(schedule.get(2).toString(),
+				schedule.get(2).expectedMillis == 4500);
+
+		// an unmeasured network falls back to the default bandwidth
+		UploadScheduler.estimate(schedule, 0, -1);
+		assertTrue(schedule.get(0).toString(),
+				schedule.get(0).expectedMillis == 4000 * 1000
+				/ UploadScheduler.DEFAULT_BANDWIDTH);
+	}
+
+	/**
+	 * An entry waiting to retry is expected once it is due, and does not
+	 * hold back the entries behind it.
+	 */
+	public void testRetryEstimate(){
+		List<UploadScheduler.Entry> schedule =
+			new ArrayList<UploadScheduler.Entry>();
+		schedule.add(createEntry(1, 4000));
+		schedule.add(createEntry(2, 4000));
+		schedule.add(createEntry(3, 4000));
+		long now = 1000000;
+		schedule.get(0).nextAttempt = now + 60000;
+		UploadScheduler.estimate(schedule, 4000, 0, now);
+		assertTrue(schedule.get(0).toString(),
+				schedule.get(0).expectedMillis == 61000);
+		assertTrue(schedule.get(1).toString(),
+				schedule.get(1).expectedMillis == 1000);
+		assertTrue(schedule.get(2).toString(),
+				schedule.get(2).expectedMillis == 2000);
+
+		// one which is already due is sent in its place
+		schedule.get(0).nextAttempt = now - 1;
+		UploadScheduler.estimate(schedule, 4000, 0, now);
+		assertTrue(schedule.get(2).toString(),
+				schedule.get(2).expectedMillis == 3000);
+	}
+
+	public void testParsePriority(){
+		assertTrue("missing priority",
+				Procedure.parsePriority(null) == Procedure.PRIORITY_ROUTINE);
+		assertTrue("urgent",
+				Procedure.parsePriority("Urgent") == Procedure.PRIORITY_URGENT);
+		assertTrue("emergency",
+				Procedure.parsePriority(" emergency ")
+				== Procedure.PRIORITY_EMERGENCY);
+		assertTrue("numeric priority",
+				Procedure.parsePriority("2") == Procedure.PRIORITY_EMERGENCY);
+		assertTrue("negative priority",
+				Procedure.parsePriority("-3") == Procedure.PRIORITY_ROUTINE);
+		assertTrue("unknown priority",
+				Procedure.parsePriority("soon") == Procedure.PRIORITY_ROUTINE);
+	}
+}
@@ -0,0 +1,278 @@
+package test.sana.android.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.sana.android.service.BackgroundUploader;
+import org.sana.android.service.UploadWorkerPool;
+
+import android.util.Log;
+
+/**
+ * Hammers an {@link UploadWorkerPool} from several threads at once the way
+ * {@link BackgroundUploader#addProcedureToQueue(android.net.Uri)},
+ * {@link BackgroundUploader#onConnectionChanged()} and
+ * {@link BackgroundUploader#onCredentialsChanged(boolean)} drive it, and
+ * checks that no case is uploaded twice, or by two workers at once, and
+ * that cancelled uploads stay queued.
+ *
+ * @author Sana Development
+ *
+ */
+public class UploadWorkerPoolTests extends TestCase {
+	public static final String TAG =
+		UploadWorkerPoolTests.class.getSimpleName();
+
+	static final int CONCURRENCY = 4;
+	static final int HAMMER_THREADS = 3;
+	static final int ITERATIONS = 400;
+	static final long TIMEOUT = 30000;
+
+	/**
+	 * A queue of cases and a server which records every upload. Each case
+	 * fails with an exception the first time it is sent if it is a multiple
+	 * of seven.
+	 */
+	static class FakeUploader implements UploadWorkerPool.Uploader<Integer> {
+		final List<Integer> queue = new ArrayList<Integer>();
+		final ConcurrentHashMap<Integer, Integer> uploaded =
+			new ConcurrentHashMap<Integer, Integer>();
+		final ConcurrentHashMap<Integer, Boolean> inFlight =
+			new ConcurrentHashMap<Integer, Boolean>();
+		final ConcurrentHashMap<Integer, Boolean> thrown =
+			new ConcurrentHashMap<Integer, Boolean>();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final AtomicInteger cancelled = new AtomicInteger();
+		final AtomicInteger preparedDuringUpload = new AtomicInteger();
+		volatile boolean connected = true;
+		volatile boolean credentialsValid = true;
+		volatile long uploadMillis = 1;
+
+		synchronized void add(Integer item){
+			queue.add(item);
+		}
+
+		synchronized int size(){
+			return queue.size();
+		}
+
+		public boolean canUpload(){
+			return connected && credentialsValid;
+		}
+
+		public void prepare(){
+			if(running.get() != 0)
+				preparedDuringUpload.incrementAndGet();
+		}
+
+		public synchronized List<Integer> next(int count){
+			return new ArrayList<Integer>(queue.subList(0,
+					Math.min(count, queue.size())));
+		}
+
+		public boolean upload(Integer item) throws Exception {
+			if(inFlight.putIfAbsent(item, Boolean.TRUE) != null)
+				overlaps.incrementAndGet();
+			int now = running.incrementAndGet();
+			int max;
+			while((max = maxRunning.get()) < now
+					&& !maxRunning.compareAndSet(max, now));
+			try {
+				try {
+					Thread.sleep(uploadMillis);
+				} catch (InterruptedException e) {
+					// as the upload engine does
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				if(item % 7 == 0 && thrown.putIfAbsent(item, Boolean.TRUE)
+						== null)
+					throw new Exception("first upload of " + item);
+				return true;
+			} finally {
+				running.decrementAndGet();
+				inFlight.remove(item);
+			}
+		}
+
+		public void onUploaded(Integer item, boolean success){
+			assertTrue(item + " failed", success);
+			Integer count = uploaded.putIfAbsent(item, 1);
+			if(count != null)
+				uploaded.put(item, count + 1);
+			synchronized(this){
+				queue.remove(item);
+			}
+		}
+
+		public void onError(Integer item, Throwable e){
+		}
+
+		public void onCancelled(Integer item){
+			cancelled.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Calls into the pool in the way each of the service's entry points
+	 * does, from several threads, while the cases are uploaded.
+	 */
+	public void testHammer() throws InterruptedException {
+		final FakeUploader uploader = new FakeUploader();
+		final UploadWorkerPool<Integer> pool =
+			new UploadWorkerPool<Integer>(uploader, CONCURRENCY);
+		final AtomicInteger ids = new AtomicInteger();
+		final CountDownLatch ready = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(HAMMER_THREADS * 3);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		Runnable addProcedureToQueue = new Runnable(){
+			public void run(){
+				for(int i = 0; i < ITERATIONS; i++){
+					uploader.add(ids.incrementAndGet());
+					if(uploader.canUpload())
+						pool.start();
+				}
+			}
+		};
+		Runnable onConnectionChanged = new Runnable(){
+			public void run(){
+				Random random = new Random();
+				for(int i = 0; i < ITERATIONS; i++){
+					uploader.connected = random.nextInt(4) != 0;
+					if(!uploader.connected)
+						pool.cancel();
+					else if(uploader.credentialsValid)
+						pool.start();
+				}
+			}
+		};
+		Runnable onCredentialsChanged = new Runnable(){
+			public void run(){
+				Random random = new Random();
+				for(int i = 0; i < ITERATIONS; i++){
+					uploader.credentialsValid = random.nextInt(4) != 0;
+					if(uploader.canUpload())
+						pool.start();
+				}
+			}
+		};
+		for(int i = 0; i < HAMMER_THREADS; i++){
+			for(final Runnable hammer: new Runnable[]{ addProcedureToQueue,
+					onConnectionChanged, onCredentialsChanged })
+			{
+				new Thread(){
+					public void run(){
+						try {
+							ready.await();
+							hammer.run();
+						} catch (Throwable e) {
+							synchronized(errors){
+								errors.add(e);
+							}
+						} finally {
+							done.countDown();
+						}
+					}
+				}.start();
+			}
+		}
+		ready.countDown();
+		assertTrue("hammer threads did not finish",
+				done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertTrue("hammer threads failed: " + errors, errors.isEmpty());
+
+		// reconnect and retry until every case is sent
+		uploader.connected = true;
+		uploader.credentialsValid = true;
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while(uploader.size() > 0 && System.currentTimeMillis() < end){
+			pool.start();
+			Thread.sleep(50);
+		}
+		assertTrue("workers did not stop", pool.awaitIdle(TIMEOUT));
+
+		int total = ids.get();
+		assertTrue(uploader.size() + " cases left queued",
+				uploader.size() == 0);
+		assertTrue(uploader.uploaded.size()
+				+ " cases uploaded of " + total,
+				uploader.uploaded.size() == total);
+		for(Integer item: uploader.uploaded.keySet()){
+			assertTrue(item + " uploaded "
+					+ uploader.uploaded.get(item) + " times",
+					uploader.uploaded.get(item) == 1);
+		}
+		assertTrue(uploader.overlaps.get()
+				+ " cases uploaded by two workers at once",
+				uploader.overlaps.get() == 0);
+		assertTrue(uploader.maxRunning.get() + " uploads at once",
+				uploader.maxRunning.get() <= CONCURRENCY);
+		assertTrue("prepared while uploading",
+				uploader.preparedDuringUpload.get() == 0);
+		assertTrue("leases left behind", pool.getLeased().isEmpty());
+		Log.i(TAG, total + " cases uploaded, " + uploader.cancelled.get()
+				+ " uploads cancelled, at most " + uploader.maxRunning.get()
+				+ " at once");
+	}
+
+	/**
+	 * Cancelling stops the uploads in progress, which stay queued, and no
+	 * more are started.
+	 */
+	public void testCancel() throws InterruptedException {
+		FakeUploader uploader = new FakeUploader();
+		uploader.uploadMillis = TIMEOUT;
+		for(int i = 1; i <= CONCURRENCY * 2; i++)
+			uploader.add(i);
+		UploadWorkerPool<Integer> pool =
+			new UploadWorkerPool<Integer>(uploader, CONCURRENCY);
+		pool.start();
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while(uploader.running.get() < CONCURRENCY
+				&& System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertTrue(uploader.running.get()
+				+ " uploads running",
+				uploader.running.get() == CONCURRENCY);
+
+		pool.cancel();
+		assertTrue("workers did not stop", pool.awaitIdle(TIMEOUT));
+		assertTrue(uploader.cancelled.get()
+				+ " uploads cancelled",
+				uploader.cancelled.get() == CONCURRENCY);
+		assertTrue("cancelled uploads reported", uploader.uploaded.isEmpty());
+		assertTrue("cancelled cases dequeued",
+				uploader.size() == CONCURRENCY * 2);
+	}
+
+	/** Lowering the concurrency stops the extra workers. */
+	public void testConcurrency() throws InterruptedException {
+		FakeUploader uploader = new FakeUploader();
+		uploader.uploadMillis = 5;
+		for(int i = 1; i <= 200; i++)
+			uploader.add(i * 7 + 1);
+		UploadWorkerPool<Integer> pool =
+			new UploadWorkerPool<Integer>(uploader, CONCURRENCY);
+		pool.start();
+		Thread.sleep(50);
+		pool.setConcurrency(1);
+		Thread.sleep(50);
+		uploader.maxRunning.set(0);
+		assertTrue("workers did not stop", pool.awaitIdle(TIMEOUT));
+		assertTrue(uploader.maxRunning.get()
+				+ " uploads at once after lowering the concurrency",
+				uploader.maxRunning.get() <= 1);
+		assertTrue(uploader.size() + " cases left queued",
+				uploader.size() == 0);
+	}
+}